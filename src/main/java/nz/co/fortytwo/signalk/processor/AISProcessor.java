@@ -23,6 +23,8 @@
  */
 package nz.co.fortytwo.signalk.processor;
 
+import java.util.List;
+
 import nz.co.fortytwo.signalk.handler.AISHandler;
 import nz.co.fortytwo.signalk.model.SignalKModel;
 
@@ -46,21 +48,25 @@ public class AISProcessor extends SignalkProcessor implements Processor {
 	private static Logger logger = LogManager.getLogger(AISProcessor.class);
 
     /** Reader to parse lines and deliver complete AIS packets.
-     * Updates them into model, and removes the key from the map. */
-   
-	
-    private AISHandler aisHandler = new AISHandler(); 
+     * Updates them into model, and removes the key from the map. 
+     * The handler holds multi-part state, so each thread needs its own when this runs on the AIS workers. */
+    private ThreadLocal<AISHandler> aisHandler = new ThreadLocal<AISHandler>(){
+		@Override
+		protected AISHandler initialValue() {
+			return new AISHandler();
+		}
+	};
 	
 
 	public void process(Exchange exchange) {
 		if (exchange.getIn().getBody() == null)
 			return;
-		if (exchange.getIn().getBody() instanceof String){
+		if (exchange.getIn().getBody() instanceof String && !isJsonMessage(exchange)){
 				
 			String bodyStr = exchange.getIn().getBody(String.class);
 			try{
 				String src = exchange.getIn().getHeader(MSG_SRC_BUS, String.class);
-				SignalKModel model = aisHandler.handle(bodyStr, src);
+				SignalKModel model = aisHandler.get().handle(bodyStr, src);
 				if(model!=null){
 					exchange.getIn().setBody(model);
 				}
@@ -71,6 +77,21 @@ public class AISProcessor extends SignalkProcessor implements Processor {
 			}
 			
 			
+		}else if (exchange.getIn().getBody() instanceof List){
+			//a complete message from the AIS stage, all the fragments in order
+			List<?> fragments = exchange.getIn().getBody(List.class);
+			String src = exchange.getIn().getHeader(MSG_SRC_BUS, String.class);
+			SignalKModel model = null;
+			for(Object fragment : fragments){
+				try{
+					SignalKModel m = aisHandler.get().handle((String) fragment, src);
+					if(m!=null) model = m;
+				} catch (Exception e) {
+					logger.debug(e.getMessage(),e);
+					logger.error(e.getMessage()+" : "+fragment);
+				}
+			}
+			exchange.getIn().setBody(model);
 		}
 
 	}
@@ -25,84 +25,202 @@
  */
 package nz.co.fortytwo.signalk.processor;
 
-import static nz.co.fortytwo.signalk.util.SignalKConstants.LIST;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.value;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self;
 
-import java.util.Iterator;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import com.google.common.collect.Multiset.Entry;
+import com.google.common.collect.ImmutableList;
 import com.google.common.eventbus.Subscribe;
 
-import nz.co.fortytwo.signalk.model.event.PathEvent;
-import nz.co.fortytwo.signalk.util.Util;
+import nz.co.fortytwo.signalk.util.PathRegistry;
+import nz.co.fortytwo.signalk.util.ServerConstants;
+import nz.co.fortytwo.signalk.util.TimingWheel;
 
 /**
- * Periodically run through the AIS entries and remove expired.
+ * Periodically remove the AIS targets that have not been heard from.
+ * <p>
+ * Each vessel context is held in a {@link TimingWheel}, and every change under it moves it to the slot for its new deadline.
+ * The timer route only advances the wheel, and the expired vessels are removed from the model in one commit,
+ * so subscribers get one {@link ChangeSet} for them all.
+ * <p>
+ * The time to keep a target depends on its class, set in config.server.ais.expiry.*, in ms:
+ * class A and class B vessels default to 30 min, aids to navigation to 60 min, and SAR aircraft to 10 min.
+ * AtoN and SAR are recognised by their MMSI, 99MIDxxxx and 111MIDxxx, class B by sensors.ais.class.
  * @author robert
  *
  */
 public class AisExpiryProcessor extends SignalkProcessor  implements Processor {
 
 	private static Logger logger = LogManager.getLogger(AisExpiryProcessor.class);
-	private ConcurrentMap<String, Long> map = new ConcurrentHashMap<>();
-	
+	static final String AIS_CLASS = "sensors.ais.class";
+
+	enum TargetClass {
+		A, B, ATON, SAR
+	}
+
+	private final PathRegistry registry = PathRegistry.getInstance();
+	private final int vesselsId = registry.id(vessels);
+	private final int selfId = registry.id(vessels_dot_self);
+	// vessel context > deadline, guards itself and classes
+	private final TimingWheel<String> wheel = new TimingWheel<>(1000, System.currentTimeMillis());
+	// vessel context > class, worked out when first seen
+	private final Map<String, TargetClass> classes = new HashMap<>();
+	private final long[] ages = new long[TargetClass.values().length];
+	private ModelBatcher batcher;
 	
 	public AisExpiryProcessor(){
-		signalkModel.getEventBus().register(this);
-		for(String key: signalkModel.getKeys()){
-			processPath(key);
+		ages[TargetClass.A.ordinal()] = ServerConstants.getConfigLong(ServerConstants.AIS_EXPIRY_CLASS_A, 30 * 60 * 1000);
+		ages[TargetClass.B.ordinal()] = ServerConstants.getConfigLong(ServerConstants.AIS_EXPIRY_CLASS_B, 30 * 60 * 1000);
+		ages[TargetClass.ATON.ordinal()] = ServerConstants.getConfigLong(ServerConstants.AIS_EXPIRY_ATON, 60 * 60 * 1000);
+		ages[TargetClass.SAR.ordinal()] = ServerConstants.getConfigLong(ServerConstants.AIS_EXPIRY_SAR, 10 * 60 * 1000);
+		ChangeSets.forModel(signalkModel).register(this);
+		long now = System.currentTimeMillis();
+		synchronized (wheel) {
+			for (String key : ImmutableList.copyOf(signalkModel.getKeys())) {
+				int ctx = contextOf(registry.retain(key));
+				if (ctx >= 0 && !wheel.contains(registry.path(ctx)))
+					touch(ctx, now);
+			}
 		}
 	}
 	
 	@Override
 	public void process(Exchange exchange) throws Exception {
 		//event based, just triggers the checking
-		//30 min ago.
-		long millis = System.currentTimeMillis()-(30*60*1000);
-		 Iterator<java.util.Map.Entry<String, Long>> itr = map.entrySet().iterator();
-		while(itr.hasNext()){
-			java.util.Map.Entry<String, Long> e = itr.next();
-			if(millis > e.getValue()){
-				//drop the entry
-				signalkModel.put(e.getKey(), null, "self.ais.expiry");
-				itr.remove();
+		expire(System.currentTimeMillis());
+	}
+
+	/**
+	 * Removes the targets whose time is up
+	 * 
+	 * @param now
+	 * @return the number of keys removed from the model
+	 */
+	int expire(long now) {
+		List<String> expired = new ArrayList<>();
+		synchronized (wheel) {
+			wheel.advance(now, expired);
+			for (String ctx : expired) {
+				classes.remove(ctx);
 			}
 		}
+		if (expired.isEmpty())
+			return 0;
+		int removed = getBatcher().removeAll(expired);
+		if (logger.isDebugEnabled())
+			logger.debug("Expired " + expired.size() + " AIS targets, " + removed + " keys");
+		return removed;
 	}
-	
-	  /**
-     * @param pathEvent the path that was changed
-     */
-    @Subscribe
-    public void recordEvent(PathEvent pathEvent) {
-        if (pathEvent == null)
-            return;
-
-        String path = pathEvent.getPath();
-        processPath(path);
-        
-    }
-
-	private void processPath(String path) {
-		if(StringUtils.isBlank(path)) return;
-		if (path.startsWith(vessels + dot)) {
-			int p1 = path.indexOf(vessels) + vessels.length() + 1;
-			int pos = path.indexOf(".", p1);
-			if (pos < 0)return;
-			path = path.substring(0, pos);
-			if(vessels_dot_self.equals(path))return;
-			map.put(path, System.currentTimeMillis());
+
+	/**
+	 * When the target expires, in ms, or -1 if it is not being tracked
+	 * 
+	 * @param ctx - eg vessels.366951720
+	 * @return
+	 */
+	long getDeadline(String ctx) {
+		synchronized (wheel) {
+			return wheel.getDeadline(ctx);
+		}
+	}
+
+	/**
+	 * @param changes the paths that were changed by a commit
+	 */
+	@Subscribe
+	public void recordChanges(ChangeSet changes) {
+		if (changes == null || changes.isEmpty())
+			return;
+		long now = System.currentTimeMillis();
+		List<String> paths = changes.getPaths();
+		int[] ids = changes.getIds();
+		synchronized (wheel) {
+			int last = -1;
+			for (int x = 0; x < ids.length; x++) {
+				int ctx = contextOf(ids[x]);
+				if (ctx < 0)
+					continue;
+				if (paths.get(x).endsWith(dot + AIS_CLASS) || paths.get(x).endsWith(dot + AIS_CLASS + dot + value)) {
+					// work it out again
+					classes.remove(registry.path(ctx));
+				} else if (ctx == last) {
+					continue;
+				}
+				last = ctx;
+				// a target we have already expired, being removed
+				if (!wheel.contains(registry.path(ctx)) && signalkModel.get(paths.get(x)) == null)
+					continue;
+				touch(ctx, now);
+			}
+		}
+	}
+
+	/**
+	 * The id of the vessel context, eg vessels.366951720, above this path, or -1 for self and anything not under vessels
+	 * 
+	 * @param id
+	 * @return
+	 */
+	private int contextOf(int id) {
+		if (id < 0)
+			return -1;
+		int parent = registry.parent(id);
+		if (parent < 0)
+			return -1;
+		while (parent != vesselsId) {
+			id = parent;
+			parent = registry.parent(id);
+			if (parent < 0)
+				return -1;
+		}
+		return id == selfId ? -1 : id;
+	}
+
+	// must hold wheel
+	private void touch(int ctx, long now) {
+		String path = registry.path(ctx);
+		TargetClass targetClass = classes.get(path);
+		if (targetClass == null) {
+			targetClass = classify(path);
+			classes.put(path, targetClass);
+		}
+		wheel.touch(path, now + ages[targetClass.ordinal()]);
+	}
+
+	TargetClass classify(String ctx) {
+		String mmsi = ctx.substring(Math.max(ctx.lastIndexOf(':'), ctx.lastIndexOf('.')) + 1);
+		if (mmsi.startsWith("111"))
+			return TargetClass.SAR;
+		if (mmsi.startsWith("99"))
+			return TargetClass.ATON;
+		Object aisClass = signalkModel.get(ctx + dot + AIS_CLASS);
+		if (aisClass == null)
+			aisClass = signalkModel.get(ctx + dot + AIS_CLASS + dot + value);
+		if (aisClass != null && "B".equalsIgnoreCase(aisClass.toString()))
+			return TargetClass.B;
+		return TargetClass.A;
+	}
+
+	private synchronized ModelBatcher getBatcher() {
+		if (batcher == null) {
+			batcher = SignalkModelProcessor.getBatcher();
+			if (batcher == null) {
+				// no input route, commit straight away
+				batcher = new ModelBatcher(signalkModel, 1, 100);
+			}
 		}
+		return batcher;
 	}
 
 }
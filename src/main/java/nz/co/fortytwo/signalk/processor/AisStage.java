@@ -0,0 +1,336 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reassembles multi-part !AIVDM messages and throttles updates per MMSI, ahead of the AIS decode workers.
+ * <p>
+ * Fragments are grouped on (source bus, sequence id, channel) and released as a complete list, so a decode worker always gets the whole message.
+ * Groups that are not complete within the fragment timeout are dropped.
+ * <p>
+ * The MMSI and message type are read straight from the 6 bit payload, so a redundant target update is dropped before it is decoded.
+ * Static reports (type 5, 24) are passed at most once per staticInterval, position reports (1,2,3,18,19,27) once per positionInterval, for each MMSI.
+ * An interval of 0 turns that throttle off. Targets not heard for the longest interval are forgotten.
+ * 
+ * @author robert
+ *
+ */
+public class AisStage implements AisStageMBean {
+
+	private static Logger logger = LogManager.getLogger(AisStage.class);
+
+	public static final String AIS_VDM = "!AIVDM";
+
+	private final long fragmentTimeout;
+	private final long staticInterval;
+	private final long positionInterval;
+
+	// bus|seq|channel > group, guarded by this
+	private final Map<String, Group> pending = new HashMap<>();
+	private long lastSweep;
+	// mmsi,type,part > last passed, guarded by this
+	private final Map<Long, Long> lastPassed = new HashMap<>();
+	private long lastPassedSweep;
+
+	private final LongAdder fragments = new LongAdder();
+	private final LongAdder messages = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+	private final LongAdder throttled = new LongAdder();
+	private final LongAdder queueFull = new LongAdder();
+
+	private static class Group {
+		final String[] parts;
+		final long started;
+		int received;
+
+		Group(int count, long started) {
+			this.parts = new String[count];
+			this.started = started;
+		}
+	}
+
+	public AisStage(long fragmentTimeout, long staticInterval, long positionInterval) {
+		this.fragmentTimeout = fragmentTimeout;
+		this.staticInterval = staticInterval;
+		this.positionInterval = positionInterval;
+	}
+
+	/**
+	 * The seda uri for the decode workers, producer and consumer must use the same uri.
+	 * The queue does not block, if the workers fall behind AIS is dropped rather than holding up the input route.
+	 */
+	public static String getUri(int workers, int size) {
+		return "seda:signalk.ais?concurrentConsumers=" + workers + "&size=" + size + "&blockWhenFull=false&purgeWhenStopping=true";
+	}
+
+	/**
+	 * True for sentences this stage takes, own vessel !AIVDO stays on the normal input route.
+	 */
+	public static boolean isAis(String sentence) {
+		return sentence.startsWith(AIS_VDM);
+	}
+
+	/**
+	 * Adds a fragment.
+	 * 
+	 * @param bus - source bus, may be null
+	 * @param sentence - !AIVDM,count,num,seq,channel,payload,fill*cs
+	 * @param now - ms
+	 * @return the complete message in order, or null if there are more fragments to come or the sentence is broken.
+	 */
+	public List<String> add(String bus, String sentence, long now) {
+		fragments.increment();
+		// find the first 5 commas
+		int[] commas = new int[5];
+		int pos = -1;
+		for (int i = 0; i < 5; i++) {
+			pos = sentence.indexOf(',', pos + 1);
+			if (pos < 0) {
+				if (logger.isDebugEnabled())
+					logger.debug("Broken AIS sentence:" + sentence);
+				return null;
+			}
+			commas[i] = pos;
+		}
+		int count;
+		int num;
+		try {
+			count = Integer.parseInt(sentence.substring(commas[0] + 1, commas[1]));
+			num = Integer.parseInt(sentence.substring(commas[1] + 1, commas[2]));
+		} catch (NumberFormatException e) {
+			if (logger.isDebugEnabled())
+				logger.debug("Broken AIS sentence:" + sentence);
+			return null;
+		}
+		if (count <= 1) {
+			messages.increment();
+			return Arrays.asList(sentence);
+		}
+		if (num < 1 || num > count)
+			return null;
+		String key = (bus == null ? "" : bus) + '|' + sentence.substring(commas[2] + 1, commas[4]);
+		synchronized (this) {
+			sweep(now);
+			Group group = pending.get(key);
+			if (group != null && (num == 1 || group.parts.length != count || group.parts[num - 1] != null)) {
+				// restarted, the old one is lost
+				expired.increment();
+				group = null;
+			}
+			if (group == null) {
+				group = new Group(count, now);
+				pending.put(key, group);
+			}
+			group.parts[num - 1] = sentence;
+			group.received++;
+			if (group.received < count)
+				return null;
+			pending.remove(key);
+		}
+		messages.increment();
+		return Arrays.asList(group.parts);
+	}
+
+	private void sweep(long now) {
+		if (now - lastSweep < fragmentTimeout)
+			return;
+		lastSweep = now;
+		Iterator<Group> iter = pending.values().iterator();
+		while (iter.hasNext()) {
+			if (now - iter.next().started > fragmentTimeout) {
+				iter.remove();
+				expired.increment();
+			}
+		}
+	}
+
+	/**
+	 * Checks the per MMSI interval for a complete message.
+	 * 
+	 * @param message - as returned by {@link #add(String, String, long)}
+	 * @param now - ms
+	 * @return true if it should be decoded
+	 */
+	public boolean accept(List<String> message, long now) {
+		if (staticInterval <= 0 && positionInterval <= 0)
+			return true;
+		String payload = payload(message.get(0));
+		// need type, repeat and mmsi, 38 bits
+		if (payload == null || payload.length() < 7)
+			return true;
+		int type = bits(payload, 0, 6);
+		long interval;
+		switch (type) {
+		case 5:
+		case 24:
+			interval = staticInterval;
+			break;
+		case 1:
+		case 2:
+		case 3:
+		case 18:
+		case 19:
+		case 27:
+			interval = positionInterval;
+			break;
+		default:
+			return true;
+		}
+		if (interval <= 0)
+			return true;
+		long mmsi = bits(payload, 8, 30);
+		// type 24 comes in 2 parts (A and B), throttle each one
+		int part = type == 24 ? bits(payload, 38, 2) : 0;
+		Long key = (mmsi << 8) | (type << 2) | part;
+		synchronized (this) {
+			sweepPassed(now);
+			Long last = lastPassed.get(key);
+			if (last != null && now - last < interval) {
+				throttled.increment();
+				return false;
+			}
+			lastPassed.put(key, now);
+		}
+		return true;
+	}
+
+	// drops targets that would pass anyway, so the map only holds those heard within the longest interval
+	private void sweepPassed(long now) {
+		long interval = Math.max(staticInterval, positionInterval);
+		if (now - lastPassedSweep < interval)
+			return;
+		lastPassedSweep = now;
+		Iterator<Long> iter = lastPassed.values().iterator();
+		while (iter.hasNext()) {
+			if (now - iter.next() >= interval)
+				iter.remove();
+		}
+	}
+
+	void queueFull() {
+		queueFull.increment();
+	}
+
+	static String payload(String sentence) {
+		int pos = -1;
+		for (int i = 0; i < 5; i++) {
+			pos = sentence.indexOf(',', pos + 1);
+			if (pos < 0)
+				return null;
+		}
+		int end = sentence.indexOf(',', pos + 1);
+		if (end < 0)
+			return null;
+		return sentence.substring(pos + 1, end);
+	}
+
+	/**
+	 * Reads len bits from the 6 bit armoured payload
+	 */
+	static int bits(String payload, int start, int len) {
+		int val = 0;
+		for (int i = start; i < start + len; i++) {
+			int c = payload.charAt(i / 6) - 48;
+			if (c > 40)
+				c -= 8;
+			int bit = (c >> (5 - (i % 6))) & 1;
+			val = (val << 1) | bit;
+		}
+		return val;
+	}
+
+	public void registerMBean() {
+		try {
+			ObjectName name = new ObjectName(getClass().getName(), "id", "aisStage");
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public long getFragments() {
+		return fragments.sum();
+	}
+
+	@Override
+	public long getMessages() {
+		return messages.sum();
+	}
+
+	@Override
+	public long getExpired() {
+		return expired.sum();
+	}
+
+	@Override
+	public long getThrottled() {
+		return throttled.sum();
+	}
+
+	@Override
+	public long getQueueFull() {
+		return queueFull.sum();
+	}
+
+	@Override
+	public synchronized int getPending() {
+		return pending.size();
+	}
+
+	@Override
+	public synchronized int getThrottleEntries() {
+		return lastPassed.size();
+	}
+
+	@Override
+	public long getStaticInterval() {
+		return staticInterval;
+	}
+
+	@Override
+	public long getPositionInterval() {
+		return positionInterval;
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.MSG_SRC_BUS;
+
+import java.util.List;
+
+import nz.co.fortytwo.signalk.server.CamelContextFactory;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.impl.DefaultProducerTemplate;
+import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logger;
+
+/**
+ * Takes !AIVDM sentences off the input route and hands complete, unthrottled messages to the AIS decode workers.
+ * Everything else carries on down the input route, so own vessel data never waits behind AIS.
+ * 
+ * @author robert
+ * 
+ */
+public class AisStageProcessor extends SignalkProcessor implements Processor {
+
+	private static Logger logger = LogManager.getLogger(AisStageProcessor.class);
+	
+	private AisStage stage;
+	private ProducerTemplate aisProducer;
+	
+	public AisStageProcessor(AisStage stage, String aisUri) {
+		super();
+		this.stage = stage;
+		aisProducer = new DefaultProducerTemplate(CamelContextFactory.getInstance());
+		aisProducer.setDefaultEndpointUri(aisUri);
+		try {
+			aisProducer.start();
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	public void process(Exchange exchange) throws Exception {
+		Object body = exchange.getIn().getBody();
+		if (!(body instanceof String) || !AisStage.isAis((String) body))
+			return;
+		//its ours now
+		exchange.getIn().setBody(null);
+		long now = System.currentTimeMillis();
+		List<String> message = stage.add(exchange.getIn().getHeader(MSG_SRC_BUS, String.class), (String) body, now);
+		if (message == null || !stage.accept(message, now))
+			return;
+		Exchange ex = new DefaultExchange(CamelContextFactory.getInstance());
+		ex.getIn().getHeaders().putAll(exchange.getIn().getHeaders());
+		ex.getIn().setBody(message);
+		aisProducer.send(ex);
+		if (ex.getException() != null) {
+			//workers are behind, drop it
+			stage.queueFull();
+			if (logger.isDebugEnabled())
+				logger.debug("AIS queue full, dropped:" + message);
+		}
+	}
+
+}
@@ -42,13 +42,17 @@ public class AlarmProcessor extends SignalkProcessor implements Processor {
 	private AlarmHandler alarmsHandler = new AlarmHandler();
 	
 	public void process(Exchange exchange) throws Exception {
-		
-		try {
-			alarmsHandler.handle(signalkModel);
-			
-		} catch (Exception e) {
-			logger.error(e);
-		}
+		//one commit, so readers and subscribers see all the keys the handler writes together
+		ModelBatcher.write(signalkModel, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					alarmsHandler.handle(signalkModel);
+				} catch (Exception e) {
+					logger.error(e);
+				}
+			}
+		});
 	}
 
 }
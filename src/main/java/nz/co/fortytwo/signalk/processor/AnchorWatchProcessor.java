@@ -56,20 +56,29 @@ public class AnchorWatchProcessor extends SignalkProcessor implements Processor
 	private static String lonKey = vessels_dot_self_dot+nav_position_longitude;
 	private static String anchorLatKey = vessels_dot_self_dot+nav_anchor_position_latitude;
 	private static String anchorLonKey = vessels_dot_self_dot+nav_anchor_position_longitude;
+	private ModelSnapshots snapshots = ModelSnapshots.forModel(signalkModel);
 	public void process(Exchange exchange) throws Exception {
 		
 		try {
-			Object zonesJson = signalkModel.get(zonesKey);
+			//read position and anchor from the same version of the model
+			ModelSnapshot snapshot = snapshots.current();
+			Object zonesJson = snapshot.get(zonesKey);
 			if(zonesJson !=null && zonesJson instanceof Json && ((Json)zonesJson).isArray() && ((Json)zonesJson).asJsonList().size()>0){
 				//anchor watch is on
-				double lat = (double) signalkModel.get(latKey);
-				double lon = (double) signalkModel.get(lonKey);
-				double anchorLat = (double) signalkModel.get(anchorLatKey);
-				double anchorLon = (double) signalkModel.get(anchorLonKey);
+				double lat = (double) snapshot.get(latKey);
+				double lon = (double) snapshot.get(lonKey);
+				double anchorLat = (double) snapshot.get(anchorLatKey);
+				double anchorLon = (double) snapshot.get(anchorLonKey);
 				//workout distance
 				double distance = Util.haversineMeters(lat,lon,anchorLat, anchorLon);
 				logger.debug("Updating anchor distance:"+distance);
-				signalkModel.put(radiusKey,distance,null, Util.getIsoTimeString(System.currentTimeMillis()));
+				final double radius = distance;
+				ModelBatcher.write(signalkModel, new Runnable() {
+					@Override
+					public void run() {
+						signalkModel.put(radiusKey,radius,null, Util.getIsoTimeString(System.currentTimeMillis()));
+					}
+				});
 			}
 			
 		} catch (Exception e) {
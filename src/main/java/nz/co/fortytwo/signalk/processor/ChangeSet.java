@@ -0,0 +1,110 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * The paths changed by one commit to the signalk model, posted on the model's event bus by {@link ChangeSets}.
+ * <p>
+ * Listeners get one ChangeSet per commit rather than one PathEvent per key, so a delta with ten values is handled once.
+ * The version is the {@link ModelSnapshot} version published with the changes.
+ * 
+ * @author robert
+ *
+ */
+public class ChangeSet {
+
+	private final long sequence;
+	private final long version;
+	private final long timestamp;
+	private final ImmutableList<String> paths;
+	private final int[] ids;
+
+	ChangeSet(long sequence, long version, long timestamp, ImmutableList<String> paths, int[] ids) {
+		this.sequence = sequence;
+		this.version = version;
+		this.timestamp = timestamp;
+		this.paths = paths;
+		this.ids = ids;
+	}
+
+	/**
+	 * Increases by one for every change set posted for the model
+	 * 
+	 * @return
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * The snapshot version that holds these changes. A commit publishes once for all its changes, a change made outside a commit is published on its own before it is posted, so either way the snapshot with this version includes it.
+	 * 
+	 * @return
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * The changed paths, in the order they changed
+	 * 
+	 * @return
+	 */
+	public List<String> getPaths() {
+		return paths;
+	}
+
+	/**
+	 * The {@link nz.co.fortytwo.signalk.util.PathRegistry} ids of the paths, in the same order, do not change the array.
+	 * A path removed from the model has -1 if it was never registered, and its id is released after the listeners are called.
+	 * 
+	 * @return
+	 */
+	public int[] getIds() {
+		return ids;
+	}
+
+	public int size() {
+		return paths.size();
+	}
+
+	public boolean isEmpty() {
+		return paths.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "ChangeSet [sequence=" + sequence + ", version=" + version + ", paths=" + paths.size() + "]";
+	}
+}
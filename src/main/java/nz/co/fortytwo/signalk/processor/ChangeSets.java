@@ -0,0 +1,283 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
+import com.google.common.eventbus.Subscribe;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.event.PathEvent;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.PathRegistry;
+
+/**
+ * Turns the PathEvents of a signalk model into one {@link ChangeSet} per commit.
+ * <p>
+ * The model still posts a PathEvent per key, this is the only listener for them. Between {@link #begin()} and {@link #commit(long)},
+ * which the {@link ModelBatcher} calls around each commit, the paths changed on that thread are gathered and posted as one ChangeSet.
+ * A PathEvent outside a commit, eg from a timer processor or the REST api, is posted straight away as a ChangeSet of one path.
+ * <p>
+ * Listeners should use {@link #register(Object)} and subscribe to ChangeSet, so they are called once per commit, not once per key.
+ * 
+ * @author robert
+ *
+ */
+public class ChangeSets implements ChangeSetsMBean {
+
+	private static Logger logger = LogManager.getLogger(ChangeSets.class);
+
+	// weak identity keys, test models come and go
+	private static final Map<SignalKModel, ChangeSets> instances = new MapMaker().weakKeys().makeMap();
+
+	private final SignalKModel model;
+	private final ModelSnapshots snapshots;
+	private final PathRegistry registry = PathRegistry.getInstance();
+	// paths changed by the commit running on this thread, null if there is none
+	private final ThreadLocal<List<String>> pending = new ThreadLocal<>();
+
+	//stats
+	private long sequence = 0;
+	private long paths = 0;
+	private int lastSize = 0;
+	private int maxSize = 0;
+	private long unbatched = 0;
+
+	ChangeSets(SignalKModel model) {
+		this.model = model;
+		this.snapshots = ModelSnapshots.forModel(model);
+	}
+
+	/**
+	 * The change sets of the main signalk model
+	 * 
+	 * @return
+	 */
+	public static ChangeSets getInstance() {
+		return forModel(SignalKModelFactory.getInstance());
+	}
+
+	/**
+	 * The change sets of this model, created and registered on its event bus the first time.
+	 * 
+	 * @param model
+	 * @return
+	 */
+	public static synchronized ChangeSets forModel(SignalKModel model) {
+		ChangeSets changes = instances.get(model);
+		if (changes == null) {
+			changes = new ChangeSets(model);
+			model.getEventBus().register(changes);
+			instances.put(model, changes);
+			if (model == SignalKModelFactory.getInstance())
+				changes.registerMBean();
+		}
+		return changes;
+	}
+
+	/**
+	 * Registers the stats on JMX
+	 */
+	public void registerMBean() {
+		try {
+			ObjectName name = new ObjectName(getClass().getName(), "id", "changeSets");
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Registers a listener for the ChangeSets of this model
+	 * 
+	 * @param listener - an object with a @Subscribe method taking a {@link ChangeSet}
+	 */
+	public void register(Object listener) {
+		model.getEventBus().register(listener);
+	}
+
+	public void unregister(Object listener) {
+		try {
+			model.getEventBus().unregister(listener);
+		} catch (IllegalArgumentException e) {
+			// not registered
+		}
+	}
+
+	/**
+	 * Start gathering the paths changed on this thread
+	 */
+	public void begin() {
+		if (pending.get() == null)
+			pending.set(new ArrayList<String>());
+	}
+
+	/**
+	 * Post the paths changed on this thread since {@link #begin()} as one ChangeSet
+	 * 
+	 * @param version - the snapshot version holding the changes
+	 * @return the change set, or null if nothing changed
+	 */
+	public ChangeSet commit(long version) {
+		List<String> changed = pending.get();
+		pending.remove();
+		if (changed == null || changed.isEmpty())
+			return null;
+		return post(changed, version);
+	}
+
+	/**
+	 * Gathers the changed path, or posts it alone if there is no commit on this thread
+	 * 
+	 * @param pathEvent
+	 */
+	@Subscribe
+	public void recordEvent(PathEvent pathEvent) {
+		if (pathEvent == null || pathEvent.getPath() == null)
+			return;
+		record(pathEvent.getPath());
+	}
+
+	/**
+	 * For writes that go straight into the model data without an event, the same as a PathEvent for the path
+	 * 
+	 * @param path
+	 */
+	public void record(String path) {
+		List<String> changed = pending.get();
+		if (changed != null) {
+			changed.add(path);
+			return;
+		}
+		synchronized (this) {
+			unbatched++;
+		}
+		// published here on the writing thread, so the version holds the change
+		snapshots.markDirty(path);
+		post(ImmutableList.of(path), snapshots.publish().getVersion());
+	}
+
+	private ChangeSet post(List<String> changed, long version) {
+		ImmutableList<String> list = ImmutableList.copyOf(changed);
+		int[] ids = new int[list.size()];
+		// paths that left the model, released once the listeners have them
+		List<String> removed = null;
+		for (int x = 0; x < ids.length; x++) {
+			String path = list.get(x);
+			if (model.get(path) != null) {
+				ids[x] = registry.retain(path);
+			} else {
+				ids[x] = registry.find(path);
+				if (removed == null)
+					removed = new ArrayList<>();
+				removed.add(path);
+			}
+		}
+		ChangeSet changes;
+		synchronized (this) {
+			sequence++;
+			paths += ids.length;
+			lastSize = ids.length;
+			if (ids.length > maxSize)
+				maxSize = ids.length;
+			changes = new ChangeSet(sequence, version, System.currentTimeMillis(), list, ids);
+		}
+		model.getEventBus().post(changes);
+		// a post from inside a listener is queued, the bus delivers this after every listener has the change set
+		if (removed != null)
+			model.getEventBus().post(new Released(removed));
+		return changes;
+	}
+
+	/**
+	 * Gives the paths that left the model back to the {@link PathRegistry}
+	 * 
+	 * @param released
+	 */
+	@Subscribe
+	public void release(Released released) {
+		for (String path : released.paths) {
+			// unless it was put back in the meantime
+			if (model.get(path) == null)
+				registry.release(path);
+		}
+	}
+
+	// paths removed by a change set, posted after it
+	static class Released {
+		final List<String> paths;
+
+		Released(List<String> paths) {
+			this.paths = paths;
+		}
+	}
+
+	@Override
+	public synchronized long getChangeSets() {
+		return sequence;
+	}
+
+	@Override
+	public synchronized long getPaths() {
+		return paths;
+	}
+
+	@Override
+	public synchronized int getLastSize() {
+		return lastSize;
+	}
+
+	@Override
+	public synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	@Override
+	public synchronized double getAverageSize() {
+		return sequence == 0 ? 0 : (double) paths / sequence;
+	}
+
+	@Override
+	public synchronized long getUnbatched() {
+		return unbatched;
+	}
+
+}
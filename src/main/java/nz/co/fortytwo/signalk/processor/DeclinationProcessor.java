@@ -44,14 +44,17 @@ public class DeclinationProcessor extends SignalkProcessor implements Processor
 	private DeclinationHandler decl = new DeclinationHandler();
 	
 	public void process(Exchange exchange) throws Exception {
-		
-		try {
-		
-			decl.handle(signalkModel);
-			
-		} catch (Exception e) {
-			logger.error(e);
-		}
+		//one commit, so readers and subscribers see all the keys the handler writes together
+		ModelBatcher.write(signalkModel, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					decl.handle(signalkModel);
+				} catch (Exception e) {
+					logger.error(e);
+				}
+			}
+		});
 	}
 
 }
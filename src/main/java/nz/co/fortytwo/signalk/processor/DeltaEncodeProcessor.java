@@ -0,0 +1,78 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.FORMAT_DELTA;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.SIGNALK_FORMAT;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes a model body as delta messages in one pass, using the {@link DeltaWireEncoder}.
+ * The body becomes a list of strings, which the rest of the output route passes straight through.
+ * Full format bodies are left for the json processors.
+ * 
+ * @author robert
+ *
+ */
+public class DeltaEncodeProcessor extends SignalkProcessor implements Processor {
+
+	private static Logger logger = LogManager.getLogger(DeltaEncodeProcessor.class);
+
+	private final ThreadLocal<DeltaWireEncoder> encoders = new ThreadLocal<DeltaWireEncoder>() {
+		@Override
+		protected DeltaWireEncoder initialValue() {
+			return new DeltaWireEncoder(signalkModel);
+		}
+	};
+
+	public void process(Exchange exchange) throws Exception {
+		if (!(exchange.getIn().getBody() instanceof SignalKModel))
+			return;
+		String format = exchange.getIn().getHeader(SIGNALK_FORMAT, String.class);
+		if (StringUtils.isNotBlank(format) && !FORMAT_DELTA.equals(format))
+			return;
+		try {
+			List<String> deltas = new ArrayList<>();
+			encoders.get().encode(exchange.getIn().getBody(SignalKModel.class), deltas);
+			exchange.getIn().setBody(deltas);
+			if (logger.isDebugEnabled())
+				logger.debug("Encoded " + deltas.size() + " deltas");
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+}
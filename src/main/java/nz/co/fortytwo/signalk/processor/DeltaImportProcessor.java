@@ -26,6 +26,7 @@ package nz.co.fortytwo.signalk.processor;
 import mjson.Json;
 import nz.co.fortytwo.signalk.handler.DeltaToMapConverter;
 import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.util.MessageClass;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
@@ -46,9 +47,10 @@ public class DeltaImportProcessor extends SignalkProcessor implements Processor{
 	public void process(Exchange exchange) throws Exception {
 		
 		try {
-			if(exchange.getIn().getBody()==null ||!(exchange.getIn().getBody() instanceof Json)) return;
+			Json json = getJson(exchange, MessageClass.HAS_UPDATES | MessageClass.HAS_PUT);
+			if(json==null) return;
 			
-			SignalKModel model = deltaToMap.handle(exchange.getIn().getBody(Json.class));
+			SignalKModel model = deltaToMap.handle(json);
 			
 			if(model!=null){
 				if(logger.isDebugEnabled())logger.debug("Converted to:"+model);
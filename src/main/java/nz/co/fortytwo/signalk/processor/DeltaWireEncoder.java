@@ -0,0 +1,472 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.CONTEXT;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.PATH;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.UPDATES;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.source;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.sourceRef;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.sources;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.timestamp;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.value;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.values;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import mjson.Json;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.collect.MapMaker;
+import com.google.common.eventbus.Subscribe;
+
+/**
+ * Writes a model fragment as delta messages in one pass over its sorted keys, without building a Json tree.
+ * <p>
+ * This is the reverse of {@link nz.co.fortytwo.signalk.util.JsonStreamConverter}:
+ * <ul>
+ * <li>each vessels.id context is one message</li>
+ * <li>a node is the parent of a value, timestamp, $source or source.* key, ctx.path.value is written as a primitive value,
+ * other ctx.path.field keys as an object value</li>
+ * <li>consecutive nodes with the same source and timestamp share an update</li>
+ * <li>a $source is written as the source object from the sources branch, encoded once and cached until the sources change</li>
+ * </ul>
+ * Meta, values and the private _arduino and _config branches are not written.
+ * <p>
+ * An instance is not thread safe, it reuses its buffers between messages.
+ * 
+ * @author robert
+ *
+ */
+public class DeltaWireEncoder {
+
+	// thread safe, and expensive to create
+	private static final JsonFactory factory = new JsonFactory();
+
+	// encoded source objects per model
+	private static final Map<SignalKModel, Sources> sourcesMap = new MapMaker().weakKeys().makeMap();
+
+	private final Sources sourceFragments;
+	private final Buffer buffer = new Buffer(4096);
+
+	// the current message
+	private JsonGenerator gen;
+	private String ctx;
+	private int updates;
+	// the current update, written after its values
+	private boolean updateOpen;
+	private String group;
+	private String groupTs;
+	private String groupRef;
+	private final List<String> groupSrcKeys = new ArrayList<>();
+	private final List<Object> groupSrcVals = new ArrayList<>();
+	// the current node
+	private String node;
+	private Object nodeValue;
+	private String nodeTs;
+	private String nodeRef;
+	private final List<String> fieldKeys = new ArrayList<>();
+	private final List<Object> fieldVals = new ArrayList<>();
+	private final List<String> srcKeys = new ArrayList<>();
+	private final List<Object> srcVals = new ArrayList<>();
+	// open objects while writing flattened keys
+	private final List<String> open = new ArrayList<>();
+
+	/**
+	 * The encoded source objects of a model, cleared on any change under sources
+	 */
+	static class Sources {
+		private final SignalKModel model;
+		private final ConcurrentHashMap<String, String> fragments = new ConcurrentHashMap<>();
+
+		Sources(SignalKModel model) {
+			this.model = model;
+		}
+
+		@Subscribe
+		public void recordChanges(ChangeSet changes) {
+			if (fragments.isEmpty())
+				return;
+			for (String path : changes.getPaths()) {
+				if (path.startsWith(sources + dot)) {
+					fragments.clear();
+					return;
+				}
+			}
+		}
+
+		/**
+		 * @param ref
+		 * @return the source object as json, or null if there is none
+		 */
+		String get(String ref, DeltaWireEncoder encoder) throws IOException {
+			String fragment = fragments.get(ref);
+			if (fragment == null) {
+				String prefix = sources + dot + ref + dot;
+				NavigableMap<String, Object> node = model.getSubMap(prefix);
+				if (node == null || node.isEmpty())
+					return null;
+				fragment = encoder.writeFragment(prefix, node);
+				fragments.put(ref, fragment);
+			}
+			return fragment;
+		}
+
+		int size() {
+			return fragments.size();
+		}
+	}
+
+	static class Buffer extends ByteArrayOutputStream {
+		Buffer(int size) {
+			super(size);
+		}
+
+		String toUtf8() {
+			return new String(buf, 0, count, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * @param model the model holding the sources branch
+	 */
+	public DeltaWireEncoder(SignalKModel model) {
+		this.sourceFragments = sourcesFor(model);
+	}
+
+	static synchronized Sources sourcesFor(SignalKModel model) {
+		Sources s = sourcesMap.get(model);
+		if (s == null) {
+			s = new Sources(model);
+			ChangeSets.forModel(model).register(s);
+			sourcesMap.put(model, s);
+		}
+		return s;
+	}
+
+	/**
+	 * Encodes the vessels in the model as delta messages.
+	 * 
+	 * @param model the fragment to send
+	 * @param out the messages are added here, one per context
+	 * @return the number of messages added
+	 * @throws IOException
+	 */
+	public int encode(SignalKModel model, Collection<String> out) throws IOException {
+		return encode(model.getSubMap(vessels + dot), out);
+	}
+
+	/**
+	 * Encodes the keys as delta messages.
+	 * 
+	 * @param data sorted flat keys, as the model holds them
+	 * @param out the messages are added here, one per context
+	 * @return the number of messages added
+	 * @throws IOException
+	 */
+	public int encode(NavigableMap<String, Object> data, Collection<String> out) throws IOException {
+		int messages = 0;
+		ctx = null;
+		node = null;
+		try {
+			for (Map.Entry<String, Object> entry : data.entrySet()) {
+				String key = entry.getKey();
+				Object val = entry.getValue();
+				if (val == null || key.contains(".meta.") || key.contains(".values."))
+					continue;
+				if (key.startsWith(vessels_dot_self_dot + "_arduino") || key.startsWith(vessels_dot_self_dot + "_config"))
+					continue;
+				// key is in the current node
+				if (node != null && key.length() > node.length() && key.charAt(node.length()) == '.' && key.startsWith(node)) {
+					addToNode(key.substring(node.length() + 1), val);
+					continue;
+				}
+				flushNode();
+				int i = key.indexOf('.');
+				int end = i < 0 ? -1 : key.indexOf('.', i + 1);
+				if (end < 0)
+					continue;
+				if (ctx == null || end != ctx.length() || !key.startsWith(ctx)) {
+					if (endMessage(out))
+						messages++;
+					startMessage(key.substring(0, end));
+				}
+				String nodeKey = findNode(data, key);
+				if (nodeKey == null) {
+					// a leaf outside any node, eg name or mmsi
+					writeValue(key.substring(ctx.length() + 1), val, null, null);
+					continue;
+				}
+				node = nodeKey;
+				addToNode(key.substring(node.length() + 1), val);
+			}
+			flushNode();
+			if (endMessage(out))
+				messages++;
+		} finally {
+			if (gen != null) {
+				gen.close();
+				gen = null;
+			}
+		}
+		return messages;
+	}
+
+	// the node a key belongs to, or null
+	private String findNode(NavigableMap<String, Object> data, String key) {
+		int last = key.lastIndexOf('.');
+		if (last <= ctx.length())
+			return null;
+		String leaf = key.substring(last + 1);
+		if (value.equals(leaf) || timestamp.equals(leaf) || sourceRef.equals(leaf))
+			return key.substring(0, last);
+		int src = key.indexOf(dot + source + dot, ctx.length());
+		if (src > ctx.length())
+			return key.substring(0, src);
+		// a field of an object value, eg navigation.position.latitude
+		for (String p = key.substring(0, last); p.length() > ctx.length(); p = p.substring(0, p.lastIndexOf('.'))) {
+			if (isNode(data, p))
+				return p;
+		}
+		return null;
+	}
+
+	private boolean isNode(NavigableMap<String, Object> data, String p) {
+		if (data.containsKey(p + dot + timestamp) || data.containsKey(p + dot + sourceRef) || data.containsKey(p + dot + value))
+			return true;
+		String src = data.ceilingKey(p + dot + source + dot);
+		return src != null && src.startsWith(p + dot + source + dot);
+	}
+
+	private void addToNode(String field, Object val) {
+		if (value.equals(field)) {
+			nodeValue = val;
+		} else if (timestamp.equals(field)) {
+			nodeTs = val.toString();
+		} else if (sourceRef.equals(field)) {
+			nodeRef = val.toString();
+		} else if (field.startsWith(source + dot)) {
+			srcKeys.add(field.substring(source.length() + 1));
+			srcVals.add(val);
+		} else {
+			fieldKeys.add(field);
+			fieldVals.add(val);
+		}
+	}
+
+	private void flushNode() throws IOException {
+		if (node == null)
+			return;
+		if (nodeValue != null) {
+			writeValue(node.substring(ctx.length() + 1), nodeValue, null, null);
+		} else if (!fieldKeys.isEmpty()) {
+			writeValue(node.substring(ctx.length() + 1), null, fieldKeys, fieldVals);
+		}
+		node = null;
+		nodeValue = null;
+		nodeTs = null;
+		nodeRef = null;
+		fieldKeys.clear();
+		fieldVals.clear();
+		srcKeys.clear();
+		srcVals.clear();
+	}
+
+	// writes one {path, value} into the update for the current node's source and timestamp
+	private void writeValue(String path, Object val, List<String> keys, List<Object> vals) throws IOException {
+		String g = groupOf();
+		if (updateOpen && !g.equals(group))
+			endUpdate();
+		if (!updateOpen) {
+			group = g;
+			groupTs = nodeTs;
+			groupRef = nodeRef;
+			groupSrcKeys.clear();
+			groupSrcVals.clear();
+			groupSrcKeys.addAll(srcKeys);
+			groupSrcVals.addAll(srcVals);
+			gen.writeStartObject();
+			gen.writeArrayFieldStart(values);
+			updateOpen = true;
+		}
+		gen.writeStartObject();
+		gen.writeStringField(PATH, path);
+		gen.writeFieldName(value);
+		if (keys == null) {
+			writeJson(val);
+		} else {
+			writeObject(keys, vals);
+		}
+		gen.writeEndObject();
+	}
+
+	private String groupOf() {
+		if (node == null)
+			return "";
+		StringBuilder g = new StringBuilder();
+		if (nodeRef != null) {
+			g.append('$').append(nodeRef);
+		} else {
+			for (int x = 0; x < srcKeys.size(); x++) {
+				g.append(srcKeys.get(x)).append('=').append(srcVals.get(x)).append(',');
+			}
+		}
+		if (nodeTs != null)
+			g.append('|').append(nodeTs);
+		return g.toString();
+	}
+
+	private void endUpdate() throws IOException {
+		if (!updateOpen)
+			return;
+		gen.writeEndArray();
+		if (groupRef != null) {
+			String fragment = sourceFragments.get(groupRef, this);
+			if (fragment != null) {
+				gen.writeFieldName(source);
+				gen.writeRawValue(fragment);
+			} else {
+				gen.writeStringField(sourceRef, groupRef);
+			}
+		} else if (!groupSrcKeys.isEmpty()) {
+			gen.writeFieldName(source);
+			writeObject(groupSrcKeys, groupSrcVals);
+		}
+		if (groupTs != null)
+			gen.writeStringField(timestamp, groupTs);
+		gen.writeEndObject();
+		updateOpen = false;
+		updates++;
+	}
+
+	private void startMessage(String context) throws IOException {
+		ctx = context;
+		updates = 0;
+		buffer.reset();
+		gen = factory.createGenerator(buffer);
+		gen.writeStartObject();
+		gen.writeStringField(CONTEXT, ctx);
+		gen.writeArrayFieldStart(UPDATES);
+	}
+
+	// returns true if a message with at least one update was added
+	private boolean endMessage(Collection<String> out) throws IOException {
+		if (gen == null)
+			return false;
+		endUpdate();
+		gen.writeEndArray();
+		gen.writeEndObject();
+		gen.close();
+		gen = null;
+		if (updates == 0)
+			return false;
+		out.add(buffer.toUtf8());
+		return true;
+	}
+
+	// a source object on its own generator, called between updates so the message being written is untouched
+	private String writeFragment(String prefix, NavigableMap<String, Object> node) throws IOException {
+		List<String> keys = new ArrayList<>(node.size());
+		List<Object> vals = new ArrayList<>(node.size());
+		for (Map.Entry<String, Object> entry : node.entrySet()) {
+			if (entry.getValue() == null)
+				continue;
+			keys.add(entry.getKey().substring(prefix.length()));
+			vals.add(entry.getValue());
+		}
+		ByteArrayOutputStream fragment = new ByteArrayOutputStream(128);
+		JsonGenerator current = gen;
+		gen = factory.createGenerator(fragment);
+		try {
+			writeObject(keys, vals);
+		} finally {
+			gen.close();
+			gen = current;
+		}
+		return new String(fragment.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	// writes sorted flat keys as nested objects
+	private void writeObject(List<String> keys, List<Object> vals) throws IOException {
+		gen.writeStartObject();
+		open.clear();
+		for (int x = 0; x < keys.size(); x++) {
+			String[] segs = keys.get(x).split("\\.");
+			int common = 0;
+			while (common < open.size() && common < segs.length - 1 && open.get(common).equals(segs[common]))
+				common++;
+			while (open.size() > common) {
+				gen.writeEndObject();
+				open.remove(open.size() - 1);
+			}
+			for (int s = common; s < segs.length - 1; s++) {
+				gen.writeObjectFieldStart(segs[s]);
+				open.add(segs[s]);
+			}
+			gen.writeFieldName(segs[segs.length - 1]);
+			writeJson(vals.get(x));
+		}
+		while (!open.isEmpty()) {
+			gen.writeEndObject();
+			open.remove(open.size() - 1);
+		}
+		gen.writeEndObject();
+	}
+
+	private void writeJson(Object val) throws IOException {
+		if (val instanceof Double) {
+			gen.writeNumber((Double) val);
+		} else if (val instanceof Float) {
+			gen.writeNumber((Float) val);
+		} else if (val instanceof Long || val instanceof Integer || val instanceof Short) {
+			gen.writeNumber(((Number) val).longValue());
+		} else if (val instanceof Number) {
+			gen.writeNumber(val.toString());
+		} else if (val instanceof Boolean) {
+			gen.writeBoolean((Boolean) val);
+		} else if (val instanceof Json) {
+			gen.writeRawValue(val.toString());
+		} else if (val == null) {
+			gen.writeNull();
+		} else {
+			gen.writeString(val.toString());
+		}
+	}
+
+}
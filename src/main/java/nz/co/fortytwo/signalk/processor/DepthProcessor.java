@@ -51,14 +51,18 @@ public class DepthProcessor extends SignalkProcessor implements Processor {
 
 	
 
-	public void process(Exchange exchange) throws Exception {		
-		try {
-		
-			depth.handle(signalkModel);
-			
-		} catch (Exception e) {
-			logger.error(e);
-		}
+	public void process(Exchange exchange) throws Exception {
+		//one commit, so readers and subscribers see all the keys the handler writes together
+		ModelBatcher.write(signalkModel, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					depth.handle(signalkModel);
+				} catch (Exception e) {
+					logger.error(e);
+				}
+			}
+		});
 	}
 
 	
@@ -29,42 +29,45 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.POLICY_IDEAL;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.POLICY_INSTANT;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.SIGNALK_FORMAT;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
-import static nz.co.fortytwo.signalk.util.SignalKConstants.source;
-import static nz.co.fortytwo.signalk.util.SignalKConstants.sourceRef;
-import static nz.co.fortytwo.signalk.util.SignalKConstants.timestamp;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.value;
 
-import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
-import javax.management.ObjectName;
-
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
 import org.apache.camel.component.websocket.WebsocketConstants;
+import org.apache.camel.impl.DefaultProducerTemplate;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import com.google.common.eventbus.DeadEvent;
-import com.google.common.eventbus.Subscribe;
+import com.google.common.collect.ImmutableList;
 
 import nz.co.fortytwo.signalk.model.SignalKModel;
 import nz.co.fortytwo.signalk.model.event.PathEvent;
 import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.processor.OutputCache.Content;
+import nz.co.fortytwo.signalk.server.CamelContextFactory;
+import nz.co.fortytwo.signalk.server.DeliveryScheduler;
+import nz.co.fortytwo.signalk.server.RouteManager;
 import nz.co.fortytwo.signalk.server.Subscription;
+import nz.co.fortytwo.signalk.server.SubscriptionIndex;
+import nz.co.fortytwo.signalk.server.SubscriptionScheduler;
 import nz.co.fortytwo.signalk.util.ConfigConstants;
+import nz.co.fortytwo.signalk.util.ServerConstants;
 
 /**
  * Exports the signalkModel as a json object.
@@ -75,32 +78,177 @@ import nz.co.fortytwo.signalk.util.ConfigConstants;
 public class FullExportProcessor extends SignalkProcessor implements Processor, FullExportProcessorMBean {
 
 	private static final Logger logger = LogManager.getLogger(FullExportProcessor.class);
-    private static final Timer timer = new Timer("Export Timer", true);
+    private static ProducerTemplate sharedProducer;
 
     private final String wsSession;
     private final String routeId;
     private final AtomicLong lastSend;
-    //private ThreadLocal<ConcurrentLinkedQueue<String>> pendingThreadLocal = new ThreadLocal<>();
-    private final ConcurrentLinkedQueue<String> pendingPaths = new ConcurrentLinkedQueue<>();
+    private final ModelSnapshots snapshots = ModelSnapshots.forModel(signalkModel);
+    private final OutputCache outputs = OutputCache.forModel(signalkModel);
+    private final boolean changesOnly;
+    private final int defaultRefresh;
+    // fixed policy, the paths changed since the last export
+    private final Set<String> changed = ConcurrentHashMap.newKeySet();
+    // the last export, only the scheduler task running it reads and writes these
+    private volatile long sentVersion = -1;
+    private List<Subscription> sentSubscriptions = Collections.emptyList();
+    private int ticks = 0;
 
     public FullExportProcessor(String wsSession, String routeId) {
-        super();
+        super(false);
         this.wsSession = wsSession;
         this.routeId=routeId;
+        changesOnly = ServerConstants.getConfigBoolean(ServerConstants.SUBSCRIPTION_CHANGES_ONLY, true);
+        defaultRefresh = ServerConstants.getConfigInt(ServerConstants.SUBSCRIPTION_REFRESH, 0);
+        //one producer for all the sessions, a template is thread safe
+        outProducer = getSharedProducer();
         lastSend = new AtomicLong(System.currentTimeMillis());
-        signalkModel.getEventBus().register(this);
-        
-       
-        //setup jmx
-        //register the MBean
-		try {
-			ObjectName name = new ObjectName(getClass().getName(),"id",UUID.randomUUID().toString());
-			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			logger.error(e.getMessage(),e);
-		} 
-        
+        //events come from the subscription index, only for paths our subscriptions want
+        SubscriptionIndex.getInstance().addExporter(routeId, this);
+    }
+
+    private static synchronized ProducerTemplate getSharedProducer() {
+        if (sharedProducer == null) {
+            sharedProducer = new DefaultProducerTemplate(CamelContextFactory.getInstance());
+            sharedProducer.setDefaultEndpointUri(RouteManager.SEDA_COMMON_OUT);
+            try {
+                sharedProducer.start();
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        return sharedProducer;
+    }
+
+    /**
+     * Sends this route's subscriptions to the session, called each period by the {@link SubscriptionScheduler}.
+     * Fixed subscriptions get the full tree the first time, then only the nodes changed since the last export,
+     * and the full tree again every refresh periods if they asked for it.
+     */
+    public void export() {
+        DeliveryScheduler.getInstance().discard(routeId);
+        lastSend.set(System.currentTimeMillis());
+        Map<String, Object> headers = new HashMap<>();
+        setHeaders(headers);
+        List<Subscription> subs = getActive();
+        ticks++;
+        boolean full = isFullTree(subs);
+        // take the changes before the snapshot, it is published before they are recorded so it has them all
+        Set<String> paths = takeChanged();
+        //sessions with the same subscriptions share one encoded output per version
+        final ModelSnapshot snapshot = snapshots.current();
+        ImmutableList<String> out;
+        if (full) {
+            out = outputs.get(snapshot, getSubscribed(), (String) headers.get(SIGNALK_FORMAT), Content.TREE,
+                    new Callable<SignalKModel>() {
+                        @Override
+                        public SignalKModel call() throws Exception {
+                            return createTree(routeId, snapshot);
+                        }
+                    });
+            ticks = 0;
+            sentSubscriptions = subs;
+        } else {
+            if (paths.isEmpty())
+                return;
+            out = outputs.get(snapshot, paths, (String) headers.get(SIGNALK_FORMAT), Content.NODES, createNodes(paths, snapshot));
+        }
+        sentVersion = snapshot.getVersion();
+        if (out.isEmpty())
+            return;
+        if (logger.isDebugEnabled())
+            logger.debug("Exporting " + (full ? "tree" : paths.size() + " changes") + " for " + routeId + " with headers " + headers);
+        asyncSendBodyAndHeaders(outProducer, out, headers);
+    }
+
+    private boolean isFullTree(List<Subscription> subs) {
+        if (!changesOnly || subs.isEmpty() || !POLICY_FIXED.equals(subs.get(0).getPolicy()))
+            return true;
+        // first export, or the subscriptions changed
+        if (sentVersion < 0 || !subs.equals(sentSubscriptions))
+            return true;
+        int refresh = subs.get(0).getRefresh() < 0 ? defaultRefresh : subs.get(0).getRefresh();
+        return refresh > 0 && ticks >= refresh;
+    }
+
+    private Set<String> takeChanged() {
+        Set<String> paths = new HashSet<>();
+        for (Iterator<String> it = changed.iterator(); it.hasNext();) {
+            paths.add(it.next());
+            it.remove();
+        }
+        return paths;
+    }
+
+    // each changed key with the rest of its node, eg timestamp and source
+    private Callable<SignalKModel> createNodes(final Collection<String> paths, final ModelSnapshot snapshot) {
+        return new Callable<SignalKModel>() {
+            @Override
+            public SignalKModel call() throws Exception {
+                SignalKModel temp = SignalKModelFactory.getCleanInstance();
+                for (String path : paths) {
+                    addNode(snapshot, path, temp.getFullData());
+                }
+                return temp;
+            }
+        };
+    }
+
+    /**
+     * Adds a changed key with what belongs with it: ctx.path.value with the rest of ctx.path,
+     * a key of an object value, eg navigation.position.latitude, with the timestamp and source of navigation.position,
+     * or a whole node, eg navigation.position when only its timestamp changed.
+     * 
+     * @param snapshot
+     * @param path
+     * @param out
+     */
+    static void addNode(ModelSnapshot snapshot, String path, Map<String, Object> out) {
+        String node = path;
+        if (path.endsWith(dot + value)) {
+            node = path.substring(0, path.length() - value.length() - 1);
+        } else {
+            Object val = snapshot.get(path);
+            int pos = path.lastIndexOf('.');
+            if (val != null && pos > 0) {
+                out.put(path, val);
+                String parent = path.substring(0, pos);
+                for (Map.Entry<String, Object> entry : snapshot.getSubMap(parent + dot).entrySet()) {
+                    if (entry.getValue() != null && parent.equals(SubscriptionIndex.metaNode(entry.getKey())))
+                        out.put(entry.getKey(), entry.getValue());
+                }
+                return;
+            }
+        }
+        Object val = snapshot.get(node);
+        if (val != null)
+            out.put(node, val);
+        for (Map.Entry<String, Object> entry : snapshot.getSubMap(node + dot).entrySet()) {
+            String key = entry.getKey();
+            if (key.contains(".meta.") || key.contains(".values."))
+                continue;
+            if (entry.getValue() != null)
+                out.put(key, entry.getValue());
+        }
+    }
+
+    /**
+     * @return the snapshot version of the last export, -1 before the first
+     */
+    public long getSentVersion() {
+        return sentVersion;
+    }
+
+    public String getRouteId() {
+        return routeId;
+    }
+
+    public String getWsSession() {
+        return wsSession;
+    }
+
+    public long getLastSend() {
+        return lastSend.get();
     }
     
 	
@@ -111,11 +259,11 @@ public class FullExportProcessor extends SignalkProcessor implements Processor,
 
 	            // Clear the pending paths as we are about to send all.
 	            
-	            pendingPaths.clear();
+	            DeliveryScheduler.getInstance().discard(routeId);
 	            lastSend.set(System.currentTimeMillis());
 
 	            // get the accumulated delta nodes.
-	            exchange.getIn().setBody(createTree(routeId));
+	            exchange.getIn().setBody(createTree(routeId, snapshots.current()));
 	            setHeaders(exchange);
 	            if (logger.isDebugEnabled()) {
 	                logger.debug("Headers set to :" + exchange.getIn().getHeaders());
@@ -145,15 +293,19 @@ public class FullExportProcessor extends SignalkProcessor implements Processor,
 	}*/
 
 	 private void setHeaders(Exchange exchange) {
+	        setHeaders(exchange.getIn().getHeaders());
+	    }
+
+	 private void setHeaders(Map<String, Object> headers) {
 	        for (Subscription sub : manager.getSubscriptions(wsSession)) {
 	            if (sub == null || !sub.isActive() || !routeId.equals(sub.getRouteId()))
 	                continue;
-	            exchange.getIn().setHeader(SIGNALK_FORMAT, sub.getFormat());
+	            headers.put(SIGNALK_FORMAT, sub.getFormat());
 	            if (sub.getDestination() != null) {
-	                exchange.getIn().setHeader(ConfigConstants.DESTINATION, sub.getDestination());
+	                headers.put(ConfigConstants.DESTINATION, sub.getDestination());
 	            }
-	            exchange.getIn().setHeader(ConfigConstants.OUTPUT_TYPE, manager.getOutputType(sub.getWsSession()));
-	            exchange.getIn().setHeader(WebsocketConstants.CONNECTION_KEY, sub.getWsSession());
+	            headers.put(ConfigConstants.OUTPUT_TYPE, manager.getOutputType(sub.getWsSession()));
+	            headers.put(WebsocketConstants.CONNECTION_KEY, sub.getWsSession());
 
 	        }
 	    }
@@ -169,21 +321,43 @@ public class FullExportProcessor extends SignalkProcessor implements Processor,
 	        return false;
 	    }
 
-	   private SignalKModel createTree(String routeId) {
+	 private List<Subscription> getActive() {
+	        List<Subscription> subs = new ArrayList<>();
+	        for (Subscription sub : manager.getSubscriptions(wsSession)) {
+	            if (sub != null && sub.isActive() && routeId.equals(sub.getRouteId())) {
+	                subs.add(sub);
+	            }
+	        }
+	        return subs;
+	    }
+
+	 private List<String> getSubscribed() {
+	        List<String> paths = new ArrayList<>();
+	        for (Subscription sub : manager.getSubscriptions(wsSession)) {
+	            if (sub != null && sub.isActive() && routeId.equals(sub.getRouteId())) {
+	                paths.addAll(sub.getSubscribed(null));
+	            }
+	        }
+	        return paths;
+	    }
+
+	   //one consistent version of the model for the whole tree
+	   private SignalKModel createTree(String routeId, ModelSnapshot snapshot) {
 	        SignalKModel temp = SignalKModelFactory.getCleanInstance();
 	        if(logger.isDebugEnabled())logger.debug("subs for ws:" + wsSession + " = " + manager.getSubscriptions(wsSession));
 	        for (Subscription sub : manager.getSubscriptions(wsSession)) {
 	            if (sub != null && sub.isActive() && routeId.equals(sub.getRouteId())) {
 	            	if(logger.isDebugEnabled())logger.debug("Found active sub:" + sub);
 	                for (String p : sub.getSubscribed(null)) {
-	                    NavigableMap<String, Object> node = signalkModel.getSubMap(p);
+	                    NavigableMap<String, Object> node = snapshot.getSubMap(p);
 	                    if(logger.isDebugEnabled())logger.debug("Found node:" + p + " = " + node);
-	                    for (String key:node.keySet()){
+	                    for (Map.Entry<String, Object> entry:node.entrySet()){
+	                    	String key = entry.getKey();
 	                    	if(key.contains(".meta."))continue;
 	                    	if(key.contains(".values."))continue;
 	                    	//if(key.contains(".source"))continue;
 	                    	//if(key.contains(".$source"))continue;
-	                    	Object val = node.get(key);
+	                    	Object val = entry.getValue();
 	                    	if(val!=null){
 	                    		temp.getData().put(key,val);
 	                    	}
@@ -214,10 +388,11 @@ public class FullExportProcessor extends SignalkProcessor implements Processor,
 	
 	
 
-	  /**
+    /**
+     * Checks the path against this route's subscriptions, as the subscription index would.
+     * 
      * @param pathEvent the path that was changed
      */
-    @Subscribe
     public void recordEvent(PathEvent pathEvent) {
         if (pathEvent == null)
             return;
@@ -226,50 +401,51 @@ public class FullExportProcessor extends SignalkProcessor implements Processor,
         if (path == null)
             return;
         
-        if(path.endsWith(dot+source)
-    			|| path.endsWith(dot+timestamp)
-    			|| path.contains(dot+source+dot)
-    			|| path.endsWith(dot+sourceRef)){
-        	return;
-        }
-        // Send update if necessary.
+        // a timestamp or source is sent as its node, the same as the index does
+        String node = SubscriptionIndex.metaNode(path);
         for (Subscription s : manager.getSubscriptions(wsSession)) {
             if (s.isActive() && s.isSubscribed(path) && routeId.equals(s.getRouteId())) {
-                switch (s.getPolicy()) {
-                    case POLICY_INSTANT:
-                        // Always send now.
-                        send(Collections.singletonList(path),s);
-                        return;
-                    case POLICY_IDEAL:
-                        // Schedule a timer if the queue is currently empty.
-                    	
-                        boolean schedule = pendingPaths.isEmpty();
-                        pendingPaths.add(path);
-
-                        if (schedule) {
-                            TimerTask task = new TimerTask() {
-                                @Override
-                                public void run() {
-                                    List<String> paths = new ArrayList<>();
-                                    for (String path = pendingPaths.poll(); path != null; path = pendingPaths.poll()) {
-                                        paths.add(path);
-                                    }
-                                    send(paths,s);
-                                }
-                            };
-                            // Schedule to send minPeriod after the last send; if that's in the past the task will run immediately.
-                            timer.schedule(task, new Date(lastSend.get() + s.getMinPeriod()));
-                        }
-                        return;
-                    case POLICY_FIXED:
-                    default:
-                        // Updates will be sent at the next period.
-                        break;
-                }
+            	recordEvent(node == null ? path : node, s);
+            	return;
             }
         }
     }
 
+    /**
+     * Called when a path our subscription wants has changed.
+     * 
+     * @param path the path that was changed
+     * @param s the active subscription on this route that matched
+     */
+    public void recordEvent(String path, final Subscription s) {
+        recordEvents(Collections.singletonList(path), s);
+    }
+
+    /**
+     * Called by the {@link SubscriptionIndex} with the paths of one {@link ChangeSet} our subscription wants.
+     * 
+     * @param paths the paths that were changed
+     * @param s the active subscription on this route that matched
+     */
+    public void recordEvents(Collection<String> paths, final Subscription s) {
+        if (paths.isEmpty())
+            return;
+        // Send update if necessary.
+        switch (s.getPolicy()) {
+            case POLICY_INSTANT:
+            case POLICY_IDEAL:
+                // Queue for the delivery scheduler, which coalesces them per route and sends off this thread.
+                DeliveryScheduler.getInstance().offer(this, s, paths);
+                return;
+            case POLICY_FIXED:
+            default:
+                // Updates will be sent at the next period.
+                if (changesOnly)
+                    changed.addAll(paths);
+                break;
+        }
+    }
+
     /**
 	 * @param pathEvent
 	 */
@@ -292,30 +468,40 @@ public class FullExportProcessor extends SignalkProcessor implements Processor,
 		}
 
 	}*/
-	@Subscribe
-	public void recordEvent(DeadEvent e) {
-		logger.debug("Received dead event" + e.getSource());
-	}
 
 
-    private void send(Collection<String> paths, Subscription sub) {
+    /**
+     * Sends the current values of the paths to the session now, called by the {@link DeliveryScheduler}.
+     * 
+     * @param paths the changed paths
+     * @param sub the subscription they matched
+     */
+    public void deliver(Collection<String> paths, Subscription sub) {
+        send(paths, sub);
+    }
+
+    private void send(final Collection<String> paths, Subscription sub) {
         if (paths.isEmpty()) {
             return;
         }
 
-        SignalKModel temp = SignalKModelFactory.getCleanInstance();
-        boolean send = false;
-        for (String path : paths) {
-            Object node = signalkModel.get(path);
-            if (node != null) {
-                temp.getFullData().put(path, node);
-                send = true;
+        //sessions sent the same change set share one encoded delta
+        final ModelSnapshot snapshot = snapshots.current();
+        ImmutableList<String> out = outputs.get(snapshot, paths, FORMAT_DELTA, Content.PATHS, new Callable<SignalKModel>() {
+            @Override
+            public SignalKModel call() throws Exception {
+                // a timestamp or source change comes as its node, which has no key of its own
+                SignalKModel temp = SignalKModelFactory.getCleanInstance();
+                for (String path : paths) {
+                    addNode(snapshot, path, temp.getFullData());
+                }
+                return temp.getFullData().isEmpty() ? null : temp;
             }
-        }
+        });
 
-        if (send) {
+        if (!out.isEmpty()) {
             if (logger.isDebugEnabled()) {
-                logger.debug("Sending : " + temp.getKeys());
+                logger.debug("Sending : " + paths);
             }
 
             Map<String, Object> headers = new HashMap<>();
@@ -324,7 +510,7 @@ public class FullExportProcessor extends SignalkProcessor implements Processor,
             if (sub.getDestination() != null) {
             	headers.put(ConfigConstants.DESTINATION, sub.getDestination());
             }
-            asyncSendBodyAndHeaders(outProducer,temp, headers);
+            asyncSendBodyAndHeaders(outProducer, out, headers);
             lastSend.set(System.currentTimeMillis());
         } else {
             if (logger.isDebugEnabled()) {
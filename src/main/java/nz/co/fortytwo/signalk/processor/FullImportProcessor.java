@@ -29,6 +29,7 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
 import mjson.Json;
 import nz.co.fortytwo.signalk.handler.FullToMapConverter;
 import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.util.MessageClass;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
@@ -49,9 +50,9 @@ public class FullImportProcessor extends SignalkProcessor implements Processor{
 	public void process(Exchange exchange) throws Exception {
 		
 		try {
-			if(exchange.getIn().getBody()==null ||!(exchange.getIn().getBody() instanceof Json)) return;
+			Json node = getJson(exchange, MessageClass.HAS_VESSELS | MessageClass.HAS_CONFIG | MessageClass.HAS_RESOURCES);
+			if(node==null) return;
 			//we only process full format
-			Json node = exchange.getIn().getBody(Json.class);
 			if(node.has(vessels) || node.has(CONFIG) || node.has(resources)){
 				SignalKModel model = fullToMap.handle(node);
 				if(logger.isDebugEnabled())logger.debug("Converted to:"+model);
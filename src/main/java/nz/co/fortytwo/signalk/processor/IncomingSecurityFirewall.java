@@ -45,6 +45,8 @@ import org.apache.logging.log4j.Logger;
 
 import mjson.Json;
 import nz.co.fortytwo.signalk.util.ConfigConstants;
+import nz.co.fortytwo.signalk.util.MessageClass;
+import nz.co.fortytwo.signalk.util.ServerConstants;
 import nz.co.fortytwo.signalk.util.Util;
 
 /**
@@ -153,6 +155,18 @@ public class IncomingSecurityFirewall extends SignalkProcessor implements
 			// exchange.getIn().setHeader(MSG_APPROVAL,
 			// REQUIRED);
 			// filter for evil
+			// use the classification if the json hasnt been parsed yet
+			MessageClass mc = exchange.getIn().getHeader(ServerConstants.MSG_CLASS, MessageClass.class);
+			if (!(exchange.getIn().getBody() instanceof Json) && mc != null) {
+				if (mc.hasAny(MessageClass.HAS_UPDATES | MessageClass.HAS_PUT)
+						&& mc.getContext() != null && mc.getContext().contains(self)) {
+					if (logger.isDebugEnabled())
+						logger.debug("Message DENIED for src ip (spoofing self):"
+								+ srcIp);
+					exchange.getIn().setBody(null);
+				}
+				return;
+			}
 			Json node = exchange.getIn().getBody(Json.class);
 
 			if (node.at(UPDATES) != null
@@ -0,0 +1,332 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.server.Nmea0183FrameDecoder;
+
+/**
+ * Drops repeated sentences and enforces a maximum rate per sentence type or signalk path prefix.
+ * <p>
+ * Sentences are tracked per (source bus, talker, sentence type). A sentence is a duplicate if it hashes the same as the last one
+ * seen for that key within the dedup window. Rates are in messages per second, eg 'RMC:1,GGA:1' or 'navigation.position:1,environment.wind:2'.
+ * The sentence rate applies per source bus, the path rate per vessel.
+ * 
+ * @author robert
+ *
+ */
+public class IngestThrottle implements IngestThrottleMBean {
+
+	private static Logger logger = LogManager.getLogger(IngestThrottle.class);
+
+	private final boolean dedup;
+	private final long dedupWindow;
+	private final String sentenceRates;
+	private final String pathRates;
+	// packed sentence type > min interval in ms
+	private final Map<Integer, Long> typeIntervals = new HashMap<>();
+	// path prefix > min interval in ms, in config order
+	private final Map<String, Long> pathIntervals = new LinkedHashMap<>();
+
+	// bus > packed talker+type > state
+	private final ConcurrentHashMap<String, ConcurrentHashMap<Long, SentenceState>> sentences = new ConcurrentHashMap<>();
+	// vessel context + path prefix > last time passed, dropped once unused for the longest interval, when it would pass anyway
+	private final Cache<String, Long> pathLastPassed;
+
+	private final LongAdder passed = new LongAdder();
+	private final LongAdder duplicates = new LongAdder();
+	private final LongAdder rateLimited = new LongAdder();
+	private final LongAdder pathKeysLimited = new LongAdder();
+
+	private static class SentenceState {
+		long hash;
+		long lastSeen = Long.MIN_VALUE;
+		long lastPassed = Long.MIN_VALUE;
+	}
+
+	/**
+	 * @param dedup - drop exact repeats
+	 * @param dedupWindow - ms, a repeat older than this is passed so the model timestamp still moves
+	 * @param sentenceRates - eg 'RMC:1,GGA:0.5', may be null
+	 * @param pathRates - eg 'navigation.position:1', may be null
+	 */
+	public IngestThrottle(boolean dedup, long dedupWindow, String sentenceRates, String pathRates) {
+		this.dedup = dedup;
+		this.dedupWindow = dedupWindow;
+		this.sentenceRates = sentenceRates;
+		this.pathRates = pathRates;
+		for (Map.Entry<String, Long> e : parseRates(sentenceRates).entrySet()) {
+			typeIntervals.put(Nmea0183FrameDecoder.packType(e.getKey()), e.getValue());
+		}
+		pathIntervals.putAll(parseRates(pathRates));
+		long maxInterval = 1;
+		for (Long interval : pathIntervals.values()) {
+			maxInterval = Math.max(maxInterval, interval);
+		}
+		pathLastPassed = CacheBuilder.newBuilder().expireAfterAccess(maxInterval, TimeUnit.MILLISECONDS).build();
+	}
+
+	/**
+	 * Parses 'name:rate,name:rate' into name > min interval in ms
+	 */
+	static Map<String, Long> parseRates(String rates) {
+		Map<String, Long> map = new LinkedHashMap<>();
+		if (StringUtils.isBlank(rates))
+			return map;
+		for (String entry : StringUtils.split(rates, ',')) {
+			int pos = entry.lastIndexOf(':');
+			if (pos < 1) {
+				logger.warn("Ignoring rate without a ':' :" + entry);
+				continue;
+			}
+			try {
+				double hz = Double.valueOf(entry.substring(pos + 1).trim());
+				if (hz <= 0)
+					throw new NumberFormatException("must be > 0");
+				map.put(entry.substring(0, pos).trim(), (long) (1000 / hz));
+			} catch (NumberFormatException e) {
+				logger.warn("Ignoring bad rate:" + entry + ", " + e.getMessage());
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * True if there is anything to do, so the route can leave the throttle out entirely
+	 */
+	public boolean isEnabled() {
+		return dedup || !typeIntervals.isEmpty() || !pathIntervals.isEmpty();
+	}
+
+	public boolean hasPathRates() {
+		return !pathIntervals.isEmpty();
+	}
+
+	/**
+	 * Checks an NMEA or AIS sentence.
+	 * 
+	 * @param bus - the source bus, may be null
+	 * @param sentence - eg $GPRMC,...
+	 * @param now - ms
+	 * @return true if the sentence should be processed
+	 */
+	public boolean accept(String bus, String sentence, long now) {
+		if (sentence.length() < 6 || (sentence.charAt(0) != '$' && sentence.charAt(0) != '!')) {
+			passed.increment();
+			return true;
+		}
+		int talker = ((sentence.charAt(1) & 0xff) << 8) | (sentence.charAt(2) & 0xff);
+		int type = ((sentence.charAt(3) & 0xff) << 16) | ((sentence.charAt(4) & 0xff) << 8) | (sentence.charAt(5) & 0xff);
+		Long interval = typeIntervals.get(type);
+		if (!dedup && interval == null) {
+			passed.increment();
+			return true;
+		}
+		if (bus == null)
+			bus = "";
+		ConcurrentHashMap<Long, SentenceState> busMap = sentences.get(bus);
+		if (busMap == null) {
+			busMap = new ConcurrentHashMap<>();
+			ConcurrentHashMap<Long, SentenceState> old = sentences.putIfAbsent(bus, busMap);
+			if (old != null)
+				busMap = old;
+		}
+		Long key = ((long) talker << 24) | type;
+		SentenceState state = busMap.get(key);
+		if (state == null) {
+			state = new SentenceState();
+			SentenceState old = busMap.putIfAbsent(key, state);
+			if (old != null)
+				state = old;
+		}
+		synchronized (state) {
+			if (dedup) {
+				long hash = hash(sentence);
+				boolean repeat = hash == state.hash && now - state.lastSeen < dedupWindow;
+				state.hash = hash;
+				state.lastSeen = now;
+				if (repeat) {
+					duplicates.increment();
+					return false;
+				}
+			}
+			if (interval != null) {
+				if (state.lastPassed != Long.MIN_VALUE && now - state.lastPassed < interval) {
+					rateLimited.increment();
+					return false;
+				}
+				state.lastPassed = now;
+			}
+		}
+		passed.increment();
+		return true;
+	}
+
+	/**
+	 * Removes keys under a rate limited path prefix from a decoded fragment, if that prefix was passed too recently for the vessel.
+	 * All the keys under a prefix in one fragment are passed or removed together.
+	 * 
+	 * @param fragment
+	 * @param now - ms
+	 * @return the number of keys removed
+	 */
+	public int filter(SignalKModel fragment, long now) {
+		if (pathIntervals.isEmpty())
+			return 0;
+		// ctx+prefix > pass, decided once per fragment
+		Map<String, Boolean> decisions = null;
+		int removed = 0;
+		Iterator<Map.Entry<String, Object>> iter = fragment.getFullData().entrySet().iterator();
+		while (iter.hasNext()) {
+			String key = iter.next().getKey();
+			if (!key.startsWith(vessels + dot))
+				continue;
+			int ctxEnd = key.indexOf('.', vessels.length() + 1);
+			if (ctxEnd < 0)
+				continue;
+			String prefix = match(key, ctxEnd + 1);
+			if (prefix == null)
+				continue;
+			String stateKey = key.substring(0, ctxEnd + 1) + prefix;
+			if (decisions == null)
+				decisions = new HashMap<>();
+			Boolean pass = decisions.get(stateKey);
+			if (pass == null) {
+				Long last = pathLastPassed.getIfPresent(stateKey);
+				pass = last == null || now - last >= pathIntervals.get(prefix);
+				if (pass)
+					pathLastPassed.put(stateKey, now);
+				decisions.put(stateKey, pass);
+			}
+			if (!pass) {
+				iter.remove();
+				removed++;
+			}
+		}
+		if (removed > 0)
+			pathKeysLimited.add(removed);
+		return removed;
+	}
+
+	private String match(String key, int start) {
+		for (String prefix : pathIntervals.keySet()) {
+			if (key.startsWith(prefix, start)) {
+				int end = start + prefix.length();
+				if (end == key.length() || key.charAt(end) == '.')
+					return prefix;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 64 bit FNV-1a of the sentence chars
+	 */
+	static long hash(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	public void registerMBean() {
+		try {
+			ObjectName name = new ObjectName(getClass().getName(), "id", "ingestThrottle");
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public long getPassed() {
+		return passed.sum();
+	}
+
+	@Override
+	public long getDuplicates() {
+		return duplicates.sum();
+	}
+
+	@Override
+	public long getRateLimited() {
+		return rateLimited.sum();
+	}
+
+	@Override
+	public long getPathKeysLimited() {
+		return pathKeysLimited.sum();
+	}
+
+	@Override
+	public long getPathStates() {
+		pathLastPassed.cleanUp();
+		return pathLastPassed.size();
+	}
+
+	@Override
+	public long getDedupWindow() {
+		return dedup ? dedupWindow : 0;
+	}
+
+	@Override
+	public String getSentenceRates() {
+		return sentenceRates;
+	}
+
+	@Override
+	public String getPathRates() {
+		return pathRates;
+	}
+}
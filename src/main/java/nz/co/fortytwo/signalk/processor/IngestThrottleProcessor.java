@@ -0,0 +1,92 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.MSG_SRC_BUS;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.util.ServerConstants;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logger;
+
+/**
+ * Drops duplicate and over-rate NMEA/AIS sentences before they are decoded, and strips rate limited paths from decoded updates.
+ * <p>
+ * The same processor sits before NMEAProcessor for sentences and after the imports for paths. See {@link IngestThrottle} for the config.
+ * 
+ * @author robert
+ * 
+ */
+public class IngestThrottleProcessor extends SignalkProcessor implements Processor {
+
+	private static Logger logger = LogManager.getLogger(IngestThrottleProcessor.class);
+	private static IngestThrottle throttle;
+	
+	public IngestThrottleProcessor() {
+		super();
+		getThrottle();
+	}
+	
+	public static synchronized IngestThrottle getThrottle() {
+		if (throttle == null) {
+			throttle = new IngestThrottle(
+					ServerConstants.getConfigBoolean(ServerConstants.INPUT_DEDUP_ENABLE, false),
+					ServerConstants.getConfigLong(ServerConstants.INPUT_DEDUP_WINDOW, 2000),
+					ServerConstants.getConfigString(ServerConstants.INPUT_RATE_SENTENCES, null),
+					ServerConstants.getConfigString(ServerConstants.INPUT_RATE_PATHS, null));
+			if (throttle.isEnabled())
+				throttle.registerMBean();
+		}
+		return throttle;
+	}
+
+	public void process(Exchange exchange) throws Exception {
+
+		try {
+			Object body = exchange.getIn().getBody();
+			if (body instanceof String) {
+				if (isJsonMessage(exchange))
+					return;
+				String src = exchange.getIn().getHeader(MSG_SRC_BUS, String.class);
+				if (!throttle.accept(src, (String) body, System.currentTimeMillis())) {
+					if (logger.isDebugEnabled())
+						logger.debug("Dropped:" + body);
+					exchange.getIn().setBody(null);
+				}
+			} else if (body instanceof SignalKModel) {
+				SignalKModel model = (SignalKModel) body;
+				throttle.filter(model, System.currentTimeMillis());
+				if (model.getFullData().size() == 0)
+					exchange.getIn().setBody(null);
+			}
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+}
@@ -24,8 +24,9 @@ package nz.co.fortytwo.signalk.processor;
 
 import java.util.Map;
 
-import mjson.Json;
 import nz.co.fortytwo.signalk.util.ConfigConstants;
+import nz.co.fortytwo.signalk.util.MessageClass;
+import nz.co.fortytwo.signalk.util.ServerConstants;
 import nz.co.fortytwo.signalk.util.SignalKConstants;
 
 import org.apache.camel.Exchange;
@@ -37,6 +38,7 @@ import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logg
 /**
  * Churns through incoming nav data and filters out misc debug and unnecessary messages from the other devices
  * Maps misc content to tags (AIS,NMEA,JSON)
+ * Json is classified by {@link MessageClass} and left as a string, see SignalkProcessor.getJson()
  * 
  * @author robert
  * 
@@ -58,12 +60,14 @@ public class InputFilterProcessor extends SignalkProcessor implements Processor
 			msg = StringUtils.chomp(msg);
 			boolean ok = false;
 			if (msg.startsWith("!AIVDM")) {
+				exchange.getIn().setHeader(ServerConstants.MSG_CLASS, MessageClass.classify(msg));
 				// AIS
 				// !AIVDM,1,1,,B,15MwkRUOidG?GElEa<iQk1JV06Jd,0*6D
 				exchange.getIn().setBody(msg);
 				sendNmea(exchange);
 				ok = true;
 			} else if (msg.startsWith("$")) {
+				exchange.getIn().setHeader(ServerConstants.MSG_CLASS, MessageClass.classify(msg));
 				// NMEA - good
 				// System.out.println(msg);
 				exchange.getIn().setBody(msg);
@@ -72,42 +76,46 @@ public class InputFilterProcessor extends SignalkProcessor implements Processor
                 sendNmea(exchange);
 				ok = true;
 			} else if (msg.startsWith("{") && msg.endsWith("}")) {
-				Json json = Json.read(msg);
-				// n2k
-				if (json.has(SignalKConstants.pgn)) {
-					exchange.getIn().setHeader(SignalKConstants.N2K_MESSAGE, msg);
-				}
-				// full or delta format
-				if (exchange.getIn().getHeader(SignalKConstants.SIGNALK_FORMAT) == null) {
-					if (json.has(SignalKConstants.CONTEXT)) {
-						exchange.getIn().setHeader(SignalKConstants.SIGNALK_FORMAT, SignalKConstants.FORMAT_DELTA);
+				//classify without building a tree, the json is parsed later when its needed
+				MessageClass mc = MessageClass.classify(msg);
+				//invalid json is dropped below, as the full parse here used to reject it
+				if (mc.isValid()) {
+					exchange.getIn().setHeader(ServerConstants.MSG_CLASS, mc);
+					// n2k
+					if (mc.has(MessageClass.HAS_PGN)) {
+						exchange.getIn().setHeader(SignalKConstants.N2K_MESSAGE, msg);
 					}
-					if (json.has(SignalKConstants.vessels)||json.has(SignalKConstants.resources)) {
-						exchange.getIn().setHeader(SignalKConstants.SIGNALK_FORMAT, SignalKConstants.FORMAT_FULL);
+					// full or delta format
+					if (exchange.getIn().getHeader(SignalKConstants.SIGNALK_FORMAT) == null) {
+						if (mc.has(MessageClass.HAS_CONTEXT)) {
+							exchange.getIn().setHeader(SignalKConstants.SIGNALK_FORMAT, SignalKConstants.FORMAT_DELTA);
+						}
+						if (mc.hasAny(MessageClass.HAS_VESSELS | MessageClass.HAS_RESOURCES)) {
+							exchange.getIn().setHeader(SignalKConstants.SIGNALK_FORMAT, SignalKConstants.FORMAT_FULL);
+						}
 					}
+					// compensate for MQTT and STOMP sessionid
+					if (mc.getConnectionKey() != null) {
+						exchange.getIn().setHeader(WebsocketConstants.CONNECTION_KEY, mc.getConnectionKey());
+					}
+					// deal with REPLY_TO
+					Map<String, Object> headers = exchange.getIn().getHeaders();
+					if (headers != null && headers.containsKey(ConfigConstants.REPLY_TO)) {
+						exchange.getIn().setHeader(ConfigConstants.DESTINATION, headers.get(ConfigConstants.REPLY_TO));
+						// headers.remove(Constants.REPLY_TO);
+					}
+					// for MQTT
+					if (mc.getReplyTo() != null) {
+						exchange.getIn().setHeader(ConfigConstants.DESTINATION, mc.getReplyTo());
+					}
+					//if it has a config object, flag it as such
+					if (mc.isConfig()) {
+						exchange.getIn().setHeader(SignalKConstants.CONFIG_ACTION, SignalKConstants.CONFIG_ACTION_SAVE);
+					}
+					// json, still as a string
+					exchange.getIn().setBody(msg);
+					ok = true;
 				}
-				// compensate for MQTT and STOMP sessionid
-				if (json.has(WebsocketConstants.CONNECTION_KEY)) {
-					exchange.getIn().setHeader(WebsocketConstants.CONNECTION_KEY, json.at(WebsocketConstants.CONNECTION_KEY).asString());
-				}
-				// deal with REPLY_TO
-				Map<String, Object> headers = exchange.getIn().getHeaders();
-				if (headers != null && headers.containsKey(ConfigConstants.REPLY_TO)) {
-					exchange.getIn().setHeader(ConfigConstants.DESTINATION, headers.get(ConfigConstants.REPLY_TO));
-					// headers.remove(Constants.REPLY_TO);
-				}
-				// for MQTT
-				if (json.has(ConfigConstants.REPLY_TO)) {
-					exchange.getIn().setHeader(ConfigConstants.DESTINATION, (json.at(ConfigConstants.REPLY_TO).asString()));
-				}
-				//if it has a config object, flag it as such
-				if (json.has(SignalKConstants.CONFIG)
-						||(json.has(SignalKConstants.CONTEXT) && StringUtils.startsWith(json.at(SignalKConstants.CONTEXT).toString(),SignalKConstants.CONFIG))) {
-					exchange.getIn().setHeader(SignalKConstants.CONFIG_ACTION, SignalKConstants.CONFIG_ACTION_SAVE);
-				}
-				// json
-				exchange.getIn().setBody(json);
-				ok = true;
 			}
 			if (ok) {
 				return;
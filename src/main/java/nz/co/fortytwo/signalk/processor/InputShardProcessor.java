@@ -0,0 +1,90 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.MSG_SRC_BUS;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.component.websocket.WebsocketConstants;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import nz.co.fortytwo.signalk.util.ServerConstants;
+
+/**
+ * Picks the input worker for a message, by hashing the source bus (serial port name, tcp.&lt;ip&gt;, ws.&lt;ip&gt;, etc).
+ * <p>
+ * All messages from one source go to the same worker queue, so they are decoded in order,
+ * while different sources are decoded in parallel.
+ * 
+ * @author robert
+ *
+ */
+public class InputShardProcessor extends SignalkProcessor implements Processor {
+
+	private static Logger logger = LogManager.getLogger(InputShardProcessor.class);
+	private static final String SEDA_INPUT_SHARD = "seda:signalk.inputShard";
+
+	private final String[] shardUris;
+
+	public InputShardProcessor(int workers) {
+		super();
+		shardUris = new String[Math.max(1, workers)];
+		for (int i = 0; i < shardUris.length; i++) {
+			shardUris[i] = getShardUri(i);
+		}
+	}
+
+	@Override
+	public void process(Exchange exchange) throws Exception {
+		String key = exchange.getIn().getHeader(MSG_SRC_BUS, String.class);
+		if (key == null) {
+			key = exchange.getIn().getHeader(WebsocketConstants.CONNECTION_KEY, String.class);
+		}
+		int shard = getShard(key, shardUris.length);
+		if (logger.isTraceEnabled())
+			logger.trace("Source " + key + " to shard " + shard);
+		exchange.getIn().setHeader(ServerConstants.INPUT_SHARD, shardUris[shard]);
+	}
+
+	public static int getShard(String key, int workers) {
+		if (key == null || workers <= 1)
+			return 0;
+		return (key.hashCode() & Integer.MAX_VALUE) % workers;
+	}
+
+	/**
+	 * The seda endpoint for the given worker. Blocks when full so a slow worker pushes back on the main input queue.
+	 * 
+	 * @param shard
+	 * @return
+	 */
+	public static String getShardUri(int shard) {
+		return SEDA_INPUT_SHARD + shard + "?size=1000&blockWhenFull=true&purgeWhenStopping=true";
+	}
+
+}
@@ -32,6 +32,7 @@ import java.util.Map;
 
 import mjson.Json;
 import nz.co.fortytwo.signalk.handler.JsonListHandler;
+import nz.co.fortytwo.signalk.util.MessageClass;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
@@ -55,7 +56,7 @@ public class JsonListProcessor extends SignalkProcessor implements Processor{
 	public void process(Exchange exchange) throws Exception {
 		
 		try {
-			if(exchange.getIn().getBody()==null ||!(exchange.getIn().getBody() instanceof Json)) return;
+			if(getJson(exchange, MessageClass.HAS_LIST)==null) return;
 			String wsSession = exchange.getIn().getHeader(WebsocketConstants.CONNECTION_KEY, String.class);
 			if(wsSession==null){
 				if(logger.isDebugEnabled())logger.debug("Skipped, no session:"+exchange.getIn().getBody(Json.class));
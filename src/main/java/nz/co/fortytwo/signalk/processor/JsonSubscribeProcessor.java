@@ -41,6 +41,8 @@ import mjson.Json;
 import nz.co.fortytwo.signalk.server.Subscription;
 import nz.co.fortytwo.signalk.server.SubscriptionManagerFactory;
 import nz.co.fortytwo.signalk.util.ConfigConstants;
+import nz.co.fortytwo.signalk.util.MessageClass;
+import nz.co.fortytwo.signalk.util.ServerConstants;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
@@ -61,13 +63,13 @@ public class JsonSubscribeProcessor extends SignalkProcessor implements Processo
 	public void process(Exchange exchange) throws Exception {
 		
 		try {
-			if(exchange.getIn().getBody()==null ||!(exchange.getIn().getBody() instanceof Json)) return;
+			Json json = getJson(exchange, MessageClass.HAS_SUBSCRIBE | MessageClass.HAS_UNSUBSCRIBE);
+			if(json==null) return;
 			String wsSession = exchange.getIn().getHeader(WebsocketConstants.CONNECTION_KEY, String.class);
 			if(wsSession==null){
 				if(logger.isDebugEnabled())logger.debug("WsSession is null:"+exchange.getIn().getHeaders());
 				//return;
 			}
-			Json json = exchange.getIn().getBody(Json.class);
 			//avoid full signalk syntax
 			if(json.has(vessels))return;
 			if(json.has(CONTEXT) && (json.has(SUBSCRIBE) || json.has(UNSUBSCRIBE))){
@@ -164,6 +166,7 @@ public class JsonSubscribeProcessor extends SignalkProcessor implements Processo
                     "minPeriod": 200
                 }
                 </pre>
+	 * A fixed subscription can add "refresh": n to get the whole tree every n periods, rather than only the changes.
 	 * @param context
 	 * @param subscription
 	 * @throws Exception 
@@ -182,6 +185,7 @@ public class JsonSubscribeProcessor extends SignalkProcessor implements Processo
 		long minPeriod = 0;
 		if(subscription.at(MIN_PERIOD)!=null)minPeriod=subscription.at(MIN_PERIOD).asInteger();
 		Subscription sub = new Subscription(wsSession, path, period, minPeriod, format, policy);
+		if(subscription.at(ServerConstants.SUBSCRIBE_REFRESH)!=null)sub.setRefresh(subscription.at(ServerConstants.SUBSCRIBE_REFRESH).asInteger());
 		
 		//STOMP, MQTT
 		if(headers.containsKey(ConfigConstants.DESTINATION)){
@@ -214,14 +218,9 @@ public class JsonSubscribeProcessor extends SignalkProcessor implements Processo
 		String wsSession = (String) headers.get(WebsocketConstants.CONNECTION_KEY);
 		long period = 1000;
 		if(subscription.at(PERIOD)!=null)period = subscription.at(PERIOD).asInteger();
-		String format = FORMAT_DELTA;
-		if(subscription.at(FORMAT)!=null)format=subscription.at(FORMAT).asString();
-		String policy = POLICY_FIXED;
-		if(subscription.at(POLICY)!=null)policy=subscription.at(POLICY).asString();
-		long minPeriod = 0;
-		if(subscription.at(MIN_PERIOD)!=null)minPeriod=subscription.at(MIN_PERIOD).asInteger();
-		Subscription sub = new Subscription(wsSession, path, period, minPeriod, format, policy);
-		SubscriptionManagerFactory.getInstance().removeSubscription(sub);
+		//just a lookup, no need to build a subscription to find the one to remove
+		Subscription sub = SubscriptionManagerFactory.getInstance().removeSubscription(wsSession, path, period);
+		if(logger.isDebugEnabled())logger.debug("Removed subscription; "+sub );
 		
 	}
 
@@ -0,0 +1,440 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.resources;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.Subscribe;
+
+import mjson.Json;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.PathRegistry;
+import nz.co.fortytwo.signalk.util.ServerConstants;
+
+/**
+ * Keeps a count of the keys and estimated bytes in the signalk model, per context, and keeps the model within its limits.
+ * <p>
+ * A context is vessels.&lt;id&gt;, resources.&lt;type&gt;, or the top level node for anything else, eg sources.
+ * The counts are updated from each {@link ChangeSet}, using the {@link PathRegistry} id of the path to remember its last size.
+ * Sizes are a rough estimate for a 64 bit jvm: the key, the map entry, and the boxed value.
+ * <p>
+ * The limits are set in config, 0 for no limit:
+ * <ul>
+ * <li>config.server.model.limit.bytes - when the model is bigger, the least recently updated vessels are removed until it is not.
+ * <li>config.server.model.limit.vessels - when there are more vessels, the least recently updated are removed.
+ * <li>config.server.model.limit.resourceKeys - new keys in a resources.&lt;type&gt; context that is full are dropped on input.
+ * </ul>
+ * Self is never removed. Removals go through {@link ModelBatcher#removeAll(java.util.Collection)}, so subscribers see them as a ChangeSet.
+ * 
+ * @author robert
+ *
+ */
+public class ModelAccounting implements ModelAccountingMBean {
+
+	private static Logger logger = LogManager.getLogger(ModelAccounting.class);
+
+	private static ModelAccounting accounting = null;
+
+	//estimates, 64 bit with compressed oops
+	static final int ENTRY_BYTES = 48;
+	static final int STRING_BYTES = 40;
+	static final int BOXED_BYTES = 24;
+	static final int OBJECT_BYTES = 64;
+
+	private final SignalKModel model;
+	private final PathRegistry registry = PathRegistry.getInstance();
+	private final int vesselsId = registry.id(vessels);
+	private final int resourcesId = registry.id(resources);
+	private final int selfId = registry.id(vessels_dot_self);
+	private final long maxBytes;
+	private final int maxVessels;
+	private final int maxResourceKeys;
+
+	// path id > estimated bytes, 0 if it is not in the model
+	private int[] sizes = new int[1024];
+	// context > usage, least recently updated first
+	private final LinkedHashMap<String, Usage> usage = new LinkedHashMap<>(64, 0.75f, true);
+	private int keys = 0;
+	private long bytes = 0;
+	private int vesselCount = 0;
+	private ModelBatcher batcher;
+
+	//stats
+	private long evictedVessels = 0;
+	private long evictedKeys = 0;
+	private long rejectedKeys = 0;
+
+	static class Usage {
+		final boolean vessel;
+		int keys;
+		long bytes;
+		long updated;
+
+		Usage(boolean vessel) {
+			this.vessel = vessel;
+		}
+	}
+
+	public ModelAccounting(SignalKModel model, long maxBytes, int maxVessels, int maxResourceKeys) {
+		this.model = model;
+		this.maxBytes = maxBytes;
+		this.maxVessels = maxVessels;
+		this.maxResourceKeys = maxResourceKeys;
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			for (String key : ImmutableList.copyOf(model.getKeys())) {
+				update(registry.retain(key), key, now);
+			}
+		}
+		ChangeSets.forModel(model).register(this);
+	}
+
+	/**
+	 * The accounting for the main model, with the limits from config
+	 * 
+	 * @return
+	 */
+	public static synchronized ModelAccounting getInstance() {
+		if (accounting == null) {
+			accounting = new ModelAccounting(SignalKModelFactory.getInstance(),
+					ServerConstants.getConfigLong(ServerConstants.MODEL_LIMIT_BYTES, 0),
+					ServerConstants.getConfigInt(ServerConstants.MODEL_LIMIT_VESSELS, 0),
+					ServerConstants.getConfigInt(ServerConstants.MODEL_LIMIT_RESOURCE_KEYS, 0));
+			accounting.registerMBean();
+			logger.info("Model limits, bytes: " + accounting.maxBytes + ", vessels: " + accounting.maxVessels
+					+ ", resource keys: " + accounting.maxResourceKeys);
+		}
+		return accounting;
+	}
+
+	/**
+	 * Registers the stats on JMX
+	 */
+	public void registerMBean() {
+		try {
+			ObjectName name = new ObjectName(getClass().getName(), "id", "modelAccounting");
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Updates the counts for the changed paths, and removes vessels if the model is over its limits
+	 * 
+	 * @param changes
+	 */
+	@Subscribe
+	public void recordChanges(ChangeSet changes) {
+		if (changes == null || changes.isEmpty())
+			return;
+		List<String> paths = changes.getPaths();
+		int[] ids = changes.getIds();
+		List<String> victims;
+		synchronized (this) {
+			for (int x = 0; x < ids.length; x++) {
+				update(ids[x], paths.get(x), changes.getTimestamp());
+			}
+			victims = overLimit();
+		}
+		if (victims.isEmpty())
+			return;
+		int removed = getBatcher().removeAll(victims);
+		synchronized (this) {
+			evictedVessels += victims.size();
+			evictedKeys += removed;
+		}
+		logger.info("Model over its limits, removed " + victims.size() + " vessels, " + removed + " keys");
+	}
+
+	/**
+	 * Drops the new keys for any resources.&lt;type&gt; that is at its limit from an update, before it reaches the model
+	 * 
+	 * @param node
+	 * @return the number of keys dropped
+	 */
+	public int filter(SignalKModel node) {
+		if (maxResourceKeys <= 0)
+			return 0;
+		NavigableMap<String, Object> updates = node.getSubMap(resources + dot);
+		if (updates == null || updates.isEmpty())
+			return 0;
+		int dropped = 0;
+		// context > keys added by this update
+		Map<String, Integer> added = new HashMap<>();
+		synchronized (this) {
+			for (String key : ImmutableList.copyOf(updates.keySet())) {
+				// find, not id, so dropped keys are not registered
+				int id = registry.find(key);
+				if (id >= 0 && id < sizes.length && sizes[id] > 0)
+					continue;
+				int pos = key.indexOf('.', resources.length() + 1);
+				String ctx = pos < 0 ? key : key.substring(0, pos);
+				Usage u = usage.get(ctx);
+				Integer count = added.get(ctx);
+				int total = (u == null ? 0 : u.keys) + (count == null ? 0 : count);
+				if (total >= maxResourceKeys) {
+					node.getFullData().remove(key);
+					dropped++;
+				} else {
+					added.put(ctx, count == null ? 1 : count + 1);
+				}
+			}
+			rejectedKeys += dropped;
+		}
+		if (dropped > 0 && logger.isDebugEnabled())
+			logger.debug("Dropped " + dropped + " new resource keys over the limit of " + maxResourceKeys);
+		return dropped;
+	}
+
+	// must hold this
+	private void update(int id, String path, long time) {
+		// removed, and never counted
+		if (id < 0)
+			return;
+		Object value = model.get(path);
+		int size = value == null ? 0 : estimate(path, value);
+		if (id >= sizes.length) {
+			sizes = Arrays.copyOf(sizes, Math.max(id + 1, sizes.length * 2));
+		}
+		int old = sizes[id];
+		if (old == 0 && size == 0)
+			return;
+		sizes[id] = size;
+		String ctx = registry.path(contextOf(id));
+		Usage u = usage.get(ctx);
+		if (u == null) {
+			u = new Usage(isVessel(ctx));
+			usage.put(ctx, u);
+			if (u.vessel)
+				vesselCount++;
+		}
+		u.bytes += size - old;
+		bytes += size - old;
+		if (old == 0) {
+			u.keys++;
+			keys++;
+		} else if (size == 0) {
+			u.keys--;
+			keys--;
+		}
+		u.updated = time;
+		if (u.keys <= 0) {
+			usage.remove(ctx);
+			if (u.vessel)
+				vesselCount--;
+		}
+	}
+
+	// must hold this, least recently updated vessels to remove
+	private List<String> overLimit() {
+		List<String> victims = new ArrayList<>();
+		int count = vesselCount;
+		long total = bytes;
+		Iterator<Map.Entry<String, Usage>> iter = usage.entrySet().iterator();
+		while (((maxVessels > 0 && count > maxVessels) || (maxBytes > 0 && total > maxBytes)) && iter.hasNext()) {
+			Map.Entry<String, Usage> entry = iter.next();
+			if (!entry.getValue().vessel || vessels_dot_self.equals(entry.getKey()))
+				continue;
+			victims.add(entry.getKey());
+			count--;
+			total -= entry.getValue().bytes;
+		}
+		return victims;
+	}
+
+	/**
+	 * The context id of the path, vessels.&lt;id&gt;, resources.&lt;type&gt;, or its top level node
+	 * 
+	 * @param id
+	 * @return
+	 */
+	int contextOf(int id) {
+		int child = -1;
+		int node = id;
+		int parent = registry.parent(id);
+		while (parent >= 0) {
+			child = node;
+			node = parent;
+			parent = registry.parent(node);
+		}
+		if (child >= 0 && (node == vesselsId || node == resourcesId))
+			return child;
+		return node;
+	}
+
+	private boolean isVessel(String ctx) {
+		return ctx.startsWith(vessels) && ctx.length() > vessels.length() && ctx.charAt(vessels.length()) == '.';
+	}
+
+	/**
+	 * A rough size of the key and value in the model map
+	 * 
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	static int estimate(String key, Object value) {
+		int size = ENTRY_BYTES + STRING_BYTES + 2 * key.length();
+		if (value instanceof Boolean)
+			return size;
+		if (value instanceof Number)
+			return size + BOXED_BYTES;
+		if (value instanceof String)
+			return size + STRING_BYTES + 2 * ((String) value).length();
+		if (value instanceof Json)
+			return size + OBJECT_BYTES + 2 * value.toString().length();
+		return size + OBJECT_BYTES;
+	}
+
+	private synchronized ModelBatcher getBatcher() {
+		if (batcher == null) {
+			if (model == SignalKModelFactory.getInstance())
+				batcher = SignalkModelProcessor.getBatcher();
+			if (batcher == null) {
+				// no input route, commit straight away
+				batcher = new ModelBatcher(model, 1, 100);
+			}
+		}
+		return batcher;
+	}
+
+	/**
+	 * The usage of each context, for the REST api
+	 * 
+	 * @return
+	 */
+	public synchronized Json toJson() {
+		Json json = Json.object();
+		json.set("keys", keys);
+		json.set("bytes", bytes);
+		json.set("vessels", vesselCount);
+		Json contexts = Json.object();
+		for (Map.Entry<String, Usage> entry : new TreeMap<>(usage).entrySet()) {
+			contexts.set(entry.getKey(), Json.object()
+					.set("keys", entry.getValue().keys)
+					.set("bytes", entry.getValue().bytes)
+					.set("updated", entry.getValue().updated));
+		}
+		json.set("contexts", contexts);
+		return json;
+	}
+
+	@Override
+	public synchronized int getKeys() {
+		return keys;
+	}
+
+	@Override
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public synchronized int getContexts() {
+		return usage.size();
+	}
+
+	@Override
+	public synchronized int getVessels() {
+		return vesselCount;
+	}
+
+	@Override
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	@Override
+	public int getMaxVessels() {
+		return maxVessels;
+	}
+
+	@Override
+	public int getMaxResourceKeys() {
+		return maxResourceKeys;
+	}
+
+	@Override
+	public synchronized long getEvictedVessels() {
+		return evictedVessels;
+	}
+
+	@Override
+	public synchronized long getEvictedKeys() {
+		return evictedKeys;
+	}
+
+	@Override
+	public synchronized long getRejectedKeys() {
+		return rejectedKeys;
+	}
+
+	@Override
+	public synchronized Map<String, Long> getContextBytes() {
+		Map<String, Long> map = new TreeMap<>();
+		for (Map.Entry<String, Usage> entry : usage.entrySet()) {
+			map.put(entry.getKey(), entry.getValue().bytes);
+		}
+		return map;
+	}
+
+	@Override
+	public synchronized Map<String, Integer> getContextKeys() {
+		Map<String, Integer> map = new TreeMap<>();
+		for (Map.Entry<String, Usage> entry : usage.entrySet()) {
+			map.put(entry.getKey(), entry.getValue().keys);
+		}
+		return map;
+	}
+
+}
@@ -0,0 +1,330 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.collect.ImmutableList;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.SignalKConstants;
+
+/**
+ * Merges the model fragments produced by the input route, and commits them to the signalk model in one putAll
+ * when batchSize messages have arrived, or batchTime ms after the previous commit, whichever comes first.
+ * <p>
+ * Keys written several times in one batch are only committed once, with the latest value, so the model
+ * fires one event per key per batch rather than one per message.
+ * Fragments containing config are committed immediately, as the config is saved straight after.
+ * Each commit publishes a new {@link ModelSnapshot}, and then posts the changed paths as one {@link ChangeSet}.
+ * 
+ * @author robert
+ *
+ */
+public class ModelBatcher implements ModelBatcherMBean {
+
+	private static Logger logger = LogManager.getLogger(ModelBatcher.class);
+
+	private final SignalKModel signalkModel;
+	private final ModelSnapshots snapshots;
+	private final ChangeSets changes;
+	private final int batchSize;
+	private final long batchTime;
+
+	private NavigableMap<String, Object> pending = new TreeMap<String, Object>();
+	private int pendingMessages = 0;
+	private final Object lock = new Object();
+	private ScheduledExecutorService flushTimer;
+
+	//stats
+	private long commits = 0;
+	private long messages = 0;
+	private int lastBatchSize = 0;
+	private long lastCommitLatency = 0;
+	private long maxCommitLatency = 0;
+	private long totalCommitLatency = 0;
+
+	public ModelBatcher(SignalKModel signalkModel, int batchSize, long batchTime) {
+		this.signalkModel = signalkModel;
+		this.snapshots = ModelSnapshots.forModel(signalkModel);
+		this.changes = ChangeSets.forModel(signalkModel);
+		this.batchSize = Math.max(1, batchSize);
+		this.batchTime = Math.max(1, batchTime);
+		if (this.batchSize > 1) {
+			flushTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Model batch flush");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			flushTimer.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						flush();
+					} catch (Exception e) {
+						logger.error(e.getMessage(), e);
+					}
+				}
+			}, this.batchTime, this.batchTime, TimeUnit.MILLISECONDS);
+		}
+		logger.info("Model commit batch size " + this.batchSize + ", time " + this.batchTime + "ms");
+	}
+
+	/**
+	 * Registers the stats on JMX
+	 */
+	public void registerMBean() {
+		try {
+			ObjectName name = new ObjectName(getClass().getName(), "id", "modelBatcher");
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	public boolean isBatching() {
+		return batchSize > 1;
+	}
+
+	/**
+	 * Add a fragment to the current batch, committing the batch if it is full.
+	 * 
+	 * @param node
+	 */
+	public void add(SignalKModel node) {
+		if (node.getFullData().size() == 0)
+			return;
+		NavigableMap<String, Object> cnf = node.getSubMap(SignalKConstants.CONFIG);
+		synchronized (lock) {
+			pending.putAll(node.getFullData());
+			pendingMessages++;
+			if (pendingMessages >= batchSize || (cnf != null && cnf.size() > 0)) {
+				commit();
+			}
+		}
+	}
+
+	/**
+	 * Commit whatever is pending now.
+	 */
+	public void flush() {
+		synchronized (lock) {
+			if (pendingMessages > 0)
+				commit();
+		}
+	}
+
+	/**
+	 * Runs the writes as one commit: they are published as one snapshot version and posted as one {@link ChangeSet}.
+	 * Commits on the same model, from any batcher or processor, are serialised on its {@link ModelSnapshots}, so a
+	 * snapshot never holds part of one. Timer processors that write the model use this.
+	 * 
+	 * @param model
+	 * @param writes
+	 * @return the version holding the writes
+	 */
+	public static long write(SignalKModel model, Runnable writes) {
+		ModelSnapshots snapshots = ModelSnapshots.forModel(model);
+		ChangeSets changes = ChangeSets.forModel(model);
+		long version = snapshots.getVersion();
+		changes.begin();
+		try {
+			synchronized (snapshots) {
+				try {
+					writes.run();
+				} finally {
+					version = snapshots.publish().getVersion();
+				}
+			}
+		} finally {
+			//readers, then listeners, see the whole commit at once
+			changes.commit(version);
+		}
+		return version;
+	}
+
+	// must hold lock
+	private void commit() {
+		final NavigableMap<String, Object> batch = pending;
+		int size = pendingMessages;
+		pending = new TreeMap<String, Object>();
+		pendingMessages = 0;
+
+		long start = System.nanoTime();
+		write(signalkModel, new Runnable() {
+			@Override
+			public void run() {
+				signalkModel.putAll(batch);
+				if (hasConfig(batch)) {
+					try {
+						SignalKModelFactory.saveConfig(signalkModel);
+					} catch (Exception e) {
+						logger.error(e.getMessage(), e);
+					}
+				}
+			}
+		});
+		long latency = (System.nanoTime() - start) / 1000;
+
+		commits++;
+		messages += size;
+		lastBatchSize = size;
+		lastCommitLatency = latency;
+		totalCommitLatency += latency;
+		if (latency > maxCommitLatency)
+			maxCommitLatency = latency;
+		if (logger.isDebugEnabled())
+			logger.debug("Committed " + size + " messages, " + batch.size() + " keys in " + latency + "us");
+	}
+
+	/**
+	 * Removes everything below each prefix from the model in one commit, eg expired AIS targets.
+	 * Anything pending is committed first, and the removed keys are posted as one {@link ChangeSet}.
+	 * 
+	 * @param prefixes - dotted paths, eg vessels.366951720
+	 * @return the number of keys removed
+	 */
+	public int removeAll(final Collection<String> prefixes) {
+		synchronized (lock) {
+			if (pendingMessages > 0)
+				commit();
+			final int[] removed = new int[1];
+			write(signalkModel, new Runnable() {
+				@Override
+				public void run() {
+					for (String prefix : prefixes) {
+						NavigableMap<String, Object> node = signalkModel.getSubMap(prefix);
+						if (node == null)
+							continue;
+						for (String key : ImmutableList.copyOf(node.keySet())) {
+							// getSubMap is a string prefix, keep vessels.1234 when removing vessels.123
+							if (key.length() > prefix.length() && key.charAt(prefix.length()) != '.')
+								continue;
+							signalkModel.getFullData().remove(key);
+							snapshots.markDirty(key);
+							changes.record(key);
+							removed[0]++;
+						}
+					}
+				}
+			});
+			return removed[0];
+		}
+	}
+
+	private boolean hasConfig(NavigableMap<String, Object> data) {
+		String key = data.ceilingKey(SignalKConstants.CONFIG + SignalKConstants.dot);
+		return key != null && key.startsWith(SignalKConstants.CONFIG + SignalKConstants.dot);
+	}
+
+	public void stop() {
+		if (flushTimer != null) {
+			flushTimer.shutdown();
+		}
+		flush();
+	}
+
+	@Override
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	@Override
+	public long getBatchTime() {
+		return batchTime;
+	}
+
+	@Override
+	public long getCommits() {
+		synchronized (lock) {
+			return commits;
+		}
+	}
+
+	@Override
+	public long getMessages() {
+		synchronized (lock) {
+			return messages;
+		}
+	}
+
+	@Override
+	public int getLastBatchSize() {
+		synchronized (lock) {
+			return lastBatchSize;
+		}
+	}
+
+	@Override
+	public double getAverageBatchSize() {
+		synchronized (lock) {
+			return commits == 0 ? 0 : (double) messages / commits;
+		}
+	}
+
+	@Override
+	public long getLastCommitLatency() {
+		synchronized (lock) {
+			return lastCommitLatency;
+		}
+	}
+
+	@Override
+	public long getMaxCommitLatency() {
+		synchronized (lock) {
+			return maxCommitLatency;
+		}
+	}
+
+	@Override
+	public double getAverageCommitLatency() {
+		synchronized (lock) {
+			return commits == 0 ? 0 : (double) totalCommitLatency / commits;
+		}
+	}
+
+}
@@ -0,0 +1,185 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.google.common.collect.ImmutableSortedMap;
+
+/**
+ * An immutable, versioned copy of the signalk model, published by {@link ModelSnapshots}.
+ * <p>
+ * Keys are held in segments of three path elements, eg vessels.motu.navigation, grouped by context, eg vessels.motu.
+ * A new version copies only the segments that changed, the rest are shared with the previous version.
+ * Readers can iterate a snapshot from any thread without locks, and it will never change under them.
+ * 
+ * @author robert
+ *
+ */
+public class ModelSnapshot {
+
+	static final char MAX = '\uffff';
+
+	private final long version;
+	private final long timestamp;
+	private final int size;
+	// context > segment > key > value
+	final ImmutableSortedMap<String, ImmutableSortedMap<String, ImmutableSortedMap<String, Object>>> contexts;
+
+	ModelSnapshot(long version, long timestamp, ImmutableSortedMap<String, ImmutableSortedMap<String, ImmutableSortedMap<String, Object>>> contexts) {
+		this.version = version;
+		this.timestamp = timestamp;
+		this.contexts = contexts;
+		int count = 0;
+		for (ImmutableSortedMap<String, ImmutableSortedMap<String, Object>> segments : contexts.values()) {
+			for (ImmutableSortedMap<String, Object> segment : segments.values()) {
+				count += segment.size();
+			}
+		}
+		this.size = count;
+	}
+
+	/**
+	 * Increases by one for every published change to the model, so it can be used to key cached output.
+	 * 
+	 * @return
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Time this version was published, in millis
+	 * 
+	 * @return
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public Object get(String key) {
+		ImmutableSortedMap<String, ImmutableSortedMap<String, Object>> segments = contexts.get(contextOf(key));
+		if (segments == null)
+			return null;
+		ImmutableSortedMap<String, Object> segment = segments.get(segmentOf(key));
+		if (segment == null)
+			return null;
+		return segment.get(key);
+	}
+
+	/**
+	 * All keys starting with the prefix, as the model's getSubMap.
+	 * A prefix within one segment returns a view of it, wider prefixes are merged into a new map.
+	 * 
+	 * @param prefix
+	 * @return an unmodifiable map
+	 */
+	public NavigableMap<String, Object> getSubMap(String prefix) {
+		List<NavigableMap<String, Object>> parts = new ArrayList<>(2);
+		String to = prefix + MAX;
+		// whole contexts under the prefix
+		for (ImmutableSortedMap<String, ImmutableSortedMap<String, Object>> segments : contexts.subMap(prefix, true, to, false).values()) {
+			parts.addAll(segments.values());
+		}
+		String ctx = contextOf(prefix);
+		if (ctx.length() < prefix.length()) {
+			ImmutableSortedMap<String, ImmutableSortedMap<String, Object>> segments = contexts.get(ctx);
+			if (segments != null) {
+				// whole segments under the prefix
+				parts.addAll(segments.subMap(prefix, true, to, false).values());
+				String seg = segmentOf(prefix);
+				if (seg.length() < prefix.length()) {
+					ImmutableSortedMap<String, Object> segment = segments.get(seg);
+					if (segment != null)
+						parts.add(segment.subMap(prefix, true, to, false));
+				}
+			}
+		}
+		if (parts.size() == 1)
+			return parts.get(0);
+		if (parts.isEmpty())
+			return ImmutableSortedMap.of();
+		TreeMap<String, Object> merged = new TreeMap<>();
+		for (Map<String, Object> part : parts) {
+			merged.putAll(part);
+		}
+		return merged;
+	}
+
+	/**
+	 * All keys in the snapshot, in order
+	 * 
+	 * @return a new set
+	 */
+	public NavigableSet<String> getKeys() {
+		TreeSet<String> keys = new TreeSet<>();
+		for (ImmutableSortedMap<String, ImmutableSortedMap<String, Object>> segments : contexts.values()) {
+			for (ImmutableSortedMap<String, Object> segment : segments.values()) {
+				keys.addAll(segment.keySet());
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * The first two path elements, eg vessels.motu
+	 */
+	static String contextOf(String key) {
+		return prefixOf(key, 2);
+	}
+
+	/**
+	 * The first three path elements, eg vessels.motu.navigation
+	 */
+	static String segmentOf(String key) {
+		return prefixOf(key, 3);
+	}
+
+	private static String prefixOf(String key, int elements) {
+		int pos = -1;
+		for (int x = 0; x < elements; x++) {
+			pos = key.indexOf('.', pos + 1);
+			if (pos < 0)
+				return key;
+		}
+		return key.substring(0, pos);
+	}
+
+	@Override
+	public String toString() {
+		return "ModelSnapshot [version=" + version + ", size=" + size + "]";
+	}
+}
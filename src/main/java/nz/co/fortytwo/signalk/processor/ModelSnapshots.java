@@ -0,0 +1,290 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import java.lang.management.ManagementFactory;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.MapMaker;
+import com.google.common.eventbus.Subscribe;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.event.PathEvent;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+
+/**
+ * Publishes immutable {@link ModelSnapshot}s of a signalk model.
+ * <p>
+ * Listens for changes on the model and marks the changed segments dirty. {@link #publish()} copies only the dirty segments
+ * into the next version. It is only called on the writing thread, readers never publish.
+ * <p>
+ * Commits hold this object's monitor while they write and publish, see {@link ModelBatcher#write(SignalKModel, Runnable)},
+ * so a version never holds part of a commit. A write outside a commit, eg from a test or a model handler, is published
+ * straight away on the thread that made it, after waiting for any commit in progress.
+ * {@link #current()} is a volatile read.
+ * 
+ * @author robert
+ *
+ */
+public class ModelSnapshots implements ModelSnapshotsMBean {
+
+	private static Logger logger = LogManager.getLogger(ModelSnapshots.class);
+
+	// weak identity keys, test models come and go
+	private static final Map<SignalKModel, ModelSnapshots> instances = new MapMaker().weakKeys().makeMap();
+
+	private final SignalKModel model;
+	private volatile ModelSnapshot current;
+	private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+	//stats
+	private long publishes = 0;
+	private long segmentsCopied = 0;
+	private long lastPublishLatency = 0;
+	private long maxPublishLatency = 0;
+
+	ModelSnapshots(SignalKModel model) {
+		this.model = model;
+		this.current = new ModelSnapshot(0, System.currentTimeMillis(),
+				ImmutableSortedMap.<String, ImmutableSortedMap<String, ImmutableSortedMap<String, Object>>> of());
+		for (String key : ImmutableList.copyOf(model.getKeys())) {
+			dirty.add(ModelSnapshot.segmentOf(key));
+		}
+	}
+
+	/**
+	 * The snapshots of the main signalk model
+	 * 
+	 * @return
+	 */
+	public static ModelSnapshots getInstance() {
+		return forModel(SignalKModelFactory.getInstance());
+	}
+
+	/**
+	 * The snapshots of this model, created and registered on its event bus the first time.
+	 * 
+	 * @param model
+	 * @return
+	 */
+	public static synchronized ModelSnapshots forModel(SignalKModel model) {
+		ModelSnapshots snapshots = instances.get(model);
+		if (snapshots == null) {
+			snapshots = new ModelSnapshots(model);
+			snapshots.publish();
+			model.getEventBus().register(snapshots);
+			instances.put(model, snapshots);
+			if (model == SignalKModelFactory.getInstance())
+				snapshots.registerMBean();
+		}
+		return snapshots;
+	}
+
+	/**
+	 * Registers the stats on JMX
+	 */
+	public void registerMBean() {
+		try {
+			ObjectName name = new ObjectName(getClass().getName(), "id", "modelSnapshots");
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Marks the segment of a changed path dirty
+	 * 
+	 * @param pathEvent
+	 */
+	@Subscribe
+	public void recordEvent(PathEvent pathEvent) {
+		if (pathEvent == null || pathEvent.getPath() == null)
+			return;
+		dirty.add(ModelSnapshot.segmentOf(pathEvent.getPath()));
+		// a commit on this thread publishes when it is done
+		if (!Thread.holdsLock(this))
+			publish();
+	}
+
+	/**
+	 * For writes that go straight into the model data without an event
+	 * 
+	 * @param key
+	 */
+	public void markDirty(String key) {
+		dirty.add(ModelSnapshot.segmentOf(key));
+	}
+
+	/**
+	 * The latest snapshot of the model
+	 * 
+	 * @return
+	 */
+	public ModelSnapshot current() {
+		return current;
+	}
+
+	/**
+	 * Copies the dirty segments from the model into a new version.
+	 * Called by writers only, after their writes.
+	 * 
+	 * @return the new snapshot, or the current one if nothing changed
+	 */
+	public synchronized ModelSnapshot publish() {
+		if (dirty.isEmpty())
+			return current;
+		long start = System.nanoTime();
+		ModelSnapshot last = current;
+		// context > changed segment > new keys, or empty if it has gone
+		TreeMap<String, TreeMap<String, ImmutableSortedMap<String, Object>>> changes = new TreeMap<>();
+		Iterator<String> iter = dirty.iterator();
+		int copied = 0;
+		while (iter.hasNext()) {
+			String seg = iter.next();
+			iter.remove();
+			ImmutableSortedMap<String, Object> segment;
+			try {
+				segment = copySegment(seg);
+			} catch (ConcurrentModificationException e) {
+				// a write outside a commit on another thread, it publishes again when it is done
+				dirty.add(seg);
+				continue;
+			}
+			String ctx = ModelSnapshot.contextOf(seg);
+			TreeMap<String, ImmutableSortedMap<String, Object>> segs = changes.get(ctx);
+			if (segs == null) {
+				segs = new TreeMap<>();
+				changes.put(ctx, segs);
+			}
+			segs.put(seg, segment);
+			copied++;
+		}
+		if (changes.isEmpty())
+			return last;
+
+		TreeMap<String, ImmutableSortedMap<String, ImmutableSortedMap<String, Object>>> contexts = new TreeMap<>(last.contexts);
+		for (Map.Entry<String, TreeMap<String, ImmutableSortedMap<String, Object>>> change : changes.entrySet()) {
+			ImmutableSortedMap<String, ImmutableSortedMap<String, Object>> old = contexts.get(change.getKey());
+			TreeMap<String, ImmutableSortedMap<String, Object>> segs = old == null ? new TreeMap<String, ImmutableSortedMap<String, Object>>()
+					: new TreeMap<>(old);
+			for (Map.Entry<String, ImmutableSortedMap<String, Object>> seg : change.getValue().entrySet()) {
+				if (seg.getValue().isEmpty()) {
+					segs.remove(seg.getKey());
+				} else {
+					segs.put(seg.getKey(), seg.getValue());
+				}
+			}
+			if (segs.isEmpty()) {
+				contexts.remove(change.getKey());
+			} else {
+				contexts.put(change.getKey(), ImmutableSortedMap.copyOfSorted(segs));
+			}
+		}
+		ModelSnapshot next = new ModelSnapshot(last.getVersion() + 1, System.currentTimeMillis(), ImmutableSortedMap.copyOfSorted(contexts));
+		current = next;
+
+		long latency = (System.nanoTime() - start) / 1000;
+		publishes++;
+		segmentsCopied += copied;
+		lastPublishLatency = latency;
+		if (latency > maxPublishLatency)
+			maxPublishLatency = latency;
+		if (logger.isDebugEnabled())
+			logger.debug("Published " + next + ", " + copied + " segments in " + latency + "us");
+		return next;
+	}
+
+	private ImmutableSortedMap<String, Object> copySegment(String seg) {
+		NavigableMap<String, Object> live = model.getSubMap(seg);
+		ImmutableSortedMap.Builder<String, Object> builder = ImmutableSortedMap.naturalOrder();
+		if (live == null)
+			return builder.build();
+		int len = seg.length();
+		for (Map.Entry<String, Object> entry : live.entrySet()) {
+			String key = entry.getKey();
+			// getSubMap is a string prefix, drop vessels.motu.navigationx from vessels.motu.navigation
+			if (key.length() > len && key.charAt(len) != '.')
+				continue;
+			if (entry.getValue() != null)
+				builder.put(key, entry.getValue());
+		}
+		return builder.build();
+	}
+
+	@Override
+	public long getVersion() {
+		return current.getVersion();
+	}
+
+	@Override
+	public int getKeys() {
+		return current.size();
+	}
+
+	@Override
+	public int getContexts() {
+		return current.contexts.size();
+	}
+
+	@Override
+	public synchronized long getPublishes() {
+		return publishes;
+	}
+
+	@Override
+	public synchronized long getSegmentsCopied() {
+		return segmentsCopied;
+	}
+
+	@Override
+	public synchronized long getLastPublishLatency() {
+		return lastPublishLatency;
+	}
+
+	@Override
+	public synchronized long getMaxPublishLatency() {
+		return maxPublishLatency;
+	}
+}
@@ -51,7 +51,8 @@ public class N2KProcessor extends SignalkProcessor implements Processor {
 		try {
 			if (exchange.getIn().getHeader(N2K_MESSAGE) == null)
 				return;
-			if (exchange.getIn().getBody() == null || !(exchange.getIn().getBody() instanceof Json))
+			//body is the raw string, or json if something has already parsed it
+			if (exchange.getIn().getBody() == null || !(exchange.getIn().getBody() instanceof Json || exchange.getIn().getBody() instanceof String))
 				return;
 
 			SignalKModel model = n2k.handle(exchange.getIn().getHeader(N2K_MESSAGE, String.class));
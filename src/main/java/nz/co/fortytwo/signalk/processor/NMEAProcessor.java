@@ -55,6 +55,10 @@ public class NMEAProcessor extends SignalkProcessor implements Processor {
 		if (exchange.getIn().getBody() == null || !(exchange.getIn().getBody() instanceof String)) {
 			return;
 		}
+		//json is still a string at this point
+		if (isJsonMessage(exchange)) {
+			return;
+		}
 		
 		String body = exchange.getIn().getBody(String.class);
 		if(logger.isDebugEnabled())
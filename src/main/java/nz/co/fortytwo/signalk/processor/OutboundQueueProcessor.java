@@ -0,0 +1,88 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import nz.co.fortytwo.signalk.server.OutboundQueues;
+import nz.co.fortytwo.signalk.util.ConfigConstants;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.component.websocket.WebsocketConstants;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Puts each outbound message on its session's {@link OutboundQueues} queue, so a slow client only delays itself.
+ * Messages to all sessions are queued for each session of a queued output type.
+ * Output types that are not queued, eg xmpp, are left to the rest of the route.
+ * 
+ * @author robert
+ *
+ */
+public class OutboundQueueProcessor extends SignalkProcessor implements Processor {
+
+	private static Logger logger = LogManager.getLogger(OutboundQueueProcessor.class);
+
+	public OutboundQueueProcessor() {
+		super(false);
+	}
+
+	public void process(Exchange exchange) throws Exception {
+		Object body = exchange.getIn().getBody();
+		if (body == null)
+			return;
+		String msg = exchange.getIn().getBody(String.class);
+		String session = exchange.getIn().getHeader(WebsocketConstants.CONNECTION_KEY, String.class);
+		if (session == null)
+			return;
+		OutboundQueues queues = OutboundQueues.getInstance();
+		if (WebsocketConstants.SEND_TO_ALL.equals(session)) {
+			for (String wsSession : manager.getWsSessionKeys()) {
+				String outputType = manager.getOutputType(wsSession);
+				if (OutboundQueues.getEndpoint(outputType) != null) {
+					queues.offer(wsSession, outputType, msg, copyHeaders(exchange));
+				}
+			}
+			return;
+		}
+		// a closed session has no output type, so a late message does not leave a queue behind
+		if (manager.getOutputType(session) == null) {
+			if (logger.isDebugEnabled())
+				logger.debug("No session " + session + ", dropped " + msg);
+			return;
+		}
+		String outputType = exchange.getIn().getHeader(ConfigConstants.OUTPUT_TYPE, String.class);
+		queues.offer(session, outputType, msg, copyHeaders(exchange));
+	}
+
+	private Map<String, Object> copyHeaders(Exchange exchange) {
+		return new HashMap<>(exchange.getIn().getHeaders());
+	}
+
+}
@@ -0,0 +1,345 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.FORMAT_DELTA;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import mjson.Json;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.JsonSerializer;
+import nz.co.fortytwo.signalk.util.ServerConstants;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.MapMaker;
+
+/**
+ * Encodes each output once and shares it between sessions.
+ * <p>
+ * An output is keyed on the snapshot version, the set of paths, what they are and the format, so sessions whose subscriptions resolve
+ * to the same paths on the same version of the model get the same immutable list of messages.
+ * The messages are the strings the COMMON_OUT route would have produced, it passes them straight through.
+ * The cache holds at most config.server.output.cache.bytes of estimated key and message size, dropping the least recently used first.
+ * Outputs are dropped config.server.output.cache.expiry ms after they were encoded. Once the model has moved on, an old version is not asked for again.
+ * 
+ * @author robert
+ *
+ */
+public class OutputCache implements OutputCacheMBean {
+
+	private static Logger logger = LogManager.getLogger(OutputCache.class);
+
+	// weak identity keys, test models come and go
+	private static final Map<SignalKModel, OutputCache> instances = new MapMaker().weakKeys().makeMap();
+
+	private final SignalKModel model;
+	private final Cache<Key, ImmutableList<String>> cache;
+	private final long maxBytes;
+	private final ThreadLocal<DeltaWireEncoder> encoders = new ThreadLocal<DeltaWireEncoder>() {
+		@Override
+		protected DeltaWireEncoder initialValue() {
+			return new DeltaWireEncoder(model);
+		}
+	};
+
+	//stats
+	private final AtomicLong encodeTime = new AtomicLong();
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * What the paths of an output are
+	 */
+	public enum Content {
+		/** changed paths, just their values */
+		PATHS,
+		/** changed paths, with the rest of the node each belongs to */
+		NODES,
+		/** subscribed keys, the whole tree */
+		TREE
+	}
+
+	/**
+	 * The output key
+	 */
+	static final class Key {
+		final long version;
+		final ImmutableSortedSet<String> paths;
+		final String format;
+		final Content content;
+		private final int hash;
+
+		Key(long version, Collection<String> paths, String format, Content content) {
+			this.version = version;
+			this.paths = ImmutableSortedSet.copyOf(paths);
+			this.format = StringUtils.isBlank(format) ? FORMAT_DELTA : format;
+			this.content = content;
+			int h = (int) (version ^ (version >>> 32));
+			h = 31 * h + this.paths.hashCode();
+			h = 31 * h + this.format.hashCode();
+			this.hash = 31 * h + content.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return version == other.version && content == other.content && hash == other.hash && format.equals(other.format)
+					&& paths.equals(other.paths);
+		}
+
+		@Override
+		public String toString() {
+			return "Key [version=" + version + ", paths=" + paths + ", format=" + format + ", content=" + content + "]";
+		}
+	}
+
+	OutputCache(SignalKModel model, long maxBytes, long expiry) {
+		this.model = model;
+		this.maxBytes = Math.max(1, maxBytes);
+		this.cache = CacheBuilder.newBuilder()
+				.maximumWeight(this.maxBytes)
+				.weigher(new Weigher<Key, ImmutableList<String>>() {
+					@Override
+					public int weigh(Key key, ImmutableList<String> value) {
+						return OutputCache.weigh(key, value);
+					}
+				})
+				.expireAfterWrite(Math.max(1, expiry), TimeUnit.MILLISECONDS)
+				.removalListener(new RemovalListener<Key, ImmutableList<String>>() {
+					@Override
+					public void onRemoval(RemovalNotification<Key, ImmutableList<String>> notification) {
+						bytes.addAndGet(-weigh(notification.getKey(), notification.getValue()));
+					}
+				})
+				.recordStats().build();
+	}
+
+	/**
+	 * A rough size in bytes of a cached output, the messages are counted in full, the paths are shared with the model
+	 * 
+	 * @param key
+	 * @param messages
+	 * @return
+	 */
+	static int weigh(Key key, ImmutableList<String> messages) {
+		long size = 96 + 8L * key.paths.size();
+		for (String msg : messages) {
+			size += 40 + 2L * msg.length();
+		}
+		return (int) Math.min(Integer.MAX_VALUE, size);
+	}
+
+	/**
+	 * The output cache of the main signalk model
+	 * 
+	 * @return
+	 */
+	public static OutputCache getInstance() {
+		return forModel(SignalKModelFactory.getInstance());
+	}
+
+	/**
+	 * The output cache of this model, created the first time.
+	 * 
+	 * @param model
+	 * @return
+	 */
+	public static synchronized OutputCache forModel(SignalKModel model) {
+		OutputCache outputs = instances.get(model);
+		if (outputs == null) {
+			outputs = new OutputCache(model, ServerConstants.getConfigLong(ServerConstants.OUTPUT_CACHE_BYTES, 16 * 1024 * 1024),
+					ServerConstants.getConfigLong(ServerConstants.OUTPUT_CACHE_EXPIRY, 10000));
+			instances.put(model, outputs);
+			if (model == SignalKModelFactory.getInstance())
+				outputs.registerMBean();
+		}
+		return outputs;
+	}
+
+	/**
+	 * Registers the stats on JMX
+	 */
+	public void registerMBean() {
+		try {
+			ObjectName name = new ObjectName(getClass().getName(), "id", "outputCache");
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Returns the encoded messages for the paths at this snapshot version, building and encoding the tree only if no
+	 * other session has done it already. Concurrent callers for the same key wait for one encode.
+	 * 
+	 * @param snapshot the snapshot the tree is built from
+	 * @param paths the changed paths, or the subscribed keys for a tree
+	 * @param format full or delta, blank for delta
+	 * @param content what the paths are
+	 * @param builder builds the model to encode from the snapshot, or returns null if there is nothing to send
+	 * @return the messages, empty if there was nothing to send
+	 */
+	public ImmutableList<String> get(ModelSnapshot snapshot, Collection<String> paths, String format, Content content,
+			final Callable<SignalKModel> builder) {
+		final Key key = new Key(snapshot.getVersion(), paths, format, content);
+		try {
+			return cache.get(key, new Callable<ImmutableList<String>>() {
+				@Override
+				public ImmutableList<String> call() throws Exception {
+					SignalKModel tree = builder.call();
+					ImmutableList<String> encoded = tree == null ? ImmutableList.<String> of() : encode(tree, key.format);
+					bytes.addAndGet(weigh(key, encoded));
+					return encoded;
+				}
+			});
+		} catch (ExecutionException e) {
+			logger.error(key + ": " + e.getCause().getMessage(), e.getCause());
+			return ImmutableList.of();
+		}
+	}
+
+	/**
+	 * Encodes the model as the COMMON_OUT route would: deltas straight from the keys by the {@link DeltaWireEncoder},
+	 * full format with $source resolved, converted to json and private branches removed.
+	 * 
+	 * @param tree
+	 * @param format
+	 * @return
+	 * @throws IOException
+	 */
+	ImmutableList<String> encode(SignalKModel tree, String format) throws IOException {
+		long start = System.nanoTime();
+		ImmutableList.Builder<String> out = ImmutableList.builder();
+		if (FORMAT_DELTA.equals(format)) {
+			List<String> deltas = new ArrayList<>();
+			encoders.get().encode(tree, deltas);
+			out.addAll(deltas);
+		} else {
+			SourceRefToSourceProcessor.resolveSources(model, tree);
+			// the serializer is not known to be thread safe, it is cheap next to the encode
+			Json json = new JsonSerializer().writeJson(tree);
+			if (json != null)
+				out.add(OutputFilterProcessor.filter(json));
+		}
+		ImmutableList<String> encoded = out.build();
+		messages.addAndGet(encoded.size());
+		encodeTime.addAndGet((System.nanoTime() - start) / 1000);
+		return encoded;
+	}
+
+	/**
+	 * Drops all the outputs
+	 */
+	public void clear() {
+		cache.invalidateAll();
+	}
+
+	@Override
+	public long getHits() {
+		return cache.stats().hitCount();
+	}
+
+	@Override
+	public long getMisses() {
+		return cache.stats().missCount();
+	}
+
+	@Override
+	public double getHitRate() {
+		return cache.stats().hitRate();
+	}
+
+	@Override
+	public long getEvictions() {
+		return cache.stats().evictionCount();
+	}
+
+	@Override
+	public long getEntries() {
+		return cache.size();
+	}
+
+	@Override
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	@Override
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	@Override
+	public long getMessages() {
+		return messages.get();
+	}
+
+	@Override
+	public long getAverageEncodeTime() {
+		CacheStats stats = cache.stats();
+		long loads = stats.loadCount();
+		return loads == 0 ? 0 : encodeTime.get() / loads;
+	}
+
+}
@@ -50,17 +50,7 @@ public class OutputFilterProcessor extends SignalkProcessor implements Processor
 		if(logger.isDebugEnabled())logger.debug("Processing, class="+exchange.getIn().getBody().getClass());
 		//TODO: add more filters here
 		if(exchange.getIn().getBody() instanceof Json){
-			Json json = (Json)exchange.getIn().getBody();
-			//remove _arduino
-			try{
-				json.at(SignalKConstants.vessels).at(SignalKConstants.self).delAt("_arduino");
-			}catch(NullPointerException npe){}
-			//remove _config
-			try{
-				json.at(SignalKConstants.vessels).at(SignalKConstants.self).delAt("_config");
-			}catch(NullPointerException npe){}
-			
-			exchange.getIn().setBody(json.toString());
+			exchange.getIn().setBody(filter((Json)exchange.getIn().getBody()));
 		}
 		if (exchange.getIn().getBody() instanceof SignalKModel){
 			SignalKModel model = (SignalKModel)exchange.getIn().getBody();
@@ -81,4 +71,22 @@ public class OutputFilterProcessor extends SignalkProcessor implements Processor
 		}
 	}
 
+	/**
+	 * Removes the private branches and writes the json as a string
+	 * 
+	 * @param json
+	 * @return
+	 */
+	static String filter(Json json) {
+		//remove _arduino
+		try{
+			json.at(SignalKConstants.vessels).at(SignalKConstants.self).delAt("_arduino");
+		}catch(NullPointerException npe){}
+		//remove _config
+		try{
+			json.at(SignalKConstants.vessels).at(SignalKConstants.self).delAt("_config");
+		}catch(NullPointerException npe){}
+		return json.toString();
+	}
+
 }
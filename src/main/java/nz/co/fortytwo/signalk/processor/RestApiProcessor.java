@@ -48,6 +48,7 @@ import org.apache.logging.log4j.Logger;
 
 import mjson.Json;
 import nz.co.fortytwo.signalk.util.ConfigConstants;
+import nz.co.fortytwo.signalk.util.PathPattern;
 import nz.co.fortytwo.signalk.util.SignalKConstants;
 import nz.co.fortytwo.signalk.util.Util;
 
@@ -350,9 +351,7 @@ public class RestApiProcessor extends SignalkProcessor implements Processor {
 	private boolean containsWildcard(String path) {
 		if (StringUtils.isBlank(path))
 			return false;
-		if (path.contains("*") || path.contains("?"))
-			return true;
-		return false;
+		return PathPattern.isWildcard(path);
 	}
 
 }
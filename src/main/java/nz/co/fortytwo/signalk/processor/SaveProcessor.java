@@ -25,7 +25,6 @@ package nz.co.fortytwo.signalk.processor;
 
 import java.io.IOException;
 
-import nz.co.fortytwo.signalk.model.event.PathEvent;
 import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
 
 import org.apache.camel.Exchange;
@@ -49,7 +48,7 @@ public class SaveProcessor extends SignalkProcessor implements Processor {
 	private SaveThread saver = new SaveThread();
 	
 	public SaveProcessor(){
-		signalkModel.getEventBus().register(this);
+		ChangeSets.forModel(signalkModel).register(this);
 	}
 	
 	public void process(Exchange exchange) throws Exception {
@@ -58,13 +57,14 @@ public class SaveProcessor extends SignalkProcessor implements Processor {
 	}
 
 	@Subscribe
-	public void recordEvent(PathEvent pathEvent) {
-		if (pathEvent == null)
+	public void recordChanges(ChangeSet changes) {
+		if (changes == null || changes.isEmpty())
 			return;
-		if (pathEvent.getPath() == null)
-			return;
-		//if (logger.isTraceEnabled())logger.trace(this.wsSession + " received event " + pathEvent.getPath());
-		history.info(String.format("%d|%s|%s", pathEvent.getTimestamp(), pathEvent.getPath(), signalkModel.get(pathEvent.getPath())));
+		if (history.isInfoEnabled()) {
+			for (String path : changes.getPaths()) {
+				history.info(String.format("%d|%s|%s", changes.getTimestamp(), path, signalkModel.get(path)));
+			}
+		}
 		// do we care?
 		saver.startSave();
 
@@ -24,12 +24,11 @@
 package nz.co.fortytwo.signalk.processor;
 
 import java.io.IOException;
-import java.util.NavigableMap;
 
 import mjson.Json;
 import nz.co.fortytwo.signalk.model.SignalKModel;
 import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
-import nz.co.fortytwo.signalk.util.SignalKConstants;
+import nz.co.fortytwo.signalk.util.ServerConstants;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
@@ -37,6 +36,10 @@ import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logg
 
 /**
  * Updates the signalkModel with the current json
+ * <p>
+ * If config.server.input.batch.size is more than 1 the updates are merged and committed in batches, see {@link ModelBatcher}
+ * <p>
+ * The model size is kept within its limits by {@link ModelAccounting}
  * 
  * @author robert
  * 
@@ -44,6 +47,25 @@ import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logg
 public class SignalkModelProcessor extends SignalkProcessor implements Processor {
 
 	private static Logger logger = LogManager.getLogger(SignalkModelProcessor.class);
+	private static ModelBatcher batcher;
+	private static ModelAccounting accounting;
+	
+	public SignalkModelProcessor() {
+		super();
+		synchronized (SignalkModelProcessor.class) {
+			if (batcher == null) {
+				batcher = new ModelBatcher(signalkModel, 
+						ServerConstants.getConfigInt(ServerConstants.INPUT_BATCH_SIZE, 1),
+						ServerConstants.getConfigLong(ServerConstants.INPUT_BATCH_TIME, 100));
+				batcher.registerMBean();
+				accounting = ModelAccounting.getInstance();
+			}
+		}
+	}
+	
+	public static ModelBatcher getBatcher() {
+		return batcher;
+	}
 
 	public void process(Exchange exchange) throws Exception {
 
@@ -70,13 +92,10 @@ public class SignalkModelProcessor extends SignalkProcessor implements Processor
 			return;
 		if (logger.isDebugEnabled())
             logger.debug("SignalkModelProcessor  updating " + SignalKModelFactory.writePretty(node));
-
-		signalkModel.putAll(node.getFullData());
-		NavigableMap<String, Object> cnf = node.getSubMap(SignalKConstants.CONFIG);
-		if(cnf!=null && cnf.size()>0){
-			SignalKModelFactory.saveConfig(signalkModel);
-		}
-
+		//new resources over their limit are dropped here
+		accounting.filter(node);
+		//commits are serialised by the batcher, which matters when there are several input workers
+		batcher.add(node);
 	}
 
 }
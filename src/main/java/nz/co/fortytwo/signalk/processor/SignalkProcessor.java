@@ -28,12 +28,16 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Pattern;
 
+import mjson.Json;
 import nz.co.fortytwo.signalk.model.SignalKModel;
 import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
 import nz.co.fortytwo.signalk.server.CamelContextFactory;
 import nz.co.fortytwo.signalk.server.RouteManager;
 import nz.co.fortytwo.signalk.server.SubscriptionManager;
 import nz.co.fortytwo.signalk.server.SubscriptionManagerFactory;
+import nz.co.fortytwo.signalk.util.MessageClass;
+import nz.co.fortytwo.signalk.util.PathPattern;
+import nz.co.fortytwo.signalk.util.ServerConstants;
 import nz.co.fortytwo.signalk.util.SignalKConstants;
 import nz.co.fortytwo.signalk.util.Util;
 
@@ -65,6 +69,14 @@ public class SignalkProcessor {
 	
 	
 	public SignalkProcessor(){
+		this(true);
+	}
+	
+	/**
+	 * @param producers - false for processors created per session, which set their own shared producers instead
+	 */
+	protected SignalkProcessor(boolean producers){
+		if(!producers)return;
 		nmeaProducer= new DefaultProducerTemplate(CamelContextFactory.getInstance());
 		nmeaProducer.setDefaultEndpointUri(RouteManager.SEDA_NMEA );
 		outProducer= new DefaultProducerTemplate(CamelContextFactory.getInstance());
@@ -110,6 +122,35 @@ public class SignalkProcessor {
 	}
 
 
+	/**
+	 * Returns the body as json, parsing it now if it is still a string and {@link MessageClass} says it has any of the given top level keys.
+	 * The parsed json replaces the body, so later processors dont parse again.
+	 * 
+	 * @param exchange
+	 * @param flags - MessageClass.HAS_* flags this processor is interested in
+	 * @return the json, or null if the body is not json or not of interest 
+	 */
+	protected Json getJson(Exchange exchange, int flags){
+		Object body = exchange.getIn().getBody();
+		if(body instanceof Json) return (Json) body;
+		if(!(body instanceof String)) return null;
+		MessageClass mc = exchange.getIn().getHeader(ServerConstants.MSG_CLASS, MessageClass.class);
+		if(mc==null || !mc.isJson() || !mc.hasAny(flags)) return null;
+		Json json = Json.read((String) body);
+		exchange.getIn().setBody(json);
+		return json;
+	}
+	
+	/**
+	 * True if the input filter has classified this message as json
+	 * @param exchange
+	 * @return
+	 */
+	protected boolean isJsonMessage(Exchange exchange){
+		MessageClass mc = exchange.getIn().getHeader(ServerConstants.MSG_CLASS, MessageClass.class);
+		return mc!=null && mc.isJson();
+	}
+
 	/**
 	 * Round to specified decimals
 	 * @param val
@@ -121,6 +162,10 @@ public class SignalkProcessor {
 	}
 
 
+	/**
+	 * @deprecated unanchored and crosses segments, use {@link PathPattern#compile(String)}
+	 */
+	@Deprecated
 	public static Pattern regexPath(String newPath) {
 		// regex it
 		String regex = newPath.replaceAll(".", "[$0]").replace("[*]", ".*").replace("[?]", ".");
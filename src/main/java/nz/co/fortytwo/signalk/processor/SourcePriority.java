@@ -0,0 +1,242 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.sourceRef;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+
+/**
+ * Picks one source per path when several sources send the same data, eg 2 GPS or 2 compasses.
+ * <p>
+ * Priorities are set per path as a list of $source refs, best first, eg
+ * 'navigation.position:NMEA0183.GPS1|NMEA0183.GPS2,navigation.headingMagnetic:N2K.115|N2K.204'. A ref also matches any ref that starts with it and a dot.
+ * Sources not in the list rank last.
+ * <p>
+ * An update from a lower priority source is removed from the vessel branch while the current source is fresh, so it never overwrites the
+ * value or fires events. Its sources.* entries are left in place, so the source is still recorded. If the current source has not
+ * updated within the timeout the next best source takes over.
+ * 
+ * @author robert
+ *
+ */
+public class SourcePriority implements SourcePriorityMBean {
+
+	private static Logger logger = LogManager.getLogger(SourcePriority.class);
+
+	private final String priorities;
+	private final long timeout;
+	// path > refs in priority order, in config order
+	private final Map<String, List<String>> paths = new LinkedHashMap<>();
+	// vessel context + path > current source
+	private final ConcurrentHashMap<String, Current> current = new ConcurrentHashMap<>();
+
+	private final LongAdder accepted = new LongAdder();
+	private final LongAdder suppressed = new LongAdder();
+	private final LongAdder failovers = new LongAdder();
+
+	private static class Current {
+		int rank;
+		long lastUpdate;
+	}
+
+	/**
+	 * @param priorities - 'path:ref|ref,path:ref|ref', may be null
+	 * @param timeout - ms before a lower priority source may take over
+	 */
+	public SourcePriority(String priorities, long timeout) {
+		this.priorities = priorities;
+		this.timeout = timeout;
+		if (StringUtils.isBlank(priorities))
+			return;
+		for (String entry : StringUtils.split(priorities, ',')) {
+			int pos = entry.indexOf(':');
+			if (pos < 1) {
+				logger.warn("Ignoring source priority without a ':' :" + entry);
+				continue;
+			}
+			List<String> refs = new ArrayList<>();
+			for (String ref : StringUtils.split(entry.substring(pos + 1), '|')) {
+				if (StringUtils.isNotBlank(ref))
+					refs.add(ref.trim());
+			}
+			paths.put(entry.substring(0, pos).trim(), refs);
+		}
+	}
+
+	public boolean isEnabled() {
+		return !paths.isEmpty();
+	}
+
+	/**
+	 * Removes the vessel keys for any prioritised path in this update that comes from a lower priority source than the current one.
+	 * 
+	 * @param fragment - a decoded update, after the source has been converted to $source
+	 * @param now - ms
+	 * @return the number of keys removed
+	 */
+	public int filter(SignalKModel fragment, long now) {
+		if (paths.isEmpty())
+			return 0;
+		Map<String, Object> data = fragment.getFullData();
+		// ctx+path > accept, decided once per update
+		Map<String, Boolean> decisions = null;
+		int removed = 0;
+		Iterator<Map.Entry<String, Object>> iter = data.entrySet().iterator();
+		while (iter.hasNext()) {
+			String key = iter.next().getKey();
+			if (!key.startsWith(vessels + dot))
+				continue;
+			int ctxEnd = key.indexOf('.', vessels.length() + 1);
+			if (ctxEnd < 0)
+				continue;
+			String path = match(key, ctxEnd + 1);
+			if (path == null)
+				continue;
+			String stateKey = key.substring(0, ctxEnd + 1) + path;
+			if (decisions == null)
+				decisions = new HashMap<>();
+			Boolean accept = decisions.get(stateKey);
+			if (accept == null) {
+				Object ref = data.get(stateKey + dot + sourceRef);
+				accept = ref == null || decide(stateKey, rank(paths.get(path), ref.toString()), now);
+				decisions.put(stateKey, accept);
+			}
+			if (!accept) {
+				iter.remove();
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	private boolean decide(String stateKey, int rank, long now) {
+		Current cur = current.get(stateKey);
+		if (cur == null) {
+			cur = new Current();
+			cur.rank = Integer.MAX_VALUE;
+			Current old = current.putIfAbsent(stateKey, cur);
+			if (old != null)
+				cur = old;
+		}
+		synchronized (cur) {
+			if (rank <= cur.rank) {
+				cur.rank = rank;
+				cur.lastUpdate = now;
+				accepted.increment();
+				return true;
+			}
+			if (now - cur.lastUpdate > timeout) {
+				if (logger.isDebugEnabled())
+					logger.debug(stateKey + " source " + cur.rank + " timed out, using " + rank);
+				cur.rank = rank;
+				cur.lastUpdate = now;
+				failovers.increment();
+				accepted.increment();
+				return true;
+			}
+		}
+		suppressed.increment();
+		return false;
+	}
+
+	static int rank(List<String> refs, String ref) {
+		for (int i = 0; i < refs.size(); i++) {
+			String r = refs.get(i);
+			if (ref.equals(r) || (ref.startsWith(r) && ref.length() > r.length() && ref.charAt(r.length()) == '.'))
+				return i;
+		}
+		return refs.size();
+	}
+
+	private String match(String key, int start) {
+		for (String path : paths.keySet()) {
+			if (key.startsWith(path, start)) {
+				int end = start + path.length();
+				if (end == key.length() || key.charAt(end) == '.')
+					return path;
+			}
+		}
+		return null;
+	}
+
+	public void registerMBean() {
+		try {
+			ObjectName name = new ObjectName(getClass().getName(), "id", "sourcePriority");
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public long getAccepted() {
+		return accepted.sum();
+	}
+
+	@Override
+	public long getSuppressed() {
+		return suppressed.sum();
+	}
+
+	@Override
+	public long getFailovers() {
+		return failovers.sum();
+	}
+
+	@Override
+	public long getTimeout() {
+		return timeout;
+	}
+
+	@Override
+	public String getPriorities() {
+		return priorities;
+	}
+}
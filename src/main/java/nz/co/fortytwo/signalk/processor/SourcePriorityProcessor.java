@@ -0,0 +1,76 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.util.ServerConstants;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logger;
+
+/**
+ * Stops lower priority sources overwriting a path while the preferred source is fresh. See {@link SourcePriority}
+ * 
+ * @author robert
+ * 
+ */
+public class SourcePriorityProcessor extends SignalkProcessor implements Processor {
+
+	private static Logger logger = LogManager.getLogger(SourcePriorityProcessor.class);
+	private static SourcePriority priority;
+	
+	public SourcePriorityProcessor() {
+		super();
+		getPriority();
+	}
+	
+	public static synchronized SourcePriority getPriority() {
+		if (priority == null) {
+			priority = new SourcePriority(
+					ServerConstants.getConfigString(ServerConstants.INPUT_PRIORITY_PATHS, null),
+					ServerConstants.getConfigLong(ServerConstants.INPUT_PRIORITY_TIMEOUT, 5000));
+			if (priority.isEnabled())
+				priority.registerMBean();
+		}
+		return priority;
+	}
+
+	public void process(Exchange exchange) throws Exception {
+
+		try {
+			if (exchange.getIn().getBody() instanceof SignalKModel) {
+				SignalKModel model = exchange.getIn().getBody(SignalKModel.class);
+				int removed = priority.filter(model, System.currentTimeMillis());
+				if (removed > 0 && logger.isDebugEnabled())
+					logger.debug("Removed " + removed + " keys from lower priority sources");
+			}
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+}
@@ -59,28 +59,38 @@ public class SourceRefToSourceProcessor extends SignalkProcessor implements Proc
 		if (exchange.getIn().getBody() instanceof SignalKModel){
 			SignalKModel model = exchange.getIn().getBody(SignalKModel.class);
 			if(logger.isDebugEnabled())logger.debug("Processing:"+model);
-			for(String key : model.getKeys()){
-				if(key.endsWith(dot+sourceRef)){
-					String val = (String) model.get(key);
-					if(logger.isDebugEnabled())logger.debug("key:"+key+", value:"+val);
-					//val is the path
-					model.getFullData().remove(key);
-					//fix key
-					key = key.replace(dot+sourceRef, dot+source);
-					NavigableMap<String, Object> node = signalkModel.getSubMap(sources+dot+val);
-					int pos = (sources+dot+val).length();
-					//node is the source object 
-					if(node!=null){
-						for(Entry<String, Object> entry:node.entrySet()){
-							String nodeKey = entry.getKey();
-							model.getFullData().put(key+nodeKey.substring(pos), entry.getValue());
-						}
+			resolveSources(signalkModel, model);
+			exchange.getIn().setBody(model);
+		}
+		if(logger.isDebugEnabled())logger.debug("Outputting:"+exchange.getIn());
+	}
+
+	/**
+	 * Replaces each $source in the model with a copy of the source object from the sources model
+	 * 
+	 * @param sourcesModel the model holding the sources
+	 * @param model the model to change
+	 */
+	static void resolveSources(SignalKModel sourcesModel, SignalKModel model) {
+		for(String key : model.getKeys()){
+			if(key.endsWith(dot+sourceRef)){
+				String val = (String) model.get(key);
+				if(logger.isDebugEnabled())logger.debug("key:"+key+", value:"+val);
+				//val is the path
+				model.getFullData().remove(key);
+				//fix key
+				key = key.replace(dot+sourceRef, dot+source);
+				NavigableMap<String, Object> node = sourcesModel.getSubMap(sources+dot+val);
+				int pos = (sources+dot+val).length();
+				//node is the source object 
+				if(node!=null){
+					for(Entry<String, Object> entry:node.entrySet()){
+						String nodeKey = entry.getKey();
+						model.getFullData().put(key+nodeKey.substring(pos), entry.getValue());
 					}
 				}
 			}
-			exchange.getIn().setBody(model);
 		}
-		if(logger.isDebugEnabled())logger.debug("Outputting:"+exchange.getIn());
 	}
 
 }
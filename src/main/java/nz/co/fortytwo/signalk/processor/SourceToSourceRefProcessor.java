@@ -40,6 +40,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.util.PathRegistry;
 
 /**
  * Replaces source with the actual $sourceRef object and stores source in sources.*
@@ -50,6 +51,7 @@ import nz.co.fortytwo.signalk.model.SignalKModel;
 public class SourceToSourceRefProcessor extends SignalkProcessor implements Processor {
 
 	private static Logger logger = LogManager.getLogger(SourceToSourceRefProcessor.class);
+	private PathRegistry registry = PathRegistry.getInstance();
 	
 	
 	public void process(Exchange exchange) throws Exception {
@@ -66,19 +68,19 @@ public class SourceToSourceRefProcessor extends SignalkProcessor implements Proc
 				//if(logger.isDebugEnabled())logger.debug("Key:"+key);
 				if(key.endsWith(dot+source+dot+label)){
 					if(logger.isDebugEnabled())logger.debug("Convert key:"+key);
-					int pos = key.indexOf(dot+source+dot);
 					String typeVal = exchange.getIn().getHeader(MSG_TYPE,String.class);
-					
-					int pos1 = pos+source.length()+2;
-					String refKey = key.substring(0,pos);
+					//key is refKey.source.label
+					String sourceKey = registry.parentPath(key);
+					String refKey = registry.parentPath(sourceKey);
+					int pos1 = refKey.length()+source.length()+2;
 					if(logger.isDebugEnabled())logger.debug("refKey:"+refKey+", bus:"+typeVal);
 					//get the label
-					String lbl = (String) model.get(refKey+dot+source+dot+label);
+					String lbl = (String) model.get(key);
 					if(logger.isDebugEnabled())logger.debug("refKey:"+refKey+", label:"+lbl);
 					//set sourceRef
-					model.getFullData().put(refKey+dot+sourceRef, typeVal+dot+lbl);
+					model.getFullData().put(registry.sibling(sourceKey, sourceRef), typeVal+dot+lbl);
 					//put in sources
-					NavigableMap<String, Object> node = signalkModel.getSubMap(refKey+dot+source);
+					NavigableMap<String, Object> node = signalkModel.getSubMap(sourceKey);
 					if(logger.isDebugEnabled())logger.debug("Found keys:"+node.size());
 					//node is the source object 
 					if(node!=null){
@@ -71,9 +71,12 @@ public class StorageProcessor extends SignalkProcessor implements Processor {
 				String path = json.at(JsonStorageHandler.PARENT_PATH).asString();
 				if (signalkModel.get(path) == null) {
 					Map<String, Object> map = json.asMap();
+					ModelSnapshots snapshots = ModelSnapshots.forModel(signalkModel);
 					for(String key:map.keySet()){
 						signalkModel.getFullData().put(path+dot+key, map.get(key));
+						snapshots.markDirty(path+dot+key);
 					}
+					snapshots.publish();
 					if (logger.isDebugEnabled())
 						logger.debug("Attached storage object at:" + path);
 				}
@@ -0,0 +1,92 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import mjson.Json;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.util.JsonStreamConverter;
+import nz.co.fortytwo.signalk.util.MessageClass;
+import nz.co.fortytwo.signalk.util.ServerConstants;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logger;
+
+/**
+ * Updates the signalkModel with the current delta or full json, without parsing it into a Json tree.
+ * Replaces {@link DeltaImportProcessor} and {@link FullImportProcessor} when config.server.input.import=stream
+ * 
+ * @author robert
+ * 
+ */
+public class StreamingImportProcessor extends SignalkProcessor implements Processor{
+
+	private static Logger logger = LogManager.getLogger(StreamingImportProcessor.class);
+	
+	private static final int DELTA = MessageClass.HAS_UPDATES | MessageClass.HAS_PUT;
+	private static final int FULL = MessageClass.HAS_VESSELS | MessageClass.HAS_CONFIG | MessageClass.HAS_RESOURCES;
+	
+	private ThreadLocal<JsonStreamConverter> converter = new ThreadLocal<JsonStreamConverter>(){
+		@Override
+		protected JsonStreamConverter initialValue() {
+			return new JsonStreamConverter();
+		}
+	};
+	
+	public void process(Exchange exchange) throws Exception {
+		
+		try {
+			Object body = exchange.getIn().getBody();
+			if(!(body instanceof String) && !(body instanceof Json)) return;
+			MessageClass mc = exchange.getIn().getHeader(ServerConstants.MSG_CLASS, MessageClass.class);
+			String msg = body instanceof String ? (String) body : null;
+			if(mc==null){
+				if(msg==null) msg = body.toString();
+				mc = MessageClass.classify(msg);
+			}
+			if(!mc.isJson() || !mc.hasAny(DELTA | FULL)) return;
+			//already parsed by an earlier processor, rare on the input route
+			if(msg==null) msg = body.toString();
+			
+			SignalKModel model = null;
+			//same precedence as the tree processors, delta first unless it carries vessels
+			if(mc.hasAny(DELTA) && !mc.has(MessageClass.HAS_VESSELS)){
+				model = converter.get().handleDelta(msg, mc.getContext());
+			}else if(mc.hasAny(FULL)){
+				model = converter.get().handleFull(msg);
+			}
+			if(model!=null){
+				if(logger.isDebugEnabled())logger.debug("Converted to:"+model);
+				exchange.getIn().setBody(model);
+			}else{
+				if(logger.isDebugEnabled())logger.debug("Ignored, not update:"+msg);
+			}
+		} catch (Exception e) {
+			logger.error(e.getMessage(),e);
+		}
+	}
+
+}
@@ -81,7 +81,7 @@ public class TrackProcessor extends SignalkProcessor implements Processor {
 	private static Logger logger = LogManager.getLogger(TrackProcessor.class);
 	
 	private Json msg ;
-	//TODO: thread safety??
+	//one instance is shared by the input workers, so all state is guarded by this
 	private List<Position> track = new ArrayList<Position>();
 	private Json coords;
 	private Json geometry;
@@ -99,10 +99,12 @@ public class TrackProcessor extends SignalkProcessor implements Processor {
 				logger.debug("Processing:"+exchange.getIn().getBody().getClass());
 				logger.trace("Processing:"+exchange.getIn().getBody());
 			}
-			if(!initialized){
-				//save new message
-				inProducer.sendBody(msg.toString());
-				initialized=true;
+			synchronized (this) {
+				if(!initialized){
+					//save new message
+					inProducer.sendBody(msg.toString());
+					initialized=true;
+				}
 			}
 			if (exchange.getIn().getBody() instanceof SignalKModel) {
 
@@ -116,7 +118,7 @@ public class TrackProcessor extends SignalkProcessor implements Processor {
 	}
 
 	// @Override
-	public void handle(SignalKModel node) {
+	public synchronized void handle(SignalKModel node) {
 		if (node.getData().size() == 0)
 			return;
 
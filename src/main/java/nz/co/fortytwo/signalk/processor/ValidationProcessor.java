@@ -30,6 +30,7 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.timestamp;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.value;
 import mjson.Json;
 import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.util.PathRegistry;
 import nz.co.fortytwo.signalk.util.Util;
 
 import org.apache.camel.Exchange;
@@ -48,6 +49,7 @@ import org.joda.time.DateTimeZone;
 public class ValidationProcessor extends SignalkProcessor implements Processor{
 
 	private static Logger logger = LogManager.getLogger(ValidationProcessor.class);
+	private PathRegistry registry = PathRegistry.getInstance();
 	
 	public void process(Exchange exchange) throws Exception {
 		
@@ -78,13 +80,15 @@ public class ValidationProcessor extends SignalkProcessor implements Processor{
 			if(logger.isDebugEnabled())	logger.debug("Checking key="+key);
 			if(key.endsWith(dot+value)){
 				if(logger.isDebugEnabled())	logger.debug("Processing key="+key);
-				String tmpKey = key.substring(0,key.length()-value.length());
+				//siblings of the value, from the registry when the key is known, new keys are not added
+				String tsKey = registry.sibling(key, timestamp);
+				String refKey = registry.sibling(key, sourceRef);
 				//it should have timestamp and source
-				if(model.getSubMap(tmpKey+timestamp).size()==0){
-					model.getFullData().put(tmpKey+timestamp,Util.getIsoTimeString());
+				if(model.getSubMap(tsKey).size()==0){
+					model.getFullData().put(tsKey,Util.getIsoTimeString());
 				}
-				if(model.getSubMap(tmpKey+sourceRef).size()==0){
-					model.getFullData().put(tmpKey+sourceRef,UNKNOWN);
+				if(model.getSubMap(refKey).size()==0){
+					model.getFullData().put(refKey,UNKNOWN);
 				}
 			}
 		
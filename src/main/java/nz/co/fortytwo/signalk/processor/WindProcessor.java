@@ -43,14 +43,17 @@ public class WindProcessor extends SignalkProcessor implements Processor{
 	private TrueWindHandler trueWind = new TrueWindHandler();
 
 	public void process(Exchange exchange) throws Exception {
-		
-		try {
-		
-			trueWind.handle(signalkModel);
-			
-		} catch (Exception e) {
-			logger.error(e);
-		}
+		//one commit, so readers and subscribers see all the keys the handler writes together
+		ModelBatcher.write(signalkModel, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					trueWind.handle(signalkModel);
+				} catch (Exception e) {
+					logger.error(e);
+				}
+			}
+		});
 	}
 	
 
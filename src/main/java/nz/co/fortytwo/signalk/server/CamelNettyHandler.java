@@ -91,6 +91,13 @@ public class CamelNettyHandler extends SimpleChannelInboundHandler<String> {
 		SubscriptionManagerFactory.getInstance().removeSessionId(session);
 		super.channelInactive(ctx);
 	}
+
+	@Override
+	public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+		// pause the session's outbound queue while the channel buffer is full, it conflates or drops meanwhile
+		OutboundQueues.getInstance().setWritable(contextList.inverse().get(ctx), ctx.channel().isWritable());
+		super.channelWritabilityChanged(ctx);
+	}
 	@Override
 	protected void channelRead0(ChannelHandlerContext ctx, String request) throws Exception {
 		if(logger.isDebugEnabled())logger.debug("Request:" + request);
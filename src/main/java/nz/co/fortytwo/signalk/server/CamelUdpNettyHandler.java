@@ -33,7 +33,9 @@ import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.util.CharsetUtil;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -60,6 +62,7 @@ public class CamelUdpNettyHandler extends SimpleChannelInboundHandler<DatagramPa
 	ProducerTemplate producer;
 
 	private String outputType;
+	private Nmea0183FrameDecoder nmeaDecoder = null;
 	
 	
 	public CamelUdpNettyHandler( String outputType) throws Exception {
@@ -79,8 +82,7 @@ public class CamelUdpNettyHandler extends SimpleChannelInboundHandler<DatagramPa
 
 	@Override
 	protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) throws Exception {
-		String request = packet.content().toString(CharsetUtil.UTF_8);
-		if(logger.isDebugEnabled())logger.debug("Sender "+packet.sender()+" sent request:" + request);
+		if(logger.isDebugEnabled())logger.debug("Sender "+packet.sender()+" sent request:" + packet.content().toString(CharsetUtil.UTF_8));
 
 		if(!sessionList.inverse().containsKey(packet.sender())){
 			String session = UUID.randomUUID().toString();
@@ -94,7 +96,16 @@ public class CamelUdpNettyHandler extends SimpleChannelInboundHandler<DatagramPa
 		}
 		
 		Map<String, Object> headers = getHeaders(sessionList.inverse().get(packet.sender()));
-		producer.sendBodyAndHeaders(request, headers);
+		if(nmeaDecoder!=null){
+			//only pass on valid sentences, one at a time
+			List<Object> sentences = new ArrayList<>();
+			nmeaDecoder.frame(packet.content(), sentences, true);
+			for(Object sentence: sentences){
+				producer.sendBodyAndHeaders(sentence, headers);
+			}
+			return;
+		}
+		producer.sendBodyAndHeaders(packet.content().toString(CharsetUtil.UTF_8), headers);
 	}
 
 	@Override
@@ -123,6 +134,14 @@ public class CamelUdpNettyHandler extends SimpleChannelInboundHandler<DatagramPa
 		return headers;
 	}
 
+	/**
+	 * Check and split incoming NMEA datagrams with this decoder
+	 * @param nmeaDecoder
+	 */
+	public void setNmeaDecoder(Nmea0183FrameDecoder nmeaDecoder) {
+		this.nmeaDecoder = nmeaDecoder;
+	}
+
 	protected BiMap<String, InetSocketAddress> getSessionList() {
 		return sessionList;
 	}
@@ -0,0 +1,327 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.server;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.POLICY_IDEAL;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import nz.co.fortytwo.signalk.processor.FullExportProcessor;
+import nz.co.fortytwo.signalk.util.ServerConstants;
+
+/**
+ * Delivers the changes for ideal and instant subscriptions, off the thread that committed them.
+ * <p>
+ * Each route has a pending set of changed paths. A path already pending is not added again, so a session that is behind
+ * gets the latest value of each path once, in the next send. Only one send per route is queued or running at a time, ideal
+ * sends wait until minPeriod after the last send, instant sends go as soon as a thread is free.
+ * Sends run on a fixed pool, config.server.delivery.threads, so a slow session only holds up one thread.
+ * 
+ * @author robert
+ *
+ */
+public class DeliveryScheduler implements DeliverySchedulerMBean {
+
+	private static Logger logger = LogManager.getLogger(DeliveryScheduler.class);
+
+	private static DeliveryScheduler scheduler = null;
+
+	private final int threads;
+	// routeId > pending changes
+	private final ConcurrentHashMap<String, Pending> routes = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService timer;
+	// at most one run per route is queued, so the queue is bounded by the routes
+	private final ExecutorService pool;
+
+	//stats
+	private final AtomicLong sends = new AtomicLong();
+	private final AtomicLong paths = new AtomicLong();
+	private final AtomicLong conflated = new AtomicLong();
+	private volatile long maxLag = 0;
+
+	class Pending implements Runnable {
+		final FullExportProcessor exporter;
+		private LinkedHashSet<String> paths = new LinkedHashSet<>();
+		private Subscription sub;
+		// a send is queued or running
+		private boolean queued = false;
+		// when the oldest pending path arrived, 0 if none
+		private long since = 0;
+		private volatile long lag = 0;
+
+		Pending(FullExportProcessor exporter) {
+			this.exporter = exporter;
+		}
+
+		@Override
+		public void run() {
+			Collection<String> send;
+			Subscription s;
+			synchronized (this) {
+				if (paths.isEmpty()) {
+					queued = false;
+					return;
+				}
+				send = paths;
+				s = sub;
+				paths = new LinkedHashSet<>();
+				lag = System.currentTimeMillis() - since;
+				since = 0;
+			}
+			if (lag > maxLag)
+				maxLag = lag;
+			try {
+				exporter.deliver(send, s);
+				sends.incrementAndGet();
+				DeliveryScheduler.this.paths.addAndGet(send.size());
+			} catch (Exception e) {
+				logger.error(exporter.getRouteId() + ": " + e.getMessage(), e);
+			} finally {
+				synchronized (this) {
+					if (paths.isEmpty())
+						queued = false;
+					else
+						schedule(this);
+				}
+			}
+		}
+
+		synchronized int getPending() {
+			return paths.size();
+		}
+
+		synchronized long getLag() {
+			//still waiting is lag too
+			return since > 0 ? Math.max(lag, System.currentTimeMillis() - since) : lag;
+		}
+	}
+
+	public DeliveryScheduler(int threads) {
+		this.threads = Math.max(1, threads);
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Delivery timer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		pool = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Delivery-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public static synchronized DeliveryScheduler getInstance() {
+		if (scheduler == null) {
+			scheduler = new DeliveryScheduler(ServerConstants.getConfigInt(ServerConstants.DELIVERY_THREADS, 2));
+			scheduler.registerMBean();
+			logger.info("Delivery scheduler " + scheduler.threads + " threads");
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Registers the stats on JMX
+	 */
+	public void registerMBean() {
+		try {
+			ObjectName name = new ObjectName(getClass().getName(), "id", "deliveryScheduler");
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Adds changed paths to the route's pending set, and queues a send if there is none.
+	 * 
+	 * @param exporter the exporter of the route
+	 * @param sub the ideal or instant subscription the paths matched
+	 * @param changed the changed paths
+	 */
+	public void offer(FullExportProcessor exporter, Subscription sub, Collection<String> changed) {
+		if (changed.isEmpty())
+			return;
+		Pending pending = routes.get(exporter.getRouteId());
+		if (pending == null || pending.exporter != exporter) {
+			synchronized (routes) {
+				pending = routes.get(exporter.getRouteId());
+				// a new exporter on the route replaces the old one
+				if (pending == null || pending.exporter != exporter) {
+					pending = new Pending(exporter);
+					routes.put(exporter.getRouteId(), pending);
+				}
+			}
+		}
+		synchronized (pending) {
+			int before = pending.paths.size();
+			pending.paths.addAll(changed);
+			conflated.addAndGet(changed.size() - (pending.paths.size() - before));
+			pending.sub = sub;
+			if (pending.since == 0)
+				pending.since = System.currentTimeMillis();
+			if (!pending.queued) {
+				pending.queued = true;
+				schedule(pending);
+			}
+		}
+	}
+
+	/**
+	 * Drops the pending paths of the route, eg because the full tree is about to be sent
+	 * 
+	 * @param routeId
+	 */
+	public void discard(String routeId) {
+		Pending pending = routes.get(routeId);
+		if (pending != null)
+			discard(pending);
+	}
+
+	/**
+	 * Forgets the route, a queued send finds nothing to do
+	 * 
+	 * @param routeId
+	 */
+	public void remove(String routeId) {
+		Pending pending = routes.remove(routeId);
+		if (pending != null)
+			discard(pending);
+	}
+
+	private void discard(Pending pending) {
+		synchronized (pending) {
+			pending.paths.clear();
+			pending.since = 0;
+		}
+	}
+
+	// called holding the pending lock
+	private void schedule(final Pending pending) {
+		long delay = 0;
+		if (pending.sub != null && POLICY_IDEAL.equals(pending.sub.getPolicy())) {
+			delay = pending.exporter.getLastSend() + pending.sub.getMinPeriod() - System.currentTimeMillis();
+		}
+		if (delay <= 0) {
+			pool.execute(pending);
+		} else {
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					pool.execute(pending);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @param routeId
+	 * @return the paths waiting to be sent on the route
+	 */
+	public int getPending(String routeId) {
+		Pending pending = routes.get(routeId);
+		return pending == null ? 0 : pending.getPending();
+	}
+
+	/**
+	 * @param routeId
+	 * @return ms from the oldest pending change to its send, or the age of the oldest change still waiting
+	 */
+	public long getLag(String routeId) {
+		Pending pending = routes.get(routeId);
+		return pending == null ? 0 : pending.getLag();
+	}
+
+	@Override
+	public int getRoutes() {
+		return routes.size();
+	}
+
+	@Override
+	public int getThreads() {
+		return threads;
+	}
+
+	@Override
+	public long getSends() {
+		return sends.get();
+	}
+
+	@Override
+	public long getPaths() {
+		return paths.get();
+	}
+
+	@Override
+	public long getConflated() {
+		return conflated.get();
+	}
+
+	@Override
+	public long getMaxLag() {
+		return maxLag;
+	}
+
+	@Override
+	public List<String> getSessionLag() {
+		List<String> details = new ArrayList<>();
+		for (Pending pending : routes.values()) {
+			details.add(pending.exporter.getWsSession() + " (" + pending.exporter.getRouteId() + "): lag " + pending.getLag()
+					+ "ms, pending " + pending.getPending());
+		}
+		return details;
+	}
+
+}
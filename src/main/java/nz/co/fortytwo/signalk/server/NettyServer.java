@@ -51,9 +51,14 @@ import io.netty.handler.codec.string.StringEncoder;
 import io.netty.util.CharsetUtil;
 import io.netty.util.concurrent.Future;
 
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import nz.co.fortytwo.signalk.util.ConfigConstants;
+import nz.co.fortytwo.signalk.util.ServerConstants;
 import nz.co.fortytwo.signalk.util.Util;
 
 import org.apache.camel.Exchange;
@@ -76,6 +81,7 @@ public class NettyServer implements Processor{
 	private int tcpPort = Util.getConfigPropertyInt(ConfigConstants.TCP_PORT);
 	private int udpPort = Util.getConfigPropertyInt(ConfigConstants.UDP_PORT);
 	private String outputType;
+	private NmeaFrameStats nmeaStats = null;
 	/**
 	 * @param configDir
 	 * @throws Exception 
@@ -96,6 +102,21 @@ public class NettyServer implements Processor{
 	
 	public void run() throws Exception{
 		forwardingHandler = new CamelNettyHandler(outputType);
+		//frame and check NMEA at the socket
+		if(ConfigConstants.OUTPUT_NMEA.equals(outputType) && ServerConstants.getConfigBoolean(ServerConstants.NMEA_FRAMER, false)){
+			nmeaStats = new NmeaFrameStats();
+			try {
+				ObjectName name = new ObjectName(NmeaFrameStats.class.getName(),"id",outputType);
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				if(server.isRegistered(name)){
+					server.unregisterMBean(name);
+				}
+				server.registerMBean(nmeaStats, name);
+			} catch (Exception e) {
+				logger.error(e.getMessage(),e);
+			}
+			logger.info("Using NMEA 0183 framer for "+outputType);
+		}
 		// The generic TCP socket server
 		ServerBootstrap skBootstrap = new ServerBootstrap();
 		skBootstrap.group(group, workerGroup).channel(NioServerSocketChannel.class).localAddress(tcpPort)
@@ -103,8 +124,12 @@ public class NettyServer implements Processor{
 					@Override
 					public void initChannel(SocketChannel socketChannel) throws Exception {
 						ChannelPipeline pipeline = socketChannel.pipeline();
-						pipeline.addLast(new DelimiterBasedFrameDecoder(8192, Delimiters.lineDelimiter()));
-						pipeline.addLast(DECODER);
+						if(nmeaStats!=null){
+							pipeline.addLast(createNmeaDecoder());
+						}else{
+							pipeline.addLast(new DelimiterBasedFrameDecoder(8192, Delimiters.lineDelimiter()));
+							pipeline.addLast(DECODER);
+						}
 						pipeline.addLast(ENCODER);
 						pipeline.addLast(forwardingHandler);
 						logger.info("Signal K "+outputType+" Connection over TCP from:" + socketChannel.remoteAddress());
@@ -118,6 +143,9 @@ public class NettyServer implements Processor{
 		
 		if(udpPort>0){
 			udpHandler = new CamelUdpNettyHandler(outputType);
+			if(nmeaStats!=null){
+				udpHandler.setNmeaDecoder(createNmeaDecoder());
+			}
 			 
 			Bootstrap udpBootstrap = new Bootstrap();
 			udpBootstrap.group(group).channel(NioDatagramChannel.class)
@@ -128,6 +156,12 @@ public class NettyServer implements Processor{
 		}
 	}
 
+	private Nmea0183FrameDecoder createNmeaDecoder(){
+		return new Nmea0183FrameDecoder(nmeaStats, 
+				ServerConstants.getConfigBoolean(ServerConstants.NMEA_REQUIRE_CHECKSUM, false),
+				Nmea0183FrameDecoder.packTypes(ServerConstants.getConfigString(ServerConstants.NMEA_IGNORE, null)));
+	}
+
 	public void shutdownServer() {
 		logger.info("Stopping ptrans...");
 		Future<?> groupShutdownFuture = group.shutdownGracefully();
@@ -169,19 +203,20 @@ public class NettyServer implements Processor{
 					if(ctx!=null&& ctx.channel().isWritable())ctx.pipeline().writeAndFlush(msg+"\r\n");
 				}
 			}else{
-				//udp
-				if(udpPort>0 && udpChannel!=null&& udpChannel.isWritable()){
-					final InetSocketAddress client = udpHandler.getSessionList().get(session);
+				//udp, the session is a udp client or a tcp connection
+				final InetSocketAddress client = udpHandler==null ? null : udpHandler.getSessionList().get(session);
+				if(client!=null && udpChannel!=null&& udpChannel.isWritable()){
 					if(logger.isDebugEnabled())logger.debug("Sending udp: "+exchange.getIn().getBody());
 					//udpCtx.pipeline().writeAndFlush(msg+"\r\n");
 					udpChannel.writeAndFlush(new DatagramPacket(
 						Unpooled.copiedBuffer(msg+"\r\n", CharsetUtil.UTF_8),client));
 					if(logger.isDebugEnabled())logger.debug("Sent udp for session: "+session);
 					//TODO: how do we tell when a UDP client is gone
+					return;
 				}
-				//tcp
+				//tcp, the session's OutboundQueue stops sending while the channel is not writable
 				ChannelHandlerContext ctx = forwardingHandler.getChannel(session);
-				if(ctx!=null && ctx.channel().isWritable())ctx.pipeline().writeAndFlush(msg+"\r\n");
+				if(ctx!=null && ctx.channel().isActive())ctx.pipeline().writeAndFlush(msg+"\r\n");
 			}
 		}
 		
@@ -0,0 +1,268 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.util.CharsetUtil;
+
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Frames NMEA 0183 sentences straight from the socket buffer.
+ * <p>
+ * Finds the $ or ! start, the end of line, and checks the *hh checksum without copying. 
+ * Only valid sentences are turned into Strings and passed on, everything else is counted in {@link NmeaFrameStats} and dropped.
+ * Sentence types can be ignored at the socket too (eg GSV), by packing the type into an int and comparing.
+ * <p>
+ * Replaces DelimiterBasedFrameDecoder and StringDecoder on the NMEA port. Also used directly on UDP datagrams, see {@link #frame(ByteBuf, List, boolean)}.
+ * 
+ * @author robert
+ *
+ */
+public class Nmea0183FrameDecoder extends ByteToMessageDecoder {
+
+	private static Logger logger = LogManager.getLogger(Nmea0183FrameDecoder.class);
+
+	public static final int VALID = 0;
+	public static final int NO_CHECKSUM = 1;
+	public static final int BAD_CHECKSUM = 2;
+	public static final int MALFORMED = 3;
+
+	// the spec says 82, but AIS and proprietary sentences can be longer
+	public static final int MAX_LENGTH = 256;
+
+	private final NmeaFrameStats stats;
+	private final boolean requireChecksum;
+	private final int[] ignored;
+
+	/**
+	 * @param stats - shared counters
+	 * @param requireChecksum - drop sentences without a *hh checksum
+	 * @param ignored - packed sentence types to drop, see {@link #packType(String)}
+	 */
+	public Nmea0183FrameDecoder(NmeaFrameStats stats, boolean requireChecksum, int[] ignored) {
+		this.stats = stats;
+		this.requireChecksum = requireChecksum;
+		this.ignored = ignored == null ? new int[0] : ignored;
+	}
+
+	@Override
+	protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+		frame(in, out, false);
+	}
+
+	/**
+	 * Reads all the complete sentences in the buffer into out.
+	 * 
+	 * @param in
+	 * @param out
+	 * @param endOfInput - true if there is no more data coming (a datagram), so a sentence without a line end is complete
+	 */
+	public void frame(ByteBuf in, List<Object> out, boolean endOfInput) {
+		while (in.isReadable()) {
+			int readerIndex = in.readerIndex();
+			int writerIndex = in.writerIndex();
+			int start = findStart(in, readerIndex, writerIndex);
+			if (start < 0) {
+				discard(in, readerIndex, writerIndex);
+				in.readerIndex(writerIndex);
+				return;
+			}
+			if (start > readerIndex) {
+				discard(in, readerIndex, start);
+				in.readerIndex(start);
+			}
+			int end = findEnd(in, start + 1, writerIndex);
+			if (end < 0) {
+				if (writerIndex - start > MAX_LENGTH) {
+					stats.tooLong.increment();
+					in.readerIndex(start + 1);
+					continue;
+				}
+				if (!endOfInput)
+					return;
+				end = writerIndex;
+			}
+			in.readerIndex(end);
+			if (end < writerIndex && isStart(in.getByte(end))) {
+				// cut short by the next sentence
+				stats.malformed.increment();
+				continue;
+			}
+			if (end - start > MAX_LENGTH) {
+				stats.tooLong.increment();
+				continue;
+			}
+			int status = validate(in, start, end);
+			if (status == BAD_CHECKSUM) {
+				stats.badChecksum.increment();
+				continue;
+			}
+			if (status == MALFORMED) {
+				stats.malformed.increment();
+				continue;
+			}
+			if (status == NO_CHECKSUM) {
+				stats.noChecksum.increment();
+				if (requireChecksum)
+					continue;
+			}
+			if (isIgnored(sentenceType(in, start))) {
+				stats.ignored.increment();
+				continue;
+			}
+			stats.valid.increment();
+			out.add(in.toString(start, end - start, CharsetUtil.US_ASCII));
+		}
+	}
+
+	private boolean isIgnored(int type) {
+		for (int i = 0; i < ignored.length; i++) {
+			if (ignored[i] == type)
+				return true;
+		}
+		return false;
+	}
+
+	private void discard(ByteBuf in, int from, int to) {
+		int count = 0;
+		for (int i = from; i < to; i++) {
+			byte b = in.getByte(i);
+			if (b != '\r' && b != '\n' && b != ' ' && b != '\t')
+				count++;
+		}
+		if (count > 0) {
+			stats.discardedBytes.add(count);
+			if (logger.isDebugEnabled())
+				logger.debug("Discarded " + count + " bytes");
+		}
+	}
+
+	private static boolean isStart(byte b) {
+		return b == '$' || b == '!';
+	}
+
+	private static int findStart(ByteBuf in, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (isStart(in.getByte(i)))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Index of the line end, or of the next sentence start if the current one was cut short.
+	 */
+	private static int findEnd(ByteBuf in, int from, int to) {
+		for (int i = from; i < to; i++) {
+			byte b = in.getByte(i);
+			if (b == '\r' || b == '\n' || isStart(b))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Checks the sentence between start (the $ or !) and end (exclusive, no line end).
+	 * 
+	 * @return VALID, NO_CHECKSUM, BAD_CHECKSUM or MALFORMED
+	 */
+	public static int validate(ByteBuf in, int start, int end) {
+		// $ + 5 char address
+		if (end - start < 6)
+			return MALFORMED;
+		int checksum = 0;
+		for (int i = start + 1; i < end; i++) {
+			int b = in.getByte(i) & 0xff;
+			if (b == '*') {
+				if (end - i < 3)
+					return MALFORMED;
+				int hi = hex(in.getByte(i + 1));
+				int lo = hex(in.getByte(i + 2));
+				if (hi < 0 || lo < 0)
+					return MALFORMED;
+				return ((hi << 4) | lo) == checksum ? VALID : BAD_CHECKSUM;
+			}
+			if (b < 0x20 || b > 0x7e)
+				return MALFORMED;
+			checksum ^= b;
+		}
+		return NO_CHECKSUM;
+	}
+
+	private static int hex(byte b) {
+		if (b >= '0' && b <= '9')
+			return b - '0';
+		if (b >= 'A' && b <= 'F')
+			return b - 'A' + 10;
+		if (b >= 'a' && b <= 'f')
+			return b - 'a' + 10;
+		return -1;
+	}
+
+	/**
+	 * The 2 char talker id packed into an int, eg GP from $GPGGA
+	 */
+	public static int talker(ByteBuf in, int start) {
+		return ((in.getByte(start + 1) & 0xff) << 8) | (in.getByte(start + 2) & 0xff);
+	}
+
+	/**
+	 * The 3 char sentence type packed into an int, eg GGA from $GPGGA
+	 */
+	public static int sentenceType(ByteBuf in, int start) {
+		return ((in.getByte(start + 3) & 0xff) << 16) | ((in.getByte(start + 4) & 0xff) << 8) | (in.getByte(start + 5) & 0xff);
+	}
+
+	/**
+	 * Packs a 3 char sentence type, as returned by {@link #sentenceType(ByteBuf, int)}
+	 */
+	public static int packType(String type) {
+		if (type == null || type.length() != 3)
+			throw new IllegalArgumentException("Sentence type must be 3 chars:" + type);
+		return ((type.charAt(0) & 0xff) << 16) | ((type.charAt(1) & 0xff) << 8) | (type.charAt(2) & 0xff);
+	}
+
+	/**
+	 * Parses a comma separated list of sentence types, eg 'GSV,GSA'
+	 */
+	public static int[] packTypes(String types) {
+		if (StringUtils.isBlank(types))
+			return new int[0];
+		String[] list = StringUtils.split(types, ',');
+		int[] packed = new int[list.length];
+		for (int i = 0; i < list.length; i++) {
+			packed[i] = packType(list[i].trim());
+		}
+		return packed;
+	}
+}
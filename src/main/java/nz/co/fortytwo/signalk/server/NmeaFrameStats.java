@@ -0,0 +1,81 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for {@link Nmea0183FrameDecoder}, shared by all the connections on a port.
+ * 
+ * @author robert
+ *
+ */
+public class NmeaFrameStats implements NmeaFrameStatsMBean {
+
+	final LongAdder valid = new LongAdder();
+	final LongAdder noChecksum = new LongAdder();
+	final LongAdder badChecksum = new LongAdder();
+	final LongAdder malformed = new LongAdder();
+	final LongAdder tooLong = new LongAdder();
+	final LongAdder ignored = new LongAdder();
+	final LongAdder discardedBytes = new LongAdder();
+
+	@Override
+	public long getValid() {
+		return valid.sum();
+	}
+
+	@Override
+	public long getNoChecksum() {
+		return noChecksum.sum();
+	}
+
+	@Override
+	public long getBadChecksum() {
+		return badChecksum.sum();
+	}
+
+	@Override
+	public long getMalformed() {
+		return malformed.sum();
+	}
+
+	@Override
+	public long getTooLong() {
+		return tooLong.sum();
+	}
+
+	@Override
+	public long getIgnored() {
+		return ignored.sum();
+	}
+
+	@Override
+	public long getDiscardedBytes() {
+		return discardedBytes.sum();
+	}
+
+}
@@ -0,0 +1,336 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.server;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.CONTEXT;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.PATH;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.UPDATES;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.values;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * The outbound messages of one session, waiting to be written to its connection.
+ * <p>
+ * While the session keeps up the queue is empty and messages pass straight through. When it falls behind, a new delta
+ * replaces any queued delta whose paths it covers, so the client gets the latest value of each path once. Past the message
+ * or byte bound the oldest messages are dropped, except notifications and alarms, which are always delivered.
+ * <p>
+ * Messages are only parsed for their paths once the queue is behind.
+ * 
+ * @author robert
+ *
+ */
+public class OutboundQueue {
+
+	private static Logger logger = LogManager.getLogger(OutboundQueue.class);
+
+	private static final JsonFactory factory = new JsonFactory();
+	private static final String NOTIFICATIONS = "notifications";
+	private static final String ALARM = "alarm";
+
+	static class Entry {
+		final String msg;
+		final Map<String, Object> headers;
+		final long bytes;
+		// context/path of each value, filled by parse()
+		Set<String> paths = null;
+		boolean priority = false;
+
+		Entry(String msg, Map<String, Object> headers) {
+			this.msg = msg;
+			this.headers = headers;
+			this.bytes = msg.length();
+		}
+	}
+
+	private final String session;
+	private final String outputType;
+	private final int maxMessages;
+	private final long maxBytes;
+
+	// identity equality, so removing a conflated entry is cheap
+	private final LinkedHashSet<Entry> entries = new LinkedHashSet<>();
+	// context/path > newest queued entry with it
+	private final Map<String, Entry> latest = new HashMap<>();
+	private long bytes = 0;
+	private boolean writable = true;
+	// a drain is queued or running
+	private boolean draining = false;
+
+	//stats
+	private long offered = 0;
+	private long sent = 0;
+	private long drops = 0;
+	private long conflations = 0;
+	private int maxDepth = 0;
+
+	public OutboundQueue(String session, String outputType, int maxMessages, long maxBytes) {
+		this.session = session;
+		this.outputType = outputType;
+		this.maxMessages = Math.max(1, maxMessages);
+		this.maxBytes = Math.max(1, maxBytes);
+	}
+
+	/**
+	 * Adds a message, conflating or dropping older ones if the session is behind.
+	 * 
+	 * @param msg
+	 * @param headers the headers to send it with
+	 * @return true if the caller must start a drain
+	 */
+	public synchronized boolean offer(String msg, Map<String, Object> headers) {
+		Entry entry = new Entry(msg, headers);
+		offered++;
+		if (!entries.isEmpty()) {
+			conflate(entry);
+		}
+		entries.add(entry);
+		bytes += entry.bytes;
+		trim();
+		if (entries.size() > maxDepth)
+			maxDepth = entries.size();
+		return startDrain();
+	}
+
+	/**
+	 * @return the next message to send, or null when the queue is empty or the connection cant take more, which ends the drain
+	 */
+	synchronized Entry next() {
+		if (!writable || entries.isEmpty()) {
+			draining = false;
+			if (entries.isEmpty())
+				latest.clear();
+			return null;
+		}
+		Iterator<Entry> it = entries.iterator();
+		Entry entry = it.next();
+		it.remove();
+		bytes -= entry.bytes;
+		sent++;
+		return entry;
+	}
+
+	/**
+	 * Set by transports that know when their connection buffer is full, eg netty.
+	 * 
+	 * @param writable
+	 * @return true if the caller must start a drain
+	 */
+	public synchronized boolean setWritable(boolean writable) {
+		this.writable = writable;
+		return startDrain();
+	}
+
+	private boolean startDrain() {
+		if (draining || !writable || entries.isEmpty())
+			return false;
+		draining = true;
+		return true;
+	}
+
+	// removes queued deltas whose paths are all in the new one
+	private void conflate(Entry entry) {
+		// only the head can be unparsed, it went in while the queue was empty
+		Entry head = entries.iterator().next();
+		if (head.paths == null)
+			index(head);
+		index(entry);
+		if (entry.priority || entry.paths.isEmpty())
+			return;
+		for (String path : entry.paths) {
+			Entry old = latest.get(path);
+			if (old == null || old == entry || old.priority || !entries.contains(old))
+				continue;
+			if (entry.paths.containsAll(old.paths)) {
+				entries.remove(old);
+				bytes -= old.bytes;
+				conflations++;
+			}
+		}
+		for (String path : entry.paths) {
+			latest.put(path, entry);
+		}
+	}
+
+	private void index(Entry entry) {
+		parse(entry);
+		if (entry.priority)
+			return;
+		for (String path : entry.paths) {
+			Entry old = latest.get(path);
+			if (old == null || !entries.contains(old))
+				latest.put(path, entry);
+		}
+	}
+
+	// drops the oldest messages that are not notifications or alarms until within bounds
+	private void trim() {
+		if (entries.size() <= maxMessages && bytes <= maxBytes)
+			return;
+		Iterator<Entry> it = entries.iterator();
+		while ((entries.size() > maxMessages || bytes > maxBytes) && it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.paths == null)
+				parse(entry);
+			if (entry.priority)
+				continue;
+			it.remove();
+			bytes -= entry.bytes;
+			drops++;
+		}
+	}
+
+	/**
+	 * Reads the context/path of each value in a delta, and whether any is a notification or alarm.
+	 * Other messages have no paths, and are priority if they mention notifications.
+	 */
+	static void parse(Entry entry) {
+		Set<String> paths = new HashSet<>();
+		boolean priority = false;
+		String msg = entry.msg;
+		if (msg.startsWith("{")) {
+			String ctx = null;
+			try (JsonParser parser = factory.createParser(msg)) {
+				if (parser.nextToken() == JsonToken.START_OBJECT) {
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						String name = parser.getCurrentName();
+						JsonToken token = parser.nextToken();
+						if (CONTEXT.equals(name) && token == JsonToken.VALUE_STRING) {
+							ctx = parser.getText();
+						} else if (UPDATES.equals(name) && token == JsonToken.START_ARRAY) {
+							readUpdates(parser, paths);
+						} else {
+							parser.skipChildren();
+						}
+					}
+				}
+			} catch (IOException e) {
+				if (logger.isDebugEnabled())
+					logger.debug("Not conflating " + msg + ": " + e.getMessage());
+				paths.clear();
+			}
+			if (!paths.isEmpty()) {
+				Set<String> keys = new HashSet<>(paths.size());
+				for (String path : paths) {
+					if (path.startsWith(NOTIFICATIONS) || path.contains(ALARM))
+						priority = true;
+					keys.add(ctx + "/" + path);
+				}
+				paths = keys;
+			} else if (msg.contains(NOTIFICATIONS)) {
+				priority = true;
+			}
+		}
+		entry.paths = paths.isEmpty() ? Collections.<String> emptySet() : paths;
+		entry.priority = priority;
+	}
+
+	private static void readUpdates(JsonParser parser, Set<String> paths) throws IOException {
+		while (parser.nextToken() == JsonToken.START_OBJECT) {
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if (values.equals(name) && token == JsonToken.START_ARRAY) {
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						while (parser.nextToken() == JsonToken.FIELD_NAME) {
+							String field = parser.getCurrentName();
+							JsonToken t = parser.nextToken();
+							if (PATH.equals(field) && t == JsonToken.VALUE_STRING) {
+								paths.add(parser.getText());
+							} else {
+								parser.skipChildren();
+							}
+						}
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+	}
+
+	public String getSession() {
+		return session;
+	}
+
+	public String getOutputType() {
+		return outputType;
+	}
+
+	public synchronized int getDepth() {
+		return entries.size();
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized boolean isWritable() {
+		return writable;
+	}
+
+	public synchronized long getOffered() {
+		return offered;
+	}
+
+	public synchronized long getSent() {
+		return sent;
+	}
+
+	public synchronized long getDrops() {
+		return drops;
+	}
+
+	public synchronized long getConflations() {
+		return conflations;
+	}
+
+	public synchronized int getMaxDepth() {
+		return maxDepth;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return session + " " + outputType + " depth=" + entries.size() + " bytes=" + bytes + " maxDepth=" + maxDepth + " sent=" + sent
+				+ " drops=" + drops + " conflations=" + conflations + (writable ? "" : " blocked");
+	}
+
+}
@@ -0,0 +1,319 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.component.websocket.WebsocketConstants;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import nz.co.fortytwo.signalk.util.ConfigConstants;
+import nz.co.fortytwo.signalk.util.ServerConstants;
+
+/**
+ * Holds an {@link OutboundQueue} for each websocket, tcp, udp, mqtt and stomp session, and drains them to the output routes.
+ * <p>
+ * A session that is behind only fills its own queue. Each queue is drained by at most one thread at a time, from a fixed pool,
+ * and a drain hands its thread back after {@link #BATCH} messages, so busy sessions take turns.
+ * Netty connections stop their drain while the channel is not writable, see {@link CamelNettyHandler}.
+ * <p>
+ * Jetty gives no writable signal for websockets, a write blocks its drain thread until the connection takes it or times out.
+ * The queue of a stuck websocket conflates and drops meanwhile, but it holds a thread, so more stuck websockets than
+ * threads delay the other sessions until their writes time out.
+ * 
+ * @author robert
+ *
+ */
+public class OutboundQueues implements OutboundQueuesMBean {
+
+	private static Logger logger = LogManager.getLogger(OutboundQueues.class);
+
+	private static OutboundQueues queues = null;
+
+	// messages sent by a drain before it goes to the back of the pool queue
+	static final int BATCH = 64;
+
+	private final int maxMessages;
+	private final long maxBytes;
+	private final int threads;
+	// session > queue
+	private final ConcurrentHashMap<String, OutboundQueue> sessions = new ConcurrentHashMap<>();
+	private final ExecutorService pool;
+	private ProducerTemplate producer = null;
+
+	//stats of removed queues
+	private final AtomicLong retiredSent = new AtomicLong();
+	private final AtomicLong retiredDrops = new AtomicLong();
+	private final AtomicLong retiredConflations = new AtomicLong();
+
+	public OutboundQueues(int maxMessages, long maxBytes, int threads) {
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.threads = Math.max(1, threads);
+		pool = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Outbound-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public static synchronized OutboundQueues getInstance() {
+		if (queues == null) {
+			queues = new OutboundQueues(ServerConstants.getConfigInt(ServerConstants.OUTBOUND_QUEUE_MESSAGES, 1000),
+					ServerConstants.getConfigLong(ServerConstants.OUTBOUND_QUEUE_BYTES, 4 * 1024 * 1024),
+					ServerConstants.getConfigInt(ServerConstants.OUTBOUND_THREADS, 8));
+			queues.registerMBean();
+			logger.info("Outbound queues " + queues.maxMessages + " messages, " + queues.maxBytes + " bytes per session, "
+					+ queues.threads + " threads");
+		}
+		return queues;
+	}
+
+	/**
+	 * Registers the stats on JMX
+	 */
+	public void registerMBean() {
+		try {
+			ObjectName name = new ObjectName(getClass().getName(), "id", "outboundQueues");
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Udp clients of the signalk tcp server are sessions with its output type, so {@link RouteManager#DIRECT_TCP} writes them too.
+	 * 
+	 * @param outputType
+	 * @return the route that writes to connections of this output type, or null if it is not queued
+	 */
+	public static String getEndpoint(String outputType) {
+		if (ConfigConstants.OUTPUT_WS.equals(outputType))
+			return RouteManager.DIRECT_WEBSOCKETS;
+		if (ConfigConstants.OUTPUT_TCP.equals(outputType))
+			return RouteManager.DIRECT_TCP;
+		if (ConfigConstants.OUTPUT_MQTT.equals(outputType))
+			return RouteManager.DIRECT_MQTT;
+		if (ConfigConstants.OUTPUT_STOMP.equals(outputType))
+			return RouteManager.DIRECT_STOMP;
+		return null;
+	}
+
+	/**
+	 * Queues a message for a session, and starts a drain if there is none.
+	 * 
+	 * @param session the wsSession
+	 * @param outputType
+	 * @param msg
+	 * @param headers sent with the message
+	 * @return false if the output type is not queued
+	 */
+	public boolean offer(String session, String outputType, String msg, Map<String, Object> headers) {
+		if (session == null || msg == null || getEndpoint(outputType) == null)
+			return false;
+		OutboundQueue queue = sessions.get(session);
+		if (queue == null) {
+			queue = new OutboundQueue(session, outputType, maxMessages, maxBytes);
+			OutboundQueue existing = sessions.putIfAbsent(session, queue);
+			if (existing != null)
+				queue = existing;
+		}
+		if (queue.offer(msg, headers))
+			drain(queue);
+		return true;
+	}
+
+	/**
+	 * Pauses or resumes the drain of a session, for transports that know when the connection cant take more.
+	 * 
+	 * @param session
+	 * @param writable
+	 */
+	public void setWritable(String session, boolean writable) {
+		if (session == null)
+			return;
+		OutboundQueue queue = sessions.get(session);
+		if (queue != null && queue.setWritable(writable))
+			drain(queue);
+	}
+
+	/**
+	 * Drops the queue of a closed session
+	 * 
+	 * @param session
+	 */
+	public void remove(String session) {
+		if (session == null)
+			return;
+		OutboundQueue queue = sessions.remove(session);
+		if (queue != null) {
+			retiredSent.addAndGet(queue.getSent());
+			retiredDrops.addAndGet(queue.getDrops());
+			retiredConflations.addAndGet(queue.getConflations());
+		}
+	}
+
+	public OutboundQueue getQueue(String session) {
+		return sessions.get(session);
+	}
+
+	private void drain(final OutboundQueue queue) {
+		pool.execute(new Runnable() {
+			@Override
+			public void run() {
+				OutboundQueue.Entry entry;
+				int count = 0;
+				while ((entry = queue.next()) != null) {
+					try {
+						send(queue, entry);
+					} catch (Exception e) {
+						logger.error(queue.getSession() + ": " + e.getMessage(), e);
+					}
+					if (++count >= BATCH) {
+						// still draining, let the other sessions have the thread
+						pool.execute(this);
+						return;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes one message to the session's output route, on the drain thread.
+	 * 
+	 * @param queue
+	 * @param entry
+	 * @throws Exception
+	 */
+	protected void send(OutboundQueue queue, OutboundQueue.Entry entry) throws Exception {
+		Exchange ex = new DefaultExchange(CamelContextFactory.getInstance());
+		ex.getIn().setBody(entry.msg);
+		ex.getIn().getHeaders().putAll(entry.headers);
+		ex.getIn().setHeader(WebsocketConstants.CONNECTION_KEY, queue.getSession());
+		ex.getIn().setHeader(ConfigConstants.OUTPUT_TYPE, queue.getOutputType());
+		getProducer().send(getEndpoint(queue.getOutputType()), ex);
+	}
+
+	private synchronized ProducerTemplate getProducer() throws Exception {
+		if (producer == null) {
+			producer = CamelContextFactory.getInstance().createProducerTemplate();
+			producer.start();
+		}
+		return producer;
+	}
+
+	@Override
+	public int getSessions() {
+		return sessions.size();
+	}
+
+	@Override
+	public int getThreads() {
+		return threads;
+	}
+
+	@Override
+	public int getMaxMessages() {
+		return maxMessages;
+	}
+
+	@Override
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	@Override
+	public int getDepth() {
+		int depth = 0;
+		for (OutboundQueue queue : sessions.values()) {
+			depth += queue.getDepth();
+		}
+		return depth;
+	}
+
+	@Override
+	public long getSent() {
+		long sent = retiredSent.get();
+		for (OutboundQueue queue : sessions.values()) {
+			sent += queue.getSent();
+		}
+		return sent;
+	}
+
+	@Override
+	public long getDrops() {
+		long drops = retiredDrops.get();
+		for (OutboundQueue queue : sessions.values()) {
+			drops += queue.getDrops();
+		}
+		return drops;
+	}
+
+	@Override
+	public long getConflations() {
+		long conflations = retiredConflations.get();
+		for (OutboundQueue queue : sessions.values()) {
+			conflations += queue.getConflations();
+		}
+		return conflations;
+	}
+
+	@Override
+	public List<String> getSessionQueues() {
+		List<String> list = new ArrayList<>();
+		for (OutboundQueue queue : sessions.values()) {
+			list.add(queue.toString());
+		}
+		return list;
+	}
+
+}
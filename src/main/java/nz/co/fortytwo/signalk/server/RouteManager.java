@@ -44,8 +44,15 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.SIGNALK_UPGRADE;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.SIGNALK_UPLOAD;
 import static nz.co.fortytwo.signalk.util.SignalKConstants._SIGNALK_WS_TCP_LOCAL;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.ServerConstants.INPUT_RING_BLOCK_TIMEOUT;
+import static nz.co.fortytwo.signalk.util.ServerConstants.INPUT_RING_POLICY;
+import static nz.co.fortytwo.signalk.util.ServerConstants.INPUT_RING_SIZE;
+import static nz.co.fortytwo.signalk.util.ServerConstants.INPUT_TRANSPORT;
+import static nz.co.fortytwo.signalk.util.ServerConstants.INPUT_TRANSPORT_ACTIVEMQ;
+import static nz.co.fortytwo.signalk.util.ServerConstants.INPUT_TRANSPORT_RING;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.net.Inet4Address;
 import java.util.Arrays;
 import java.util.TreeMap;
@@ -54,8 +61,11 @@ import java.util.UUID;
 import javax.jmdns.JmmDNS;
 import javax.jmdns.ServiceEvent;
 import javax.jmdns.ServiceListener;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.camel.Endpoint;
+import org.apache.camel.Exchange;
 import org.apache.camel.ExchangePattern;
 import org.apache.camel.builder.RouteBuilder;
 import org.apache.camel.component.ahc.ws.WsEndpoint;
@@ -82,6 +92,8 @@ import nz.co.fortytwo.signalk.model.SignalKModel;
 import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
 import nz.co.fortytwo.signalk.processor.UploadProcessor;
 import nz.co.fortytwo.signalk.util.ConfigConstants;
+import nz.co.fortytwo.signalk.util.RingBufferQueue;
+import nz.co.fortytwo.signalk.util.ServerConstants;
 import nz.co.fortytwo.signalk.util.Util;
 
 
@@ -107,13 +119,18 @@ public class RouteManager extends RouteBuilder  {
 	private static Logger logger = LogManager.getLogger(RouteManager.class);
 	
 	//public static final String SEDA_INPUT = "seda:inputData?purgeWhenStopping=true&size=1000";
-	public static final String SEDA_INPUT = "activemq:queue:signalk.inputData?jmsMessageType=Text&timeToLive=10000&asyncConsumer=true&acceptMessagesWhileStopping=true";
+	public static final String ACTIVEMQ_INPUT = "activemq:queue:signalk.inputData?jmsMessageType=Text&timeToLive=10000&asyncConsumer=true&acceptMessagesWhileStopping=true";
+	public static final String INPUT_QUEUE = "inputQueue";
+	public static final String RING_INPUT = "seda:signalk.inputData?queue=#"+INPUT_QUEUE+"&purgeWhenStopping=true";
+	//selected by config.server.input.transport, activemq by default
+	public static final String SEDA_INPUT = INPUT_TRANSPORT_RING.equals(ServerConstants.getConfigString(INPUT_TRANSPORT, INPUT_TRANSPORT_ACTIVEMQ))?RING_INPUT:ACTIVEMQ_INPUT;
 	public static final String SEDA_XMPP = "activemq:queue:signalk.xmppData?jmsMessageType=Text&timeToLive=10000&asyncConsumer=true&acceptMessagesWhileStopping=true";
-	public static final String SEDA_WEBSOCKETS = "seda:websockets?purgeWhenStopping=true&size=1000";
+	//fed by the per session OutboundQueues, which do the buffering
+	public static final String DIRECT_WEBSOCKETS = "direct:websockets";
 	public static final String DIRECT_STOMP = "direct:stomp";
 	public static final String DIRECT_MQTT = "direct:mqtt";
 	public static final String DIRECT_XMPP = "direct:xmpp";
-	public static final String DIRECT_TCP = "seda:tcp?purgeWhenStopping=true&size=1000";
+	public static final String DIRECT_TCP = "direct:tcp";
 	
 	public static final String SEDA_NMEA = "seda:nmeaOutput?purgeWhenStopping=true&size=100";
 	public static final String SEDA_COMMON_OUT = "seda:commonOut?purgeWhenStopping=true&size=100";
@@ -147,6 +164,31 @@ public class RouteManager extends RouteBuilder  {
 	public void configure() throws Exception {
 		configure0();
 	}
+	
+	/**
+	 * Binds the ring buffer used by seda:signalk.inputData in the registry, and exposes its counters on JMX
+	 */
+	protected void bindInputQueue() {
+		PropertyPlaceholderDelegateRegistry registry = (PropertyPlaceholderDelegateRegistry) CamelContextFactory.getInstance().getRegistry();
+		JndiRegistry reg = (JndiRegistry)registry.getRegistry();
+		if(reg.lookup(INPUT_QUEUE)!=null)return;
+		
+		RingBufferQueue<Exchange> queue = new RingBufferQueue<Exchange>(
+				ServerConstants.getConfigInt(INPUT_RING_SIZE, 4096),
+				RingBufferQueue.Policy.fromString(ServerConstants.getConfigString(INPUT_RING_POLICY, null), RingBufferQueue.Policy.BLOCK),
+				ServerConstants.getConfigLong(INPUT_RING_BLOCK_TIMEOUT, 50));
+		reg.bind(INPUT_QUEUE, queue);
+		try {
+			ObjectName name = new ObjectName(RingBufferQueue.class.getName(),"id",INPUT_QUEUE);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if(server.isRegistered(name)){
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(queue, name);
+		} catch (Exception e) {
+			logger.error(e.getMessage(),e);
+		}
+	}
 	public void configure0() throws Exception {
 		//XMPP
                 JivePropertiesManager.setJavaObjectEnabled(true);
@@ -170,6 +212,11 @@ public class RouteManager extends RouteBuilder  {
 		CamelContextFactory.getInstance().getShutdownStrategy().setTimeout(10);
 		//CamelContextFactory.getInstance().addComponent("activemq", ActiveMQComponent.activeMQComponent("vm://localhost?broker.persistent=false"));
 		
+		//in-memory input queue, must be bound before anything sends to SEDA_INPUT
+		if(RING_INPUT.equals(SEDA_INPUT)){
+			bindInputQueue();
+		}
+		
 		//Netty tcp server
 		skServer = new NettyServer(null, ConfigConstants.OUTPUT_TCP);
 		skServer.setTcpPort(Util.getConfigPropertyInt(ConfigConstants.TCP_PORT));
@@ -298,7 +345,7 @@ public class RouteManager extends RouteBuilder  {
 		
         
 		//setup routes
-		SignalkRouteFactory.configureWebsocketTxRoute(this, SEDA_WEBSOCKETS, wsPort);
+		SignalkRouteFactory.configureWebsocketTxRoute(this, DIRECT_WEBSOCKETS, wsPort);
 		SignalkRouteFactory.configureWebsocketRxRoute(this, SEDA_INPUT, wsPort);
 		
 		SignalkRouteFactory.configureTcpServerRoute(this, DIRECT_TCP, skServer, ConfigConstants.OUTPUT_TCP);
@@ -449,6 +496,7 @@ public class RouteManager extends RouteBuilder  {
 		}
 		
 		SignalkRouteFactory.startLogRoutes(this, JETTY_HTTP_0_0_0_0, restPort);
+		SignalkRouteFactory.startUsageRoute(this, JETTY_HTTP_0_0_0_0, restPort);
 		
 		if (Util.getConfigPropertyBoolean(ConfigConstants.ZEROCONF_AUTO)) {
 			startMdnsAutoconnect();
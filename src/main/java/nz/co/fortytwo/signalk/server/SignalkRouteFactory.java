@@ -27,7 +27,6 @@ import java.io.File;
 import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -39,8 +38,7 @@ import org.apache.camel.builder.PredicateBuilder;
 import org.apache.camel.builder.RouteBuilder;
 import org.apache.camel.component.websocket.WebsocketConstants;
 import org.apache.camel.component.websocket.WebsocketEndpoint;
-import org.apache.camel.impl.DefaultCamelContext;
-import org.apache.camel.model.RouteDefinition;
+import org.apache.camel.model.ProcessorDefinition;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
@@ -49,28 +47,35 @@ import org.apache.logging.log4j.Logger;
 import mjson.Json;
 import nz.co.fortytwo.signalk.processor.AISProcessor;
 import nz.co.fortytwo.signalk.processor.AisExpiryProcessor;
+import nz.co.fortytwo.signalk.processor.AisStage;
+import nz.co.fortytwo.signalk.processor.AisStageProcessor;
 import nz.co.fortytwo.signalk.processor.AlarmProcessor;
 import nz.co.fortytwo.signalk.processor.AnchorWatchProcessor;
 import nz.co.fortytwo.signalk.processor.ClientAppProcessor;
 import nz.co.fortytwo.signalk.processor.ConfigFilterProcessor;
 import nz.co.fortytwo.signalk.processor.DeclinationProcessor;
+import nz.co.fortytwo.signalk.processor.DeltaEncodeProcessor;
 import nz.co.fortytwo.signalk.processor.DeltaImportProcessor;
 import nz.co.fortytwo.signalk.processor.DepthProcessor;
-import nz.co.fortytwo.signalk.processor.FullExportProcessor;
 import nz.co.fortytwo.signalk.processor.FullImportProcessor;
 import nz.co.fortytwo.signalk.processor.FullToDeltaProcessor;
 import nz.co.fortytwo.signalk.processor.HeartbeatProcessor;
 import nz.co.fortytwo.signalk.processor.IncomingSecurityFirewall;
+import nz.co.fortytwo.signalk.processor.IngestThrottle;
+import nz.co.fortytwo.signalk.processor.IngestThrottleProcessor;
 import nz.co.fortytwo.signalk.processor.InputFilterProcessor;
+import nz.co.fortytwo.signalk.processor.InputShardProcessor;
 import nz.co.fortytwo.signalk.processor.JsonGetProcessor;
 import nz.co.fortytwo.signalk.processor.JsonListProcessor;
 import nz.co.fortytwo.signalk.processor.JsonSubscribeProcessor;
 import nz.co.fortytwo.signalk.processor.LoggerProcessor;
 import nz.co.fortytwo.signalk.processor.MapToJsonProcessor;
+import nz.co.fortytwo.signalk.processor.ModelAccounting;
 import nz.co.fortytwo.signalk.processor.MqttProcessor;
 import nz.co.fortytwo.signalk.processor.N2KProcessor;
 import nz.co.fortytwo.signalk.processor.NMEA0183ExportProcessor;
 import nz.co.fortytwo.signalk.processor.NMEAProcessor;
+import nz.co.fortytwo.signalk.processor.OutboundQueueProcessor;
 import nz.co.fortytwo.signalk.processor.OutputFilterProcessor;
 import nz.co.fortytwo.signalk.processor.PermissionsProcessor;
 import nz.co.fortytwo.signalk.processor.RestApiProcessor;
@@ -79,14 +84,17 @@ import nz.co.fortytwo.signalk.processor.RestPathFilterProcessor;
 import nz.co.fortytwo.signalk.processor.SaveProcessor;
 import nz.co.fortytwo.signalk.processor.SignalkModelProcessor;
 import nz.co.fortytwo.signalk.processor.SourceRefToSourceProcessor;
+import nz.co.fortytwo.signalk.processor.SourcePriorityProcessor;
 import nz.co.fortytwo.signalk.processor.SourceToSourceRefProcessor;
 import nz.co.fortytwo.signalk.processor.StompProcessor;
+import nz.co.fortytwo.signalk.processor.StreamingImportProcessor;
 import nz.co.fortytwo.signalk.processor.TrackProcessor;
 import nz.co.fortytwo.signalk.processor.UploadProcessor;
 import nz.co.fortytwo.signalk.processor.ValidationProcessor;
 import nz.co.fortytwo.signalk.processor.WindProcessor;
 import nz.co.fortytwo.signalk.processor.WsSessionProcessor;
 import nz.co.fortytwo.signalk.util.ConfigConstants;
+import nz.co.fortytwo.signalk.util.ServerConstants;
 import nz.co.fortytwo.signalk.util.SignalKConstants;
 
 
@@ -97,55 +105,134 @@ public class SignalkRouteFactory {
 	private static Set<String> nameSet = new HashSet<String>();
 	/**
 	 * Configures a route for all input traffic, which will parse the traffic and update the signalk model
+	 * <p>
+	 * If config.server.input.workers is more than 1, messages are passed to that many worker routes after the 
+	 * security checks, keyed on the source bus. Each worker has its own decoders, so one source is always decoded 
+	 * in order, and different sources in parallel.
+	 * 
 	 * @param routeBuilder
 	 * @param input
-	 * @param inputFilterProcessor
-	 * @param nmeaProcessor
-	 * @param aisProcessor
-	 * @param signalkModelProcessor
 	 * @throws IOException 
 	 * @throws Exception 
 	 */
 	public static void configureInputRoute(RouteBuilder routeBuilder,String input) throws Exception {
-		routeBuilder.from(input).id(getName("INPUT"))
+		int workers = ServerConstants.getConfigInt(ServerConstants.INPUT_WORKERS, 1);
+		//shared by all workers
+		TrackProcessor trackProcessor = new TrackProcessor();
+		
+		ProcessorDefinition<?> route = routeBuilder.from(input).id(getName("INPUT"))
 			.onException(Exception.class).handled(true).maximumRedeliveries(0)
 			.to("log:nz.co.fortytwo.signalk.model.receive?level=ERROR&showException=true&showStackTrace=true")
 			.end()
 		// dump misc rubbish
 		.process(new InputFilterProcessor()).id(getName(InputFilterProcessor.class.getSimpleName()))
 		//now filter security
-		.process(new IncomingSecurityFirewall()).id(getName(IncomingSecurityFirewall.class.getSimpleName()))
+		.process(new IncomingSecurityFirewall()).id(getName(IncomingSecurityFirewall.class.getSimpleName()));
 		//swap payloads to storage
 		//.process(new StorageProcessor()).id(getName(StorageProcessor.class.getSimpleName()))
+		
+		int aisWorkers = ServerConstants.getConfigInt(ServerConstants.AIS_WORKERS, 0);
+		if(aisWorkers>0){
+			//AIS gets its own workers so it cant hold up our own data
+			logger.info("Using "+aisWorkers+" AIS workers");
+			String aisUri = AisStage.getUri(aisWorkers, ServerConstants.getConfigInt(ServerConstants.AIS_QUEUE_SIZE, 1000));
+			AisStage stage = new AisStage(
+					ServerConstants.getConfigLong(ServerConstants.AIS_FRAGMENT_TIMEOUT, 5000),
+					ServerConstants.getConfigLong(ServerConstants.AIS_STATIC_INTERVAL, 0),
+					ServerConstants.getConfigLong(ServerConstants.AIS_POSITION_INTERVAL, 0));
+			stage.registerMBean();
+			route = route.process(new AisStageProcessor(stage, aisUri)).id(getName(AisStageProcessor.class.getSimpleName()));
+			
+			ProcessorDefinition<?> ais = routeBuilder.from(aisUri).id(getName("AIS"))
+				.onException(Exception.class).handled(true).maximumRedeliveries(0)
+				.to("log:nz.co.fortytwo.signalk.model.receive?level=ERROR&showException=true&showStackTrace=true")
+				.end()
+				.process(new AISProcessor()).id(getName(AISProcessor.class.getSimpleName()));
+			configureCommitRoute(ais, trackProcessor);
+		}
+		
+		if(workers<=1){
+			configureDecodeRoute(route, trackProcessor);
+			return;
+		}
+		logger.info("Using "+workers+" input workers");
+		route.process(new InputShardProcessor(workers)).id(getName(InputShardProcessor.class.getSimpleName()))
+			.recipientList(routeBuilder.header(ServerConstants.INPUT_SHARD)).id(getName("Input Shard"));
+		
+		for(int x=0;x<workers;x++){
+			ProcessorDefinition<?> shard = routeBuilder.from(InputShardProcessor.getShardUri(x)).id(getName("INPUT shard "+x))
+				.onException(Exception.class).handled(true).maximumRedeliveries(0)
+				.to("log:nz.co.fortytwo.signalk.model.receive?level=ERROR&showException=true&showStackTrace=true")
+				.end();
+			configureDecodeRoute(shard, trackProcessor);
+		}
+	}
+	
+	/**
+	 * Converts the message to signalk and updates the model. 
+	 * The decoders hold state (eg multi-part AIS) so each route needs its own.
+	 * 
+	 * @param route
+	 * @param trackProcessor
+	 */
+	private static void configureDecodeRoute(ProcessorDefinition<?> route, TrackProcessor trackProcessor){
 		//convert NMEA to signalk
-		.process(new NMEAProcessor()).id(getName(NMEAProcessor.class.getSimpleName()))
+		IngestThrottle throttle = IngestThrottleProcessor.getThrottle();
+		if(throttle.isEnabled()){
+			//drop repeated and over-rate sentences before we parse them
+			route = route.process(new IngestThrottleProcessor()).id(getName(IngestThrottleProcessor.class.getSimpleName()));
+		}
+		ProcessorDefinition<?> decode = route.process(new NMEAProcessor()).id(getName(NMEAProcessor.class.getSimpleName()))
 		//convert AIS to signalk
 		.process(new AISProcessor()).id(getName(AISProcessor.class.getSimpleName()))
 		//convert n2k
 		.process(new N2KProcessor()).id(getName(N2KProcessor.class.getSimpleName()))
 		//handle subscribe messages
-		.process(new JsonSubscribeProcessor()).id(getName(JsonSubscribeProcessor.class.getSimpleName()))
-		//deal with delta format
-		.process(new DeltaImportProcessor()).id(getName(DeltaImportProcessor.class.getSimpleName()))
-		//deal with full format
-		.process(new FullImportProcessor()).id(getName(FullImportProcessor.class.getSimpleName()))
-		//make sure we have timestamp/source
-		.process(new ValidationProcessor()).id(getName(ValidationProcessor.class.getSimpleName()))
-		//record track
-		.process(new TrackProcessor()).id(getName(TrackProcessor.class.getSimpleName()))
-		//push source to sources and add $source
-		.process(new SourceToSourceRefProcessor()).id(getName(SourceToSourceRefProcessor.class.getSimpleName()))
-		//strip out according to meta owner,group,others
-		.process(new PermissionsProcessor()).id(getName(PermissionsProcessor.class.getSimpleName()))
-		//and update signalk model
-		.process(new SignalkModelProcessor()).id(getName(SignalkModelProcessor.class.getSimpleName()))
+		.process(new JsonSubscribeProcessor()).id(getName(JsonSubscribeProcessor.class.getSimpleName()));
+		if(ServerConstants.INPUT_IMPORT_STREAM.equals(ServerConstants.getConfigString(ServerConstants.INPUT_IMPORT, ServerConstants.INPUT_IMPORT_TREE))){
+			//deal with delta and full format, straight from the string
+			decode = decode.process(new StreamingImportProcessor()).id(getName(StreamingImportProcessor.class.getSimpleName()));
+		}else{
+			//deal with delta format
+			decode = decode.process(new DeltaImportProcessor()).id(getName(DeltaImportProcessor.class.getSimpleName()))
+			//deal with full format
+			.process(new FullImportProcessor()).id(getName(FullImportProcessor.class.getSimpleName()));
+		}
+		configureCommitRoute(decode, trackProcessor)
 		//we have processed all incoming data now - if there is more left its LIST, GET.
 		//handle list
 		.process(new JsonListProcessor()).id(getName(JsonListProcessor.class.getSimpleName()))
 		//handle get
 		.process(new JsonGetProcessor()).id(getName(JsonGetProcessor.class.getSimpleName()));
 		//.process(new StorageProcessor()).id(getName(StorageProcessor.class.getSimpleName()));
-		
+	}
+	
+	/**
+	 * Checks the decoded update and commits it to the model.
+	 * 
+	 * @param route
+	 * @param trackProcessor
+	 * @return the route, for anything that happens after the commit
+	 */
+	private static ProcessorDefinition<?> configureCommitRoute(ProcessorDefinition<?> route, TrackProcessor trackProcessor){
+		if(IngestThrottleProcessor.getThrottle().hasPathRates()){
+			//drop over-rate paths from the decoded updates
+			route = route.process(new IngestThrottleProcessor()).id(getName(IngestThrottleProcessor.class.getSimpleName()));
+		}
+		//make sure we have timestamp/source
+		route = route.process(new ValidationProcessor()).id(getName(ValidationProcessor.class.getSimpleName()))
+		//record track
+		.process(trackProcessor).id(getName(TrackProcessor.class.getSimpleName()))
+		//push source to sources and add $source
+		.process(new SourceToSourceRefProcessor()).id(getName(SourceToSourceRefProcessor.class.getSimpleName()));
+		if(SourcePriorityProcessor.getPriority().isEnabled()){
+			//keep the preferred source for each path
+			route = route.process(new SourcePriorityProcessor()).id(getName(SourcePriorityProcessor.class.getSimpleName()));
+		}
+		//strip out according to meta owner,group,others
+		return route.process(new PermissionsProcessor()).id(getName(PermissionsProcessor.class.getSimpleName()))
+		//and update signalk model
+		.process(new SignalkModelProcessor()).id(getName(SignalkModelProcessor.class.getSimpleName()));
 	}
 	
 	/**
@@ -156,7 +243,7 @@ public class SignalkRouteFactory {
 	public static void configureWebsocketTxRoute(RouteBuilder routeBuilder ,String input, int port){
 		Predicate p1 = routeBuilder.header(ConfigConstants.OUTPUT_TYPE).isEqualTo(ConfigConstants.OUTPUT_WS);
 		Predicate p2 = routeBuilder.header(WebsocketConstants.CONNECTION_KEY).isEqualTo(WebsocketConstants.SEND_TO_ALL);
-		//from SEDA_WEBSOCKETS
+		//from DIRECT_WEBSOCKETS
 			routeBuilder.from(input).id(getName("Websocket Tx"))
 				.onException(Exception.class)
 				.handled(true)
@@ -298,6 +385,9 @@ public class SignalkRouteFactory {
 			.onException(Exception.class).handled(true).maximumRedeliveries(0)
 			.to("log:nz.co.fortytwo.signalk.model.output?level=ERROR")
 			.end()
+		//subscription outputs arrive already encoded from the OutputCache, as a list of strings, and pass straight through to the split
+		//other delta bodies are encoded in one pass here, only full format goes through the json processors
+		.process(new DeltaEncodeProcessor()).id(getName(DeltaEncodeProcessor.class.getSimpleName()))
 		.process(new SourceRefToSourceProcessor()).id(getName(SourceRefToSourceProcessor.class.getSimpleName()))
 		.process(new MapToJsonProcessor()).id(getName(MapToJsonProcessor.class.getSimpleName()))
 		.process(new FullToDeltaProcessor()).id(getName(FullToDeltaProcessor.class.getSimpleName()))
@@ -305,12 +395,10 @@ public class SignalkRouteFactory {
 		//swap payloads from storage
 		//.process(new StorageProcessor()).id(getName(InputFilterProcessor.class.getSimpleName()))
 		.process(new OutputFilterProcessor()).id(getName(OutputFilterProcessor.class.getSimpleName()))
-		.multicast().parallelProcessing()
-			.to(RouteManager.DIRECT_TCP,
-					RouteManager.SEDA_WEBSOCKETS, 
-					RouteManager.DIRECT_MQTT, 
-					RouteManager.DIRECT_STOMP,
-					RouteManager.DIRECT_XMPP,
+		//websocket, tcp, udp, mqtt and stomp go on per session queues, drained to their routes below
+		.process(new OutboundQueueProcessor()).id(getName(OutboundQueueProcessor.class.getSimpleName()))
+		.multicast()
+			.to(RouteManager.DIRECT_XMPP,
 					"log:nz.co.fortytwo.signalk.model.output?level=DEBUG"
 					).id(getName("Multicast Outputs"))
 		.end();
@@ -328,54 +416,6 @@ public class SignalkRouteFactory {
 			.to(RouteManager.SEDA_XMPP).id(getName("XMPP Broker"));
 	}
 	
-	public static void configureSubscribeTimer(RouteBuilder routeBuilder ,Subscription sub) throws Exception{
-		String routeId = getRouteId(sub);
-		String input = "quartz2://"+routeId+"?trigger.repeatCount=-1&trigger.repeatInterval="+sub.getPeriod();
-		logger.info("Configuring route "+input);
-		//if(logger.isDebugEnabled())logger.debug("Configuring route "+input);
-		String wsSession = sub.getWsSession();
-		RouteDefinition route = routeBuilder.from(input);
-			route.process(new FullExportProcessor(wsSession,routeId)).id(FullExportProcessor.class.getSimpleName()+"-"+routeId)
-				.onException(Exception.class).handled(true).maximumRedeliveries(0)
-				.to("log:nz.co.fortytwo.signalk.model.output.subscribe?level=ERROR&maxChars=1000")
-				.end()
-			.setHeader(WebsocketConstants.CONNECTION_KEY, routeBuilder.constant(wsSession))
-			.to(RouteManager.SEDA_COMMON_OUT).id(getName("SEDA_COMMON_OUT"))
-			.end();
-		route.setId(routeId);
-		((DefaultCamelContext)CamelContextFactory.getInstance()).addRouteDefinition(route);
-		((DefaultCamelContext)CamelContextFactory.getInstance()).startRoute(route.getId());
-		//routeBuilder.getContext().startAllRoutes();
-	}
-
-	private static String getRouteId(Subscription sub) {
-		if(StringUtils.isBlank(sub.getRouteId())){
-			String routeId = getName("sub_"+sub.getWsSession());
-			sub.setRouteId(routeId);
-		}
-		
-		return sub.getRouteId();
-	}
-
-
-	public static void removeSubscribeTimers(RouteManager routeManager, ConcurrentLinkedQueue<Subscription> subs) throws Exception {
-		for(Subscription sub : subs){
-			SignalkRouteFactory.removeSubscribeTimer(routeManager, sub);
-		}
-		
-	}
-	
-	public static void removeSubscribeTimer(RouteBuilder routeManager, Subscription sub) throws Exception {
-			RouteDefinition routeDef = ((DefaultCamelContext)routeManager.getContext()).getRouteDefinition(getRouteId(sub));
-			if(routeDef==null)return;
-			if(logger.isDebugEnabled())logger.debug("Stopping sub "+getRouteId(sub)+","+routeDef);
-			((DefaultCamelContext)routeManager.getContext()).stopRoute(routeDef);
-			if(logger.isDebugEnabled())logger.debug("Removing sub "+getRouteId(sub));
-			((DefaultCamelContext)routeManager.getContext()).removeRouteDefinition(routeDef);
-			
-			if(logger.isDebugEnabled())logger.debug("Done removing sub "+getRouteId(sub));
-	}
-
 	public static void configureHeartbeatRoute(RouteBuilder routeBuilder, String input) {
 		
 		routeBuilder.from(input).id(getName("Heartbeat"))
@@ -397,6 +437,20 @@ public class SignalkRouteFactory {
 		return tmpName;
 	}
 
+	public static void startUsageRoute(RouteBuilder routeBuilder, String  host, int restPort) {
+		//model size per context, see ModelAccounting
+		routeBuilder.from(host + restPort + "/signalk/v1/usage?sessionSupport=true&matchOnUriPrefix=false").id("REST Model usage")
+					.setExchangePattern(ExchangePattern.InOut)
+					.process(new Processor() {
+						
+						@Override
+						public void process(Exchange exchange) throws Exception {
+							exchange.getIn().setHeader(Exchange.CONTENT_TYPE, "application/json");
+							exchange.getIn().setBody(ModelAccounting.getInstance().toJson().toString());
+						}
+					});
+	}
+
 	public static void startLogRoutes(RouteBuilder routeBuilder, String  host, int restPort) {
 		//list logs dir
 		routeBuilder.from(host + restPort + "/signalk/v1/listLogs?sessionSupport=true&matchOnUriPrefix=true").id("REST List logs")
@@ -24,32 +24,27 @@
  */
 package nz.co.fortytwo.signalk.server;
 
-import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
-import static nz.co.fortytwo.signalk.util.SignalKConstants.source;
-import static nz.co.fortytwo.signalk.util.SignalKConstants.sourceRef;
-import static nz.co.fortytwo.signalk.util.SignalKConstants.timestamp;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
 import io.netty.util.internal.ConcurrentSet;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
-import java.util.regex.Pattern;
 
-import nz.co.fortytwo.signalk.model.event.PathEvent;
-import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.model.SignalKModel;
 import nz.co.fortytwo.signalk.processor.SignalkProcessor;
+import nz.co.fortytwo.signalk.util.PathPattern;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logger;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.eventbus.Subscribe;
 
 /**
  * Holds subscription data, wsSessionId, path, period
  * If a subscription is made via REST before the websocket is started then the wsSocket will hold the sessionId.
- * This must be swapped for the wsSessionId when the websocket starts.
+ * This must be swapped for the wsSessionId when the websocket starts, see {@link #forSession(String)}.
  * The subscription will be in an inactive state when submitted by REST if wsSession = sessionId
  * 
  * @author robert
@@ -64,25 +59,43 @@ public class Subscription {
 	private long minPeriod;
 	private String format;
 	private String policy;
-	private Pattern pattern = null;
+	private PathPattern pattern = null;
 	private String vesselPath;
 	Set<String> subscribedPaths = new ConcurrentSet<String>();
 	private String routeId;
 	private String destination;
+	// fixed policy, send the whole tree every refresh periods, 0 for never, -1 for the server default
+	private int refresh = -1;
 	//private String outputType;
 
 	public Subscription(String wsSession, String path, long period, long minPeriod, String format, String policy) {
 		this.wsSession = wsSession;
 
 		this.path = SignalkProcessor.sanitizePath(path);
-		pattern = SignalkProcessor.regexPath(this.path);
+		pattern = PathPattern.compile(this.path);
 		this.period = period;
 		this.minPeriod = minPeriod;
 		this.format = format;
 		this.policy = policy;
-		SignalKModelFactory.getInstance().getEventBus().register(this);
-		for(String p: ImmutableList.copyOf(SignalKModelFactory.getInstance().getKeys())){
-			if(isSubscribed(p)){
+	}
+
+	/**
+	 * Finds the keys already in the model that this subscription wants.
+	 * Only the keys under the literal path before the first wildcard are read, eg vessels.motu.navigation for vessels.motu.navigation.course*
+	 * Called once when the subscription is added, after that the {@link SubscriptionIndex} keeps it up to date.
+	 * 
+	 * @param model
+	 */
+	public void resolvePaths(SignalKModel model) {
+		String prefix = pattern.getLiteralPrefix();
+		Collection<String> keys;
+		if (StringUtils.isBlank(prefix)) {
+			keys = ImmutableList.copyOf(model.getKeys());
+		} else {
+			keys = ImmutableList.copyOf(model.getSubMap(prefix).keySet());
+		}
+		for (String p : keys) {
+			if (isSubscribed(p)) {
 				subscribedPaths.add(p);
 			}
 		}
@@ -126,8 +139,21 @@ public class Subscription {
 		return wsSession;
 	}
 
-	public void setWsSession(String wsSession) {
-		this.wsSession = wsSession;
+	/**
+	 * A copy of this subscription for another session.
+	 * The wsSession is part of equals and hashCode, so it is never changed on a subscription held by the manager or the index.
+	 * 
+	 * @param wsSession
+	 * @return
+	 */
+	public Subscription forSession(String wsSession) {
+		Subscription sub = new Subscription(wsSession, path, period, minPeriod, format, policy);
+		sub.active = active;
+		sub.subscribedPaths.addAll(subscribedPaths);
+		sub.routeId = routeId;
+		sub.destination = destination;
+		sub.refresh = refresh;
+		return sub;
 	}
 
 	public String getPath() {
@@ -136,6 +162,8 @@ public class Subscription {
 
 	public void setPath(String path) {
 		this.path = SignalkProcessor.sanitizePath(path);
+		this.pattern = PathPattern.compile(this.path);
+		this.vesselPath = null;
 	}
 
 	public long getPeriod() {
@@ -177,6 +205,8 @@ public class Subscription {
 				return false;
 		} else if (!policy.equals(sub.policy))
 			return false;
+		if (refresh != sub.refresh)
+			return false;
 		return true;
 	}
 
@@ -210,13 +240,17 @@ public class Subscription {
 	}
 
 	/**
-	 * Returns true if this subscription is interested in this path
+	 * Returns true if this subscription is interested in this path, the key must be the subscribed path or below it
 	 * 
 	 * @param key
 	 * @return
 	 */
 	public boolean isSubscribed(String key) {
-		return pattern.matcher(key).find();
+		return pattern.matches(key);
+	}
+
+	public PathPattern getPattern() {
+		return pattern;
 	}
 
 	public long getMinPeriod() {
@@ -252,27 +286,14 @@ public class Subscription {
 	}
 
 	/**
-	 * Listens for node changes in the server and adds them if they match the subscription
+	 * Records a changed path that matches this subscription, called by the {@link SubscriptionIndex}
 	 * 
-	 * @param pathEvent
+	 * @param key
 	 */
-	@Subscribe
-	public void recordEvent(PathEvent pathEvent) {
-		if (pathEvent == null)
-			return;
-		if (pathEvent.getPath() == null)
-			return;
-		if(path.endsWith(dot+source)
-    			&& path.endsWith(dot+timestamp)
-    			&& path.contains(dot+source+dot)
-    			&& path.endsWith(dot+sourceRef)){
-        	return;
-        }
+	public void recordPath(String key) {
 		if (logger.isDebugEnabled())
-			logger.debug(this.hashCode() + " received event " + pathEvent.getPath());
-		if(isSubscribed(pathEvent.getPath())){
-			subscribedPaths.add(pathEvent.getPath());
-		}
+			logger.debug(this.hashCode() + " received event " + key);
+		subscribedPaths.add(key);
 	}
 
 	public void setRouteId(String routeId) {
@@ -291,6 +312,14 @@ public class Subscription {
 		this.destination = destination;
 	}
 
+	public int getRefresh() {
+		return refresh;
+	}
+
+	public void setRefresh(int refresh) {
+		this.refresh = refresh;
+	}
+
 
 
 }
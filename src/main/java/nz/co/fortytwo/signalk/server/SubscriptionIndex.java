@@ -0,0 +1,394 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.server;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.source;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.sourceRef;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.timestamp;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.value;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.eventbus.Subscribe;
+
+import nz.co.fortytwo.signalk.processor.ChangeSet;
+import nz.co.fortytwo.signalk.processor.ChangeSets;
+import nz.co.fortytwo.signalk.processor.FullExportProcessor;
+import nz.co.fortytwo.signalk.util.PathPattern;
+import nz.co.fortytwo.signalk.util.PathRegistry;
+
+/**
+ * Finds the subscriptions interested in a changed path, so each change is only handed to them.
+ * <p>
+ * Subscription paths are held in a trie of dotted path segments. A segment containing * or ? is a wildcard, matched within that one segment.
+ * A subscription matches its own path and everything below it, eg vessels.*.navigation matches vessels.motu.navigation.position.latitude.
+ * A lookup walks the key one segment at a time, so it costs the depth of the key, not the number of subscriptions.
+ * The result is kept per {@link PathRegistry} id, so a path that changes again is answered without the walk until a subscription is added or removed.
+ * <p>
+ * This is the only model listener for subscriptions. For each {@link ChangeSet} it records the paths on each interested {@link Subscription},
+ * and passes them to the {@link FullExportProcessor} for that subscription's route, in one call per route.
+ * A timestamp, $source or source.* key is recorded as it is, but is sent as the node it belongs to, eg a new timestamp
+ * on navigation.speedOverGround sends navigation.speedOverGround, so an update that only refreshes the time or source still goes out.
+ * 
+ * @author robert
+ *
+ */
+public class SubscriptionIndex {
+
+	private static Logger logger = LogManager.getLogger(SubscriptionIndex.class);
+
+	private static SubscriptionIndex index = null;
+
+	private final Node root = new Node();
+	private final PathRegistry registry = PathRegistry.getInstance();
+	// path id > subscriptions matched at a version, cleared by changing the version
+	private volatile Matches[] matchCache = new Matches[1024];
+	private volatile long version = 0;
+	// routeId > export processor
+	private final ConcurrentHashMap<String, FullExportProcessor> exporters = new ConcurrentHashMap<>();
+	// reused per event, events are delivered on the thread that changed the model
+	private final ThreadLocal<List<Subscription>> matches = new ThreadLocal<List<Subscription>>() {
+		@Override
+		protected List<Subscription> initialValue() {
+			return new ArrayList<>();
+		}
+	};
+
+	private static class Node {
+		// literal segment > child
+		final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>();
+		// wildcard segments, in the order added
+		final CopyOnWriteArrayList<Wildcard> wildcards = new CopyOnWriteArrayList<>();
+		// subscriptions whose path ends here
+		final CopyOnWriteArrayList<Subscription> subs = new CopyOnWriteArrayList<>();
+	}
+
+	private static class Matches {
+		final long version;
+		final String key;
+		final Subscription[] subs;
+
+		Matches(long version, String key, Subscription[] subs) {
+			this.version = version;
+			this.key = key;
+			this.subs = subs;
+		}
+	}
+
+	// the paths for one route from a change set, and the subscription that matched first
+	static class RouteChanges {
+		final Subscription sub;
+		final Set<String> paths = new LinkedHashSet<>();
+
+		RouteChanges(Subscription sub) {
+			this.sub = sub;
+		}
+	}
+
+	private static class Wildcard {
+		final String glob;
+		final Node node = new Node();
+
+		Wildcard(String glob) {
+			this.glob = glob;
+		}
+	}
+
+	public static synchronized SubscriptionIndex getInstance() {
+		if (index == null) {
+			index = new SubscriptionIndex();
+			ChangeSets.getInstance().register(index);
+		}
+		return index;
+	}
+
+	/**
+	 * Adds the subscription under its path
+	 * 
+	 * @param sub
+	 */
+	public synchronized void add(Subscription sub) {
+		Node node = root;
+		for (String segment : sub.getPath().split("\\.")) {
+			if (PathPattern.isWildcard(segment)) {
+				Wildcard wild = null;
+				for (Wildcard w : node.wildcards) {
+					if (w.glob.equals(segment)) {
+						wild = w;
+						break;
+					}
+				}
+				if (wild == null) {
+					wild = new Wildcard(segment);
+					node.wildcards.add(wild);
+				}
+				node = wild.node;
+			} else {
+				Node child = node.children.get(segment);
+				if (child == null) {
+					child = new Node();
+					node.children.put(segment, child);
+				}
+				node = child;
+			}
+		}
+		if (!node.subs.contains(sub))
+			node.subs.add(sub);
+		version++;
+	}
+
+	/**
+	 * Removes the subscription, if it is in the index
+	 * 
+	 * @param sub
+	 */
+	public synchronized void remove(Subscription sub) {
+		String[] segments = sub.getPath().split("\\.");
+		// the nodes from the root down to the subscription
+		Node[] trail = new Node[segments.length + 1];
+		trail[0] = root;
+		for (int x = 0; x < segments.length; x++) {
+			Node next = child(trail[x], segments[x]);
+			if (next == null)
+				return;
+			trail[x + 1] = next;
+		}
+		trail[segments.length].subs.remove(sub);
+		// drop the nodes left with nothing in them, from the bottom up
+		for (int x = segments.length; x > 0; x--) {
+			Node node = trail[x];
+			if (!node.subs.isEmpty() || !node.children.isEmpty() || !node.wildcards.isEmpty())
+				break;
+			Node parent = trail[x - 1];
+			if (PathPattern.isWildcard(segments[x - 1])) {
+				for (Wildcard w : parent.wildcards) {
+					if (w.node == node) {
+						parent.wildcards.remove(w);
+						break;
+					}
+				}
+			} else {
+				parent.children.remove(segments[x - 1]);
+			}
+		}
+		version++;
+	}
+
+	private Node child(Node node, String segment) {
+		if (PathPattern.isWildcard(segment)) {
+			for (Wildcard w : node.wildcards) {
+				if (w.glob.equals(segment))
+					return w.node;
+			}
+			return null;
+		}
+		return node.children.get(segment);
+	}
+
+	/**
+	 * True if there are no subscriptions, and no nodes left from removed ones
+	 * 
+	 * @return
+	 */
+	synchronized boolean isEmpty() {
+		return root.subs.isEmpty() && root.children.isEmpty() && root.wildcards.isEmpty();
+	}
+
+	public void addExporter(String routeId, FullExportProcessor exporter) {
+		exporters.put(routeId, exporter);
+	}
+
+	public void removeExporter(String routeId) {
+		exporters.remove(routeId);
+	}
+
+	/**
+	 * Adds the subscriptions interested in this key to the list
+	 * 
+	 * @param key - a full model key
+	 * @param out
+	 */
+	public void match(String key, List<Subscription> out) {
+		match(registry.find(key), key, out);
+	}
+
+	/**
+	 * Adds the subscriptions interested in this key to the list, the answer is remembered per path id until the subscriptions change.
+	 * Ids are reused once a key leaves the model, so the answer is only used for the same key.
+	 * 
+	 * @param id - the {@link PathRegistry} id of the key, or -1 to match without remembering
+	 * @param key
+	 * @param out
+	 */
+	public void match(int id, String key, List<Subscription> out) {
+		if (id < 0) {
+			match(root, key, 0, out);
+			return;
+		}
+		Matches[] cache = matchCache;
+		long current = version;
+		if (id < cache.length) {
+			Matches m = cache[id];
+			if (m != null && m.version == current && m.key.equals(key)) {
+				for (Subscription sub : m.subs) {
+					out.add(sub);
+				}
+				return;
+			}
+		}
+		int start = out.size();
+		match(root, key, 0, out);
+		Subscription[] found = out.subList(start, out.size()).toArray(new Subscription[out.size() - start]);
+		if (id >= cache.length) {
+			synchronized (this) {
+				cache = matchCache;
+				if (id >= cache.length) {
+					cache = Arrays.copyOf(cache, Math.max(id + 1, cache.length * 2));
+					matchCache = cache;
+				}
+			}
+		}
+		cache[id] = new Matches(current, key, found);
+	}
+
+	private void match(Node node, String key, int start, List<Subscription> out) {
+		if (!node.subs.isEmpty())
+			out.addAll(node.subs);
+		if (start >= key.length())
+			return;
+		int end = key.indexOf('.', start);
+		if (end < 0)
+			end = key.length();
+		if (!node.children.isEmpty()) {
+			Node child = node.children.get(key.substring(start, end));
+			if (child != null)
+				match(child, key, end + 1, out);
+		}
+		for (Wildcard w : node.wildcards) {
+			if (PathPattern.matchSegment(w.glob, key, start, end))
+				match(w.node, key, end + 1, out);
+		}
+	}
+
+	/**
+	 * Listens for commits to the model and hands the changed paths to the subscriptions that want them.
+	 * Each route gets the paths its subscriptions want from one change set in one call.
+	 * 
+	 * @param changes
+	 */
+	@Subscribe
+	public void recordChanges(ChangeSet changes) {
+		if (changes == null || changes.isEmpty())
+			return;
+		Map<String, RouteChanges> routes = collect(changes.getPaths(), changes.getIds());
+		if (routes == null)
+			return;
+		for (Map.Entry<String, RouteChanges> entry : routes.entrySet()) {
+			FullExportProcessor exporter = exporters.get(entry.getKey());
+			if (exporter != null)
+				exporter.recordEvents(entry.getValue().paths, entry.getValue().sub);
+		}
+	}
+
+	/**
+	 * Records the changed paths on the subscriptions that want them, and works out what each route should send.
+	 * 
+	 * @param paths
+	 * @param ids - the {@link PathRegistry} ids of the paths
+	 * @return routeId &gt; changes to send, or null if there are none
+	 */
+	Map<String, RouteChanges> collect(List<String> paths, int[] ids) {
+		List<Subscription> subs = matches.get();
+		Map<String, RouteChanges> routes = null;
+		for (int x = 0; x < ids.length; x++) {
+			String path = paths.get(x);
+			subs.clear();
+			match(ids[x], path, subs);
+			if (subs.isEmpty())
+				continue;
+			if (logger.isDebugEnabled())
+				logger.debug(path + " matched " + subs.size() + " subscriptions");
+			for (Subscription sub : subs) {
+				sub.recordPath(path);
+			}
+			String node = metaNode(path);
+			// each route gets the path once
+			for (Subscription sub : subs) {
+				if (!sub.isActive() || sub.getRouteId() == null)
+					continue;
+				if (routes == null)
+					routes = new HashMap<>();
+				RouteChanges route = routes.get(sub.getRouteId());
+				if (route == null) {
+					route = new RouteChanges(sub);
+					routes.put(sub.getRouteId(), route);
+				}
+				if (node == null) {
+					// its node is already going, from a timestamp or source before it
+					if (path.endsWith(dot + value) && route.paths.contains(path.substring(0, path.length() - value.length() - 1)))
+						continue;
+					route.paths.add(path);
+				} else if (!route.paths.contains(node + dot + value)) {
+					route.paths.add(node);
+				}
+			}
+		}
+		subs.clear();
+		return routes;
+	}
+
+	/**
+	 * The node a timestamp, $source or source.* key belongs to, eg vessels.motu.navigation.speedOverGround for 
+	 * vessels.motu.navigation.speedOverGround.timestamp, or null for any other key
+	 * 
+	 * @param path
+	 * @return
+	 */
+	public static String metaNode(String path) {
+		if (path.endsWith(dot + timestamp))
+			return path.substring(0, path.length() - timestamp.length() - 1);
+		if (path.endsWith(dot + sourceRef))
+			return path.substring(0, path.length() - sourceRef.length() - 1);
+		if (path.endsWith(dot + source))
+			return path.substring(0, path.length() - source.length() - 1);
+		int pos = path.lastIndexOf(dot + source + dot);
+		if (pos > 0)
+			return path.substring(0, pos);
+		return null;
+	}
+}
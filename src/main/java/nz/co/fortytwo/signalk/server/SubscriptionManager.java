@@ -26,20 +26,31 @@
 package nz.co.fortytwo.signalk.server;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.processor.SignalkProcessor;
+
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logger;
 
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
 
 /**
  * Track and manage the sessionId's and corresponding webSocket identifiers and subscriptions for a consumer
+ * <p>
+ * Subscriptions are held per wsSession as an immutable list, replaced whenever that session's subscriptions change.
+ * Reads are a map lookup with no locking or copying, so they are cheap on the event path.
+ * Changes are synchronized on the manager, and the session maps are safe to read from any thread.
  *
  * @author robert
  *
@@ -49,13 +60,13 @@ public class SubscriptionManager {
 	private static Logger logger = LogManager.getLogger(SubscriptionManager.class);
 	
 	//hold sessionid <> wsSessionId
-	BiMap<String, String> wsSessionMap = HashBiMap.create();
+	BiMap<String, String> wsSessionMap = Maps.synchronizedBiMap(HashBiMap.<String, String>create());
 	//map wsSession to output type
-	Map<String, String> outPutMap = new HashMap<String, String>();
+	Map<String, String> outPutMap = new ConcurrentHashMap<String, String>();
 	//wsSession> localIp#remoteIp
-	Map<String, String> ipMap = new HashMap<String, String>();
-	//wsSessionId>Subscription
-	ConcurrentLinkedQueue<Subscription> subscriptions = new ConcurrentLinkedQueue<Subscription>();
+	Map<String, String> ipMap = new ConcurrentHashMap<String, String>();
+	//wsSessionId>Subscriptions, the lists are never changed, only replaced
+	ConcurrentHashMap<String, List<Subscription>> subscriptions = new ConcurrentHashMap<String, List<Subscription>>();
 	ConcurrentLinkedQueue<String> heartbeats = new ConcurrentLinkedQueue<String>();
 	
 	/**
@@ -63,22 +74,58 @@ public class SubscriptionManager {
 	 * @param sub
 	 * @throws Exception
 	 */
-	public void addSubscription(Subscription sub) throws Exception{
-		if(!subscriptions.contains(sub)){
+	public synchronized void addSubscription(Subscription sub) throws Exception{
+		if(sub.getWsSession()==null){
+			logger.warn("Ignored sub without a session "+sub);
+			return;
+		}
+		if(!getSubscriptions(sub.getWsSession()).contains(sub)){
 			if(logger.isDebugEnabled())logger.debug("Adding sub "+sub);
-			subscriptions.add(sub);
-			//create a new route if we have too
+			put(sub);
+			SubscriptionIndex.getInstance().add(sub);
+			sub.resolvePaths(SignalKModelFactory.getInstance());
+			//schedule a new export if we have too
 			if(sub.isActive() && !hasExistingRoute(sub)){
-				RouteManager routeManager = RouteManagerFactory.getInstance();
-				SignalkRouteFactory.configureSubscribeTimer(routeManager, sub);
-				if(logger.isDebugEnabled())logger.debug("Started route for sub"+sub);
+				SubscriptionScheduler.getInstance().schedule(sub);
+				if(logger.isDebugEnabled())logger.debug("Scheduled export for sub"+sub);
 				heartbeats.remove(sub.getWsSession());
 			}
-			if(logger.isDebugEnabled())logger.debug("Subs size ="+subscriptions.size());
+			if(logger.isDebugEnabled())logger.debug("Subs size ="+getSubscriptions(sub.getWsSession()).size());
 		}
 		
 	}
 	
+	/**
+	 * Replace the sessions list with a copy including this sub
+	 * @param sub
+	 */
+	private void put(Subscription sub){
+		List<Subscription> subs = subscriptions.get(sub.getWsSession());
+		if(subs==null){
+			subscriptions.put(sub.getWsSession(), ImmutableList.of(sub));
+		}else{
+			subscriptions.put(sub.getWsSession(), ImmutableList.<Subscription>builder().addAll(subs).add(sub).build());
+		}
+	}
+	
+	/**
+	 * Replace the sessions list with a copy without this sub
+	 * @param wsSession
+	 * @param sub
+	 */
+	private void take(String wsSession, Subscription sub){
+		if(wsSession==null)return;
+		List<Subscription> subs = subscriptions.get(wsSession);
+		if(subs==null || !subs.contains(sub))return;
+		List<Subscription> remaining = new ArrayList<Subscription>(subs);
+		remaining.remove(sub);
+		if(remaining.isEmpty()){
+			subscriptions.remove(wsSession);
+		}else{
+			subscriptions.put(wsSession, ImmutableList.copyOf(remaining));
+		}
+	}
+	
 	/**
 	 * True if another subscription has the same route and is active
 	 * @param sub
@@ -101,11 +148,11 @@ public class SubscriptionManager {
 	 * @param sub
 	 * @throws Exception
 	 */
-	public void removeSubscription(Subscription sub) throws Exception{
-			subscriptions.remove(sub);
+	public synchronized void removeSubscription(Subscription sub) throws Exception{
+			take(sub.getWsSession(), sub);
+			SubscriptionIndex.getInstance().remove(sub);
 			if(sub.isActive()&& !hasExistingRoute(sub)){
-				RouteManager routeManager = RouteManagerFactory.getInstance();
-				SignalkRouteFactory.removeSubscribeTimer(routeManager, sub);
+				SubscriptionScheduler.getInstance().cancel(sub);
 			}
 			//if we have no subs, then we should put a sub for empty updates as heartbeat
 			if(getSubscriptions(sub.getWsSession()).size()==0){
@@ -113,13 +160,37 @@ public class SubscriptionManager {
 			}
 	}
 	
-	public ConcurrentLinkedQueue<Subscription> getSubscriptions(String wsSession){
-		ConcurrentLinkedQueue<Subscription> subs = new ConcurrentLinkedQueue<Subscription>();
-		for (Subscription s: subscriptions){
-			if(s.getWsSession().equals(wsSession)){
-				subs.add(s);
+	/**
+	 * Remove the existing subscription for this session, path and period, if there is one
+	 * 
+	 * @param wsSession
+	 * @param path
+	 * @param period
+	 * @return the removed subscription, or null
+	 * @throws Exception
+	 */
+	public synchronized Subscription removeSubscription(String wsSession, String path, long period) throws Exception{
+		path = SignalkProcessor.sanitizePath(path);
+		for (Subscription s: getSubscriptions(wsSession)){
+			if(s.getPeriod()==period && path.equals(s.getPath())){
+				removeSubscription(s);
+				return s;
 			}
 		}
+		return null;
+	}
+	
+	/**
+	 * Returns the current subscriptions for the session. 
+	 * The list is an immutable snapshot, it is not changed by later subscribes or unsubscribes.
+	 * 
+	 * @param wsSession
+	 * @return
+	 */
+	public List<Subscription> getSubscriptions(String wsSession){
+		if(wsSession==null)return ImmutableList.of();
+		List<Subscription> subs = subscriptions.get(wsSession);
+		if(subs==null)return ImmutableList.of();
 		return subs;
 	}
 	
@@ -130,8 +201,9 @@ public class SubscriptionManager {
 	 * @return
 	 */
 	public String getWsSession(String sessionId){
-		if(!wsSessionMap.containsKey(sessionId))return sessionId;
-		return wsSessionMap.get(sessionId);
+		String wsSession = wsSessionMap.get(sessionId);
+		if(wsSession==null)return sessionId;
+		return wsSession;
 	}
 	
 	public String getSessionId(String wsSession){
@@ -148,25 +220,32 @@ public class SubscriptionManager {
 	 * @param string 
 	 * @throws Exception 
 	 */
-	public void add(String sessionId, String wsSession, String outputType, String localIpAddress, String remoteIpAddress) throws Exception{
+	public synchronized void add(String sessionId, String wsSession, String outputType, String localIpAddress, String remoteIpAddress) throws Exception{
 		if(StringUtils.isBlank(wsSession) ||  StringUtils.isBlank(sessionId))return; 
 		wsSessionMap.put(sessionId, wsSession);
-		outPutMap.put(wsSession, outputType);
+		if(outputType==null){
+			outPutMap.remove(wsSession);
+		}else{
+			outPutMap.put(wsSession, outputType);
+		}
 		ipMap.put(wsSession, localIpAddress+"#"+remoteIpAddress);
 		logger.debug("Adding "+sessionId+"/"+wsSession+", outputType="+outputType+", localAddress:"+localIpAddress+", remoteAddress:"+remoteIpAddress);
 		//now update any subscriptions for sessionId
-		ConcurrentLinkedQueue<Subscription> subs = getSubscriptions(sessionId);
+		List<Subscription> subs = getSubscriptions(sessionId);
 
 		for (Subscription s: subs){
-			if(s.getWsSession().equals(sessionId)){
-				subscriptions.remove(s);
-				s.setWsSession(wsSession);
-				subscriptions.add(s);
+			if(s.getWsSession().equals(sessionId) && !sessionId.equals(wsSession)){
+				//swap in a copy, the session is part of the identity the index and lists rely on
+				Subscription moved = s.forSession(wsSession);
+				take(sessionId, s);
+				SubscriptionIndex.getInstance().remove(s);
+				put(moved);
+				SubscriptionIndex.getInstance().add(moved);
+				s = moved;
 			}
 			s.setActive(true);
 			if(!hasExistingRoute(s)){
-				RouteManager routeManager = RouteManagerFactory.getInstance();
-				SignalkRouteFactory.configureSubscribeTimer(routeManager, s);
+				SubscriptionScheduler.getInstance().schedule(s);
 			}
 			
 		}
@@ -176,44 +255,68 @@ public class SubscriptionManager {
 		}
 	}
 
-	public void removeAllSessions() throws Exception{
+	public synchronized void removeAllSessions() throws Exception{
+		for(String wsSession : wsSessionMap.values()){
+			OutboundQueues.getInstance().remove(wsSession);
+		}
 		wsSessionMap.clear();
 		
 		outPutMap.clear();
 		ipMap.clear();
 		//remove all subscriptions
-		RouteManager routeManager = RouteManagerFactory.getInstance();
-		
-		SignalkRouteFactory.removeSubscribeTimers(routeManager,subscriptions );
+		for(List<Subscription> subs : subscriptions.values()){
+			cancel(subs);
+			removeFromIndex(subs);
+		}
 		subscriptions.clear();
 		heartbeats.clear();
 		
 	}
 
-	public void removeSessionId(String sessionId) throws Exception{
-		String wsSession = wsSessionMap.get(sessionId);
-		wsSessionMap.remove(sessionId);
-		outPutMap.remove(wsSession);
-		ipMap.remove(wsSession);
+	public synchronized void removeSessionId(String sessionId) throws Exception{
+		String wsSession = wsSessionMap.remove(sessionId);
+		if(wsSession!=null){
+			outPutMap.remove(wsSession);
+			ipMap.remove(wsSession);
+		}
 		//remove all subscriptions
-		RouteManager routeManager = RouteManagerFactory.getInstance();
-		ConcurrentLinkedQueue<Subscription> subs = getSubscriptions(wsSession);
-		SignalkRouteFactory.removeSubscribeTimers(routeManager,subs );
-		subscriptions.removeAll(subs);
-		subscriptions.removeAll(getSubscriptions(sessionId));
-		heartbeats.remove(wsSession);
+		List<Subscription> subs = getSubscriptions(wsSession);
+		cancel(subs);
+		removeFromIndex(subs);
+		if(wsSession!=null)subscriptions.remove(wsSession);
+		subs = getSubscriptions(sessionId);
+		removeFromIndex(subs);
+		if(sessionId!=null)subscriptions.remove(sessionId);
+		if(wsSession!=null)heartbeats.remove(wsSession);
+		OutboundQueues.getInstance().remove(wsSession);
 		
 	}
-	public void removeWsSession(String wsSession) throws Exception{
+	public synchronized void removeWsSession(String wsSession) throws Exception{
+		if(wsSession==null)return;
 		wsSessionMap.inverse().remove(wsSession);
 		outPutMap.remove(wsSession);
 		ipMap.remove(wsSession);
 		//remove all subscriptions
-		RouteManager routeManager = RouteManagerFactory.getInstance();
-		ConcurrentLinkedQueue<Subscription> subs = getSubscriptions(wsSession);
-		SignalkRouteFactory.removeSubscribeTimers(routeManager, subs);
-		subscriptions.removeAll(subs);
+		List<Subscription> subs = getSubscriptions(wsSession);
+		cancel(subs);
+		removeFromIndex(subs);
+		subscriptions.remove(wsSession);
 		heartbeats.remove(wsSession);
+		OutboundQueues.getInstance().remove(wsSession);
+	}
+	
+	private void cancel(Collection<Subscription> subs){
+		SubscriptionScheduler scheduler = SubscriptionScheduler.getInstance();
+		for(Subscription sub : subs){
+			scheduler.cancel(sub);
+		}
+	}
+	
+	private void removeFromIndex(Collection<Subscription> subs){
+		SubscriptionIndex index = SubscriptionIndex.getInstance();
+		for(Subscription sub : subs){
+			index.remove(sub);
+		}
 	}
 
 	/**
@@ -222,10 +325,13 @@ public class SubscriptionManager {
 	 * @return
 	 */
 	public Set<String> getSessionKeys() {
-		return wsSessionMap.keySet();
+		synchronized (wsSessionMap) {
+			return ImmutableSet.copyOf(wsSessionMap.keySet());
+		}
 	}
 	
 	public String getOutputType(String wsSession){
+		if(wsSession==null)return null;
 		return outPutMap.get(wsSession);
 	}
 	
@@ -235,12 +341,14 @@ public class SubscriptionManager {
 	 * @return
 	 */
 	public String getRemoteIpAddress(String wsSession){
+		if(wsSession==null)return null;
 		String ips = ipMap.get(wsSession);
 		if(StringUtils.isBlank(ips)) return null;
 		return ips.split("#")[1];
 	}
 	
 	public String getLocalIpAddress(String wsSession){
+		if(wsSession==null)return null;
 		String ips = ipMap.get(wsSession);
 		if(StringUtils.isBlank(ips)) return null;
 		return ips.split("#")[0];
@@ -250,7 +358,9 @@ public class SubscriptionManager {
 	 * @return
 	 */
 	public Set<String> getWsSessionKeys() {
-		return wsSessionMap.inverse().keySet();
+		synchronized (wsSessionMap) {
+			return ImmutableSet.copyOf(wsSessionMap.inverse().keySet());
+		}
 	}
 
 	public boolean isValid(String sessionId) {
@@ -0,0 +1,330 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import nz.co.fortytwo.signalk.processor.FullExportProcessor;
+import nz.co.fortytwo.signalk.util.ServerConstants;
+import nz.co.fortytwo.signalk.util.TimingWheel;
+
+/**
+ * Runs the periodic exports for all the subscriptions, in place of a quartz route per session.
+ * <p>
+ * Each session and period has one task, with its {@link FullExportProcessor}. The tasks are held in a {@link TimingWheel}
+ * keyed by routeId, and one thread moves the wheel on every tick ms, handing the tasks that are due to a small fixed pool.
+ * The next run is at the next multiple of the period, so all the tasks with the same period come due on the same tick.
+ * A task still running when it is next due is skipped for that period.
+ * <p>
+ * Adding and removing a session is a map and wheel update, no camel routes are started or stopped.
+ * The tick and pool size are config.server.subscription.tick and config.server.subscription.threads.
+ * 
+ * @author robert
+ *
+ */
+public class SubscriptionScheduler implements SubscriptionSchedulerMBean {
+
+	private static Logger logger = LogManager.getLogger(SubscriptionScheduler.class);
+
+	private static SubscriptionScheduler scheduler = null;
+
+	private final long tick;
+	private final int threads;
+	// routeId > next run, guarded by itself
+	private final TimingWheel<String> wheel;
+	// routeId > task, added under its own lock so each route creates one exporter
+	private final ConcurrentHashMap<String, Task> tasks = new ConcurrentHashMap<>();
+	private final AtomicInteger ids = new AtomicInteger();
+	private final ScheduledExecutorService ticker;
+	private final ExecutorService pool;
+
+	//stats
+	private final AtomicLong runs = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private volatile long lastTickLatency = 0;
+	private volatile long maxTickLatency = 0;
+
+	static class Task implements Runnable {
+		final String routeId;
+		final long period;
+		final FullExportProcessor exporter;
+		final AtomicBoolean running = new AtomicBoolean();
+
+		Task(String routeId, long period, FullExportProcessor exporter) {
+			this.routeId = routeId;
+			this.period = period;
+			this.exporter = exporter;
+		}
+
+		@Override
+		public void run() {
+			try {
+				exporter.export();
+			} catch (Exception e) {
+				logger.error(routeId + ": " + e.getMessage(), e);
+			} finally {
+				running.set(false);
+			}
+		}
+	}
+
+	public SubscriptionScheduler(long tick, int threads) {
+		this(tick, threads, true);
+	}
+
+	/**
+	 * @param tick
+	 * @param threads
+	 * @param run - false to leave out the ticker thread, so tests can call {@link #tick(long)} themselves
+	 */
+	SubscriptionScheduler(long tick, int threads, boolean run) {
+		this.tick = Math.max(1, tick);
+		this.threads = Math.max(1, threads);
+		this.wheel = new TimingWheel<>(this.tick, now());
+		pool = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Subscription export-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		if (!run) {
+			ticker = null;
+			return;
+		}
+		ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Subscription scheduler");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		ticker.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					tick(now());
+				} catch (Exception e) {
+					logger.error(e.getMessage(), e);
+				}
+			}
+		}, this.tick, this.tick, TimeUnit.MILLISECONDS);
+	}
+
+	public static synchronized SubscriptionScheduler getInstance() {
+		if (scheduler == null) {
+			scheduler = new SubscriptionScheduler(ServerConstants.getConfigLong(ServerConstants.SUBSCRIPTION_TICK, 20),
+					ServerConstants.getConfigInt(ServerConstants.SUBSCRIPTION_THREADS, 2));
+			scheduler.registerMBean();
+			logger.info("Subscription scheduler tick " + scheduler.tick + "ms, " + scheduler.threads + " threads");
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Registers the stats on JMX
+	 */
+	public void registerMBean() {
+		try {
+			ObjectName name = new ObjectName(getClass().getName(), "id", "subscriptionScheduler");
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Starts the periodic export for the subscription's session and period, if it is not already running.
+	 * Gives the subscription a routeId if it has none.
+	 * 
+	 * @param sub
+	 */
+	public void schedule(Subscription sub) {
+		String routeId = getRouteId(sub);
+		if (tasks.containsKey(routeId))
+			return;
+		Task task;
+		synchronized (tasks) {
+			if (tasks.containsKey(routeId))
+				return;
+			// the exporter registers itself with the index, so only the first caller may create one
+			task = new Task(routeId, Math.max(tick, sub.getPeriod()), new FullExportProcessor(sub.getWsSession(), routeId));
+			tasks.put(routeId, task);
+		}
+		synchronized (wheel) {
+			wheel.touch(routeId, next(task.period, now()));
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("Scheduled " + routeId + " every " + task.period + "ms");
+	}
+
+	/**
+	 * Stops the periodic export for the subscription's route
+	 * 
+	 * @param sub
+	 */
+	public void cancel(Subscription sub) {
+		if (StringUtils.isBlank(sub.getRouteId()))
+			return;
+		String routeId = sub.getRouteId();
+		SubscriptionIndex.getInstance().removeExporter(routeId);
+		DeliveryScheduler.getInstance().remove(routeId);
+		if (tasks.remove(routeId) == null)
+			return;
+		synchronized (wheel) {
+			wheel.remove(routeId);
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("Cancelled " + routeId);
+	}
+
+	public boolean isScheduled(Subscription sub) {
+		return sub.getRouteId() != null && tasks.containsKey(sub.getRouteId());
+	}
+
+	private String getRouteId(Subscription sub) {
+		if (StringUtils.isBlank(sub.getRouteId())) {
+			sub.setRouteId("sub_" + sub.getWsSession() + "-" + ids.incrementAndGet());
+		}
+		return sub.getRouteId();
+	}
+
+	/**
+	 * @return the time in ms, the clock the wheel runs on
+	 */
+	long now() {
+		return System.currentTimeMillis();
+	}
+
+	// the next multiple of the period, so equal periods run together
+	private long next(long period, long now) {
+		return (now / period + 1) * period;
+	}
+
+	/**
+	 * Runs the tasks that are due
+	 * 
+	 * @param now
+	 */
+	void tick(long now) {
+		long start = System.nanoTime();
+		List<String> due = new ArrayList<>();
+		List<Task> ready = new ArrayList<>();
+		synchronized (wheel) {
+			wheel.advance(now, due);
+			for (String routeId : due) {
+				Task task = tasks.get(routeId);
+				if (task == null)
+					continue;
+				wheel.touch(routeId, next(task.period, now));
+				ready.add(task);
+			}
+		}
+		for (Task task : ready) {
+			if (task.running.compareAndSet(false, true)) {
+				runs.incrementAndGet();
+				pool.execute(task);
+			} else {
+				skipped.incrementAndGet();
+			}
+		}
+		long latency = (System.nanoTime() - start) / 1000;
+		lastTickLatency = latency;
+		if (latency > maxTickLatency)
+			maxTickLatency = latency;
+	}
+
+	@Override
+	public int getTasks() {
+		return tasks.size();
+	}
+
+	@Override
+	public long getTick() {
+		return tick;
+	}
+
+	@Override
+	public int getThreads() {
+		return threads;
+	}
+
+	@Override
+	public long getRuns() {
+		return runs.get();
+	}
+
+	@Override
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	@Override
+	public long getLastTickLatency() {
+		return lastTickLatency;
+	}
+
+	@Override
+	public long getMaxTickLatency() {
+		return maxTickLatency;
+	}
+
+	@Override
+	public List<String> getTaskDetails() {
+		List<String> details = new ArrayList<>();
+		for (Task task : tasks.values()) {
+			details.add(task.routeId + " every " + task.period + "ms: " + task.exporter.getSubscriptionDetails());
+		}
+		return details;
+	}
+
+}
@@ -0,0 +1,368 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.CONFIG;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.PATH;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.PUT;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.UPDATES;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.resources;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.source;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.sourceRef;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.sources;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.timestamp;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.value;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.values;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import mjson.Json;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Converts delta and full format messages straight into the flat key map, reading the message as a stream of jackson tokens.
+ * <p>
+ * The result is laid out the same way as DeltaToMapConverter and FullToMapConverter do it, but without building a Json tree first:
+ * <ul>
+ * <li>primitive values go to ctx.path.value, object values are flattened to ctx.path.field</li>
+ * <li>the update timestamp goes to ctx.path.timestamp</li>
+ * <li>the update source goes to ctx.path.source.*, a $source string to ctx.path.$source</li>
+ * <li>vessels.self, as a delta context or in a full message, is the self vessel key</li>
+ * </ul>
+ * Numbers are the same types Json.read gives, Long for integers and Double for decimals, with BigInteger and BigDecimal for long ones.
+ * Arrays are stored as a Json array under the key as they are in the tree converters.
+ * <p>
+ * An instance is not thread safe, it reuses its buffers between messages.
+ * 
+ * @author robert
+ *
+ */
+public class JsonStreamConverter {
+
+	private static Logger logger = LogManager.getLogger(JsonStreamConverter.class);
+
+	// thread safe, and expensive to create
+	private static final JsonFactory factory = new JsonFactory();
+	private static final String VESSELS_DOT_SELF = vessels + dot + "self";
+
+	// per update buffers, an update may list its values before its source and timestamp
+	private List<String> paths = new ArrayList<>();
+	private List<String> keys = new ArrayList<>();
+	private List<Object> vals = new ArrayList<>();
+	private List<String> srcKeys = new ArrayList<>();
+	private List<Object> srcVals = new ArrayList<>();
+
+	/**
+	 * Converts a delta message into a model fragment.
+	 * 
+	 * @param msg - the delta as a string
+	 * @param ctx - the context of the message, as found by {@link MessageClass}, since it may come after the updates in the stream.
+	 * @return the fragment, or null if there is no context or no updates.
+	 * @throws IOException if the json is not valid
+	 */
+	public SignalKModel handleDelta(String msg, String ctx) throws IOException {
+		if (ctx == null) {
+			if (logger.isDebugEnabled())
+				logger.debug("No context, ignoring:" + msg);
+			return null;
+		}
+		ctx = fixSelf(trimDots(ctx));
+		SignalKModel temp = SignalKModelFactory.getCleanInstance();
+		Map<String, Object> data = temp.getFullData();
+		int count = 0;
+		JsonParser parser = factory.createParser(msg);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+				return null;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if ((UPDATES.equals(name) || PUT.equals(name)) && token == JsonToken.START_ARRAY) {
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						count += readUpdate(parser, ctx, data);
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+		} finally {
+			parser.close();
+		}
+		if (count == 0)
+			return null;
+		return temp;
+	}
+
+	/**
+	 * Converts a full format message into a model fragment. Only the vessels, resources, sources and config branches are imported.
+	 * 
+	 * @param msg - the full message as a string
+	 * @return the fragment, or null if there was nothing to import.
+	 * @throws IOException if the json is not valid
+	 */
+	public SignalKModel handleFull(String msg) throws IOException {
+		SignalKModel temp = SignalKModelFactory.getCleanInstance();
+		keys.clear();
+		vals.clear();
+		JsonParser parser = factory.createParser(msg);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+				return null;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				parser.nextToken();
+				if (vessels.equals(name) || resources.equals(name) || sources.equals(name) || CONFIG.equals(name)) {
+					readValue(parser, name, keys, vals);
+				} else {
+					parser.skipChildren();
+				}
+			}
+		} finally {
+			parser.close();
+		}
+		if (keys.isEmpty())
+			return null;
+		Map<String, Object> data = temp.getFullData();
+		for (int x = 0; x < keys.size(); x++) {
+			data.put(fixSelf(keys.get(x)), vals.get(x));
+		}
+		return temp;
+	}
+
+	/**
+	 * vessels.self and keys below it as the self vessel, eg vessels.self.navigation to vessels.motu.navigation
+	 */
+	static String fixSelf(String key) {
+		if (!key.startsWith(VESSELS_DOT_SELF))
+			return key;
+		if (key.length() == VESSELS_DOT_SELF.length())
+			return vessels_dot_self;
+		if (key.charAt(VESSELS_DOT_SELF.length()) == '.')
+			return vessels_dot_self_dot + key.substring(VESSELS_DOT_SELF.length() + 1);
+		return key;
+	}
+
+	private static String trimDots(String ctx) {
+		int start = ctx.startsWith(dot) ? 1 : 0;
+		int end = ctx.endsWith(dot) ? ctx.length() - 1 : ctx.length();
+		return start == 0 && end == ctx.length() ? ctx : ctx.substring(start, Math.max(start, end));
+	}
+
+	/**
+	 * Reads one update object, the parser is on its START_OBJECT. Returns the number of values found.
+	 */
+	private int readUpdate(JsonParser parser, String ctx, Map<String, Object> data) throws IOException {
+		paths.clear();
+		keys.clear();
+		vals.clear();
+		srcKeys.clear();
+		srcVals.clear();
+		String ts = null;
+		String ref = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if (values.equals(name) && token == JsonToken.START_ARRAY) {
+				while (parser.nextToken() == JsonToken.START_OBJECT) {
+					readPathValue(parser);
+				}
+			} else if (timestamp.equals(name) && token == JsonToken.VALUE_STRING) {
+				ts = parser.getText();
+			} else if (source.equals(name)) {
+				readValue(parser, source, srcKeys, srcVals);
+			} else if (sourceRef.equals(name) && token == JsonToken.VALUE_STRING) {
+				ref = parser.getText();
+			} else {
+				parser.skipChildren();
+			}
+		}
+		for (int x = 0; x < keys.size(); x++) {
+			data.put(ctx + dot + keys.get(x), vals.get(x));
+		}
+		for (String path : paths) {
+			String key = ctx + dot + path + dot;
+			if (ts != null)
+				data.put(key + timestamp, ts);
+			if (ref != null)
+				data.put(key + sourceRef, ref);
+			for (int x = 0; x < srcKeys.size(); x++) {
+				data.put(key + srcKeys.get(x), srcVals.get(x));
+			}
+		}
+		return paths.size();
+	}
+
+	/**
+	 * Reads one {path, value} entry, the parser is on its START_OBJECT.
+	 * The path is needed to build the value key, so the value is read into a small buffer if it comes first.
+	 */
+	private void readPathValue(JsonParser parser) throws IOException {
+		String path = null;
+		List<String> pendingKeys = null;
+		List<Object> pendingVals = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if (PATH.equals(name) && token == JsonToken.VALUE_STRING) {
+				path = parser.getText();
+			} else if (value.equals(name)) {
+				if (path != null) {
+					readValue(parser, token == JsonToken.START_OBJECT ? path : path + dot + value, keys, vals);
+				} else {
+					// value before path, read it with an empty prefix and fix the keys up after
+					pendingKeys = new ArrayList<>();
+					pendingVals = new ArrayList<>();
+					readValue(parser, token == JsonToken.START_OBJECT ? "" : value, pendingKeys, pendingVals);
+				}
+			} else {
+				parser.skipChildren();
+			}
+		}
+		if (path == null)
+			return;
+		if (pendingKeys != null) {
+			for (int x = 0; x < pendingKeys.size(); x++) {
+				keys.add(path + dot + pendingKeys.get(x));
+				vals.add(pendingVals.get(x));
+			}
+		}
+		paths.add(path);
+	}
+
+	/**
+	 * Reads the current value, flattening objects into prefix.field keys.
+	 * Arrays are kept whole as a Json array, nulls are dropped.
+	 */
+	private void readValue(JsonParser parser, String prefix, List<String> keyList, List<Object> valList) throws IOException {
+		switch (parser.getCurrentToken()) {
+		case START_OBJECT:
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				parser.nextToken();
+				readValue(parser, prefix.length() == 0 ? name : prefix + dot + name, keyList, valList);
+			}
+			break;
+		case START_ARRAY:
+			keyList.add(prefix);
+			valList.add(readJson(parser));
+			break;
+		case VALUE_STRING:
+			keyList.add(prefix);
+			valList.add(parser.getText());
+			break;
+		case VALUE_NUMBER_INT:
+		case VALUE_NUMBER_FLOAT:
+			keyList.add(prefix);
+			valList.add(readNumber(parser));
+			break;
+		case VALUE_TRUE:
+			keyList.add(prefix);
+			valList.add(Boolean.TRUE);
+			break;
+		case VALUE_FALSE:
+			keyList.add(prefix);
+			valList.add(Boolean.FALSE);
+			break;
+		default:
+			// null
+			break;
+		}
+	}
+
+	/**
+	 * Builds a Json for the current value, used for arrays which stay whole in the model.
+	 */
+	private Json readJson(JsonParser parser) throws IOException {
+		switch (parser.getCurrentToken()) {
+		case START_OBJECT:
+			Json obj = Json.object();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				parser.nextToken();
+				obj.set(name, readJson(parser));
+			}
+			return obj;
+		case START_ARRAY:
+			Json array = Json.array();
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				array.add(readJson(parser));
+			}
+			return array;
+		case VALUE_STRING:
+			return Json.make(parser.getText());
+		case VALUE_NUMBER_INT:
+		case VALUE_NUMBER_FLOAT:
+			return Json.make(readNumber(parser));
+		case VALUE_TRUE:
+			return Json.make(true);
+		case VALUE_FALSE:
+			return Json.make(false);
+		default:
+			return Json.nil();
+		}
+	}
+
+	/**
+	 * The number as Json.read makes it, Long or Double, or BigInteger or BigDecimal when it has too many digits for them.
+	 */
+	private Number readNumber(JsonParser parser) throws IOException {
+		// digits before any exponent, as Json.read counts them
+		int digits = 0;
+		char[] text = parser.getTextCharacters();
+		int end = parser.getTextOffset() + parser.getTextLength();
+		for (int x = parser.getTextOffset(); x < end; x++) {
+			char c = text[x];
+			if (c == 'e' || c == 'E')
+				break;
+			if (c >= '0' && c <= '9')
+				digits++;
+		}
+		if (parser.getCurrentToken() == JsonToken.VALUE_NUMBER_INT) {
+			if (digits < 19)
+				return parser.getLongValue();
+			return parser.getBigIntegerValue();
+		}
+		if (digits < 17)
+			return parser.getDoubleValue();
+		return new BigDecimal(parser.getText());
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import java.io.IOException;
+
+import org.apache.camel.component.websocket.WebsocketConstants;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Classifies an incoming message in one pass over the string, without building a json tree.
+ * <p>
+ * For json messages only the top level keys are looked at, nested objects and arrays are skipped over.
+ * The values of context, the connection key and replyTo are kept, decoded, as they are needed for routing and the firewall.
+ * The json is parsed later, by the first processor that actually needs the tree.
+ * 
+ * @author robert
+ *
+ */
+public class MessageClass {
+
+	private static Logger logger = LogManager.getLogger(MessageClass.class);
+
+	private static final JsonFactory factory = new JsonFactory();
+
+	public static final String NMEA = "nmea";
+	public static final String AIS = "ais";
+	public static final String N2K = "n2k";
+	public static final String DELTA = "delta";
+	public static final String FULL = "full";
+	public static final String SUBSCRIBE = "subscribe";
+	public static final String GET = "get";
+	public static final String LIST = "list";
+	public static final String CONFIG = "config";
+	public static final String JSON = "json";
+	public static final String UNKNOWN = "unknown";
+	public static final String INVALID = "invalid";
+
+	// top level keys we look for, the flag is 1<<index
+	private static final String[] KEYS = { SignalKConstants.pgn, SignalKConstants.CONTEXT, SignalKConstants.vessels,
+			SignalKConstants.resources, SignalKConstants.CONFIG, SignalKConstants.UPDATES, SignalKConstants.PUT,
+			SignalKConstants.SUBSCRIBE, SignalKConstants.UNSUBSCRIBE, SignalKConstants.GET, SignalKConstants.LIST,
+			WebsocketConstants.CONNECTION_KEY, ConfigConstants.REPLY_TO };
+
+	public static final int HAS_PGN = 1;
+	public static final int HAS_CONTEXT = 1 << 1;
+	public static final int HAS_VESSELS = 1 << 2;
+	public static final int HAS_RESOURCES = 1 << 3;
+	public static final int HAS_CONFIG = 1 << 4;
+	public static final int HAS_UPDATES = 1 << 5;
+	public static final int HAS_PUT = 1 << 6;
+	public static final int HAS_SUBSCRIBE = 1 << 7;
+	public static final int HAS_UNSUBSCRIBE = 1 << 8;
+	public static final int HAS_GET = 1 << 9;
+	public static final int HAS_LIST = 1 << 10;
+	public static final int HAS_CONNECTION_KEY = 1 << 11;
+	public static final int HAS_REPLY_TO = 1 << 12;
+
+	private static final MessageClass NMEA_CLASS = new MessageClass(NMEA, false);
+	private static final MessageClass AIS_CLASS = new MessageClass(AIS, false);
+	private static final MessageClass UNKNOWN_CLASS = new MessageClass(UNKNOWN, false);
+
+	private String type;
+	private final boolean json;
+	private boolean valid = true;
+	private int flags = 0;
+	private String context;
+	private String connectionKey;
+	private String replyTo;
+
+	private MessageClass(String type, boolean json) {
+		this.type = type;
+		this.json = json;
+	}
+
+	/**
+	 * Classify the (trimmed) message
+	 * 
+	 * @param msg
+	 * @return never null
+	 */
+	public static MessageClass classify(String msg) {
+		if (msg == null || msg.length() == 0)
+			return UNKNOWN_CLASS;
+		char c = msg.charAt(0);
+		if (c == '$')
+			return NMEA_CLASS;
+		if (c == '!' && msg.startsWith("!AIVDM"))
+			return AIS_CLASS;
+		if (c == '{' && msg.charAt(msg.length() - 1) == '}') {
+			MessageClass mc = new MessageClass(JSON, true);
+			if (!mc.scan(msg)) {
+				mc.valid = false;
+				mc.type = INVALID;
+				return mc;
+			}
+			mc.type = mc.resolveType();
+			return mc;
+		}
+		return UNKNOWN_CLASS;
+	}
+
+	private String resolveType() {
+		if (has(HAS_PGN))
+			return N2K;
+		if (hasAny(HAS_SUBSCRIBE | HAS_UNSUBSCRIBE))
+			return SUBSCRIBE;
+		if (has(HAS_GET))
+			return GET;
+		if (has(HAS_LIST))
+			return LIST;
+		if (isConfig())
+			return CONFIG;
+		if (hasAny(HAS_VESSELS | HAS_RESOURCES))
+			return FULL;
+		if (has(HAS_CONTEXT))
+			return DELTA;
+		return JSON;
+	}
+
+	/**
+	 * Walk the top level of the object with a streaming parser, noting the keys we care about.
+	 * Nested values are skipped but still tokenized, so the whole message is checked, and escapes in keys and values are decoded.
+	 * 
+	 * @return false if the message is not valid json
+	 */
+	private boolean scan(String msg) {
+		try (JsonParser parser = factory.createParser(msg)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+				return false;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				int key = matchKey(parser.getCurrentName());
+				JsonToken token = parser.nextToken();
+				if (key >= 0) {
+					flags |= 1 << key;
+					if (token == JsonToken.VALUE_STRING) {
+						switch (1 << key) {
+						case HAS_CONTEXT:
+							context = parser.getText();
+							break;
+						case HAS_CONNECTION_KEY:
+							connectionKey = parser.getText();
+							break;
+						case HAS_REPLY_TO:
+							replyTo = parser.getText();
+							break;
+						default:
+						}
+					}
+				}
+				parser.skipChildren();
+			}
+			// nothing after the closing brace
+			return parser.getCurrentToken() == JsonToken.END_OBJECT && parser.nextToken() == null;
+		} catch (IOException e) {
+			if (logger.isDebugEnabled())
+				logger.debug("Invalid json: " + e.getMessage());
+			return false;
+		}
+	}
+
+	private static int matchKey(String name) {
+		for (int k = 0; k < KEYS.length; k++) {
+			if (KEYS[k].equals(name))
+				return k;
+		}
+		return -1;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public boolean isJson() {
+		return json;
+	}
+
+	/**
+	 * @return false for json that failed to parse
+	 */
+	public boolean isValid() {
+		return valid;
+	}
+
+	public boolean isNmea() {
+		return this == NMEA_CLASS;
+	}
+
+	public boolean isAis() {
+		return this == AIS_CLASS;
+	}
+
+	public boolean has(int flag) {
+		return (flags & flag) == flag;
+	}
+
+	public boolean hasAny(int flag) {
+		return (flags & flag) != 0;
+	}
+
+	public int getFlags() {
+		return flags;
+	}
+
+	public boolean isConfig() {
+		return has(HAS_CONFIG) || (context != null && context.startsWith(SignalKConstants.CONFIG));
+	}
+
+	public String getContext() {
+		return context;
+	}
+
+	public String getConnectionKey() {
+		return connectionKey;
+	}
+
+	public String getReplyTo() {
+		return replyTo;
+	}
+
+	@Override
+	public String toString() {
+		return type;
+	}
+}
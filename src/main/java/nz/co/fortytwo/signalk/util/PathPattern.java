@@ -0,0 +1,193 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compiled signalk path pattern, eg vessels.*.navigation.course*True
+ * <p>
+ * The pattern is split into dotted segments. A segment containing * or ? is a glob matched within that one segment,
+ * * matches any run of characters and ? exactly one. It never matches across a dot.
+ * <p>
+ * A key matches if it starts with the pattern on a segment boundary, so vessels.*.navigation matches
+ * vessels.motu.navigation and vessels.motu.navigation.position.latitude, but not vessels.motu or vessels.motu.navigationx.
+ * <p>
+ * Matching does not allocate. Patterns are immutable, use {@link #compile(String)} to share one instance per path.
+ * 
+ * @author robert
+ *
+ */
+public class PathPattern {
+
+	// more than this many distinct paths is not normal use, start again rather than grow forever
+	private static final int MAX_CACHED = 10000;
+	private static final ConcurrentHashMap<String, PathPattern> cache = new ConcurrentHashMap<>();
+
+	private final String path;
+	private final String[] segments;
+	private final boolean[] globs;
+	private final String literalPrefix;
+	private final boolean wildcard;
+
+	private PathPattern(String path) {
+		this.path = path;
+		List<String> list = new ArrayList<>();
+		int start = 0;
+		while (start <= path.length()) {
+			int end = path.indexOf('.', start);
+			if (end < 0)
+				end = path.length();
+			if (end > start)
+				list.add(path.substring(start, end));
+			start = end + 1;
+		}
+		segments = list.toArray(new String[list.size()]);
+		globs = new boolean[segments.length];
+		StringBuilder prefix = new StringBuilder();
+		boolean literal = true;
+		for (int x = 0; x < segments.length; x++) {
+			globs[x] = isWildcard(segments[x]);
+			if (globs[x])
+				literal = false;
+			if (literal) {
+				if (prefix.length() > 0)
+					prefix.append('.');
+				prefix.append(segments[x]);
+			}
+		}
+		literalPrefix = prefix.toString();
+		wildcard = !literal;
+	}
+
+	/**
+	 * Returns the shared pattern for this path
+	 * 
+	 * @param path - a sanitized dotted path
+	 * @return
+	 */
+	public static PathPattern compile(String path) {
+		PathPattern pattern = cache.get(path);
+		if (pattern == null) {
+			if (cache.size() > MAX_CACHED)
+				cache.clear();
+			pattern = new PathPattern(path);
+			PathPattern existing = cache.putIfAbsent(path, pattern);
+			if (existing != null)
+				pattern = existing;
+		}
+		return pattern;
+	}
+
+	/**
+	 * True if the key is this path or below it
+	 * 
+	 * @param key - a full dotted model key
+	 * @return
+	 */
+	public boolean matches(String key) {
+		int start = 0;
+		int len = key.length();
+		for (int x = 0; x < segments.length; x++) {
+			if (start > len)
+				return false;
+			int end = key.indexOf('.', start);
+			if (end < 0)
+				end = len;
+			if (globs[x]) {
+				if (!matchSegment(segments[x], key, start, end))
+					return false;
+			} else {
+				String seg = segments[x];
+				if (end - start != seg.length() || !key.regionMatches(start, seg, 0, seg.length()))
+					return false;
+			}
+			start = end + 1;
+		}
+		return true;
+	}
+
+	/**
+	 * The dotted path before the first wildcard segment, eg vessels for vessels.*.navigation
+	 * 
+	 * @return
+	 */
+	public String getLiteralPrefix() {
+		return literalPrefix;
+	}
+
+	public boolean isWildcard() {
+		return wildcard;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+
+	/**
+	 * true if the path or segment contains any * or ? for a wildcard match
+	 * 
+	 * @param path
+	 * @return
+	 */
+	public static boolean isWildcard(String path) {
+		return path.indexOf('*') >= 0 || path.indexOf('?') >= 0;
+	}
+
+	/**
+	 * Glob match of one segment, key[start,end), * matches any run of chars and ? one char.
+	 */
+	public static boolean matchSegment(String glob, String key, int start, int end) {
+		int g = 0;
+		int k = start;
+		int starG = -1;
+		int starK = -1;
+		while (k < end) {
+			if (g < glob.length() && (glob.charAt(g) == '?' || glob.charAt(g) == key.charAt(k))) {
+				g++;
+				k++;
+			} else if (g < glob.length() && glob.charAt(g) == '*') {
+				starG = g++;
+				starK = k;
+			} else if (starG >= 0) {
+				g = starG + 1;
+				k = ++starK;
+			} else {
+				return false;
+			}
+		}
+		while (g < glob.length() && glob.charAt(g) == '*')
+			g++;
+		return g == glob.length();
+	}
+}
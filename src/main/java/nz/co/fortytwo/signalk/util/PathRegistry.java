@@ -0,0 +1,398 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Gives every dotted signalk path a compact int id, shared by the whole server.
+ * <p>
+ * Each path is held once, with links to its parent and children, eg vessels.motu.navigation has the parent vessels.motu.
+ * While a path is registered two paths are the same if their ids are equal, and {@link #path(int)} always returns the same String instance.
+ * <p>
+ * Paths from {@link #id(String)} are kept for good, they are for the fixed paths the server uses, eg vessels.self.
+ * Model keys are added with {@link #retain(String)} and given up with {@link #release(String)} when they leave the model,
+ * which frees the id, and any parents nothing else is using, for reuse. Keys that only pass through, eg a rejected update, 
+ * should use {@link #find(String)}, {@link #sibling(String, String)} or {@link #parentPath(String)}, which never add anything.
+ * <p>
+ * {@link #resolve(int, String)} finds a child by a relative path, eg navigation.position.latitude under vessels.motu,
+ * and remembers the answer, so a constant relative path is found again without building the full string.
+ * 
+ * @author robert
+ *
+ */
+public class PathRegistry implements PathRegistryMBean {
+
+	private static Logger logger = LogManager.getLogger(PathRegistry.class);
+
+	private static PathRegistry registry = null;
+
+	private static final int[] NONE = new int[0];
+
+	private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+	private volatile Node[] nodes = new Node[1024];
+	private int size = 0;
+	// released ids, reused before size grows
+	private final ArrayDeque<Integer> free = new ArrayDeque<>();
+	private long misses = 0;
+	private long released = 0;
+
+	private static class Node {
+		final String path;
+		final int parent;
+		// replaced, never changed
+		volatile int[] children = NONE;
+		// relative path > id
+		final ConcurrentHashMap<String, Integer> relative = new ConcurrentHashMap<>();
+		// from id(), never released
+		volatile boolean pinned;
+		// a model key, from retain()
+		volatile boolean held;
+
+		Node(String path, int parent) {
+			this.path = path;
+			this.parent = parent;
+		}
+	}
+
+	public static synchronized PathRegistry getInstance() {
+		if (registry == null) {
+			registry = new PathRegistry();
+			registry.registerMBean();
+		}
+		return registry;
+	}
+
+	/**
+	 * Registers the stats on JMX
+	 */
+	public void registerMBean() {
+		try {
+			ObjectName name = new ObjectName(getClass().getName(), "id", "pathRegistry");
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * The id of this path, added with any missing parents if it is new, and kept for good
+	 * 
+	 * @param path - a dotted path, eg vessels.motu.navigation
+	 * @return
+	 */
+	public int id(String path) {
+		Integer id = ids.get(path);
+		if (id != null) {
+			Node node = nodes[id];
+			if (node != null && node.pinned)
+				return id;
+		}
+		return add(path, true, false);
+	}
+
+	/**
+	 * The id of a model key, added with any missing parents if it is new. It is kept until {@link #release(String)}
+	 * 
+	 * @param path - a full model key
+	 * @return
+	 */
+	public int retain(String path) {
+		Integer id = ids.get(path);
+		if (id != null) {
+			Node node = nodes[id];
+			if (node != null && node.held)
+				return id;
+		}
+		return add(path, false, true);
+	}
+
+	/**
+	 * Gives up a model key that has left the model. Its id, and the ids of any parents with nothing left under them, 
+	 * are freed unless they came from {@link #id(String)}
+	 * 
+	 * @param path
+	 */
+	public synchronized void release(String path) {
+		Integer id = ids.get(path);
+		if (id == null)
+			return;
+		nodes[id].held = false;
+		int next = id;
+		while (next >= 0) {
+			Node node = nodes[next];
+			if (node.pinned || node.held || node.children.length > 0)
+				return;
+			int parent = node.parent;
+			remove(next, node);
+			next = parent;
+		}
+	}
+
+	// must hold this
+	private void remove(int id, Node node) {
+		ids.remove(node.path);
+		int parent = node.parent;
+		while (parent >= 0) {
+			Node p = nodes[parent];
+			if (parent == node.parent) {
+				int[] children = new int[p.children.length - 1];
+				int y = 0;
+				for (int child : p.children) {
+					if (child != id)
+						children[y++] = child;
+				}
+				p.children = children;
+			}
+			// answers from resolve() that lead here
+			p.relative.remove(node.path.substring(p.path.length() + 1), id);
+			parent = p.parent;
+		}
+		nodes[id] = null;
+		free.push(id);
+		released++;
+	}
+
+	/**
+	 * The id of this path, or -1 if it is not registered
+	 * 
+	 * @param path
+	 * @return
+	 */
+	public int find(String path) {
+		Integer id = ids.get(path);
+		return id == null ? -1 : id;
+	}
+
+	private synchronized int add(String path, boolean pin, boolean hold) {
+		Integer id = ids.get(path);
+		if (id != null) {
+			Node node = nodes[id];
+			if (pin)
+				node.pinned = true;
+			if (hold)
+				node.held = true;
+			return id;
+		}
+		misses++;
+		int pos = path.lastIndexOf('.');
+		// parents stay while something is below them
+		int parent = pos > 0 ? add(path.substring(0, pos), false, false) : -1;
+		int next;
+		if (free.isEmpty()) {
+			if (size == nodes.length) {
+				nodes = Arrays.copyOf(nodes, size * 2);
+			}
+			next = size;
+			size++;
+		} else {
+			next = free.pop();
+		}
+		Node node = new Node(path, parent);
+		node.pinned = pin;
+		node.held = hold;
+		nodes[next] = node;
+		if (parent >= 0) {
+			Node p = nodes[parent];
+			int[] children = Arrays.copyOf(p.children, p.children.length + 1);
+			children[children.length - 1] = next;
+			p.children = children;
+		}
+		ids.put(path, next);
+		return next;
+	}
+
+	/**
+	 * The id of a path below this one, eg resolve(id(vessels.motu), navigation.position.latitude)
+	 * 
+	 * @param base - the id of the parent path
+	 * @param relative - dotted path relative to the base
+	 * @return
+	 */
+	public int resolve(int base, String relative) {
+		Node node = nodes[base];
+		Integer id = node.relative.get(relative);
+		if (id != null)
+			return id;
+		int child = id(node.path + SignalKConstants.dot + relative);
+		node.relative.put(relative, child);
+		return child;
+	}
+
+	/**
+	 * The id of a path below this one, like {@link #resolve(int, String)}, or -1 if it is not registered
+	 * 
+	 * @param base - the id of the parent path
+	 * @param relative - dotted path relative to the base
+	 * @return
+	 */
+	public int findRelative(int base, String relative) {
+		Node node = nodes[base];
+		Integer id = node.relative.get(relative);
+		if (id != null)
+			return id;
+		synchronized (this) {
+			// the child could be released between the find and the put
+			int child = find(node.path + SignalKConstants.dot + relative);
+			if (child >= 0 && nodes[base] == node)
+				node.relative.put(relative, child);
+			return child;
+		}
+	}
+
+	/**
+	 * The key next to this one, eg sibling(vessels.motu.navigation.speedOverGround.value, timestamp) is vessels.motu.navigation.speedOverGround.timestamp.
+	 * The registered String if there is one, nothing is added. Never takes the lock, it is called for every update.
+	 * 
+	 * @param path
+	 * @param name
+	 * @return
+	 */
+	public String sibling(String path, String name) {
+		Node[] n = nodes;
+		int id = find(path);
+		if (id >= 0) {
+			Node node = n[id];
+			Node parent = node == null || node.parent < 0 ? null : n[node.parent];
+			if (parent != null) {
+				Integer child = parent.relative.get(name);
+				Node sibling = child == null ? null : n[child];
+				// a released id can be reused before its entry goes
+				if (sibling != null && sibling.parent == node.parent)
+					return sibling.path;
+			}
+		}
+		int pos = path.lastIndexOf('.');
+		String key = pos < 0 ? name : path.substring(0, pos + 1) + name;
+		id = find(key);
+		Node sibling = id < 0 ? null : nodes[id];
+		return sibling != null && sibling.path.equals(key) ? sibling.path : key;
+	}
+
+	/**
+	 * The path above this one, or null for a top level path. The registered String if there is one, nothing is added.
+	 * 
+	 * @param path
+	 * @return
+	 */
+	public String parentPath(String path) {
+		int id = find(path);
+		if (id >= 0) {
+			Node node = nodes[id];
+			Node parent = node == null || node.parent < 0 ? null : nodes[node.parent];
+			if (parent != null)
+				return parent.path;
+		}
+		int pos = path.lastIndexOf('.');
+		return pos < 0 ? null : path.substring(0, pos);
+	}
+
+	/**
+	 * The registered String for this id
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public String path(int id) {
+		return nodes[id].path;
+	}
+
+	/**
+	 * The shared instance of this path, registering it if needed
+	 * 
+	 * @param path
+	 * @return
+	 */
+	public String intern(String path) {
+		return path(id(path));
+	}
+
+	/**
+	 * The parent id, or -1 for a top level path
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public int parent(int id) {
+		return nodes[id].parent;
+	}
+
+	/**
+	 * The ids of the direct children, do not change the array
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public int[] children(int id) {
+		return nodes[id].children;
+	}
+
+	/**
+	 * True if the path with id is below the path with ancestor
+	 * 
+	 * @param ancestor
+	 * @param id
+	 * @return
+	 */
+	public boolean isBelow(int ancestor, int id) {
+		Node[] n = nodes;
+		int p = n[id].parent;
+		while (p >= 0) {
+			if (p == ancestor)
+				return true;
+			p = n[p].parent;
+		}
+		return false;
+	}
+
+	@Override
+	public int getPaths() {
+		return ids.size();
+	}
+
+	@Override
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	@Override
+	public synchronized long getReleased() {
+		return released;
+	}
+}
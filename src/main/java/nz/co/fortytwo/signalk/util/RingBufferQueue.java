@@ -0,0 +1,350 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A bounded, preallocated ring buffer for handing messages from many producers (serial, netty, websockets, clients)
+ * to a single consumer (the input route).
+ * <p>
+ * Producers claim a slot with a CAS on the tail counter and publish into it, so they never take a lock while there is room.
+ * The consumer reads slots in order and frees them. Locks are only used to park a waiting consumer, or a producer when the
+ * policy is BLOCK and the buffer is full.
+ * <p>
+ * Plugs into camel as the queue of a seda endpoint, eg <code>seda:signalk.inputData?queue=#inputQueue</code>.
+ * What happens when the buffer is full is decided by the {@link Policy}:
+ * <ul>
+ * <li>REJECT - offer returns false, so seda throws 'Queue full' back at the producer, same as a full seda queue.
+ * <li>DROP - the new message is discarded and counted.
+ * <li>BLOCK - the producer waits up to blockTimeout ms for room, then the message is discarded and counted.
+ * </ul>
+ * 
+ * @author robert
+ *
+ * @param <E>
+ */
+public class RingBufferQueue<E> extends AbstractQueue<E> implements BlockingQueue<E>, RingBufferQueueMBean {
+
+	private static Logger logger = LogManager.getLogger(RingBufferQueue.class);
+
+	public enum Policy {
+		REJECT, DROP, BLOCK;
+
+		public static Policy fromString(String policy, Policy defaultPolicy) {
+			if (policy == null)
+				return defaultPolicy;
+			try {
+				return valueOf(policy.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				logger.warn("Unknown ring buffer policy:" + policy + ", using " + defaultPolicy);
+				return defaultPolicy;
+			}
+		}
+	}
+
+	private final AtomicReferenceArray<E> buffer;
+	private final int capacity;
+	private final int mask;
+	private final Policy policy;
+	private final long blockTimeout;
+
+	// next slot a producer will claim
+	private final AtomicLong tail = new AtomicLong();
+	// next slot the consumer will read, only written by the consumer
+	private volatile long head = 0;
+	private final Object consumerLock = new Object();
+
+	// used only for parking
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final AtomicInteger waitingConsumers = new AtomicInteger();
+	private final AtomicInteger waitingProducers = new AtomicInteger();
+
+	private final LongAdder published = new LongAdder();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param size - rounded up to the next power of 2
+	 * @param policy - what to do when full
+	 * @param blockTimeout - ms to wait for room when the policy is BLOCK
+	 */
+	public RingBufferQueue(int size, Policy policy, long blockTimeout) {
+		if (size < 2)
+			size = 2;
+		int cap = Integer.highestOneBit(size - 1) << 1;
+		if (cap <= 0)
+			throw new IllegalArgumentException("Ring buffer size too large:" + size);
+		this.capacity = cap;
+		this.mask = cap - 1;
+		this.buffer = new AtomicReferenceArray<E>(cap);
+		this.policy = policy == null ? Policy.BLOCK : policy;
+		this.blockTimeout = blockTimeout;
+		logger.info("Created ring buffer, capacity " + capacity + ", policy " + this.policy);
+	}
+
+	/**
+	 * Claim a slot and publish, or return false if there is no room.
+	 */
+	private boolean tryPublish(E e) {
+		while (true) {
+			long t = tail.get();
+			if (t - head >= capacity)
+				return false;
+			if (tail.compareAndSet(t, t + 1)) {
+				// a volatile store, so it cant be reordered after the read of waitingConsumers.
+				// The consumer increments waitingConsumers before polling again, so one of us sees the other
+				buffer.set((int) t & mask, e);
+				published.increment();
+				if (waitingConsumers.get() > 0)
+					signal(notEmpty);
+				return true;
+			}
+		}
+	}
+
+	private void signal(Condition condition) {
+		lock.lock();
+		try {
+			condition.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void drop() {
+		long count = dropped.incrementAndGet();
+		if (count % 1000 == 1)
+			logger.warn("Input ring buffer full, dropped " + count + " messages so far");
+	}
+
+	/**
+	 * Applies the {@link Policy} when the buffer is full. DROP and BLOCK return true even when the message was discarded,
+	 * so producers are not interrupted by exceptions.
+	 */
+	@Override
+	public boolean offer(E e) {
+		if (e == null)
+			throw new NullPointerException();
+		if (tryPublish(e))
+			return true;
+		switch (policy) {
+		case DROP:
+			drop();
+			return true;
+		case BLOCK:
+			try {
+				if (offer(e, blockTimeout, TimeUnit.MILLISECONDS))
+					return true;
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			drop();
+			return true;
+		default:
+			rejected.incrementAndGet();
+			return false;
+		}
+	}
+
+	@Override
+	public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+		if (e == null)
+			throw new NullPointerException();
+		if (tryPublish(e))
+			return true;
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		waitingProducers.incrementAndGet();
+		try {
+			while (!tryPublish(e)) {
+				if (nanos <= 0)
+					return false;
+				nanos = notFull.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			waitingProducers.decrementAndGet();
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(E e) throws InterruptedException {
+		offer(e, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public E poll() {
+		E e;
+		synchronized (consumerLock) {
+			long h = head;
+			int idx = (int) h & mask;
+			e = buffer.get(idx);
+			// empty, or a producer has claimed the slot but not yet published
+			if (e == null)
+				return null;
+			buffer.set(idx, null);
+			head = h + 1;
+		}
+		// head is volatile, so the store is visible before the read of waitingProducers,
+		// and a producer increments waitingProducers before it reads head again
+		if (waitingProducers.get() > 0)
+			signal(notFull);
+		return e;
+	}
+
+	@Override
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		E e = poll();
+		if (e != null)
+			return e;
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		waitingConsumers.incrementAndGet();
+		try {
+			while ((e = poll()) == null) {
+				if (nanos <= 0)
+					return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return e;
+		} finally {
+			waitingConsumers.decrementAndGet();
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public E peek() {
+		return buffer.get((int) head & mask);
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		if (c == this)
+			throw new IllegalArgumentException();
+		int count = 0;
+		E e;
+		while (count < maxElements && (e = poll()) != null) {
+			c.add(e);
+			count++;
+		}
+		return count;
+	}
+
+	@Override
+	public void clear() {
+		while (poll() != null)
+			;
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return capacity - size();
+	}
+
+	@Override
+	public int size() {
+		long size = tail.get() - head;
+		if (size < 0)
+			return 0;
+		return (int) Math.min(size, capacity);
+	}
+
+	/**
+	 * A weakly consistent snapshot, used by camel for browsing the endpoint.
+	 */
+	@Override
+	public Iterator<E> iterator() {
+		List<E> list = new ArrayList<E>();
+		long t = tail.get();
+		for (long i = head; i < t; i++) {
+			E e = buffer.get((int) i & mask);
+			if (e != null)
+				list.add(e);
+		}
+		return list.iterator();
+	}
+
+	@Override
+	public int getCapacity() {
+		return capacity;
+	}
+
+	@Override
+	public int getSize() {
+		return size();
+	}
+
+	@Override
+	public String getPolicy() {
+		return policy.toString();
+	}
+
+	@Override
+	public long getPublished() {
+		return published.sum();
+	}
+
+	@Override
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	@Override
+	public long getRejected() {
+		return rejected.get();
+	}
+
+}
@@ -0,0 +1,152 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Config keys and message headers that belong to this server rather than the shared signalk-core model.
+ * <p>
+ * All keys are optional, the getters fall back to the given default when the key is absent from signalk.cfg.
+ * 
+ * @author robert
+ *
+ */
+public class ServerConstants {
+
+	private static Logger logger = LogManager.getLogger(ServerConstants.class);
+
+	//input transport
+	public static final String INPUT_TRANSPORT = "config.server.input.transport";
+	public static final String INPUT_TRANSPORT_ACTIVEMQ = "activemq";
+	public static final String INPUT_TRANSPORT_RING = "ring";
+	public static final String INPUT_RING_SIZE = "config.server.input.ring.size";
+	public static final String INPUT_RING_POLICY = "config.server.input.ring.policy";
+	public static final String INPUT_RING_BLOCK_TIMEOUT = "config.server.input.ring.blockTimeout";
+	//model commit batching
+	public static final String INPUT_BATCH_SIZE = "config.server.input.batch.size";
+	public static final String INPUT_BATCH_TIME = "config.server.input.batch.time";
+	//parallel decoding
+	public static final String INPUT_WORKERS = "config.server.input.workers";
+	//delta and full import
+	public static final String INPUT_IMPORT = "config.server.input.import";
+	public static final String INPUT_IMPORT_TREE = "tree";
+	public static final String INPUT_IMPORT_STREAM = "stream";
+	//duplicate suppression and rate limits at ingest
+	public static final String INPUT_DEDUP_ENABLE = "config.server.input.dedup.enable";
+	public static final String INPUT_DEDUP_WINDOW = "config.server.input.dedup.window";
+	public static final String INPUT_RATE_SENTENCES = "config.server.input.rate.sentences";
+	public static final String INPUT_RATE_PATHS = "config.server.input.rate.paths";
+	//source priority per path
+	public static final String INPUT_PRIORITY_PATHS = "config.server.input.priority.paths";
+	public static final String INPUT_PRIORITY_TIMEOUT = "config.server.input.priority.timeout";
+	//ais decode stage
+	public static final String AIS_WORKERS = "config.server.ais.workers";
+	public static final String AIS_QUEUE_SIZE = "config.server.ais.queueSize";
+	public static final String AIS_FRAGMENT_TIMEOUT = "config.server.ais.fragmentTimeout";
+	public static final String AIS_STATIC_INTERVAL = "config.server.ais.staticInterval";
+	public static final String AIS_POSITION_INTERVAL = "config.server.ais.positionInterval";
+	//ais target expiry, ms since last seen
+	public static final String AIS_EXPIRY_CLASS_A = "config.server.ais.expiry.classA";
+	public static final String AIS_EXPIRY_CLASS_B = "config.server.ais.expiry.classB";
+	public static final String AIS_EXPIRY_ATON = "config.server.ais.expiry.aton";
+	public static final String AIS_EXPIRY_SAR = "config.server.ais.expiry.sar";
+	//periodic subscription exports
+	public static final String SUBSCRIPTION_TICK = "config.server.subscription.tick";
+	public static final String SUBSCRIPTION_THREADS = "config.server.subscription.threads";
+	//fixed subscriptions send only changes after the first tree, and the whole tree every refresh ticks, 0 for never
+	public static final String SUBSCRIPTION_CHANGES_ONLY = "config.server.subscription.changesOnly";
+	public static final String SUBSCRIPTION_REFRESH = "config.server.subscription.refresh";
+	//ideal and instant subscription sends
+	public static final String DELIVERY_THREADS = "config.server.delivery.threads";
+	//encoded outputs shared between sessions, estimated bytes and ms to keep each
+	public static final String OUTPUT_CACHE_BYTES = "config.server.output.cache.bytes";
+	public static final String OUTPUT_CACHE_EXPIRY = "config.server.output.cache.expiry";
+	//per session outbound queue bounds, and the threads that drain them
+	public static final String OUTBOUND_QUEUE_MESSAGES = "config.server.outbound.queue.messages";
+	public static final String OUTBOUND_QUEUE_BYTES = "config.server.outbound.queue.bytes";
+	public static final String OUTBOUND_THREADS = "config.server.outbound.threads";
+	//model size limits, 0 for none
+	public static final String MODEL_LIMIT_BYTES = "config.server.model.limit.bytes";
+	public static final String MODEL_LIMIT_VESSELS = "config.server.model.limit.vessels";
+	public static final String MODEL_LIMIT_RESOURCE_KEYS = "config.server.model.limit.resourceKeys";
+	//nmea socket framing
+	public static final String NMEA_FRAMER = "config.server.server.nmea.framer";
+	public static final String NMEA_REQUIRE_CHECKSUM = "config.server.server.nmea.requireChecksum";
+	public static final String NMEA_IGNORE = "config.server.server.nmea.ignore";
+
+	//optional subscribe field, full refresh every n periods
+	public static final String SUBSCRIBE_REFRESH = "refresh";
+
+	//headers
+	public static final String INPUT_SHARD = "SK_INPUT_SHARD";
+	public static final String MSG_CLASS = "SK_MSG_CLASS";
+
+	/**
+	 * Returns the config value as a String, or the default if its missing
+	 */
+	public static String getConfigString(String key, String defaultValue) {
+		String val = null;
+		try {
+			val = Util.getConfigProperty(key);
+		} catch (Exception e) {
+			logger.debug("No config for " + key + ", using " + defaultValue);
+		}
+		if (StringUtils.isBlank(val) || "null".equals(val))
+			return defaultValue;
+		return val.trim();
+	}
+
+	/**
+	 * Returns the config value as an int, or the default if its missing or not a number.
+	 * Numbers in the config are usually stored as doubles (eg 8000.0) so we parse as double.
+	 */
+	public static int getConfigInt(String key, int defaultValue) {
+		return (int) getConfigLong(key, defaultValue);
+	}
+
+	public static long getConfigLong(String key, long defaultValue) {
+		String val = getConfigString(key, null);
+		if (val == null)
+			return defaultValue;
+		try {
+			return Double.valueOf(val).longValue();
+		} catch (NumberFormatException e) {
+			logger.warn("Config " + key + " is not a number:" + val + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	public static boolean getConfigBoolean(String key, boolean defaultValue) {
+		String val = getConfigString(key, null);
+		if (val == null)
+			return defaultValue;
+		return Boolean.valueOf(val);
+	}
+
+}
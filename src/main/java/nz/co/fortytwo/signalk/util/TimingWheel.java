@@ -0,0 +1,215 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * A hierarchical timing wheel of keys that expire at a deadline, eg vessel contexts that have stopped reporting.
+ * <p>
+ * Time moves in ticks of tick ms. There are four levels of 64 slots, a key is kept in the lowest level that can hold its deadline,
+ * in the slot for that deadline. {@link #touch(Object, long)} moves a key to its new slot by unlinking it from the old one, so it costs
+ * the same however many keys there are. {@link #advance(long, Collection)} only visits the slots for the ticks that have passed,
+ * moving keys down a level when their slot comes round, and returns the keys in the current slot as expired.
+ * <p>
+ * Deadlines further ahead than 64^4 ticks are held at the top level until they come nearer. Not thread safe, callers must synchronize.
+ * 
+ * @author robert
+ *
+ */
+public class TimingWheel<K> {
+
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+	private static final long SPAN = 1L << (BITS * LEVELS);
+
+	private final long tick;
+	// level > slot > list head, the head is a sentinel
+	private final Entry<K>[][] wheels;
+	private final HashMap<K, Entry<K>> entries = new HashMap<>();
+	// the last tick processed
+	private long current;
+
+	private static class Entry<K> {
+		final K key;
+		long deadline;
+		Entry<K> prev;
+		Entry<K> next;
+
+		Entry(K key) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * @param tick - ms per tick, deadlines are rounded up to a whole tick
+	 * @param now - the time to start from, ms
+	 */
+	@SuppressWarnings("unchecked")
+	public TimingWheel(long tick, long now) {
+		this.tick = Math.max(1, tick);
+		this.current = now / this.tick;
+		wheels = new Entry[LEVELS][SLOTS];
+		for (int level = 0; level < LEVELS; level++) {
+			for (int slot = 0; slot < SLOTS; slot++) {
+				Entry<K> head = new Entry<K>(null);
+				head.prev = head;
+				head.next = head;
+				wheels[level][slot] = head;
+			}
+		}
+	}
+
+	/**
+	 * Sets the deadline of the key, adding it if it is new
+	 * 
+	 * @param key
+	 * @param deadline - ms
+	 */
+	public void touch(K key, long deadline) {
+		Entry<K> entry = entries.get(key);
+		if (entry == null) {
+			entry = new Entry<K>(key);
+			entries.put(key, entry);
+		} else {
+			unlink(entry);
+		}
+		entry.deadline = (deadline + tick - 1) / tick;
+		place(entry, current + 1);
+	}
+
+	/**
+	 * Removes the key
+	 * 
+	 * @param key
+	 * @return true if it was in the wheel
+	 */
+	public boolean remove(K key) {
+		Entry<K> entry = entries.remove(key);
+		if (entry == null)
+			return false;
+		unlink(entry);
+		return true;
+	}
+
+	public boolean contains(K key) {
+		return entries.containsKey(key);
+	}
+
+	/**
+	 * The deadline of the key in ms, rounded up to a tick, or -1 if it is not in the wheel
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public long getDeadline(K key) {
+		Entry<K> entry = entries.get(key);
+		return entry == null ? -1 : entry.deadline * tick;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Moves the wheel on to now, removing the keys whose deadline has passed
+	 * 
+	 * @param now - ms
+	 * @param expired - the expired keys are added to this
+	 * @return the number expired
+	 */
+	public int advance(long now, Collection<K> expired) {
+		long target = now / tick;
+		int count = 0;
+		while (current < target) {
+			current++;
+			if ((current & MASK) == 0) {
+				// bring the next block of each level down
+				for (int level = 1; level < LEVELS; level++) {
+					int slot = (int) ((current >>> (BITS * level)) & MASK);
+					cascade(wheels[level][slot]);
+					if (slot != 0)
+						break;
+				}
+			}
+			Entry<K> head = wheels[0][(int) (current & MASK)];
+			Entry<K> entry = head.next;
+			while (entry != head) {
+				Entry<K> next = entry.next;
+				unlink(entry);
+				if (entry.deadline <= current) {
+					entries.remove(entry.key);
+					expired.add(entry.key);
+					count++;
+				} else {
+					place(entry, current + 1);
+				}
+				entry = next;
+			}
+		}
+		return count;
+	}
+
+	private void cascade(Entry<K> head) {
+		Entry<K> entry = head.next;
+		while (entry != head) {
+			Entry<K> next = entry.next;
+			unlink(entry);
+			// the slot for this tick is drained after the cascade
+			place(entry, current);
+			entry = next;
+		}
+	}
+
+	private void place(Entry<K> entry, long earliest) {
+		// already due, take it in the earliest slot still to be drained
+		long deadline = Math.max(entry.deadline, earliest);
+		long delta = Math.min(deadline - current, SPAN - 1);
+		if (delta == SPAN - 1)
+			deadline = current + delta;
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+			level++;
+		}
+		Entry<K> head = wheels[level][(int) ((deadline >>> (BITS * level)) & MASK)];
+		entry.prev = head.prev;
+		entry.next = head;
+		head.prev.next = entry;
+		head.prev = entry;
+	}
+
+	private void unlink(Entry<K> entry) {
+		if (entry.prev == null)
+			return;
+		entry.prev.next = entry.next;
+		entry.next.prev = entry.prev;
+		entry.prev = null;
+		entry.next = null;
+	}
+}
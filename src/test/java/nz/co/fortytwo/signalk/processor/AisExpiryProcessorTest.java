@@ -0,0 +1,121 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.eventbus.Subscribe;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.processor.AisExpiryProcessor.TargetClass;
+import nz.co.fortytwo.signalk.util.Util;
+
+public class AisExpiryProcessorTest {
+
+	private static final long MIN = 60 * 1000;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		Util.getConfig();
+		Util.setSelf("motu");
+		SignalKModelFactory.getMotuTestInstance();
+	}
+
+	public static class Listener {
+		final List<ChangeSet> changes = new ArrayList<>();
+
+		@Subscribe
+		public void recordChanges(ChangeSet changeSet) {
+			changes.add(changeSet);
+		}
+	}
+
+	private SignalKModel target(String ctx, String aisClass) {
+		SignalKModel node = SignalKModelFactory.getCleanInstance();
+		node.getFullData().put(ctx + ".navigation.position.latitude", -41.0);
+		node.getFullData().put(ctx + ".navigation.position.longitude", 173.0);
+		if (aisClass != null)
+			node.getFullData().put(ctx + "." + AisExpiryProcessor.AIS_CLASS, aisClass);
+		return node;
+	}
+
+	@Test
+	public void shouldExpireByClass() {
+		SignalKModel model = SignalKModelFactory.getInstance();
+		ModelBatcher batcher = new ModelBatcher(model, 1, 100);
+		AisExpiryProcessor processor = new AisExpiryProcessor();
+		long start = System.currentTimeMillis();
+		batcher.add(target("vessels.366951720", null));
+		batcher.add(target("vessels.366951721", "B"));
+		batcher.add(target("vessels.992351000", null));
+		batcher.add(target("vessels.111232500", null));
+
+		assertEquals(TargetClass.A, processor.classify("vessels.366951720"));
+		assertEquals(TargetClass.B, processor.classify("vessels.366951721"));
+		assertEquals(TargetClass.ATON, processor.classify("vessels.992351000"));
+		assertEquals(TargetClass.SAR, processor.classify("vessels.111232500"));
+		assertTrue(processor.getDeadline("vessels.366951720") >= start + 30 * MIN);
+		assertTrue(processor.getDeadline("vessels.992351000") >= start + 60 * MIN);
+		// self is never expired
+		assertEquals(-1, processor.getDeadline("vessels.motu"));
+
+		Listener listener = new Listener();
+		ChangeSets.forModel(model).register(listener);
+		// the SAR aircraft has gone, with all its keys in one change set
+		assertEquals(0, processor.expire(start + 9 * MIN));
+		assertEquals(2, processor.expire(start + 11 * MIN));
+		assertEquals(1, listener.changes.size());
+		assertEquals(2, listener.changes.get(0).size());
+		assertNull(model.get("vessels.111232500.navigation.position.latitude"));
+		assertNotNull(model.get("vessels.366951720.navigation.position.latitude"));
+		// the removal does not start tracking it again
+		assertEquals(-1, processor.getDeadline("vessels.111232500"));
+
+		listener.changes.clear();
+		// other tests may have left vessels in the model
+		assertTrue(processor.expire(start + 32 * MIN) >= 5);
+		assertEquals(1, listener.changes.size());
+		assertTrue(listener.changes.get(0).getPaths().contains("vessels.366951721." + AisExpiryProcessor.AIS_CLASS));
+		assertNull(model.get("vessels.366951720.navigation.position.latitude"));
+		assertNull(model.get("vessels.366951721.navigation.position.latitude"));
+		assertNotNull(model.get("vessels.992351000.navigation.position.latitude"));
+
+		assertTrue(processor.expire(start + 62 * MIN) >= 2);
+		assertNull(model.get("vessels.992351000.navigation.position.latitude"));
+		ChangeSets.forModel(model).unregister(listener);
+		batcher.stop();
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class AisStageTest {
+
+	private static final String POS = "!AIVDM,1,1,,B,15MwkRUOidG?GElEa<iQk1JV06Jd,0*6D";
+	private static final String STATIC1 = "!AIVDM,2,1,6,A,55MlVUP00001L@7CWCLE<<50D00000000000000t10?5240Ht7P00000,0*56";
+	private static final String STATIC2 = "!AIVDM,2,2,6,A,000000000000000,2*22";
+
+	@Test
+	public void shouldReadPayloadBits() {
+		String payload = AisStage.payload(POS);
+		assertEquals("15MwkRUOidG?GElEa<iQk1JV06Jd", payload);
+		assertEquals(1, AisStage.bits(payload, 0, 6));
+		assertEquals(366998410, AisStage.bits(payload, 8, 30));
+	}
+
+	@Test
+	public void shouldReassemble() {
+		AisStage stage = new AisStage(5000, 0, 0);
+		assertEquals(1, stage.add("bus1", POS, 0).size());
+		assertNull(stage.add("bus1", STATIC1, 0));
+		// same sequence on another bus is a different message
+		assertNull(stage.add("bus2", STATIC1, 0));
+		assertEquals(2, stage.getPending());
+		List<String> msg = stage.add("bus1", STATIC2, 10);
+		assertNotNull(msg);
+		assertEquals(STATIC1, msg.get(0));
+		assertEquals(STATIC2, msg.get(1));
+		assertEquals(1, stage.getPending());
+		assertEquals(2, stage.getMessages());
+	}
+
+	@Test
+	public void shouldExpireFragments() {
+		AisStage stage = new AisStage(1000, 0, 0);
+		assertNull(stage.add("bus1", STATIC1, 0));
+		// a new first part replaces the old group
+		assertNull(stage.add("bus1", STATIC1, 10));
+		assertEquals(1, stage.getExpired());
+		// swept when the next fragment arrives
+		assertNull(stage.add("bus2", STATIC1, 2000));
+		assertEquals(1, stage.getPending());
+		assertEquals(2, stage.getExpired());
+		// part 2 on its own goes nowhere
+		assertNull(stage.add("bus1", STATIC2, 2010));
+	}
+
+	@Test
+	public void shouldThrottlePerMmsi() {
+		AisStage stage = new AisStage(5000, 60000, 1000);
+		List<String> pos = stage.add("bus1", POS, 0);
+		assertTrue(stage.accept(pos, 0));
+		assertFalse(stage.accept(pos, 500));
+		assertTrue(stage.accept(pos, 1000));
+
+		stage.add("bus1", STATIC1, 0);
+		List<String> stat = stage.add("bus1", STATIC2, 0);
+		assertTrue(stage.accept(stat, 0));
+		assertFalse(stage.accept(stat, 30000));
+		assertTrue(stage.accept(stat, 60000));
+		assertEquals(2, stage.getThrottled());
+		assertEquals(2, stage.getThrottleEntries());
+	}
+
+	@Test
+	public void shouldForgetTargetsNotHeard() {
+		AisStage stage = new AisStage(5000, 60000, 1000);
+		List<String> pos = stage.add("bus1", POS, 0);
+		assertTrue(stage.accept(pos, 0));
+		stage.add("bus1", STATIC1, 0);
+		assertTrue(stage.accept(stage.add("bus1", STATIC2, 0), 0));
+		assertEquals(2, stage.getThrottleEntries());
+		// both are older than the longest interval, only the new position is kept
+		assertTrue(stage.accept(pos, 120000));
+		assertEquals(1, stage.getThrottleEntries());
+	}
+}
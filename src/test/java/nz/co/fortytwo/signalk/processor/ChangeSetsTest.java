@@ -0,0 +1,176 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.Subscribe;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.event.PathEvent;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.PathRegistry;
+import nz.co.fortytwo.signalk.util.Util;
+
+public class ChangeSetsTest {
+
+	@BeforeClass
+	public static void setClass() throws Exception {
+		Util.getConfig();
+		Util.setSelf("motu");
+	}
+
+	public static class Listener {
+		final List<ChangeSet> changes = new ArrayList<>();
+		int events = 0;
+
+		@Subscribe
+		public void recordChanges(ChangeSet changeSet) {
+			changes.add(changeSet);
+		}
+
+		@Subscribe
+		public void recordEvent(PathEvent pathEvent) {
+			events++;
+		}
+	}
+
+	private NavigableMap<String, Object> getData(double lat) {
+		NavigableMap<String, Object> data = new TreeMap<>();
+		data.put("vessels.motu.navigation.position.latitude", lat);
+		data.put("vessels.motu.navigation.position.longitude", 173.0);
+		data.put("vessels.motu.navigation.courseOverGroundTrue.value", 1.2);
+		data.put("vessels.motu.navigation.speedOverGround.value", 3.4);
+		data.put("vessels.motu.environment.wind.angleApparent.value", 0.5);
+		return data;
+	}
+
+	@Test
+	public void shouldPostOneChangeSetPerCommit() {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		ChangeSets changeSets = ChangeSets.forModel(model);
+		Listener listener = new Listener();
+		changeSets.register(listener);
+
+		changeSets.begin();
+		model.putAll(getData(-41.0));
+		ChangeSet set = changeSets.commit(7);
+
+		assertEquals(1, listener.changes.size());
+		assertEquals(set, listener.changes.get(0));
+		assertEquals(7, set.getVersion());
+		assertTrue(set.getPaths().contains("vessels.motu.navigation.position.latitude"));
+		assertTrue(set.getPaths().contains("vessels.motu.environment.wind.angleApparent.value"));
+		// the model still fires one event per key
+		assertEquals(listener.events, set.size());
+		for (int x = 0; x < set.size(); x++) {
+			assertEquals(set.getPaths().get(x), PathRegistry.getInstance().path(set.getIds()[x]));
+		}
+		// nothing more to post
+		assertNull(changeSets.commit(8));
+		assertEquals(1, listener.changes.size());
+	}
+
+	@Test
+	public void shouldAdaptUnbatchedEvents() {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		ChangeSets changeSets = ChangeSets.forModel(model);
+		Listener listener = new Listener();
+		changeSets.register(listener);
+
+		NavigableMap<String, Object> data = new TreeMap<>();
+		data.put("vessels.motu.navigation.position.latitude", -42.0);
+		model.putAll(data);
+		// outside a commit each event is posted alone
+		assertEquals(listener.events, listener.changes.size());
+		assertEquals(1, listener.changes.get(0).size());
+		assertEquals(listener.events, changeSets.getUnbatched());
+		boolean found = false;
+		for (ChangeSet set : listener.changes) {
+			found = found || set.getPaths().contains("vessels.motu.navigation.position.latitude");
+		}
+		assertTrue(found);
+	}
+
+	@Test
+	public void shouldPostFromBatcher() {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		Listener listener = new Listener();
+		ChangeSets.forModel(model).register(listener);
+		ModelBatcher batcher = new ModelBatcher(model, 1, 100);
+		for (int x = 0; x < 10; x++) {
+			SignalKModel node = SignalKModelFactory.getCleanInstance();
+			node.putAll(getData(-41.0 - x));
+			batcher.add(node);
+		}
+		assertEquals(10, batcher.getCommits());
+		// one call per commit, not per key
+		assertEquals(10, listener.changes.size());
+		assertTrue(listener.events >= 50);
+		ChangeSet last = listener.changes.get(9);
+		assertEquals(ModelSnapshots.forModel(model).current().getVersion(), last.getVersion());
+		assertEquals(-50.0, ModelSnapshots.forModel(model).current().get("vessels.motu.navigation.position.latitude"));
+	}
+
+	@Test
+	public void shouldReleaseRemovedPaths() {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		final PathRegistry registry = PathRegistry.getInstance();
+		final List<String> seen = new ArrayList<>();
+		ChangeSets.forModel(model).register(new Object() {
+			@Subscribe
+			public void recordChanges(ChangeSet changes) {
+				// still registered while the listeners run
+				for (int x = 0; x < changes.size(); x++) {
+					if (changes.getIds()[x] >= 0)
+						seen.add(registry.path(changes.getIds()[x]));
+				}
+			}
+		});
+		ModelBatcher batcher = new ModelBatcher(model, 1, 100);
+		SignalKModel node = SignalKModelFactory.getCleanInstance();
+		node.getFullData().put("vessels.release.navigation.speedOverGround.value", 3.4);
+		batcher.add(node);
+		assertTrue(registry.find("vessels.release.navigation.speedOverGround.value") >= 0);
+
+		seen.clear();
+		assertEquals(1, batcher.removeAll(ImmutableList.of("vessels.release")));
+		assertEquals(ImmutableList.of("vessels.release.navigation.speedOverGround.value"), seen);
+		assertEquals(-1, registry.find("vessels.release.navigation.speedOverGround.value"));
+		assertEquals(-1, registry.find("vessels.release"));
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import mjson.Json;
+import nz.co.fortytwo.signalk.handler.FullToDeltaConverter;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.JsonSerializer;
+import nz.co.fortytwo.signalk.util.Util;
+
+/**
+ * Rough comparison of the time per message against the SourceRefToSource, FullToDelta and OutputFilter chain.
+ * Not part of the test suite, run it from the ide or with exec:java.
+ */
+public class DeltaWireEncoderBenchmark {
+
+	private static final String CTX = "vessels.motu";
+	private static final String TS = "2016-04-12T17:25:52.000Z";
+
+	public static void main(String[] args) throws Exception {
+		Util.getConfig();
+		Util.setSelf("motu");
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		for (String path : new String[] { "navigation.courseOverGroundTrue", "navigation.speedOverGround", "environment.depth.belowKeel" }) {
+			model.getFullData().put(CTX + "." + path + ".value", 1.0);
+			model.getFullData().put(CTX + "." + path + ".timestamp", TS);
+			model.getFullData().put(CTX + "." + path + ".source.label", "N2000-01");
+			model.getFullData().put(CTX + "." + path + ".source.type", "NMEA2000");
+		}
+		model.getFullData().put(CTX + ".navigation.position.latitude", 48.5196);
+		model.getFullData().put(CTX + ".navigation.position.longitude", -122.959557);
+		model.getFullData().put(CTX + ".navigation.position.timestamp", TS);
+		DeltaWireEncoder encoder = new DeltaWireEncoder(model);
+		JsonSerializer ser = new JsonSerializer();
+		FullToDeltaConverter fullToDelta = new FullToDeltaConverter();
+		int count = 20000;
+		List<String> out = new ArrayList<>();
+		long chain = 0;
+		long wire = 0;
+		// the first runs warm up
+		for (int run = 0; run < 3; run++) {
+			long start = System.nanoTime();
+			for (int x = 0; x < count; x++) {
+				SignalKModel temp = SignalKModelFactory.getCleanInstance();
+				temp.putAll(model.getSubMap(CTX));
+				SourceRefToSourceProcessor.resolveSources(model, temp);
+				for (Json delta : fullToDelta.handle(ser.writeJson(temp))) {
+					OutputFilterProcessor.filter(delta);
+				}
+			}
+			chain = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int x = 0; x < count; x++) {
+				SignalKModel temp = SignalKModelFactory.getCleanInstance();
+				temp.putAll(model.getSubMap(CTX));
+				out.clear();
+				encoder.encode(temp, out);
+			}
+			wire = System.nanoTime() - start;
+		}
+		System.out.println(count + " deltas, json chain " + chain / count + "ns/msg, wire encoder " + wire / count + "ns/msg");
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import mjson.Json;
+import nz.co.fortytwo.signalk.handler.FullToDeltaConverter;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.JsonSerializer;
+import nz.co.fortytwo.signalk.util.JsonStreamConverter;
+import nz.co.fortytwo.signalk.util.SignalKConstants;
+import nz.co.fortytwo.signalk.util.Util;
+
+public class DeltaWireEncoderTest {
+
+	private static Logger logger = LogManager.getLogger(DeltaWireEncoderTest.class);
+
+	private static final String CTX = "vessels.motu";
+	private static final String TS = "2016-04-12T17:25:52.000Z";
+
+	@BeforeClass
+	public static void setClass() throws Exception {
+		Util.getConfig();
+		Util.setSelf("motu");
+	}
+
+	private NavigableMap<String, Object> getData(double speed) {
+		NavigableMap<String, Object> data = new TreeMap<>();
+		data.put(CTX + ".name", "Motu");
+		for (String path : new String[] { "navigation.courseOverGroundTrue", "navigation.speedOverGround", "environment.depth.belowKeel" }) {
+			data.put(CTX + "." + path + ".value", speed++);
+			data.put(CTX + "." + path + ".timestamp", TS);
+			data.put(CTX + "." + path + ".source.label", "N2000-01");
+			data.put(CTX + "." + path + ".source.type", "NMEA2000");
+			data.put(CTX + "." + path + ".source.pgn", 129025.0);
+		}
+		data.put(CTX + ".navigation.position.latitude", 48.5196);
+		data.put(CTX + ".navigation.position.longitude", -122.959557);
+		data.put(CTX + ".navigation.position.timestamp", "2016-04-12T17:25:53.000Z");
+		data.put(CTX + ".navigation.position.source.label", "N2000-01");
+		data.put(CTX + ".navigation.position.source.type", "NMEA2000");
+		data.put(CTX + ".navigation.position.source.pgn", 129025.0);
+		data.put(CTX + ".navigation.position.meta.units", "deg");
+		return data;
+	}
+
+	private SignalKModel getModel(NavigableMap<String, Object> data) {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		model.putAll(data);
+		return model;
+	}
+
+	@Test
+	public void shouldRoundTripThroughStreamConverter() throws Exception {
+		NavigableMap<String, Object> data = getData(1.0);
+		SignalKModel model = getModel(data);
+		List<String> out = new ArrayList<>();
+		assertEquals(1, new DeltaWireEncoder(model).encode(model, out));
+		logger.debug(out.get(0));
+		assertTrue(out.get(0).startsWith("{\"context\":\"" + CTX + "\",\"updates\":[{"));
+
+		SignalKModel decoded = new JsonStreamConverter().handleDelta(out.get(0), CTX);
+		assertNotNull(decoded);
+		for (Map.Entry<String, Object> entry : data.entrySet()) {
+			if (entry.getKey().contains(".meta.") || entry.getKey().equals(CTX + ".name"))
+				continue;
+			assertEquals(entry.getKey(), entry.getValue(), decoded.getFullData().get(entry.getKey()));
+		}
+		assertFalse(out.get(0).contains("meta"));
+	}
+
+	@Test
+	public void shouldGroupUpdatesBySourceAndTimestamp() throws Exception {
+		SignalKModel model = getModel(getData(1.0));
+		List<String> out = new ArrayList<>();
+		new DeltaWireEncoder(model).encode(model, out);
+		Json delta = Json.read(out.get(0));
+		Json updates = delta.at(SignalKConstants.UPDATES);
+		// only consecutive nodes share an update, name has no source and position has its own timestamp
+		assertEquals(5, updates.asJsonList().size());
+		int values = 0;
+		for (Json update : updates.asJsonList()) {
+			values += update.at(SignalKConstants.values).asJsonList().size();
+		}
+		assertEquals(5, values);
+		assertEquals("Motu", updates.at(1).at(SignalKConstants.values).at(0).at(SignalKConstants.value).asString());
+		Json position = updates.at(3).at(SignalKConstants.values).at(0);
+		assertEquals("navigation.position", position.at(SignalKConstants.PATH).asString());
+		assertEquals(48.5196, position.at(SignalKConstants.value).at("latitude").asDouble(), 0.00001);
+	}
+
+	@Test
+	public void shouldResolveSourceRefsFromCache() throws Exception {
+		NavigableMap<String, Object> data = new TreeMap<>();
+		data.put(CTX + ".navigation.speedOverGround.value", 3.2);
+		data.put(CTX + ".navigation.speedOverGround.timestamp", TS);
+		data.put(CTX + ".navigation.speedOverGround.$source", "NMEA0183.ttyUSB0.II");
+		data.put(CTX + ".navigation.courseOverGroundTrue.value", 1.2);
+		data.put(CTX + ".navigation.courseOverGroundTrue.timestamp", TS);
+		data.put(CTX + ".navigation.courseOverGroundTrue.$source", "NMEA0183.ttyUSB0.GP");
+		SignalKModel model = getModel(data);
+		model.putAll(source("NMEA0183.ttyUSB0.II", "II"));
+
+		DeltaWireEncoder encoder = new DeltaWireEncoder(model);
+		List<String> out = new ArrayList<>();
+		encoder.encode(model, out);
+		Json updates = Json.read(out.get(0)).at(SignalKConstants.UPDATES);
+		assertEquals(2, updates.asJsonList().size());
+		// no source object for GP, the ref is passed on
+		assertEquals("NMEA0183.ttyUSB0.GP", updates.at(0).at(SignalKConstants.sourceRef).asString());
+		assertEquals("II", updates.at(1).at(SignalKConstants.source).at("talker").asString());
+		assertEquals(1, DeltaWireEncoder.sourcesFor(model).size());
+
+		// a change under sources drops the cached fragments
+		model.putAll(source("NMEA0183.ttyUSB0.II", "XX"));
+		for (int x = 0; x < 50 && DeltaWireEncoder.sourcesFor(model).size() > 0; x++) {
+			Thread.sleep(10);
+		}
+		out.clear();
+		encoder.encode(model, out);
+		assertEquals("XX", Json.read(out.get(0)).at(SignalKConstants.UPDATES).at(1).at(SignalKConstants.source).at("talker").asString());
+	}
+
+	private NavigableMap<String, Object> source(String ref, String talker) {
+		NavigableMap<String, Object> data = new TreeMap<>();
+		data.put(SignalKConstants.sources + "." + ref + ".label", "ttyUSB0");
+		data.put(SignalKConstants.sources + "." + ref + ".type", "NMEA0183");
+		data.put(SignalKConstants.sources + "." + ref + ".talker", talker);
+		return data;
+	}
+
+	@Test
+	public void shouldMatchJsonChain() throws Exception {
+		NavigableMap<String, Object> data = getData(1.0);
+		data.put(CTX + ".navigation.headingMagnetic.value", 2.1);
+		data.put(CTX + ".navigation.headingMagnetic.timestamp", TS);
+		data.put(CTX + ".navigation.headingMagnetic.$source", "NMEA0183.ttyUSB0.II");
+		data.put(CTX + ".navigation.rateOfTurn.value", 0.1);
+		data.put(CTX + ".navigation.rateOfTurn.timestamp", TS);
+		data.put(CTX + ".navigation.rateOfTurn.$source", "NMEA0183.ttyUSB0.GP");
+		SignalKModel model = getModel(data);
+		model.putAll(source("NMEA0183.ttyUSB0.II", "II"));
+
+		SignalKModel temp = SignalKModelFactory.getCleanInstance();
+		temp.putAll(model.getSubMap(CTX));
+		SourceRefToSourceProcessor.resolveSources(model, temp);
+		List<String> chain = new ArrayList<>();
+		for (Json delta : new FullToDeltaConverter().handle(new JsonSerializer().writeJson(temp))) {
+			chain.add(OutputFilterProcessor.filter(delta));
+		}
+		temp = SignalKModelFactory.getCleanInstance();
+		temp.putAll(model.getSubMap(CTX));
+		List<String> wire = new ArrayList<>();
+		new DeltaWireEncoder(model).encode(temp, wire);
+
+		NavigableMap<String, Object> expected = decode(chain);
+		NavigableMap<String, Object> actual = decode(wire);
+		assertEquals("II", actual.get(CTX + ".navigation.headingMagnetic.source.talker"));
+		// the chain drops a $source with no source object, the encoder passes the ref on
+		String unresolved = CTX + ".navigation.rateOfTurn.$source";
+		assertFalse(expected.containsKey(unresolved));
+		assertEquals("NMEA0183.ttyUSB0.GP", actual.remove(unresolved));
+		assertEquals(expected, actual);
+	}
+
+	// the values, timestamps and sources of the navigation and environment nodes in the deltas
+	private NavigableMap<String, Object> decode(List<String> msgs) throws Exception {
+		NavigableMap<String, Object> data = new TreeMap<>();
+		JsonStreamConverter converter = new JsonStreamConverter();
+		for (String msg : msgs) {
+			for (Map.Entry<String, Object> entry : converter.handleDelta(msg, CTX).getFullData().entrySet()) {
+				if (entry.getKey().startsWith(CTX + ".navigation.") || entry.getKey().startsWith(CTX + ".environment."))
+					data.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return data;
+	}
+
+}
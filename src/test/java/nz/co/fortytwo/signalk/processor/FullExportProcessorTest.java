@@ -22,7 +22,11 @@
  */
 package nz.co.fortytwo.signalk.processor;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.NavigableSet;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentSkipListSet;
 
@@ -31,18 +35,26 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
 import nz.co.fortytwo.signalk.model.SignalKModel;
 import nz.co.fortytwo.signalk.model.event.PathEvent;
 import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
 import nz.co.fortytwo.signalk.server.CamelContextFactory;
 import nz.co.fortytwo.signalk.server.RouteManagerFactory;
 import nz.co.fortytwo.signalk.server.Subscription;
+import nz.co.fortytwo.signalk.server.SubscriptionIndex;
 import nz.co.fortytwo.signalk.server.SubscriptionManager;
 import nz.co.fortytwo.signalk.server.SubscriptionManagerFactory;
 import nz.co.fortytwo.signalk.util.ConfigConstants;
 import nz.co.fortytwo.signalk.util.SignalKConstants;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.FORMAT_DELTA;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.POLICY_FIXED;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.POLICY_IDEAL;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.POLICY_INSTANT;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_angleApparent;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_courseOverGroundTrue;
@@ -135,6 +147,157 @@ public class FullExportProcessorTest {
         testScenario("vessels.*", SignalKConstants.POLICY_IDEAL, 1, multiple_keys);
     }
 
+    @Test
+    public void shouldExportOnlyChangesForFixedPolicy() throws Exception {
+        CamelContext ctx = CamelContextFactory.getInstance();
+        MockEndpoint resultEndpoint = (MockEndpoint) ctx.getEndpoint("mock:resultEnd");
+        Subscription sub = new Subscription(UUID.randomUUID().toString(), "vessels.self.navigation", 1000, 0, FORMAT_DELTA, POLICY_FIXED);
+        FullExportProcessor processor = createExporter(sub);
+        try {
+            //first is the whole tree
+            processor.export();
+            String tree = getBody(resultEndpoint, 1);
+            assertTrue(tree.contains("courseOverGroundTrue"));
+            assertTrue(processor.getSentVersion() >= 0);
+            //nothing changed, nothing sent
+            processor.export();
+            Thread.sleep(200);
+            assertEquals(1, resultEndpoint.getReceivedCounter());
+            //only the changed node
+            processor.recordEvents(new ArrayList<>(self_nav), sub);
+            processor.export();
+            String changes = getBody(resultEndpoint, 2);
+            assertTrue(changes.contains("courseOverGroundTrue"));
+            assertTrue(changes.length() <= tree.length());
+        } finally {
+            removeExporter(sub);
+            resultEndpoint.reset();
+        }
+    }
+
+    @Test
+    public void shouldRefreshFixedPolicy() throws Exception {
+        CamelContext ctx = CamelContextFactory.getInstance();
+        MockEndpoint resultEndpoint = (MockEndpoint) ctx.getEndpoint("mock:resultEnd");
+        Subscription sub = new Subscription(UUID.randomUUID().toString(), "vessels.self.navigation", 1000, 0, FORMAT_DELTA, POLICY_FIXED);
+        sub.setRefresh(2);
+        FullExportProcessor processor = createExporter(sub);
+        try {
+            processor.export();
+            assertTrue(getBody(resultEndpoint, 1).contains("courseOverGroundTrue"));
+            processor.export();
+            Thread.sleep(200);
+            assertEquals(1, resultEndpoint.getReceivedCounter());
+            //second period after the tree, the whole tree again
+            processor.export();
+            assertTrue(getBody(resultEndpoint, 2).contains("courseOverGroundTrue"));
+        } finally {
+            removeExporter(sub);
+            resultEndpoint.reset();
+        }
+    }
+
+    @Test
+    public void shouldSendValueChangedWithItsTimestampAndSource() throws Exception {
+        CamelContext ctx = CamelContextFactory.getInstance();
+        MockEndpoint resultEndpoint = (MockEndpoint) ctx.getEndpoint("mock:resultEnd");
+        Subscription sub = new Subscription(UUID.randomUUID().toString(), "vessels.self.navigation", 10, 0, FORMAT_DELTA, POLICY_INSTANT);
+        createExporter(sub);
+        String value = null;
+        for (String key : self_nav) {
+            if (key.endsWith(dot + SignalKConstants.value))
+                value = key;
+        }
+        String node = value.substring(0, value.length() - SignalKConstants.value.length() - 1);
+        Object timestamp = model.getFullData().get(node + dot + SignalKConstants.timestamp);
+        try {
+            model.getFullData().put(node + dot + SignalKConstants.timestamp, "2016-04-12T17:25:52.000Z");
+            model.getFullData().put(node + dot + SignalKConstants.sourceRef, "test.0183.GP");
+            ModelSnapshots snapshots = ModelSnapshots.forModel(model);
+            snapshots.markDirty(node + dot + SignalKConstants.timestamp);
+            snapshots.markDirty(node + dot + SignalKConstants.sourceRef);
+            snapshots.publish();
+
+            //one commit, in model order the source and timestamp come before the value
+            ImmutableList<String> paths = ImmutableList.of(node + dot + SignalKConstants.sourceRef, node + dot + SignalKConstants.timestamp, value);
+            int[] ids = new int[paths.size()];
+            Arrays.fill(ids, -1);
+            SubscriptionIndex.getInstance().recordChanges(new ChangeSet(1, snapshots.current().getVersion(), System.currentTimeMillis(), paths, ids));
+            String delta = getBody(resultEndpoint, 1);
+            assertTrue(delta.contains("courseOverGroundTrue"));
+            assertTrue(delta.contains("\"value\""));
+            assertTrue(delta.contains("test.0183.GP"));
+        } finally {
+            model.getFullData().remove(node + dot + SignalKConstants.sourceRef);
+            if (timestamp != null)
+                model.getFullData().put(node + dot + SignalKConstants.timestamp, timestamp);
+            else
+                model.getFullData().remove(node + dot + SignalKConstants.timestamp);
+            ModelSnapshots snapshots = ModelSnapshots.forModel(model);
+            snapshots.markDirty(node + dot + SignalKConstants.timestamp);
+            snapshots.markDirty(node + dot + SignalKConstants.sourceRef);
+            snapshots.publish();
+            removeExporter(sub);
+            resultEndpoint.reset();
+        }
+    }
+
+    @Test
+    public void shouldSendNodeWithEveryChangedKey() throws Exception {
+        SignalKModel temp = SignalKModelFactory.getCleanInstance();
+        String pos = "vessels.nodetest.navigation.position";
+        String sog = "vessels.nodetest.navigation.speedOverGround";
+        temp.getFullData().put(pos + ".latitude", -41.5);
+        temp.getFullData().put(pos + ".longitude", 173.2);
+        temp.getFullData().put(pos + ".timestamp", "2016-04-12T17:25:52Z");
+        temp.getFullData().put(pos + ".$source", "nmea.0183.GP");
+        temp.getFullData().put(sog + ".value", 3.4);
+        temp.getFullData().put(sog + ".timestamp", "2016-04-12T17:25:53Z");
+        temp.getFullData().put(sog + ".source.label", "N2000-01");
+        ModelSnapshot snapshot = ModelSnapshots.forModel(temp).publish();
+
+        //a key of an object value, with the time and source of its node
+        Map<String, Object> out = new TreeMap<>();
+        FullExportProcessor.addNode(snapshot, pos + ".latitude", out);
+        assertEquals(ImmutableSet.of(pos + ".latitude", pos + ".timestamp", pos + ".$source"), out.keySet());
+
+        //a value with the rest of its node
+        out.clear();
+        FullExportProcessor.addNode(snapshot, sog + ".value", out);
+        assertEquals(ImmutableSet.of(sog + ".value", sog + ".timestamp", sog + ".source.label"), out.keySet());
+
+        //only the time changed, the index sends the node
+        out.clear();
+        FullExportProcessor.addNode(snapshot, pos, out);
+        assertEquals(4, out.size());
+        assertEquals(-41.5, out.get(pos + ".latitude"));
+    }
+
+    private FullExportProcessor createExporter(Subscription sub) throws Exception {
+        String session = sub.getWsSession();
+        sub.setRouteId("test_" + session);
+        subscriptionManager.add("ses" + session, session, ConfigConstants.OUTPUT_WS, "127.0.0.1", "127.0.0.1");
+        subscriptionManager.addSubscription(sub);
+        FullExportProcessor processor = new FullExportProcessor(session, sub.getRouteId());
+        ProducerTemplate exportProducer = new DefaultProducerTemplate(CamelContextFactory.getInstance());
+        exportProducer.setDefaultEndpointUri("mock:resultEnd");
+        exportProducer.start();
+        processor.outProducer = exportProducer;
+        return processor;
+    }
+
+    private void removeExporter(Subscription sub) throws Exception {
+        subscriptionManager.removeSubscription(sub);
+        subscriptionManager.removeWsSession(sub.getWsSession());
+    }
+
+    private String getBody(MockEndpoint resultEndpoint, int count) throws Exception {
+        resultEndpoint.expectedMinimumMessageCount(count);
+        resultEndpoint.assertIsSatisfied();
+        assertEquals(count, resultEndpoint.getReceivedCounter());
+        return resultEndpoint.getReceivedExchanges().get(count - 1).getIn().getBody().toString();
+    }
+
     private void testScenario(String subKey, String policy, int expectedCount, NavigableSet<String> keys) throws Exception {
 
         CamelContext ctx = CamelContextFactory.getInstance();
@@ -0,0 +1,128 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+
+public class IngestThrottleTest {
+
+	private static final String MWV = "$IIMWV,336,R,13.41,N,A*22";
+	private static final String MWV2 = "$IIMWV,338,R,13.41,N,A*2C";
+	private static final String RMC = "$GPRMC,144629.20,A,5156.91111,N,00434.80385,E,0.295,,011113,,,A*78";
+
+	@BeforeClass
+	public static void init() throws Exception {
+		SignalKModelFactory.getMotuTestInstance();
+	}
+
+	@Test
+	public void shouldDropRepeats() {
+		IngestThrottle throttle = new IngestThrottle(true, 1000, null, null);
+		assertTrue(throttle.isEnabled());
+		assertTrue(throttle.accept("bus1", MWV, 0));
+		assertFalse(throttle.accept("bus1", MWV, 10));
+		// other bus is tracked separately
+		assertTrue(throttle.accept("bus2", MWV, 20));
+		assertTrue(throttle.accept("bus1", MWV2, 30));
+		assertTrue(throttle.accept("bus1", MWV, 40));
+		// a repeat after the window is passed
+		assertTrue(throttle.accept("bus1", MWV, 2000));
+		assertEquals(1, throttle.getDuplicates());
+		assertEquals(5, throttle.getPassed());
+	}
+
+	@Test
+	public void shouldLimitSentenceRate() {
+		IngestThrottle throttle = new IngestThrottle(false, 1000, "RMC:1, MWV:10", null);
+		assertTrue(throttle.accept("bus1", RMC, 0));
+		assertFalse(throttle.accept("bus1", RMC, 100));
+		assertFalse(throttle.accept("bus1", RMC, 999));
+		assertTrue(throttle.accept("bus1", RMC, 1000));
+		assertTrue(throttle.accept("bus1", MWV, 1000));
+		assertTrue(throttle.accept("bus1", MWV2, 1100));
+		// not limited
+		assertTrue(throttle.accept("bus1", "$IIVHW,,T,,M,06.11,N,11.31,K*51", 1100));
+		assertEquals(2, throttle.getRateLimited());
+	}
+
+	@Test
+	public void shouldIgnoreBadRates() {
+		assertEquals(1, IngestThrottle.parseRates("RMC:1,GGA,VTG:0,XDR:x").size());
+		assertEquals(500L, (long) IngestThrottle.parseRates("navigation.position:2").get("navigation.position"));
+		assertFalse(new IngestThrottle(false, 1000, " ", null).isEnabled());
+	}
+
+	private SignalKModel fragment(double lat) {
+		SignalKModel node = SignalKModelFactory.getCleanInstance();
+		node.getFullData().put("vessels.self.navigation.position.latitude", lat);
+		node.getFullData().put("vessels.self.navigation.position.longitude", 1.0);
+		node.getFullData().put("vessels.self.navigation.positionSource.value", "gps");
+		node.getFullData().put("vessels.other.navigation.position.latitude", lat);
+		return node;
+	}
+
+	@Test
+	public void shouldLimitPathRate() {
+		IngestThrottle throttle = new IngestThrottle(false, 1000, null, "navigation.position:1");
+		assertTrue(throttle.hasPathRates());
+		SignalKModel node = fragment(1.0);
+		assertEquals(0, throttle.filter(node, 0));
+		assertEquals(4, node.getFullData().size());
+
+		node = fragment(2.0);
+		assertEquals(3, throttle.filter(node, 500));
+		// prefix must match a whole path element
+		assertNotNull(node.getFullData().get("vessels.self.navigation.positionSource.value"));
+		assertNull(node.getFullData().get("vessels.self.navigation.position.latitude"));
+
+		node = fragment(3.0);
+		assertEquals(0, throttle.filter(node, 1000));
+		assertEquals(3, throttle.getPathKeysLimited());
+	}
+
+	@Test
+	public void shouldDropIdlePathStates() throws Exception {
+		IngestThrottle throttle = new IngestThrottle(false, 1000, null, "navigation.position:20");
+		throttle.filter(fragment(1.0), 0);
+		assertEquals(2, throttle.getPathStates());
+		// forgotten once unused for longer than the 50ms interval
+		Thread.sleep(200);
+		assertEquals(0, throttle.getPathStates());
+		assertEquals(0, throttle.filter(fragment(2.0), 10));
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import nz.co.fortytwo.signalk.handler.NMEAHandler;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.Util;
+
+/**
+ * Replays the PacCup NMEA log as if it came from 8 serial ports, decoding on 1..N workers 
+ * the same way the sharded input route does: one decoder per worker, sources pinned to a worker, shared model commit.
+ */
+public class InputShardScalingTest {
+
+	private static Logger logger = LogManager.getLogger(InputShardScalingTest.class);
+	private static final int SOURCES = 8;
+	private static List<String> lines;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		Util.getConfig();
+		SignalKModelFactory.getMotuTestInstance();
+		lines = FileUtils.readLines(new File("src/test/resources/samples/PacCupStartNMEA.txt"));
+	}
+
+	@Test
+	public void shouldScaleWithWorkers() throws Exception {
+		int cores = Runtime.getRuntime().availableProcessors();
+		//warm up
+		run(1);
+		long base = 0;
+		for (int workers = 1; workers <= Math.min(cores, SOURCES); workers = workers * 2) {
+			long time = run(workers);
+			if (workers == 1)
+				base = time;
+			logger.info(workers + " workers: " + lines.size() + " sentences in " + time + "ms, speedup " + String.format("%.2f", (double) base / Math.max(1, time)));
+		}
+	}
+
+	@Test
+	public void shouldPinSourceToShard() {
+		for (int x = 0; x < 100; x++) {
+			String bus = "/dev/ttyUSB" + x;
+			int shard = InputShardProcessor.getShard(bus, 4);
+			assertEquals(shard, InputShardProcessor.getShard(bus, 4));
+			assertEquals(true, shard >= 0 && shard < 4);
+		}
+		assertEquals(0, InputShardProcessor.getShard(null, 4));
+	}
+
+	private long run(int workers) throws Exception {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		final ModelBatcher batcher = new ModelBatcher(model, 1, 100);
+		final AtomicInteger processed = new AtomicInteger();
+		List<ExecutorService> shards = new ArrayList<ExecutorService>();
+		final List<NMEAHandler> handlers = new ArrayList<NMEAHandler>();
+		for (int x = 0; x < workers; x++) {
+			shards.add(Executors.newSingleThreadExecutor());
+			handlers.add(new NMEAHandler());
+		}
+		long start = System.currentTimeMillis();
+		for (int x = 0; x < lines.size(); x++) {
+			final String line = lines.get(x);
+			final String bus = "/dev/ttyUSB" + (x % SOURCES);
+			final int shard = InputShardProcessor.getShard(bus, workers);
+			shards.get(shard).execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						SignalKModel node = handlers.get(shard).handle(line, bus);
+						if (node != null)
+							batcher.add(node);
+					} catch (Exception e) {
+						logger.debug(e.getMessage());
+					}
+					processed.incrementAndGet();
+				}
+			});
+		}
+		for (ExecutorService e : shards) {
+			e.shutdown();
+			e.awaitTermination(5, TimeUnit.MINUTES);
+		}
+		long time = System.currentTimeMillis() - start;
+		assertEquals(lines.size(), processed.get());
+		return time;
+	}
+}
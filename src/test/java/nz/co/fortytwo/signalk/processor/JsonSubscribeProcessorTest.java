@@ -27,20 +27,26 @@ package nz.co.fortytwo.signalk.processor;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.FORMAT_DELTA;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.POLICY_FIXED;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import mjson.Json;
 import nz.co.fortytwo.signalk.server.RouteManager;
 import nz.co.fortytwo.signalk.server.RouteManagerFactory;
 import nz.co.fortytwo.signalk.server.Subscription;
+import nz.co.fortytwo.signalk.server.SubscriptionIndex;
 import nz.co.fortytwo.signalk.server.SubscriptionManager;
 import nz.co.fortytwo.signalk.server.SubscriptionManagerFactory;
+import nz.co.fortytwo.signalk.server.SubscriptionScheduler;
 import nz.co.fortytwo.signalk.util.ConfigConstants;
 import nz.co.fortytwo.signalk.util.SignalKConstants;
 
@@ -73,9 +79,9 @@ public class JsonSubscribeProcessorTest {
 		HashMap<String, Object> headers = new HashMap<String, Object>();
 		headers.put(WebsocketConstants.CONNECTION_KEY, wsSession);
 		subscribe.handle(getJson("vessels." + SignalKConstants.self,"navigation", 1000,0,FORMAT_DELTA, POLICY_FIXED), headers);
-		ConcurrentLinkedQueue<Subscription> subs = manager.getSubscriptions(wsSession);
+		List<Subscription> subs = manager.getSubscriptions(wsSession);
 		assertEquals(1, subs.size());
-		Subscription s = subs.peek();
+		Subscription s = subs.get(0);
 		assertEquals("Subscription [wsSession="+wsSession+", path=vessels." + SignalKConstants.self + ".navigation, period=1000, routeId="+s.getRouteId()+", format=delta, active=true, destination=null]", s.toString());
 	}
 
@@ -132,9 +138,9 @@ public class JsonSubscribeProcessorTest {
 		HashMap<String, Object> headers = new HashMap<String, Object>();
 		headers.put(WebsocketConstants.CONNECTION_KEY, wsSession);
 		subscribe.handle(getJson("vessels." + SignalKConstants.self,"navigation", 500, 0,FORMAT_DELTA, POLICY_FIXED),headers);
-		ConcurrentLinkedQueue<Subscription> subs = manager.getSubscriptions(wsSession);
+		List<Subscription> subs = manager.getSubscriptions(wsSession);
 		assertEquals(1, subs.size());
-		Subscription s = subs.peek();
+		Subscription s = subs.get(0);
 		assertEquals("Subscription [wsSession="+wsSession+", path=vessels." + SignalKConstants.self + ".navigation, period=500, routeId="+s.getRouteId()+", format=delta, active=true, destination=null]", s.toString());
 		manager.removeSessionId(wsSession);
 		subs = manager.getSubscriptions(wsSession);
@@ -150,12 +156,42 @@ public class JsonSubscribeProcessorTest {
 		HashMap<String, Object> headers = new HashMap<String, Object>();
 		headers.put(WebsocketConstants.CONNECTION_KEY, wsSession);
 		subscribe.handle(getJson("vessels." + SignalKConstants.self,"navigation", 500, 0,FORMAT_DELTA, POLICY_FIXED),headers);
-		ConcurrentLinkedQueue<Subscription> subs = manager.getSubscriptions(wsSession);
+		List<Subscription> subs = manager.getSubscriptions(wsSession);
 		assertEquals(1, subs.size());
-		Subscription s = subs.peek();
+		Subscription s = subs.get(0);
 		assertEquals("Subscription [wsSession="+wsSession+", path=vessels." + SignalKConstants.self + ".navigation, period=500, routeId="+s.getRouteId()+", format=delta, active=true, destination=null]", s.toString());
 	}
 
+	@Test
+	public void shouldMoveSubsToWsSession() throws Exception {
+		SubscriptionManager manager = SubscriptionManagerFactory.getInstance();
+		String sessionId = UUID.randomUUID().toString();
+		String wsSession = UUID.randomUUID().toString();
+		// made by REST before the websocket starts
+		Subscription sub = new Subscription(sessionId, "vessels." + SignalKConstants.self + ".navigation", 1000, 0, FORMAT_DELTA, POLICY_FIXED);
+		sub.setActive(false);
+		manager.addSubscription(sub);
+		manager.add(sessionId, wsSession, ConfigConstants.OUTPUT_WS, "127.0.0.1", "127.0.0.1");
+
+		assertEquals(0, manager.getSubscriptions(sessionId).size());
+		List<Subscription> subs = manager.getSubscriptions(wsSession);
+		assertEquals(1, subs.size());
+		Subscription moved = subs.get(0);
+		assertEquals(wsSession, moved.getWsSession());
+		assertTrue(moved.isActive());
+		// the old one is unchanged, and out of the index
+		assertEquals(sessionId, sub.getWsSession());
+		List<Subscription> matched = new ArrayList<Subscription>();
+		SubscriptionIndex.getInstance().match(sub.getPath() + ".courseOverGroundTrue.value", matched);
+		assertTrue(matched.contains(moved));
+		assertFalse(matched.contains(sub));
+
+		manager.removeSessionId(sessionId);
+		matched.clear();
+		SubscriptionIndex.getInstance().match(sub.getPath() + ".courseOverGroundTrue.value", matched);
+		assertFalse(matched.contains(moved));
+	}
+
 	@Test
 	public void shouldSubscribeWithIp() throws Exception {
 		SubscriptionManager manager = SubscriptionManagerFactory.getInstance();
@@ -180,11 +216,11 @@ public class JsonSubscribeProcessorTest {
 		HashMap<String, Object> headers = new HashMap<String, Object>();
 		headers.put(WebsocketConstants.CONNECTION_KEY, wsSession);
 		subscribe.handle(getJson("vessels." + SignalKConstants.self,"navigation", 500, 0,FORMAT_DELTA, POLICY_FIXED),headers);
-		ConcurrentLinkedQueue<Subscription> subs = manager.getSubscriptions(wsSession);
+		List<Subscription> subs = manager.getSubscriptions(wsSession);
 		assertEquals(1, subs.size());
-		Subscription s = subs.peek();
+		Subscription s = subs.get(0);
 		assertEquals("Subscription [wsSession="+wsSession+", path=vessels." + SignalKConstants.self + ".navigation, period=500, routeId="+s.getRouteId()+", format=delta, active=true, destination=null]", s.toString());
-		// see if its created a route
+		// see if its scheduled an export
 		RouteManager routeManager = RouteManagerFactory.getInstance();
 		for (RouteDefinition route : routeManager.getRouteCollection().getRoutes()) {
 			logger.debug("Checking route " + route.getId());
@@ -203,7 +239,7 @@ public class JsonSubscribeProcessorTest {
 		RouteManager routeManager = RouteManagerFactory.getMotuTestInstance();
 		String wsSession = UUID.randomUUID().toString();
 		manager.removeSessionId(wsSession);
-		int routes = routeManager.getRouteCollection().getRoutes().size();
+		int routes = SubscriptionScheduler.getInstance().getTasks();
 		// now add webSocket
 		manager.add(wsSession, wsSession,ConfigConstants.OUTPUT_WS,"127.0.0.1","127.0.0.1");
 		JsonSubscribeProcessor subscribe = new JsonSubscribeProcessor();
@@ -211,11 +247,11 @@ public class JsonSubscribeProcessorTest {
 		headers.put(WebsocketConstants.CONNECTION_KEY, wsSession);
 		subscribe.handle(getJson("vessels." + SignalKConstants.self,"navigation", 500,0,FORMAT_DELTA, POLICY_FIXED), headers);
 		subscribe.handle(getJson("vessels." + SignalKConstants.self,"environment", 500, 0,FORMAT_DELTA, POLICY_FIXED),headers);
-		ConcurrentLinkedQueue<Subscription> subs = manager.getSubscriptions(wsSession);
+		List<Subscription> subs = manager.getSubscriptions(wsSession);
 		assertEquals(2, subs.size());
-		// see if its created a route
+		// see if its scheduled an export
 		
-		assertEquals(routes+1, routeManager.getRouteCollection().getRoutes().size());
+		assertEquals(routes + 1, SubscriptionScheduler.getInstance().getTasks());
 		manager.removeWsSession(wsSession);
 	}
 	
@@ -226,7 +262,7 @@ public class JsonSubscribeProcessorTest {
 		RouteManager routeManager = RouteManagerFactory.getMotuTestInstance();
 		String wsSession = UUID.randomUUID().toString();
 		manager.removeSessionId(wsSession);
-		int routes = routeManager.getRouteCollection().getRoutes().size();
+		int routes = SubscriptionScheduler.getInstance().getTasks();
 		// now add webSocket
 		manager.add(wsSession, wsSession,ConfigConstants.OUTPUT_WS,"127.0.0.1","127.0.0.1");
 		JsonSubscribeProcessor subscribe = new JsonSubscribeProcessor();
@@ -234,11 +270,11 @@ public class JsonSubscribeProcessorTest {
 		headers.put(WebsocketConstants.CONNECTION_KEY, wsSession);
 		subscribe.handle(getJson("vessels." + SignalKConstants.self,"navigation", 500,0,FORMAT_DELTA, POLICY_FIXED), headers);
 		subscribe.handle(getJson("vessels." + SignalKConstants.self,"environment", 1500, 0,FORMAT_DELTA, POLICY_FIXED),headers);
-		ConcurrentLinkedQueue<Subscription> subs = manager.getSubscriptions(wsSession);
+		List<Subscription> subs = manager.getSubscriptions(wsSession);
 		assertEquals(2, subs.size());
-		// see if its created a route
+		// see if its scheduled an export
 		
-		assertEquals(routes+2, routeManager.getRouteCollection().getRoutes().size());
+		assertEquals(routes + 2, SubscriptionScheduler.getInstance().getTasks());
 		manager.removeWsSession(wsSession);
 	}
 	
@@ -247,7 +283,7 @@ public class JsonSubscribeProcessorTest {
 		
 		SubscriptionManager manager = SubscriptionManagerFactory.getInstance();
 		RouteManager routeManager = RouteManagerFactory.getMotuTestInstance();
-		int routes = routeManager.getRouteCollection().getRoutes().size();
+		int routes = SubscriptionScheduler.getInstance().getTasks();
 		String wsSession = UUID.randomUUID().toString();
 		manager.removeSessionId(wsSession);
 		// now add webSocket
@@ -259,11 +295,11 @@ public class JsonSubscribeProcessorTest {
 		headers.put(WebsocketConstants.CONNECTION_KEY, wsSession);
 		subscribe.handle(getJson("vessels." + SignalKConstants.self,"navigation", 500,0,FORMAT_DELTA, POLICY_FIXED), headers);
 		subscribe.handle(getJson("vessels." + SignalKConstants.self,"environment", 1500, 0,FORMAT_DELTA, POLICY_FIXED),headers);
-		ConcurrentLinkedQueue<Subscription> subs = manager.getSubscriptions(wsSession);
+		List<Subscription> subs = manager.getSubscriptions(wsSession);
 		assertEquals(2, subs.size());
-		// see if its created a route
-		assertEquals("Added 2 routes", routes + 2, routeManager.getRouteCollection().getRoutes().size());
-		Subscription s = subs.peek();
+		// see if its scheduled an export
+		assertEquals("Added 2 tasks", routes + 2, SubscriptionScheduler.getInstance().getTasks());
+		Subscription s = subs.get(0);
 
 		for (RouteDefinition route : routeManager.getRouteCollection().getRoutes()) {
 			logger.debug("Checking route " + route.getId());
@@ -276,7 +312,7 @@ public class JsonSubscribeProcessorTest {
 	@Test
 	public void shouldUnSubscribeAllByWsSession() throws Exception {
 		RouteManager routeManager = RouteManagerFactory.getMotuTestInstance();
-		int routes = routeManager.getRouteCollection().getRoutes().size();
+		int routes = SubscriptionScheduler.getInstance().getTasks();
 		String wsSession = UUID.randomUUID().toString();
 		SubscriptionManager manager = SubscriptionManagerFactory.getInstance();
 		manager.removeSessionId(wsSession);
@@ -287,11 +323,11 @@ public class JsonSubscribeProcessorTest {
 		headers.put(WebsocketConstants.CONNECTION_KEY, wsSession);
 		subscribe.handle(getJson("vessels." + SignalKConstants.self,"navigation", 500, 0,FORMAT_DELTA, POLICY_FIXED),headers);
 		subscribe.handle(getJson("vessels." + SignalKConstants.self, "environment", 1000, 0,FORMAT_DELTA, POLICY_FIXED),headers);
-		ConcurrentLinkedQueue<Subscription> subs = manager.getSubscriptions(wsSession);
+		List<Subscription> subs = manager.getSubscriptions(wsSession);
 		assertEquals(2, subs.size());
-		// see if its created a route
+		// see if its scheduled an export
 
-		assertEquals(routes + 2, routeManager.getRouteCollection().getRoutes().size());
+		assertEquals(routes + 2, SubscriptionScheduler.getInstance().getTasks());
 
 		for (RouteDefinition route : routeManager.getRouteCollection().getRoutes()) {
 			logger.debug("Checking route " + route.getId());
@@ -300,13 +336,13 @@ public class JsonSubscribeProcessorTest {
 		manager.removeWsSession(wsSession);
 		subs = manager.getSubscriptions(wsSession);
 		assertEquals(0, subs.size());
-		// assertEquals(routes,routeManager.getRouteCollection().getRoutes().size());
+		assertEquals(routes, SubscriptionScheduler.getInstance().getTasks());
 	}
 
 	@Test
 	public void shouldUnSubscribeAllBySessionId() throws Exception {
 		RouteManager routeManager = RouteManagerFactory.getMotuTestInstance();
-		int routes = routeManager.getRouteCollection().getRoutes().size();
+		int routes = SubscriptionScheduler.getInstance().getTasks();
 		String wsSession = UUID.randomUUID().toString();
 		SubscriptionManager manager = SubscriptionManagerFactory.getInstance();
 		manager.removeSessionId(wsSession);
@@ -317,10 +353,10 @@ public class JsonSubscribeProcessorTest {
 		headers.put(WebsocketConstants.CONNECTION_KEY, wsSession);
 		subscribe.handle(getJson("vessels." + SignalKConstants.self,"navigation", 500, 0,FORMAT_DELTA, POLICY_FIXED),headers);
 		subscribe.handle(getJson("vessels." + SignalKConstants.self,"environment", 500, 0,FORMAT_DELTA, POLICY_FIXED),headers);
-		ConcurrentLinkedQueue<Subscription> subs = manager.getSubscriptions(wsSession);
+		List<Subscription> subs = manager.getSubscriptions(wsSession);
 		assertEquals(2, subs.size());
-		// see if its created a route
-		assertEquals(routes + 1, routeManager.getRouteCollection().getRoutes().size());
+		// see if its scheduled an export
+		assertEquals(routes + 1, SubscriptionScheduler.getInstance().getTasks());
 
 		for (RouteDefinition route : routeManager.getRouteCollection().getRoutes()) {
 			logger.debug("Checking route " + route.getId());
@@ -330,7 +366,7 @@ public class JsonSubscribeProcessorTest {
 		subs = manager.getSubscriptions(wsSession);
 		assertEquals(0, subs.size());
 
-		// assertEquals(routes,routeManager.getRouteCollection().getRoutes().size());
+		assertEquals(routes, SubscriptionScheduler.getInstance().getTasks());
 	}
 
 	@Test
@@ -348,8 +384,47 @@ public class JsonSubscribeProcessorTest {
 		Json sub = getJson("vess." + SignalKConstants.self,"navigation",1000,0,FORMAT_DELTA, POLICY_FIXED);
 		Json json = subscribe.handle(sub, headers);
 		assertEquals(sub, json);
-		ConcurrentLinkedQueue<Subscription> subs = manager.getSubscriptions(wsSession);
+		List<Subscription> subs = manager.getSubscriptions(wsSession);
 		assertEquals(0, subs.size());
 	}
 
+	@Test
+	public void shouldSurviveConnectStorm() throws Exception {
+		final SubscriptionManager manager = SubscriptionManagerFactory.getInstance();
+		final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+		final CountDownLatch done = new CountDownLatch(8);
+		for (int t = 0; t < 8; t++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						JsonSubscribeProcessor subscribe = new JsonSubscribeProcessor();
+						for (int x = 0; x < 25; x++) {
+							String wsSession = UUID.randomUUID().toString();
+							manager.add("ses" + wsSession, wsSession, ConfigConstants.OUTPUT_WS, "127.0.0.1", "127.0.0.1");
+							HashMap<String, Object> headers = new HashMap<String, Object>();
+							headers.put(WebsocketConstants.CONNECTION_KEY, wsSession);
+							subscribe.handle(getJson("vessels." + SignalKConstants.self, "navigation", 1000, 0, FORMAT_DELTA, POLICY_FIXED), headers);
+							subscribe.handle(getJson("vessels." + SignalKConstants.self, "environment", 1000, 0, FORMAT_DELTA, POLICY_FIXED), headers);
+							assertEquals(2, manager.getSubscriptions(wsSession).size());
+							assertEquals(ConfigConstants.OUTPUT_WS, manager.getOutputType(wsSession));
+							manager.removeWsSession(wsSession);
+							assertEquals(0, manager.getSubscriptions(wsSession).size());
+							assertNull(manager.getOutputType(wsSession));
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		assertTrue(done.await(60, TimeUnit.SECONDS));
+		for (Throwable e : errors) {
+			logger.error(e.getMessage(), e);
+		}
+		assertTrue(errors.isEmpty());
+	}
+
 }
@@ -0,0 +1,158 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.eventbus.Subscribe;
+
+import mjson.Json;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.Util;
+
+public class ModelAccountingTest {
+
+	@BeforeClass
+	public static void setClass() throws Exception {
+		Util.getConfig();
+		Util.setSelf("motu");
+	}
+
+	public static class Listener {
+		final List<ChangeSet> changes = new ArrayList<>();
+
+		@Subscribe
+		public void recordChanges(ChangeSet changeSet) {
+			changes.add(changeSet);
+		}
+	}
+
+	private SignalKModel vessel(String ctx, double lat) {
+		SignalKModel node = SignalKModelFactory.getCleanInstance();
+		node.getFullData().put(ctx + ".navigation.position.latitude", lat);
+		node.getFullData().put(ctx + ".navigation.position.longitude", 173.0);
+		node.getFullData().put(ctx + ".name", "Boat " + ctx);
+		return node;
+	}
+
+	@Test
+	public void shouldCountPerContext() {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		ModelAccounting accounting = new ModelAccounting(model, 0, 0, 0);
+		ModelBatcher batcher = new ModelBatcher(model, 1, 100);
+		batcher.add(vessel("vessels.366000001", -41.0));
+		batcher.add(vessel("vessels.366000002", -41.0));
+		assertEquals(2, accounting.getVessels());
+		assertEquals(6, accounting.getKeys());
+		assertEquals(3, (int) accounting.getContextKeys().get("vessels.366000001"));
+		long bytes = accounting.getBytes();
+		assertTrue(bytes > 6 * ModelAccounting.ENTRY_BYTES);
+
+		// same keys, same size
+		batcher.add(vessel("vessels.366000001", -42.0));
+		assertEquals(6, accounting.getKeys());
+		assertEquals(bytes, accounting.getBytes());
+
+		Json json = accounting.toJson();
+		assertEquals(6, json.at("keys").asInteger());
+		assertEquals(3, json.at("contexts").at("vessels.366000002").at("keys").asInteger());
+	}
+
+	@Test
+	public void shouldEvictLeastRecentlyUpdated() {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		ModelAccounting accounting = new ModelAccounting(model, 0, 2, 0);
+		ModelBatcher batcher = new ModelBatcher(model, 1, 100);
+		Listener listener = new Listener();
+		ChangeSets.forModel(model).register(listener);
+
+		batcher.add(vessel("vessels.366000001", -41.0));
+		batcher.add(vessel("vessels.366000002", -41.0));
+		// 1 is updated, so 2 is the oldest
+		batcher.add(vessel("vessels.366000001", -42.0));
+		listener.changes.clear();
+		batcher.add(vessel("vessels.366000003", -41.0));
+
+		assertEquals(2, accounting.getVessels());
+		assertEquals(1, accounting.getEvictedVessels());
+		assertEquals(3, accounting.getEvictedKeys());
+		assertNull(model.get("vessels.366000002.navigation.position.latitude"));
+		assertNotNull(model.get("vessels.366000001.navigation.position.latitude"));
+		assertNotNull(model.get("vessels.366000003.navigation.position.latitude"));
+		// the commit, then the removal
+		assertEquals(2, listener.changes.size());
+		assertTrue(listener.changes.get(1).getPaths().contains("vessels.366000002.navigation.position.latitude"));
+		assertEquals(6, accounting.getKeys());
+	}
+
+	@Test
+	public void shouldEvictOverBytes() {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		ModelBatcher batcher = new ModelBatcher(model, 1, 100);
+		batcher.add(vessel("vessels.366000001", -41.0));
+		long perVessel = new ModelAccounting(model, 0, 0, 0).getBytes();
+		ModelAccounting accounting = new ModelAccounting(model, perVessel * 3, 0, 0);
+		for (int x = 2; x < 10; x++) {
+			batcher.add(vessel("vessels.36600000" + x, -41.0));
+		}
+		assertTrue(accounting.getBytes() <= perVessel * 3);
+		assertEquals(3, accounting.getVessels());
+		assertNotNull(model.get("vessels.366000009.navigation.position.latitude"));
+		assertNull(model.get("vessels.366000001.navigation.position.latitude"));
+	}
+
+	@Test
+	public void shouldRejectResourcesOverLimit() {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		ModelAccounting accounting = new ModelAccounting(model, 0, 0, 3);
+		ModelBatcher batcher = new ModelBatcher(model, 1, 100);
+		SignalKModel node = SignalKModelFactory.getCleanInstance();
+		for (int x = 0; x < 5; x++) {
+			node.getFullData().put("resources.notes.n" + x + ".title", "Note " + x);
+		}
+		assertEquals(2, accounting.filter(node));
+		batcher.add(node);
+		assertEquals(3, (int) accounting.getContextKeys().get("resources.notes"));
+
+		// updates to existing keys are still allowed
+		node = SignalKModelFactory.getCleanInstance();
+		node.getFullData().put("resources.notes.n0.title", "Changed");
+		node.getFullData().put("resources.notes.n9.title", "New");
+		assertEquals(1, accounting.filter(node));
+		assertNotNull(node.get("resources.notes.n0.title"));
+		assertEquals(3, accounting.getRejectedKeys());
+	}
+}
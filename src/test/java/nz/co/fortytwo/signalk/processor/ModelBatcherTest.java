@@ -0,0 +1,110 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_courseOverGroundTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.value;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.SignalKConstants;
+
+public class ModelBatcherTest {
+
+	private static Logger logger = LogManager.getLogger(ModelBatcherTest.class);
+	private static final String COG = vessels_dot_self_dot + nav_courseOverGroundTrue;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		SignalKModelFactory.getMotuTestInstance();
+	}
+
+	private SignalKModel fragment(double cog) {
+		SignalKModel node = SignalKModelFactory.getCleanInstance();
+		node.put(COG, cog, "unknown", "2015-03-16T03:31:22.332Z");
+		return node;
+	}
+
+	@Test
+	public void shouldCommitWhenBatchFull() {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		ModelBatcher batcher = new ModelBatcher(model, 5, 60000);
+		for (int x = 0; x < 4; x++) {
+			batcher.add(fragment(x));
+			assertNull(model.get(COG + SignalKConstants.dot + value));
+		}
+		batcher.add(fragment(4));
+		// only the last value in the batch is committed
+		assertEquals(4.0, (double) model.get(COG + SignalKConstants.dot + value), 0.0001);
+		assertEquals(1, batcher.getCommits());
+		assertEquals(5, batcher.getLastBatchSize());
+		batcher.stop();
+	}
+
+	@Test
+	public void shouldCommitAfterBatchTime() throws Exception {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		ModelBatcher batcher = new ModelBatcher(model, 100, 50);
+		batcher.add(fragment(1));
+		assertNull(model.get(COG + SignalKConstants.dot + value));
+		Thread.sleep(200);
+		assertEquals(1.0, (double) model.get(COG + SignalKConstants.dot + value), 0.0001);
+		assertEquals(1, batcher.getLastBatchSize());
+		batcher.stop();
+	}
+
+	@Test
+	public void shouldCommitEachWhenNotBatching() {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		ModelBatcher batcher = new ModelBatcher(model, 1, 100);
+		batcher.add(fragment(1));
+		assertEquals(1.0, (double) model.get(COG + SignalKConstants.dot + value), 0.0001);
+		batcher.add(fragment(2));
+		assertEquals(2.0, (double) model.get(COG + SignalKConstants.dot + value), 0.0001);
+		assertEquals(2, batcher.getCommits());
+	}
+
+	@Test
+	public void shouldReduceCommits() {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		ModelBatcher batcher = new ModelBatcher(model, 50, 60000);
+		for (int x = 0; x < 1000; x++) {
+			batcher.add(fragment(x));
+		}
+		logger.info("Batched 1000 messages into " + batcher.getCommits() + " commits, avg latency " + batcher.getAverageCommitLatency() + "us");
+		assertEquals(20, batcher.getCommits());
+		assertEquals(1000, batcher.getMessages());
+		batcher.stop();
+	}
+}
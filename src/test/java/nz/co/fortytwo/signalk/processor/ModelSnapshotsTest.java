@@ -0,0 +1,140 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.Util;
+
+public class ModelSnapshotsTest {
+
+	@BeforeClass
+	public static void setClass() throws Exception {
+		Util.getConfig();
+		Util.setSelf("motu");
+	}
+
+	private SignalKModel getModel() {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		NavigableMap<String, Object> data = new TreeMap<>();
+		data.put("vessels.motu.navigation.position.latitude", -41.0);
+		data.put("vessels.motu.navigation.position.longitude", 173.0);
+		data.put("vessels.motu.navigation.courseOverGroundTrue.value", 1.2);
+		data.put("vessels.motu.navigationx.value", 9.0);
+		data.put("vessels.motu.environment.wind.angleApparent.value", 0.5);
+		data.put("vessels.motux.navigation.position.latitude", -40.0);
+		data.put("vessels.other.navigation.position.latitude", -39.0);
+		data.put("sources.nmea.0183.GP.talker", "GP");
+		model.putAll(data);
+		return model;
+	}
+
+	@Test
+	public void shouldMatchModel() {
+		SignalKModel model = getModel();
+		ModelSnapshot snapshot = ModelSnapshots.forModel(model).current();
+		assertEquals(model.getKeys().size(), snapshot.size());
+		assertEquals(-41.0, snapshot.get("vessels.motu.navigation.position.latitude"));
+		assertNull(snapshot.get("vessels.motu.navigation.position.altitude"));
+		for (String prefix : new String[] { "vessels", "vessels.mo", "vessels.motu", "vessels.motu.nav", "vessels.motu.navigation",
+				"vessels.motu.navigation.position", "vessels.motu.navigation.position.latitude", "sources", "nothing" }) {
+			assertEquals(prefix, new TreeMap<>(model.getSubMap(prefix)), new TreeMap<>(snapshot.getSubMap(prefix)));
+		}
+		assertEquals(model.getKeys(), snapshot.getKeys());
+	}
+
+	@Test
+	public void shouldShareUnchangedSegments() {
+		SignalKModel model = getModel();
+		ModelSnapshots snapshots = ModelSnapshots.forModel(model);
+		ModelSnapshot first = snapshots.current();
+		assertSame(first, snapshots.current());
+		assertSame(first, snapshots.publish());
+
+		NavigableMap<String, Object> data = new TreeMap<>();
+		data.put("vessels.motu.navigation.position.latitude", -42.0);
+		model.putAll(data);
+		ModelSnapshot second = snapshots.current();
+		assertEquals(first.getVersion() + 1, second.getVersion());
+		// the old version is unchanged
+		assertEquals(-41.0, first.get("vessels.motu.navigation.position.latitude"));
+		assertEquals(-42.0, second.get("vessels.motu.navigation.position.latitude"));
+
+		assertSame(first.contexts.get("vessels.other"), second.contexts.get("vessels.other"));
+		assertSame(first.contexts.get("vessels.motu").get("vessels.motu.environment"),
+				second.contexts.get("vessels.motu").get("vessels.motu.environment"));
+		assertNotSame(first.contexts.get("vessels.motu").get("vessels.motu.navigation"),
+				second.contexts.get("vessels.motu").get("vessels.motu.navigation"));
+	}
+
+	@Test
+	public void shouldNotShowPartOfACommit() throws Exception {
+		final SignalKModel model = getModel();
+		final ModelSnapshots snapshots = ModelSnapshots.forModel(model);
+		ModelSnapshot before = snapshots.current();
+		final ModelSnapshot[] during = new ModelSnapshot[1];
+		long version = ModelBatcher.write(model, new Runnable() {
+			@Override
+			public void run() {
+				NavigableMap<String, Object> data = new TreeMap<>();
+				data.put("vessels.motu.navigation.position.latitude", -43.0);
+				model.putAll(data);
+				// a reader in the middle of the commit
+				Thread reader = new Thread() {
+					public void run() {
+						during[0] = snapshots.current();
+					}
+				};
+				reader.start();
+				try {
+					reader.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				data = new TreeMap<>();
+				data.put("vessels.motu.navigation.position.longitude", 174.0);
+				model.putAll(data);
+			}
+		});
+		assertSame(before, during[0]);
+		ModelSnapshot after = snapshots.current();
+		assertEquals(before.getVersion() + 1, version);
+		assertEquals(version, after.getVersion());
+		assertEquals(-43.0, after.get("vessels.motu.navigation.position.latitude"));
+		assertEquals(174.0, after.get("vessels.motu.navigation.position.longitude"));
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.FORMAT_DELTA;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.FORMAT_FULL;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.processor.OutputCache.Content;
+import nz.co.fortytwo.signalk.util.Util;
+
+public class OutputCacheTest {
+
+	private static Logger logger = LogManager.getLogger(OutputCacheTest.class);
+
+	@BeforeClass
+	public static void setClass() throws Exception {
+		Util.getConfig();
+		Util.setSelf("motu");
+	}
+
+	private NavigableMap<String, Object> getData(double speed) {
+		NavigableMap<String, Object> data = new TreeMap<>();
+		String ts = "2015-03-07T12:37:10.523Z";
+		for (String path : new String[] { "navigation.courseOverGroundTrue", "navigation.speedOverGround",
+				"environment.wind.angleApparent", "environment.wind.speedApparent", "environment.depth.belowKeel" }) {
+			data.put("vessels.motu." + path + ".value", speed++);
+			data.put("vessels.motu." + path + ".timestamp", ts);
+			data.put("vessels.motu." + path + ".$source", "NMEA0183.ttyUSB0.II");
+		}
+		return data;
+	}
+
+	private Callable<SignalKModel> builder(final ModelSnapshot snapshot, final List<String> paths) {
+		return new Callable<SignalKModel>() {
+			@Override
+			public SignalKModel call() throws Exception {
+				SignalKModel temp = SignalKModelFactory.getCleanInstance();
+				for (String path : paths) {
+					Object node = snapshot.get(path);
+					if (node != null)
+						temp.getFullData().put(path, node);
+				}
+				return temp;
+			}
+		};
+	}
+
+	@Test
+	public void shouldShareEncodedOutput() throws Exception {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		model.putAll(getData(1.0));
+		ModelSnapshot snapshot = ModelSnapshots.forModel(model).publish();
+		OutputCache cache = new OutputCache(model, 1024 * 1024, 60000);
+		List<String> paths = new ArrayList<>(model.getKeys());
+
+		ImmutableList<String> first = cache.get(snapshot, paths, FORMAT_DELTA, Content.PATHS, builder(snapshot, paths));
+		assertFalse(first.isEmpty());
+		assertTrue(first.get(0).contains("speedOverGround"));
+		//same paths in a different order is the same output
+		List<String> reversed = new ArrayList<>(paths);
+		Collections.reverse(reversed);
+		assertSame(first, cache.get(snapshot, reversed, FORMAT_DELTA, Content.PATHS, builder(snapshot, reversed)));
+		//blank format is delta
+		assertSame(first, cache.get(snapshot, paths, null, Content.PATHS, builder(snapshot, paths)));
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		//different format, or content, is a different output
+		assertNotSame(first, cache.get(snapshot, paths, FORMAT_FULL, Content.PATHS, builder(snapshot, paths)));
+		assertNotSame(first, cache.get(snapshot, paths, FORMAT_DELTA, Content.TREE, builder(snapshot, paths)));
+
+		//new version is a new output
+		model.putAll(getData(2.0));
+		ModelSnapshot next = ModelSnapshots.forModel(model).publish();
+		ImmutableList<String> second = cache.get(next, paths, FORMAT_DELTA, Content.PATHS, builder(next, paths));
+		assertNotSame(first, second);
+		assertEquals(4, cache.getMisses());
+	}
+
+	@Test
+	public void shouldNotCacheNothingToSend() throws Exception {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		ModelSnapshot snapshot = ModelSnapshots.forModel(model).publish();
+		OutputCache cache = new OutputCache(model, 1024 * 1024, 60000);
+		ImmutableList<String> out = cache.get(snapshot, ImmutableList.of("vessels.motu.navigation"), FORMAT_DELTA, Content.PATHS,
+				new Callable<SignalKModel>() {
+					@Override
+					public SignalKModel call() throws Exception {
+						return null;
+					}
+				});
+		assertTrue(out.isEmpty());
+	}
+
+	@Test
+	public void shouldEncodeOncePerSubscriberSet() throws Exception {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		model.putAll(getData(1.0));
+		List<String> paths = new ArrayList<>(model.getKeys());
+		int versions = 200;
+		for (int subscribers : new int[] { 1, 10, 100 }) {
+			OutputCache cache = new OutputCache(model, 1024 * 1024, 60000);
+			//uncached, every subscriber encodes
+			long start = System.nanoTime();
+			for (int v = 0; v < versions; v++) {
+				model.putAll(getData(v));
+				ModelSnapshot snapshot = ModelSnapshots.forModel(model).publish();
+				for (int s = 0; s < subscribers; s++) {
+					cache.encode(builder(snapshot, paths).call(), FORMAT_DELTA);
+				}
+			}
+			long uncached = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int v = 0; v < versions; v++) {
+				model.putAll(getData(v));
+				ModelSnapshot snapshot = ModelSnapshots.forModel(model).publish();
+				ImmutableList<String> first = null;
+				for (int s = 0; s < subscribers; s++) {
+					ImmutableList<String> out = cache.get(snapshot, paths, FORMAT_DELTA, Content.PATHS, builder(snapshot, paths));
+					if (first == null)
+						first = out;
+					assertSame(first, out);
+				}
+			}
+			long cached = System.nanoTime() - start;
+			assertEquals(versions, cache.getMisses());
+			assertEquals(versions * (subscribers - 1), cache.getHits());
+			logger.info(subscribers + " subscribers, " + versions + " versions: uncached " + (uncached / 1000000) + "ms, cached "
+					+ (cached / 1000000) + "ms, hit rate " + cache.getHitRate());
+		}
+	}
+
+	@Test
+	public void shouldBoundByBytes() throws Exception {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		model.putAll(getData(1.0));
+		List<String> paths = new ArrayList<>(model.getKeys());
+		OutputCache cache = new OutputCache(model, 16 * 1024, 60000);
+		ModelSnapshot snapshot = ModelSnapshots.forModel(model).publish();
+		ImmutableList<String> out = cache.get(snapshot, paths, FORMAT_DELTA, Content.PATHS, builder(snapshot, paths));
+		int weight = OutputCache.weigh(new OutputCache.Key(snapshot.getVersion(), paths, FORMAT_DELTA, Content.PATHS), out);
+		assertTrue(weight > 2 * out.get(0).length());
+		assertEquals(weight, cache.getBytes());
+		for (int v = 0; v < 100; v++) {
+			model.putAll(getData(v));
+			snapshot = ModelSnapshots.forModel(model).publish();
+			cache.get(snapshot, paths, FORMAT_DELTA, Content.PATHS, builder(snapshot, paths));
+			assertTrue(cache.getBytes() <= cache.getMaxBytes());
+		}
+		assertTrue(cache.getEvictions() > 0);
+		assertTrue(cache.getEntries() < 100);
+		cache.clear();
+		assertEquals(0, cache.getBytes());
+	}
+
+	@Test
+	public void shouldExpireOldOutputs() throws Exception {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		model.putAll(getData(1.0));
+		List<String> paths = new ArrayList<>(model.getKeys());
+		OutputCache cache = new OutputCache(model, 1024 * 1024, 1);
+		ModelSnapshot snapshot = ModelSnapshots.forModel(model).publish();
+		ImmutableList<String> first = cache.get(snapshot, paths, FORMAT_DELTA, Content.PATHS, builder(snapshot, paths));
+		Thread.sleep(20);
+		// encoded again
+		assertNotSame(first, cache.get(snapshot, paths, FORMAT_DELTA, Content.PATHS, builder(snapshot, paths)));
+		assertEquals(2, cache.getMisses());
+	}
+}
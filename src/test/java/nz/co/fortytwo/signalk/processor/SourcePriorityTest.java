@@ -0,0 +1,107 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.processor;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.sourceRef;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+
+public class SourcePriorityTest {
+
+	private static final String POS = "vessels.self.navigation.position";
+	private static final String HDG = "vessels.self.navigation.headingMagnetic";
+
+	@BeforeClass
+	public static void init() throws Exception {
+		SignalKModelFactory.getMotuTestInstance();
+	}
+
+	private SignalKModel position(String ref, double lat) {
+		SignalKModel node = SignalKModelFactory.getCleanInstance();
+		node.getFullData().put(POS + ".latitude", lat);
+		node.getFullData().put(POS + ".longitude", 1.0);
+		node.getFullData().put(POS + "." + sourceRef, ref);
+		node.getFullData().put("sources." + ref + ".talker", "GP");
+		return node;
+	}
+
+	@Test
+	public void shouldRankSources() {
+		assertEquals(0, SourcePriority.rank(Arrays.asList("NMEA0183.GPS1", "NMEA0183"), "NMEA0183.GPS1"));
+		assertEquals(1, SourcePriority.rank(Arrays.asList("NMEA0183.GPS1", "NMEA0183"), "NMEA0183.GPS2"));
+		assertEquals(2, SourcePriority.rank(Arrays.asList("NMEA0183.GPS1", "NMEA0183"), "NMEA0183x.GPS2"));
+		assertFalse(new SourcePriority(" ", 1000).isEnabled());
+	}
+
+	@Test
+	public void shouldKeepPreferredSource() {
+		SourcePriority priority = new SourcePriority("navigation.position:NMEA0183.GPS1|NMEA0183.GPS2", 5000);
+		assertTrue(priority.isEnabled());
+		// the lower one is used until the better one turns up
+		assertEquals(0, priority.filter(position("NMEA0183.GPS2", 1.0), 0));
+		assertEquals(0, priority.filter(position("NMEA0183.GPS1", 2.0), 100));
+
+		SignalKModel node = position("NMEA0183.GPS2", 3.0);
+		assertEquals(3, priority.filter(node, 200));
+		assertNull(node.getFullData().get(POS + ".latitude"));
+		// still recorded in sources
+		assertNotNull(node.getFullData().get("sources.NMEA0183.GPS2.talker"));
+
+		// other paths are untouched
+		node = position("NMEA0183.GPS2", 3.0);
+		node.getFullData().put(HDG + ".value", 1.5);
+		node.getFullData().put(HDG + "." + sourceRef, "NMEA0183.GPS2");
+		assertEquals(3, priority.filter(node, 300));
+		assertEquals(1.5, (double) node.getFullData().get(HDG + ".value"), 0.0001);
+
+		assertEquals(2, priority.getSuppressed());
+	}
+
+	@Test
+	public void shouldFailOver() {
+		SourcePriority priority = new SourcePriority("navigation.position:NMEA0183.GPS1|NMEA0183.GPS2", 1000);
+		assertEquals(0, priority.filter(position("NMEA0183.GPS1", 1.0), 0));
+		assertEquals(3, priority.filter(position("NMEA0183.GPS2", 2.0), 500));
+		// GPS1 has gone quiet
+		assertEquals(0, priority.filter(position("NMEA0183.GPS2", 2.0), 1500));
+		assertEquals(1, priority.getFailovers());
+		// GPS2 is current now, until GPS1 comes back
+		assertEquals(0, priority.filter(position("NMEA0183.GPS2", 2.0), 1600));
+		assertEquals(0, priority.filter(position("NMEA0183.GPS1", 2.0), 1700));
+		assertEquals(3, priority.filter(position("NMEA0183.GPS2", 2.0), 1800));
+	}
+}
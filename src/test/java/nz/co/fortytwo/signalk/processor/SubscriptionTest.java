@@ -25,12 +25,23 @@
  */
 package nz.co.fortytwo.signalk.processor;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
 import nz.co.fortytwo.signalk.server.Subscription;
 import nz.co.fortytwo.signalk.util.SignalKConstants;
 import nz.co.fortytwo.signalk.util.Util;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -38,6 +49,8 @@ import org.junit.Test;
 
 public class SubscriptionTest {
 
+	private static Logger logger = LogManager.getLogger(SubscriptionTest.class);
+
 	@BeforeClass
 	public static void setClass() throws Exception {
 		Util.getConfig();
@@ -115,4 +128,73 @@ public class SubscriptionTest {
 		assertFalse(sub.isSubscribed("vessels.notMotu"));
 	}
 
+	@Test
+	public void shouldResolveExistingPaths() {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		model.getFullData().put("vessels.motu.navigation.courseOverGroundTrue.value", 1.0);
+		model.getFullData().put("vessels.motu.navigation.position.latitude", 1.0);
+		model.getFullData().put("vessels.motux.navigation.position.latitude", 1.0);
+		model.getFullData().put("vessels.motu.environment.wind.angleApparent.value", 1.0);
+		Subscription sub = new Subscription("wsSession", "vessels.motu.navigation", 10, 1000, SignalKConstants.FORMAT_FULL, SignalKConstants.POLICY_FIXED);
+		sub.resolvePaths(model);
+		assertEquals(2, sub.getSubscribed(null).size());
+		sub = new Subscription("wsSession", "vessels.*.navigation.position", 10, 1000, SignalKConstants.FORMAT_FULL, SignalKConstants.POLICY_FIXED);
+		sub.resolvePaths(model);
+		assertEquals(2, sub.getSubscribed(null).size());
+	}
+
+	/**
+	 * A client subscribing to 20 paths, against 1k and 10k keys of AIS targets.
+	 * Compares reading the prefix range with testing every key in the model.
+	 */
+	@Test
+	public void shouldSubscribeQuickly() {
+		for (int targets : new int[] { 100, 1000 }) {
+			SignalKModel model = SignalKModelFactory.getCleanInstance();
+			for (int x = 0; x < targets; x++) {
+				String ctx = "vessels." + (230000000 + x) + ".";
+				model.getFullData().put(ctx + "name", "target" + x);
+				model.getFullData().put(ctx + "navigation.position.latitude", 1.0);
+				model.getFullData().put(ctx + "navigation.position.longitude", 1.0);
+				model.getFullData().put(ctx + "navigation.position.timestamp", "2016-01-01T00:00:00.000Z");
+				model.getFullData().put(ctx + "navigation.courseOverGroundTrue.value", 1.0);
+				model.getFullData().put(ctx + "navigation.speedOverGround.value", 1.0);
+				model.getFullData().put(ctx + "navigation.headingTrue.value", 1.0);
+				model.getFullData().put(ctx + "navigation.state.value", "moored");
+				model.getFullData().put(ctx + "design.length.overall", 10.0);
+				model.getFullData().put(ctx + "design.beam", 3.0);
+			}
+			List<String> paths = new ArrayList<>();
+			String[] self = new String[] { "navigation.position", "navigation.courseOverGroundTrue", "navigation.speedOverGround",
+					"navigation.headingTrue", "navigation.speedThroughWater", "navigation.log", "environment.depth", "environment.wind",
+					"environment.water", "electrical.batteries", "propulsion", "steering", "tanks", "notifications", "sensors", "design",
+					"navigation.courseRhumbline", "navigation.attitude" };
+			for (String p : self) {
+				paths.add("vessels.self." + p);
+			}
+			paths.add("vessels.23000001?.navigation");
+			paths.add("vessels.*.navigation.position");
+
+			long start = System.nanoTime();
+			List<Subscription> subs = new ArrayList<>();
+			for (String path : paths) {
+				Subscription sub = new Subscription("wsSession", path, 1000, 0, SignalKConstants.FORMAT_DELTA, SignalKConstants.POLICY_FIXED);
+				sub.resolvePaths(model);
+				subs.add(sub);
+			}
+			long resolve = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (Subscription sub : subs) {
+				Set<String> scanned = new HashSet<>();
+				for (String key : model.getKeys()) {
+					if (sub.isSubscribed(key))
+						scanned.add(key);
+				}
+				assertEquals(sub.getPath(), scanned, new HashSet<>(sub.getSubscribed(null)));
+			}
+			long scan = System.nanoTime() - start;
+			logger.info(model.getKeys().size() + " keys, " + paths.size() + " paths: prefix range " + resolve / 1000 + "us, full scan " + scan / 1000 + "us");
+		}
+	}
 }
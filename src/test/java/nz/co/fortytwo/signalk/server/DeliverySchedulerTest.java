@@ -0,0 +1,151 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.server;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.FORMAT_DELTA;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.POLICY_IDEAL;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.POLICY_INSTANT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import nz.co.fortytwo.signalk.processor.FullExportProcessor;
+import nz.co.fortytwo.signalk.util.SignalKConstants;
+
+public class DeliverySchedulerTest {
+
+	@BeforeClass
+	public static void init() throws Exception {
+		RouteManagerFactory.getMotuTestInstance();
+	}
+
+	/**
+	 * Records the deliveries instead of sending them, optionally holding the first one until released
+	 */
+	static class Recorder extends FullExportProcessor {
+		final LinkedBlockingQueue<List<String>> delivered = new LinkedBlockingQueue<>();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release;
+
+		Recorder(boolean hold) {
+			super(UUID.randomUUID().toString(), "test_" + UUID.randomUUID());
+			release = new CountDownLatch(hold ? 1 : 0);
+		}
+
+		@Override
+		public void deliver(Collection<String> paths, Subscription sub) {
+			started.countDown();
+			try {
+				release.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			delivered.add(new ArrayList<>(paths));
+		}
+	}
+
+	private Subscription sub(String policy, long minPeriod) {
+		return new Subscription(UUID.randomUUID().toString(), "vessels." + SignalKConstants.self + ".navigation", 1000, minPeriod,
+				FORMAT_DELTA, policy);
+	}
+
+	@Test
+	public void shouldConflateWhileBehind() throws Exception {
+		DeliveryScheduler scheduler = new DeliveryScheduler(2);
+		Recorder exporter = new Recorder(true);
+		Subscription sub = sub(POLICY_INSTANT, 0);
+		scheduler.offer(exporter, sub, Arrays.asList("a"));
+		assertTrue(exporter.started.await(5, TimeUnit.SECONDS));
+		//the first send is stuck, these wait and merge
+		scheduler.offer(exporter, sub, Arrays.asList("b"));
+		scheduler.offer(exporter, sub, Arrays.asList("a", "b"));
+		scheduler.offer(exporter, sub, Arrays.asList("b"));
+		assertEquals(2, scheduler.getPending(exporter.getRouteId()));
+		exporter.release.countDown();
+
+		assertEquals(Arrays.asList("a"), exporter.delivered.poll(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("b", "a"), exporter.delivered.poll(5, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		assertTrue(exporter.delivered.isEmpty());
+		assertEquals(2, scheduler.getSends());
+		assertEquals(2, scheduler.getConflated());
+		assertEquals(0, scheduler.getPending(exporter.getRouteId()));
+	}
+
+	@Test
+	public void shouldWaitMinPeriodForIdeal() throws Exception {
+		DeliveryScheduler scheduler = new DeliveryScheduler(2);
+		Recorder exporter = new Recorder(false);
+		long start = exporter.getLastSend();
+		scheduler.offer(exporter, sub(POLICY_IDEAL, 300), Arrays.asList("a"));
+		Thread.sleep(100);
+		assertTrue(exporter.delivered.isEmpty());
+		assertEquals(1, scheduler.getPending(exporter.getRouteId()));
+		assertTrue(scheduler.getLag(exporter.getRouteId()) >= 100);
+		assertEquals(Arrays.asList("a"), exporter.delivered.poll(5, TimeUnit.SECONDS));
+		assertTrue(System.currentTimeMillis() - start >= 300);
+	}
+
+	@Test
+	public void shouldNotHoldOtherSessionsBehindSlowSession() throws Exception {
+		DeliveryScheduler scheduler = new DeliveryScheduler(2);
+		Recorder slow = new Recorder(true);
+		Recorder fast = new Recorder(false);
+		scheduler.offer(slow, sub(POLICY_INSTANT, 0), Arrays.asList("a"));
+		assertTrue(slow.started.await(5, TimeUnit.SECONDS));
+		for (int x = 0; x < 10; x++) {
+			scheduler.offer(fast, sub(POLICY_INSTANT, 0), Arrays.asList("p" + x));
+			assertEquals(Arrays.asList("p" + x), fast.delivered.poll(5, TimeUnit.SECONDS));
+		}
+		assertTrue(slow.delivered.isEmpty());
+		slow.release.countDown();
+		assertEquals(Arrays.asList("a"), slow.delivered.poll(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void shouldDropPendingOnRemove() throws Exception {
+		DeliveryScheduler scheduler = new DeliveryScheduler(1);
+		Recorder exporter = new Recorder(false);
+		scheduler.offer(exporter, sub(POLICY_IDEAL, 200), Arrays.asList("a"));
+		assertEquals(1, scheduler.getRoutes());
+		scheduler.remove(exporter.getRouteId());
+		assertEquals(0, scheduler.getRoutes());
+		Thread.sleep(400);
+		assertTrue(exporter.delivered.isEmpty());
+	}
+
+}
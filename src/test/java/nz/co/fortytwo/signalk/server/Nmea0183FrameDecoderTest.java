@@ -0,0 +1,137 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+
+public class Nmea0183FrameDecoderTest {
+
+	private static Logger logger = LogManager.getLogger(Nmea0183FrameDecoderTest.class);
+	private static final String VTG = "$ECVTG,316.0,T,301.0,M,7.7,N,14.3,K,A*02";
+	private static final String ZDA = "$ECZDA,194310,14,07,2008,,*5F";
+
+	private ByteBuf buf(String s) {
+		return Unpooled.copiedBuffer(s, CharsetUtil.US_ASCII);
+	}
+
+	@Test
+	public void shouldFrameValidSentences() {
+		NmeaFrameStats stats = new NmeaFrameStats();
+		EmbeddedChannel channel = new EmbeddedChannel(new Nmea0183FrameDecoder(stats, false, null));
+		channel.writeInbound(buf(VTG + "\r\n" + ZDA + "\r\n"));
+		Object first = channel.readInbound();
+		Object second = channel.readInbound();
+		assertEquals(VTG, first);
+		assertEquals(ZDA, second);
+		assertEquals(2, stats.getValid());
+	}
+
+	@Test
+	public void shouldWaitForLineEnd() {
+		NmeaFrameStats stats = new NmeaFrameStats();
+		EmbeddedChannel channel = new EmbeddedChannel(new Nmea0183FrameDecoder(stats, false, null));
+		channel.writeInbound(buf(VTG.substring(0, 10)));
+		Object none = channel.readInbound();
+		assertNull(none);
+		channel.writeInbound(buf(VTG.substring(10) + "\n"));
+		Object msg = channel.readInbound();
+		assertEquals(VTG, msg);
+	}
+
+	@Test
+	public void shouldDropBadSentences() {
+		NmeaFrameStats stats = new NmeaFrameStats();
+		EmbeddedChannel channel = new EmbeddedChannel(new Nmea0183FrameDecoder(stats, true, null));
+		channel.writeInbound(buf("garbage\r\n"
+				+ "$ECVTG,316.0,T,301.0,M,7.7,N,14.3,K,A*03\r\n" // bad checksum
+				+ "$IIVPW,4.71,N,,\r\n" // no checksum
+				+ "$ECVTG,316.0,T,30" // cut short
+				+ ZDA + "\r\n"));
+		Object msg = channel.readInbound();
+		assertEquals(ZDA, msg);
+		assertNull(channel.readInbound());
+		assertEquals(1, stats.getValid());
+		assertEquals(1, stats.getBadChecksum());
+		assertEquals(1, stats.getNoChecksum());
+		assertEquals(1, stats.getMalformed());
+		assertEquals(7, stats.getDiscardedBytes());
+	}
+
+	@Test
+	public void shouldIgnoreSentenceTypes() {
+		NmeaFrameStats stats = new NmeaFrameStats();
+		EmbeddedChannel channel = new EmbeddedChannel(new Nmea0183FrameDecoder(stats, false, Nmea0183FrameDecoder.packTypes("VTG, GSV")));
+		channel.writeInbound(buf(VTG + "\r\n" + ZDA + "\r\n"));
+		Object msg = channel.readInbound();
+		assertEquals(ZDA, msg);
+		assertEquals(1, stats.getIgnored());
+	}
+
+	@Test
+	public void shouldFrameDatagram() {
+		NmeaFrameStats stats = new NmeaFrameStats();
+		Nmea0183FrameDecoder decoder = new Nmea0183FrameDecoder(stats, false, null);
+		List<Object> out = new ArrayList<Object>();
+		// last sentence has no line end
+		decoder.frame(buf(VTG + "\r\n" + ZDA), out, true);
+		assertEquals(2, out.size());
+		assertEquals(ZDA, out.get(1));
+	}
+
+	@Test
+	public void shouldFrameLog() throws Exception {
+		byte[] log = FileUtils.readFileToByteArray(new File("src/test/resources/samples/PacCupStartNMEA.txt"));
+		NmeaFrameStats stats = new NmeaFrameStats();
+		Nmea0183FrameDecoder decoder = new Nmea0183FrameDecoder(stats, true, null);
+		List<Object> out = new ArrayList<Object>();
+		long start = System.nanoTime();
+		// feed in socket sized chunks
+		ByteBuf in = Unpooled.buffer();
+		for (int pos = 0; pos < log.length; pos += 1460) {
+			in.writeBytes(log, pos, Math.min(1460, log.length - pos));
+			decoder.frame(in, out, false);
+			in.discardReadBytes();
+		}
+		logger.info("Framed " + out.size() + " sentences in " + (System.nanoTime() - start) / 1000000 + "ms");
+		assertEquals(59887, stats.getValid());
+		assertEquals(0, stats.getBadChecksum());
+	}
+}
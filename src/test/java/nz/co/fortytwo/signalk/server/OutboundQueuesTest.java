@@ -0,0 +1,233 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import nz.co.fortytwo.signalk.util.ConfigConstants;
+import nz.co.fortytwo.signalk.util.Util;
+
+public class OutboundQueuesTest {
+
+	private static Logger logger = LogManager.getLogger(OutboundQueuesTest.class);
+
+	private static final Map<String, Object> NO_HEADERS = Collections.emptyMap();
+
+	@BeforeClass
+	public static void init() throws Exception {
+		Util.getConfig();
+	}
+
+	/**
+	 * Records the sends instead of writing them, holding the slow session until released
+	 */
+	static class Recorder extends OutboundQueues {
+		final LinkedBlockingQueue<String> fast = new LinkedBlockingQueue<>();
+		final CountDownLatch release = new CountDownLatch(1);
+
+		Recorder(int maxMessages, int threads) {
+			super(maxMessages, 1024 * 1024, threads);
+		}
+
+		@Override
+		protected void send(OutboundQueue queue, OutboundQueue.Entry entry) throws Exception {
+			if ("slow".equals(queue.getSession())) {
+				release.await(10, TimeUnit.SECONDS);
+				return;
+			}
+			fast.add(entry.msg);
+		}
+	}
+
+	private String delta(double value, String... paths) {
+		StringBuilder values = new StringBuilder();
+		for (String path : paths) {
+			if (values.length() > 0)
+				values.append(",");
+			values.append("{\"path\":\"" + path + "\",\"value\":" + value + "}");
+		}
+		return "{\"context\":\"vessels.motu\",\"updates\":[{\"values\":[" + values + "],\"timestamp\":\"2016-04-12T17:25:52.000Z\"}]}";
+	}
+
+	@Test
+	public void shouldConflateSamePathsWhenBehind() throws Exception {
+		OutboundQueue queue = new OutboundQueue("s1", ConfigConstants.OUTPUT_WS, 100, 1024 * 1024);
+		assertTrue(queue.offer(delta(1.0, "navigation.speedOverGround"), NO_HEADERS));
+		// a drain is already started
+		assertFalse(queue.offer(delta(2.0, "navigation.speedOverGround"), NO_HEADERS));
+		assertFalse(queue.offer(delta(3.0, "navigation.speedOverGround"), NO_HEADERS));
+		assertEquals(1, queue.getDepth());
+		assertEquals(2, queue.getConflations());
+		assertTrue(queue.next().msg.contains("3.0"));
+		assertNull(queue.next());
+	}
+
+	@Test
+	public void shouldKeepMessagesWithOtherPaths() throws Exception {
+		OutboundQueue queue = new OutboundQueue("s2", ConfigConstants.OUTPUT_WS, 100, 1024 * 1024);
+		queue.offer(delta(1.0, "navigation.speedOverGround", "navigation.courseOverGroundTrue"), NO_HEADERS);
+		// only covers one of the queued paths
+		queue.offer(delta(2.0, "navigation.speedOverGround"), NO_HEADERS);
+		assertEquals(2, queue.getDepth());
+		// covers both
+		queue.offer(delta(3.0, "navigation.courseOverGroundTrue", "navigation.speedOverGround", "environment.depth.belowKeel"),
+				NO_HEADERS);
+		assertEquals(1, queue.getDepth());
+		assertEquals(2, queue.getConflations());
+		// not a delta, never conflated
+		queue.offer("$GPRMB,A,4.08,L,EGLL,EGLM,5130.02,N,00046.34,W,004.6,213.9,122.9,A*3D", NO_HEADERS);
+		queue.offer("$GPRMB,A,4.08,L,EGLL,EGLM,5130.02,N,00046.34,W,004.6,213.9,122.9,A*3D", NO_HEADERS);
+		assertEquals(3, queue.getDepth());
+	}
+
+	@Test
+	public void shouldDropOldestButKeepNotifications() throws Exception {
+		OutboundQueue queue = new OutboundQueue("s3", ConfigConstants.OUTPUT_TCP, 3, 1024 * 1024);
+		queue.offer(delta(1.0, "notifications.mob"), NO_HEADERS);
+		queue.offer(delta(1.0, "notifications.mob"), NO_HEADERS);
+		for (int x = 0; x < 5; x++) {
+			queue.offer(delta(x, "environment.depth" + x), NO_HEADERS);
+		}
+		assertEquals(3, queue.getDepth());
+		assertEquals(4, queue.getDrops());
+		assertEquals(0, queue.getConflations());
+		assertTrue(queue.next().msg.contains("notifications.mob"));
+		assertTrue(queue.next().msg.contains("notifications.mob"));
+		assertTrue(queue.next().msg.contains("environment.depth4"));
+	}
+
+	@Test
+	public void shouldBoundBytes() throws Exception {
+		String msg = delta(1.0, "environment.depth0");
+		OutboundQueue queue = new OutboundQueue("s4", ConfigConstants.OUTPUT_TCP, 100, msg.length() * 2);
+		for (int x = 0; x < 5; x++) {
+			queue.offer(delta(1.0, "environment.depth" + x), NO_HEADERS);
+		}
+		assertEquals(2, queue.getDepth());
+		assertTrue(queue.getBytes() <= msg.length() * 2);
+	}
+
+	@Test
+	public void shouldPauseWhileNotWritable() throws Exception {
+		OutboundQueue queue = new OutboundQueue("s5", ConfigConstants.OUTPUT_TCP, 100, 1024 * 1024);
+		assertTrue(queue.offer(delta(1.0, "environment.depth0"), NO_HEADERS));
+		assertFalse(queue.setWritable(false));
+		// the drain ends
+		assertNull(queue.next());
+		assertFalse(queue.offer(delta(1.0, "environment.depth1"), NO_HEADERS));
+		assertTrue(queue.setWritable(true));
+		assertTrue(queue.next().msg.contains("environment.depth0"));
+	}
+
+	@Test
+	public void shouldNotDelaySessionsForSlowClient() throws Exception {
+		Recorder queues = new Recorder(10, 4);
+		int count = 200;
+		long maxWait = 0;
+		for (int x = 0; x < count; x++) {
+			String msg = delta(x, "environment.depth" + (x % 5));
+			queues.offer("slow", ConfigConstants.OUTPUT_WS, msg, NO_HEADERS);
+			long start = System.nanoTime();
+			queues.offer("fast", ConfigConstants.OUTPUT_WS, msg, NO_HEADERS);
+			assertEquals(msg, queues.fast.poll(2, TimeUnit.SECONDS));
+			maxWait = Math.max(maxWait, System.nanoTime() - start);
+		}
+		OutboundQueue slow = queues.getQueue("slow");
+		logger.info("Fast session max wait " + (maxWait / 1000) + "us over " + count + " messages, slow session " + slow);
+		assertTrue(slow.getDepth() <= 10);
+		assertEquals(count, slow.getSent() + slow.getDepth() + slow.getDrops() + slow.getConflations());
+		assertTrue(slow.getConflations() > 0);
+		assertEquals(0, queues.getQueue("fast").getDrops());
+		queues.release.countDown();
+		queues.remove("slow");
+		queues.remove("fast");
+		assertEquals(0, queues.getSessions());
+	}
+
+	@Test
+	public void shouldConflateAndDropStuckWebsocket() throws Exception {
+		// the websocket write blocks one of the two threads, as jetty does when the client stops reading
+		Recorder queues = new Recorder(200, 2);
+		queues.offer("slow", ConfigConstants.OUTPUT_WS, delta(0, "navigation.speedOverGround"), NO_HEADERS);
+		for (int x = 1; x <= 50; x++) {
+			queues.offer("slow", ConfigConstants.OUTPUT_WS, delta(x, "navigation.speedOverGround"), NO_HEADERS);
+		}
+		OutboundQueue slow = queues.getQueue("slow");
+		// only the latest waits behind the one in the write
+		assertTrue(slow.getDepth() <= 1);
+		assertTrue(slow.getConflations() >= 49);
+		assertEquals(0, slow.getDrops());
+		for (int x = 0; x < 250; x++) {
+			queues.offer("slow", ConfigConstants.OUTPUT_WS, delta(x, "environment.depth" + x), NO_HEADERS);
+		}
+		assertEquals(200, slow.getDepth());
+		assertTrue(slow.getDrops() >= 50);
+
+		// more sessions than threads still get through on the other thread, in turns of BATCH
+		int sessions = 5;
+		int count = OutboundQueues.BATCH * 2;
+		for (int x = 0; x < count; x++) {
+			for (int y = 0; y < sessions; y++) {
+				queues.offer("fast" + y, ConfigConstants.OUTPUT_TCP, "$GPRMB," + y + "," + x, NO_HEADERS);
+			}
+		}
+		for (int x = 0; x < count * sessions; x++) {
+			assertTrue(queues.fast.poll(2, TimeUnit.SECONDS) != null);
+		}
+		for (int y = 0; y < sessions; y++) {
+			assertEquals(count, queues.getQueue("fast" + y).getSent());
+		}
+		queues.release.countDown();
+		assertEquals(2, queues.getThreads());
+	}
+
+	@Test
+	public void shouldQueueEveryBrokerOutput() throws Exception {
+		// send to all is queued for each session that has a route
+		assertEquals(RouteManager.DIRECT_WEBSOCKETS, OutboundQueues.getEndpoint(ConfigConstants.OUTPUT_WS));
+		assertEquals(RouteManager.DIRECT_TCP, OutboundQueues.getEndpoint(ConfigConstants.OUTPUT_TCP));
+		assertEquals(RouteManager.DIRECT_MQTT, OutboundQueues.getEndpoint(ConfigConstants.OUTPUT_MQTT));
+		assertEquals(RouteManager.DIRECT_STOMP, OutboundQueues.getEndpoint(ConfigConstants.OUTPUT_STOMP));
+		// left to the rest of the route
+		assertNull(OutboundQueues.getEndpoint(ConfigConstants.OUTPUT_XMPP));
+		assertNull(OutboundQueues.getEndpoint(ConfigConstants.OUTPUT_NMEA));
+	}
+
+}
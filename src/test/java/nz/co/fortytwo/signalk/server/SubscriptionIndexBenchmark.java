@@ -0,0 +1,77 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.Util;
+
+/**
+ * Rough comparison of the index against every subscription checking every key, as each one did when registered on the event bus.
+ * 100 websocket clients on vessels.* and 20 on our own navigation, while plaka.nmea is replayed.
+ * Not part of the test suite, run it from the ide or with exec:java.
+ */
+public class SubscriptionIndexBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		Util.getConfig();
+		Util.setSelf("motu");
+		SignalKModelFactory.getMotuTestInstance();
+		List<String> events = SubscriptionIndexTest.readKeys();
+		List<Subscription> subs = SubscriptionIndexTest.subscriptions();
+		SubscriptionIndex index = new SubscriptionIndex();
+		for (Subscription s : subs) {
+			index.add(s);
+		}
+		List<Subscription> out = new ArrayList<>();
+		long scan = 0;
+		long indexed = 0;
+		// the first runs warm up
+		for (int run = 0; run < 5; run++) {
+			long start = System.nanoTime();
+			long hits = 0;
+			for (String key : events) {
+				for (Subscription s : subs) {
+					if (s.isSubscribed(key))
+						hits++;
+				}
+			}
+			scan = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (String key : events) {
+				out.clear();
+				index.match(key, out);
+				hits -= out.size();
+			}
+			indexed = System.nanoTime() - start;
+			if (hits != 0)
+				System.out.println("Different matches: " + hits);
+		}
+		System.out.println(events.size() + " events, " + subs.size() + " subscriptions: every subscription " + scan / 1000000 + "ms, index " + indexed / 1000000 + "ms");
+	}
+}
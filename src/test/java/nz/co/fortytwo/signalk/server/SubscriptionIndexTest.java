@@ -0,0 +1,224 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+
+import nz.co.fortytwo.signalk.handler.NMEAHandler;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.SignalKConstants;
+import nz.co.fortytwo.signalk.util.Util;
+
+public class SubscriptionIndexTest {
+
+	private static Logger logger = LogManager.getLogger(SubscriptionIndexTest.class);
+
+	@BeforeClass
+	public static void init() throws Exception {
+		Util.getConfig();
+		Util.setSelf("motu");
+		SignalKModelFactory.getMotuTestInstance();
+	}
+
+	private Subscription sub(String session, String path) {
+		return new Subscription(session, path, 1000, 0, SignalKConstants.FORMAT_DELTA, SignalKConstants.POLICY_FIXED);
+	}
+
+	private List<Subscription> match(SubscriptionIndex index, String key) {
+		List<Subscription> out = new ArrayList<>();
+		index.match(key, out);
+		return out;
+	}
+
+	@Test
+	public void shouldFindInterestedSubscriptions() {
+		SubscriptionIndex index = new SubscriptionIndex();
+		Subscription nav = sub("a", "vessels.motu.navigation");
+		Subscription any = sub("b", "vessels.*");
+		Subscription course = sub("c", "vessels.*.navigation.course*True");
+		Subscription env = sub("d", "vessels.motu.environment");
+		index.add(nav);
+		index.add(any);
+		index.add(course);
+		index.add(env);
+
+		assertEquals(3, match(index, "vessels.motu.navigation.courseOverGroundTrue.value").size());
+		assertEquals(2, match(index, "vessels.motu.navigation.position.latitude").size());
+		assertEquals(1, match(index, "vessels.other.navigation.position.latitude").size());
+		// parents and partial segments are not matched
+		assertEquals(0, match(index, "vessels").size());
+		assertEquals(1, match(index, "vessels.motu.nav").size());
+		assertTrue(match(index, "vessels.motu.environment.wind.angleApparent").contains(env));
+
+		index.remove(any);
+		assertEquals(0, match(index, "vessels.other.navigation.position.latitude").size());
+		assertEquals(2, match(index, "vessels.motu.navigation.courseOverGroundTrue.value").size());
+	}
+
+	@Test
+	public void shouldPruneRemovedSubscriptions() {
+		SubscriptionIndex index = new SubscriptionIndex();
+		Subscription nav = sub("a", "vessels.motu.navigation");
+		Subscription course = sub("b", "vessels.*.navigation.course*True");
+		Subscription position = sub("c", "vessels.motu.navigation.position");
+		index.add(nav);
+		index.add(course);
+		index.add(position);
+
+		index.remove(position);
+		// the parent still has a subscription
+		assertEquals(1, match(index, "vessels.motu.navigation.position.latitude").size());
+		index.remove(nav);
+		index.remove(course);
+		assertTrue(index.isEmpty());
+		assertEquals(0, match(index, "vessels.motu.navigation.courseOverGroundTrue.value").size());
+		// removing again is harmless
+		index.remove(nav);
+		assertTrue(index.isEmpty());
+	}
+
+	@Test
+	public void shouldSendTimestampAndSourceChangesAsTheirNode() {
+		SubscriptionIndex index = new SubscriptionIndex();
+		Subscription nav = sub("a", "vessels.motu.navigation");
+		nav.setRouteId("route_a");
+		index.add(nav);
+		String sog = "vessels.motu.navigation.speedOverGround";
+		String pos = "vessels.motu.navigation.position";
+
+		// only the time and source changed, the value was the same
+		Map<String, SubscriptionIndex.RouteChanges> routes = collect(index, sog + ".timestamp", sog + ".$source");
+		assertEquals(ImmutableSet.of(sog), routes.get("route_a").paths);
+		assertTrue(nav.getSubscribed(null).contains(sog + ".timestamp"));
+
+		// the node once, when the value and its time change together, in either order
+		routes = collect(index, sog + ".source.label", sog + ".timestamp", sog + ".value", pos + ".value");
+		assertEquals(ImmutableSet.of(sog, pos + ".value"), routes.get("route_a").paths);
+		routes = collect(index, pos + ".value", pos + ".timestamp");
+		assertEquals(ImmutableSet.of(pos + ".value"), routes.get("route_a").paths);
+
+		// an object value keeps its own keys
+		routes = collect(index, pos + ".latitude", pos + ".longitude", pos + ".timestamp");
+		assertEquals(ImmutableSet.of(pos + ".latitude", pos + ".longitude", pos), routes.get("route_a").paths);
+
+		assertNull(collect(index, "vessels.other.navigation.speedOverGround.timestamp"));
+	}
+
+	@Test
+	public void shouldFindTheNodeOfMetaKeys() {
+		assertEquals("vessels.motu.navigation.speedOverGround", SubscriptionIndex.metaNode("vessels.motu.navigation.speedOverGround.timestamp"));
+		assertEquals("vessels.motu.navigation.speedOverGround", SubscriptionIndex.metaNode("vessels.motu.navigation.speedOverGround.$source"));
+		assertEquals("vessels.motu.navigation.speedOverGround", SubscriptionIndex.metaNode("vessels.motu.navigation.speedOverGround.source"));
+		assertEquals("vessels.motu.navigation.speedOverGround", SubscriptionIndex.metaNode("vessels.motu.navigation.speedOverGround.source.label"));
+		assertNull(SubscriptionIndex.metaNode("vessels.motu.navigation.speedOverGround.value"));
+		assertNull(SubscriptionIndex.metaNode("vessels.motu.navigation.position.latitude"));
+	}
+
+	private Map<String, SubscriptionIndex.RouteChanges> collect(SubscriptionIndex index, String... keys) {
+		int[] ids = new int[keys.length];
+		Arrays.fill(ids, -1);
+		return index.collect(Arrays.asList(keys), ids);
+	}
+
+	/**
+	 * 100 websocket clients on vessels.* and 20 on our own navigation, with the keys from plaka.nmea.
+	 * The index gives the same answer as every subscription checking every key, as each one did when registered on the event bus.
+	 */
+	@Test
+	public void shouldMatchLikeEverySubscription() throws Exception {
+		List<String> keys = readKeys();
+		List<Subscription> subs = subscriptions();
+		SubscriptionIndex index = new SubscriptionIndex();
+		for (Subscription s : subs) {
+			index.add(s);
+		}
+		Set<String> distinct = new LinkedHashSet<>(keys);
+		assertTrue(distinct.size() > 0);
+		List<Subscription> out = new ArrayList<>();
+		for (String key : distinct) {
+			int count = 0;
+			for (Subscription s : subs) {
+				if (s.isSubscribed(key))
+					count++;
+			}
+			out.clear();
+			index.match(key, out);
+			assertEquals(key, count, out.size());
+			// and again from the cache
+			out.clear();
+			index.match(key, out);
+			assertEquals(key, count, out.size());
+		}
+	}
+
+	/**
+	 * The keys of each model fragment from plaka.nmea, in order
+	 */
+	static List<String> readKeys() throws Exception {
+		List<String> keys = new ArrayList<>();
+		NMEAHandler nmea = new NMEAHandler();
+		for (String line : FileUtils.readLines(new File("src/test/resources/samples/plaka.nmea"))) {
+			try {
+				SignalKModel node = nmea.handle(line, null);
+				if (node != null)
+					keys.addAll(node.getKeys());
+			} catch (Exception e) {
+				logger.debug(e.getMessage());
+			}
+		}
+		return keys;
+	}
+
+	static List<Subscription> subscriptions() {
+		List<Subscription> subs = new ArrayList<>();
+		for (int x = 0; x < 100; x++) {
+			subs.add(new Subscription("ws" + x, "vessels.*", 1000, 0, SignalKConstants.FORMAT_DELTA, SignalKConstants.POLICY_FIXED));
+		}
+		for (int x = 0; x < 20; x++) {
+			subs.add(new Subscription("nav" + x, "vessels.self.navigation", 1000, 0, SignalKConstants.FORMAT_DELTA, SignalKConstants.POLICY_FIXED));
+		}
+		return subs;
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.server;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.FORMAT_DELTA;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.POLICY_FIXED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import nz.co.fortytwo.signalk.util.ConfigConstants;
+import nz.co.fortytwo.signalk.util.SignalKConstants;
+
+public class SubscriptionSchedulerTest {
+
+	private static Logger logger = LogManager.getLogger(SubscriptionSchedulerTest.class);
+
+	@BeforeClass
+	public static void init() throws Exception {
+		RouteManagerFactory.getMotuTestInstance();
+	}
+
+	private Subscription sub(String wsSession, String path, long period) {
+		return new Subscription(wsSession, "vessels." + SignalKConstants.self + "." + path, period, 0, FORMAT_DELTA, POLICY_FIXED);
+	}
+
+	@Test
+	public void shouldShareTaskForSamePeriod() throws Exception {
+		SubscriptionScheduler scheduler = new SubscriptionScheduler(10, 1);
+		String wsSession = UUID.randomUUID().toString();
+		Subscription nav = sub(wsSession, "navigation", 1000);
+		scheduler.schedule(nav);
+		assertEquals(1, scheduler.getTasks());
+		assertTrue(scheduler.isScheduled(nav));
+		//same session and period shares the route
+		Subscription env = sub(wsSession, "environment", 1000);
+		env.setRouteId(nav.getRouteId());
+		scheduler.schedule(env);
+		assertEquals(1, scheduler.getTasks());
+		//different period gets its own
+		Subscription slow = sub(wsSession, "navigation.position", 5000);
+		scheduler.schedule(slow);
+		assertEquals(2, scheduler.getTasks());
+		assertNotEquals(nav.getRouteId(), slow.getRouteId());
+
+		scheduler.cancel(nav);
+		assertFalse(scheduler.isScheduled(nav));
+		assertEquals(1, scheduler.getTasks());
+		scheduler.cancel(slow);
+		assertEquals(0, scheduler.getTasks());
+	}
+
+	// moved on by the test, not the wall clock
+	private static final AtomicLong clock = new AtomicLong();
+
+	private SubscriptionScheduler manual(long tick) {
+		return new SubscriptionScheduler(tick, 1, false) {
+			@Override
+			long now() {
+				return clock.get();
+			}
+		};
+	}
+
+	@Test
+	public void shouldRunTaskEachPeriod() throws Exception {
+		clock.set(1000000);
+		SubscriptionScheduler scheduler = manual(10);
+		Subscription nav = sub(UUID.randomUUID().toString(), "navigation", 100);
+		scheduler.schedule(nav);
+		// 1050ms, due at 1000100 to 1001000
+		for (int x = 0; x < 105; x++) {
+			scheduler.tick(clock.addAndGet(10));
+		}
+		logger.debug("Runs " + scheduler.getRuns() + ", skipped " + scheduler.getSkipped());
+		assertEquals(10, scheduler.getRuns() + scheduler.getSkipped());
+		scheduler.cancel(nav);
+		for (int x = 0; x < 30; x++) {
+			scheduler.tick(clock.addAndGet(10));
+		}
+		assertEquals(10, scheduler.getRuns() + scheduler.getSkipped());
+	}
+
+	@Test
+	public void shouldConnectManySessionsQuickly() throws Exception {
+		SubscriptionManager manager = SubscriptionManagerFactory.getInstance();
+		SubscriptionScheduler scheduler = SubscriptionScheduler.getInstance();
+		int tasks = scheduler.getTasks();
+		int sessions = 500;
+		List<String> wsSessions = new ArrayList<String>();
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+
+		long cpu = mx.getCurrentThreadCpuTime();
+		long start = System.nanoTime();
+		for (int x = 0; x < sessions; x++) {
+			String wsSession = UUID.randomUUID().toString();
+			wsSessions.add(wsSession);
+			manager.add("ses" + wsSession, wsSession, ConfigConstants.OUTPUT_WS, "127.0.0.1", "127.0.0.1");
+			manager.addSubscription(sub(wsSession, "navigation", 1000));
+		}
+		long connect = System.nanoTime() - start;
+		cpu = mx.getCurrentThreadCpuTime() - cpu;
+		assertEquals(tasks + sessions, scheduler.getTasks());
+		logger.info("Connected " + sessions + " sessions in " + (connect / 1000000) + "ms, " + (cpu / 1000000) + "ms cpu, "
+				+ (sessions * 1000000000L / Math.max(1, connect)) + " sessions/s");
+
+		//cpu spent by the scheduler threads until every session has exported, each is due once a period
+		long schedulerCpu = schedulerCpu(mx);
+		long runs = scheduler.getRuns();
+		start = System.nanoTime();
+		for (int x = 0; x < 1000 && scheduler.getRuns() - runs < sessions; x++) {
+			Thread.sleep(10);
+		}
+		schedulerCpu = schedulerCpu(mx) - schedulerCpu;
+		logger.info("Ran " + (scheduler.getRuns() - runs) + " exports (" + scheduler.getSkipped() + " skipped) in "
+				+ ((System.nanoTime() - start) / 1000000) + "ms using " + (schedulerCpu / 1000000) + "ms scheduler cpu, max tick "
+				+ scheduler.getMaxTickLatency() + "us");
+		assertTrue(scheduler.getRuns() - runs >= sessions);
+
+		start = System.nanoTime();
+		for (String wsSession : wsSessions) {
+			manager.removeWsSession(wsSession);
+		}
+		logger.info("Disconnected " + sessions + " sessions in " + ((System.nanoTime() - start) / 1000000) + "ms");
+		assertEquals(tasks, scheduler.getTasks());
+	}
+
+	private long schedulerCpu(ThreadMXBean mx) {
+		long total = 0;
+		for (ThreadInfo info : mx.getThreadInfo(mx.getAllThreadIds())) {
+			if (info == null || !info.getThreadName().startsWith("Subscription"))
+				continue;
+			long t = mx.getThreadCpuTime(info.getThreadId());
+			if (t > 0)
+				total += t;
+		}
+		return total;
+	}
+
+}
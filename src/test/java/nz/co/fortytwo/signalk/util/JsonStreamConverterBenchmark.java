@@ -0,0 +1,68 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import mjson.Json;
+import nz.co.fortytwo.signalk.handler.DeltaToMapConverter;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+
+/**
+ * Rough comparison of bytes allocated per message against Json.read and DeltaToMapConverter.
+ * Not part of the test suite, run it from the ide or with exec:java.
+ */
+public class JsonStreamConverterBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		SignalKModelFactory.getMotuTestInstance();
+		List<String> lines = FileUtils.readLines(new File("src/test/resources/samples/Delta1000ExamplesSeattle.txt"));
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long id = Thread.currentThread().getId();
+		DeltaToMapConverter deltaToMap = new DeltaToMapConverter();
+		JsonStreamConverter stream = new JsonStreamConverter();
+		long tree = 0;
+		long streamed = 0;
+		// the first runs warm up
+		for (int run = 0; run < 5; run++) {
+			long start = mx.getThreadAllocatedBytes(id);
+			for (String line : lines) {
+				deltaToMap.handle(Json.read(line));
+			}
+			tree = mx.getThreadAllocatedBytes(id) - start;
+			start = mx.getThreadAllocatedBytes(id);
+			for (String line : lines) {
+				stream.handleDelta(line, MessageClass.classify(line).getContext());
+			}
+			streamed = mx.getThreadAllocatedBytes(id) - start;
+		}
+		System.out.println(lines.size() + " deltas, tree " + tree / lines.size() + " bytes/msg, stream " + streamed / lines.size() + " bytes/msg");
+	}
+}
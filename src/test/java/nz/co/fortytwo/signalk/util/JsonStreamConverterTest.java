@@ -0,0 +1,141 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import mjson.Json;
+import nz.co.fortytwo.signalk.handler.DeltaToMapConverter;
+import nz.co.fortytwo.signalk.handler.FullToMapConverter;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+
+public class JsonStreamConverterTest {
+
+	private static final String CTX = "vessels.urn:mrn:imo:mmsi:123456789";
+
+	@BeforeClass
+	public static void init() throws Exception {
+		SignalKModelFactory.getMotuTestInstance();
+	}
+
+	@Test
+	public void shouldFlattenDelta() throws Exception {
+		String msg = "{\"context\": \"" + CTX + "\",\"updates\":[{\"source\": {\"type\": \"NMEA2000\",\"src\": \"1-38\",\"pgn\":129025,\"label\": \"N2000-01\"},"
+				+ "\"timestamp\": \"2016-04-12T17:25:52Z\",\"values\":[{\"path\": \"navigation.position\",\"value\": {\"longitude\": -122.959557,\"latitude\": 48.519600}},"
+				+ "{\"value\": 3.2, \"path\": \"navigation.speedOverGround\"}]}]}";
+		SignalKModel model = new JsonStreamConverter().handleDelta(msg, CTX);
+		assertNotNull(model);
+		assertEquals(48.5196, (double) model.getFullData().get(CTX + ".navigation.position.latitude"), 0.00001);
+		assertEquals(-122.959557, (double) model.getFullData().get(CTX + ".navigation.position.longitude"), 0.00001);
+		assertEquals(3.2, (double) model.getFullData().get(CTX + ".navigation.speedOverGround.value"), 0.00001);
+		assertEquals("2016-04-12T17:25:52Z", model.getFullData().get(CTX + ".navigation.speedOverGround.timestamp"));
+		assertEquals("N2000-01", model.getFullData().get(CTX + ".navigation.position.source.label"));
+		assertEquals(129025L, model.getFullData().get(CTX + ".navigation.position.source.pgn"));
+	}
+
+	@Test
+	public void shouldIgnoreDeltaWithoutUpdates() throws Exception {
+		assertNull(new JsonStreamConverter().handleDelta("{\"context\":\"" + CTX + "\",\"subscribe\":[{\"path\":\"*\"}]}", CTX));
+		assertNull(new JsonStreamConverter().handleDelta("{\"updates\":[]}", null));
+	}
+
+	@Test
+	public void shouldFlattenFull() throws Exception {
+		String msg = "{\"version\":\"1.0\",\"vessels\":{\"self\":{\"navigation\":{\"courseOverGroundTrue\":{\"value\":1.2,\"timestamp\":\"2016-04-12T17:25:52Z\"}},"
+				+ "\"name\":\"motu\",\"alarms\":{\"zones\":[1,2]}}}}";
+		SignalKModel model = new JsonStreamConverter().handleFull(msg);
+		assertNotNull(model);
+		assertEquals(1.2, (double) model.getFullData().get(SignalKConstants.vessels_dot_self_dot + "navigation.courseOverGroundTrue.value"), 0.00001);
+		assertEquals("motu", model.getFullData().get(SignalKConstants.vessels_dot_self_dot + "name"));
+		assertEquals(Json.read("[1,2]"), model.getFullData().get(SignalKConstants.vessels_dot_self_dot + "alarms.zones"));
+		assertNull(model.getFullData().get("version"));
+	}
+
+	@Test
+	public void shouldMatchDeltaToMapConverter() throws Exception {
+		List<String> msgs = new ArrayList<>(FileUtils.readLines(new File("src/test/resources/samples/Delta1000ExamplesSeattle.txt")));
+		msgs.add(FileUtils.readFileToString(new File("src/test/resources/samples/windAngleUpdate.json.txt")));
+		// self, integers, value before path, $source, arrays and a context with a trailing dot
+		msgs.add("{\"context\":\"vessels.self\",\"updates\":[{\"$source\":\"nmea.0183.GP\",\"timestamp\":\"2016-04-12T17:25:52Z\","
+				+ "\"values\":[{\"value\":7,\"path\":\"navigation.speedOverGround\"},{\"path\":\"navigation.courseOverGroundTrue\",\"value\":1.5e-2}]}]}");
+		msgs.add("{\"context\":\"" + CTX + ".\",\"updates\":[{\"source\":{\"label\":\"N2000-01\",\"pgn\":130306},"
+				+ "\"values\":[{\"path\":\"environment.wind\",\"value\":{\"angleApparent\":2,\"speedApparent\":6.5}},"
+				+ "{\"path\":\"navigation.gnss.satellitesInView\",\"value\":[1,2.5,\"x\"]}]}]}");
+		msgs.add("{\"context\":\"vessels.self\",\"put\":[{\"values\":[{\"path\":\"steering.autopilot.target.headingMagnetic\",\"value\":12345678901234567890}]}]}");
+		DeltaToMapConverter deltaToMap = new DeltaToMapConverter();
+		JsonStreamConverter stream = new JsonStreamConverter();
+		for (String msg : msgs) {
+			msg = msg.trim();
+			if (msg.length() == 0)
+				continue;
+			assertSameData(msg, deltaToMap.handle(Json.read(msg)), stream.handleDelta(msg, MessageClass.classify(msg).getContext()));
+		}
+	}
+
+	@Test
+	public void shouldMatchFullToMapConverter() throws Exception {
+		FullToMapConverter fullToMap = new FullToMapConverter();
+		JsonStreamConverter stream = new JsonStreamConverter();
+		for (String file : new String[] { "basic_nav.json", "mega-output.json.txt", "sk_in1.json", "signalk-config-test.json" }) {
+			String msg = FileUtils.readFileToString(new File("src/test/resources/samples/" + file)).trim();
+			assertSameData(file, fullToMap.handle(Json.read(msg)), stream.handleFull(msg));
+		}
+	}
+
+	@Test
+	public void shouldResolveSelf() throws Exception {
+		SignalKModel model = new JsonStreamConverter().handleDelta("{\"context\":\"vessels.self\",\"updates\":[{\"values\":[{\"path\":\"navigation.speedOverGround\",\"value\":3}]}]}",
+				"vessels.self");
+		assertEquals(3L, model.getFullData().get(SignalKConstants.vessels_dot_self_dot + "navigation.speedOverGround.value"));
+		model = new JsonStreamConverter().handleFull("{\"vessels\":{\"self\":{\"name\":\"motu\"},\"selfish\":{\"name\":\"other\"}}}");
+		assertEquals("motu", model.getFullData().get(SignalKConstants.vessels_dot_self_dot + "name"));
+		assertEquals("other", model.getFullData().get("vessels.selfish.name"));
+	}
+
+	/**
+	 * Same keys, and the same values with the same types
+	 */
+	private void assertSameData(String msg, SignalKModel expected, SignalKModel actual) {
+		if (expected == null) {
+			assertNull(msg, actual);
+			return;
+		}
+		assertNotNull(msg, actual);
+		assertEquals(msg, new TreeMap<>(expected.getFullData()), new TreeMap<>(actual.getFullData()));
+	}
+}
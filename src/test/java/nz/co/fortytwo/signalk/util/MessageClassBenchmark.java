@@ -0,0 +1,62 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import java.io.File;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import mjson.Json;
+
+/**
+ * Rough comparison of classifying against a full Json.read, as the input filter used to do.
+ * Not part of the test suite, run it from the ide or with exec:java.
+ */
+public class MessageClassBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		for (String file : new String[] { "Delta1000ExamplesSeattle.txt", "signalkKeesLog.txt" }) {
+			List<String> lines = FileUtils.readLines(new File("src/test/resources/samples/" + file));
+			long parse = 0;
+			long classify = 0;
+			// the first runs warm up
+			for (int run = 0; run < 5; run++) {
+				long start = System.nanoTime();
+				for (String line : lines) {
+					Json.read(line.trim()).has(SignalKConstants.CONTEXT);
+				}
+				parse = System.nanoTime() - start;
+				start = System.nanoTime();
+				for (String line : lines) {
+					MessageClass.classify(line.trim()).has(MessageClass.HAS_CONTEXT);
+				}
+				classify = System.nanoTime() - start;
+			}
+			System.out.println(file + ": " + lines.size() + " msgs, Json.read " + parse / 1000 + "us, classify " + classify / 1000 + "us");
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.apache.camel.component.websocket.WebsocketConstants;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import mjson.Json;
+
+public class MessageClassTest {
+
+	@Test
+	public void shouldClassifySentences() {
+		assertEquals(MessageClass.NMEA, MessageClass.classify("$IIVHW,,T,,M,06.11,N,11.31,K*51").getType());
+		assertEquals(MessageClass.AIS, MessageClass.classify("!AIVDM,1,1,,B,15MwkRUOidG?GElEa<iQk1JV06Jd,0*6D").getType());
+		assertEquals(MessageClass.UNKNOWN, MessageClass.classify("rubbish").getType());
+		assertFalse(MessageClass.classify("$IIVHW,,T,,M,06.11,N,11.31,K*51").isJson());
+	}
+
+	@Test
+	public void shouldClassifyJson() {
+		MessageClass mc = MessageClass.classify("{\"context\":\"vessels.self\",\"subscribe\":[{\"path\":\"*\",\"policy\":\"instant\"}]}");
+		assertEquals(MessageClass.SUBSCRIBE, mc.getType());
+		assertEquals("vessels.self", mc.getContext());
+
+		mc = MessageClass.classify("{\"context\":\"vessels.self\", \"get\": [{\"path\":\"navigation\"}]}");
+		assertEquals(MessageClass.GET, mc.getType());
+
+		mc = MessageClass.classify("{\"context\":\"vessels.self\", \"list\": [{\"path\":\"navigation\"}]}");
+		assertEquals(MessageClass.LIST, mc.getType());
+
+		mc = MessageClass.classify("{\"vessels\":{\"self\":{\"navigation\":{\"context\":\"trap\"}}}}");
+		assertEquals(MessageClass.FULL, mc.getType());
+		// nested keys are ignored
+		assertFalse(mc.has(MessageClass.HAS_CONTEXT));
+
+		mc = MessageClass.classify("{\"config\":{\"server\":{}}}");
+		assertEquals(MessageClass.CONFIG, mc.getType());
+
+		mc = MessageClass.classify("{\"timestamp\":\"2016-01-01T00:00:00Z\",\"prio\":2,\"src\":\"115\",\"pgn\":128267,\"description\":\"Water \\\"Depth\\\"\",\"fields\":{\"Depth\":5.2}}");
+		assertEquals(MessageClass.N2K, mc.getType());
+
+		mc = MessageClass.classify("{\"context\":\"vessels.self\",\"" + WebsocketConstants.CONNECTION_KEY + "\":\"abc\",\"" + ConfigConstants.REPLY_TO
+				+ "\":\"queue\",\"updates\":[{\"values\":[{\"path\":\"a\",\"value\":true}]}]}");
+		assertEquals(MessageClass.DELTA, mc.getType());
+		assertEquals("abc", mc.getConnectionKey());
+		assertEquals("queue", mc.getReplyTo());
+		assertTrue(mc.has(MessageClass.HAS_UPDATES));
+	}
+
+	@Test
+	public void shouldMatchFullParse() throws Exception {
+		for (String file : new String[] { "Delta1000ExamplesSeattle.txt", "signalkKeesLog.txt" }) {
+			for (String line : FileUtils.readLines(new File("src/test/resources/samples/" + file))) {
+				line = line.trim();
+				if (!line.startsWith("{"))
+					continue;
+				MessageClass mc = MessageClass.classify(line);
+				Json json = Json.read(line);
+				assertEquals(line, json.has(SignalKConstants.CONTEXT), mc.has(MessageClass.HAS_CONTEXT));
+				assertEquals(line, json.has(SignalKConstants.UPDATES), mc.has(MessageClass.HAS_UPDATES));
+				assertEquals(line, json.has(SignalKConstants.pgn), mc.has(MessageClass.HAS_PGN));
+				assertEquals(line, json.has(SignalKConstants.vessels), mc.has(MessageClass.HAS_VESSELS));
+				if (json.has(SignalKConstants.CONTEXT))
+					assertEquals(json.at(SignalKConstants.CONTEXT).asString(), mc.getContext());
+			}
+		}
+	}
+
+	@Test
+	public void shouldDecodeEscapes() {
+		// the firewall checks the context for self, so it must be the decoded value
+		MessageClass mc = MessageClass.classify("{\"context\":\"vessels.s\\u0065lf\",\"updates\":[]}");
+		assertEquals(MessageClass.DELTA, mc.getType());
+		assertEquals("vessels.self", mc.getContext());
+		assertEquals(Json.read("{\"context\":\"vessels.s\\u0065lf\"}").at(SignalKConstants.CONTEXT).asString(), mc.getContext());
+
+		// and escaped keys are still the same keys
+		mc = MessageClass.classify("{\"c\\u006fntext\":\"vessels.self\",\"" + ConfigConstants.REPLY_TO + "\":\"a\\\"b\",\"updates\":[]}");
+		assertTrue(mc.has(MessageClass.HAS_CONTEXT));
+		assertEquals("vessels.self", mc.getContext());
+		assertEquals("a\"b", mc.getReplyTo());
+	}
+
+	@Test
+	public void shouldRejectInvalidJson() {
+		for (String msg : new String[] { "{\"context\":}", "{\"context\":\"vessels.self\",\"updates\":[{\"values\":[}]}",
+				"{\"context\":\"vessels.self\"} {}", "{\"context\":\"vessels.self\\x\"}", "{context:\"vessels.self\"}" }) {
+			MessageClass mc = MessageClass.classify(msg);
+			assertFalse(msg, mc.isValid());
+			assertEquals(msg, MessageClass.INVALID, mc.getType());
+		}
+		assertTrue(MessageClass.classify("{\"context\":\"vessels.self\",\"updates\":[]}").isValid());
+	}
+}
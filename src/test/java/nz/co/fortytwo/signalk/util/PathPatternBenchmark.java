@@ -0,0 +1,78 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.processor.SignalkProcessor;
+
+/**
+ * Rough comparison of the compiled pattern with the old regex over the keys from replaying plaka.nmea.
+ * Not part of the test suite, run it from the ide or with exec:java.
+ */
+public class PathPatternBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		Util.getConfig();
+		Util.setSelf("motu");
+		SignalKModelFactory.getMotuTestInstance();
+		List<String> events = PathPatternTest.readKeys();
+		List<Pattern> regex = new ArrayList<>();
+		List<PathPattern> compiled = new ArrayList<>();
+		for (String path : PathPatternTest.PATHS) {
+			regex.add(SignalkProcessor.regexPath(path));
+			compiled.add(PathPattern.compile(path));
+		}
+		long regexTime = 0;
+		long compiledTime = 0;
+		// the first runs warm up
+		for (int run = 0; run < 5; run++) {
+			long start = System.nanoTime();
+			long hits = 0;
+			for (String key : events) {
+				for (Pattern p : regex) {
+					if (p.matcher(key).find())
+						hits++;
+				}
+			}
+			regexTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (String key : events) {
+				for (PathPattern p : compiled) {
+					if (p.matches(key))
+						hits--;
+				}
+			}
+			compiledTime = System.nanoTime() - start;
+			if (hits != 0)
+				System.out.println("Different matches: " + hits);
+		}
+		System.out.println(events.size() + " keys x " + PathPatternTest.PATHS.length + " paths: regex " + regexTime / 1000000 + "ms, compiled " + compiledTime / 1000000 + "ms");
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import nz.co.fortytwo.signalk.handler.NMEAHandler;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.processor.SignalkProcessor;
+
+public class PathPatternTest {
+
+	private static Logger logger = LogManager.getLogger(PathPatternTest.class);
+
+	@BeforeClass
+	public static void init() throws Exception {
+		Util.getConfig();
+		Util.setSelf("motu");
+		SignalKModelFactory.getMotuTestInstance();
+	}
+
+	@Test
+	public void shouldMatchSegments() {
+		String key = "vessels.motu.navigation";
+		assertTrue(PathPattern.matchSegment("*", key, 8, 12));
+		assertTrue(PathPattern.matchSegment("mo?u", key, 8, 12));
+		assertTrue(PathPattern.matchSegment("m*", key, 8, 12));
+		assertTrue(PathPattern.matchSegment("*u", key, 8, 12));
+		assertTrue(PathPattern.matchSegment("m*t*u*", key, 8, 12));
+		assertFalse(PathPattern.matchSegment("mot", key, 8, 12));
+		assertFalse(PathPattern.matchSegment("motu?", key, 8, 12));
+		assertFalse(PathPattern.matchSegment("*x", key, 8, 12));
+	}
+
+	@Test
+	public void shouldMatchPathAndBelow() {
+		PathPattern p = PathPattern.compile("vessels.*.navigation");
+		assertTrue(p.matches("vessels.motu.navigation"));
+		assertTrue(p.matches("vessels.motu.navigation.position.latitude"));
+		assertFalse(p.matches("vessels.motu"));
+		assertFalse(p.matches("vessels.motu.navigationx"));
+		assertFalse(p.matches("vessels.motu.environment.wind"));
+		// anchored at the start
+		assertFalse(p.matches("resources.vessels.motu.navigation"));
+
+		p = PathPattern.compile("vessels.motu?.navigation");
+		assertTrue(p.matches("vessels.motux.navigation.courseOverGroundTrue"));
+		assertFalse(p.matches("vessels.motu.navigation.courseOverGroundTrue"));
+
+		assertTrue(PathPattern.compile("*").matches("vessels"));
+		assertTrue(PathPattern.compile("*").matches("sources.nmea.0183"));
+	}
+
+	@Test
+	public void shouldNotCrossSegments() {
+		String path = "vessels.*.navigation.course*True";
+		String key = "vessels.motu.navigation.courseRhumbline.nextPoint.bearingTrue";
+		// the old regex runs the * across the dots
+		assertTrue(SignalkProcessor.regexPath(path).matcher(key).find());
+		assertFalse(PathPattern.compile(path).matches(key));
+		assertTrue(PathPattern.compile(path).matches("vessels.motu.navigation.courseOverGroundTrue"));
+	}
+
+	@Test
+	public void shouldShareAndDescribe() {
+		PathPattern p = PathPattern.compile("vessels.*.navigation");
+		assertSame(p, PathPattern.compile("vessels.*.navigation"));
+		assertEquals("vessels", p.getLiteralPrefix());
+		assertTrue(p.isWildcard());
+		p = PathPattern.compile("vessels.motu.navigation");
+		assertEquals("vessels.motu.navigation", p.getLiteralPrefix());
+		assertFalse(p.isWildcard());
+		assertEquals("", PathPattern.compile("*").getLiteralPrefix());
+	}
+
+	/**
+	 * Compares the compiled pattern with the old regex over the keys from replaying plaka.nmea.
+	 */
+	@Test
+	public void shouldMatchLikeRegex() throws Exception {
+		Set<String> distinct = new LinkedHashSet<>(readKeys());
+		for (String path : PATHS) {
+			Pattern regex = SignalkProcessor.regexPath(path);
+			PathPattern compiled = PathPattern.compile(path);
+			for (String key : distinct) {
+				assertEquals(path + " : " + key, regex.matcher(key).find(), compiled.matches(key));
+			}
+		}
+	}
+
+	static final String[] PATHS = new String[] { "vessels.*", "vessels.motu.navigation", "vessels.*.navigation.course*", "vessels.*.environment",
+			"vessels.motu?.navigation" };
+
+	/**
+	 * The keys from replaying plaka.nmea, in order, with repeats
+	 */
+	static List<String> readKeys() throws Exception {
+		List<String> lines = FileUtils.readLines(new File("src/test/resources/samples/plaka.nmea"));
+		NMEAHandler nmea = new NMEAHandler();
+		List<String> events = new ArrayList<>();
+		for (String line : lines) {
+			try {
+				SignalKModel node = nmea.handle(line, null);
+				if (node != null) {
+					events.addAll(node.getKeys());
+				}
+			} catch (Exception e) {
+				logger.debug(e.getMessage());
+			}
+		}
+		return events;
+	}
+}
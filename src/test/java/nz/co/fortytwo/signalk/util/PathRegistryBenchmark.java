@@ -0,0 +1,56 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+/**
+ * Rough comparison of building a vessel key by concatenation against resolving it in the registry, as TrackProcessor once did.
+ * Not part of the test suite, run it from the ide or with exec:java.
+ */
+public class PathRegistryBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		PathRegistry registry = PathRegistry.getInstance();
+		int vessel = registry.id("vessels.bench");
+		int loops = 1000000;
+		long total = 0;
+		long concat = 0;
+		long resolve = 0;
+		// the first runs warm up
+		for (int run = 0; run < 5; run++) {
+			long start = System.nanoTime();
+			for (int x = 0; x < loops; x++) {
+				total += ("vessels.bench" + SignalKConstants.dot + "navigation.position.latitude").length();
+			}
+			concat = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int x = 0; x < loops; x++) {
+				total += registry.path(registry.resolve(vessel, "navigation.position.latitude")).length();
+			}
+			resolve = System.nanoTime() - start;
+		}
+		System.out.println(loops + " keys: concatenation " + concat / 1000000 + "ms, resolve " + resolve / 1000000 + "ms (" + total + ")");
+	}
+}
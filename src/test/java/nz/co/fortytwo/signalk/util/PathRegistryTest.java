@@ -0,0 +1,124 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PathRegistryTest {
+
+	private PathRegistry registry = PathRegistry.getInstance();
+
+	@Test
+	public void shouldKeepIds() {
+		int id = registry.id("vessels.regtest.navigation.courseOverGroundTrue");
+		assertEquals(id, registry.id(new String("vessels.regtest.navigation.courseOverGroundTrue")));
+		assertEquals(id, registry.find("vessels.regtest.navigation.courseOverGroundTrue"));
+		assertEquals(-1, registry.find("vessels.regtest.navigation.notThere"));
+		assertSame(registry.path(id), registry.intern(new String("vessels.regtest.navigation.courseOverGroundTrue")));
+	}
+
+	@Test
+	public void shouldLinkParents() {
+		int id = registry.id("vessels.regtest2.navigation.position.latitude");
+		int position = registry.find("vessels.regtest2.navigation.position");
+		int vessel = registry.find("vessels.regtest2");
+		assertTrue(position >= 0);
+		assertTrue(vessel >= 0);
+		assertEquals(position, registry.parent(id));
+		assertEquals(-1, registry.parent(registry.find("vessels")));
+		int lon = registry.id("vessels.regtest2.navigation.position.longitude");
+		int[] children = registry.children(position);
+		assertEquals(2, children.length);
+		assertEquals(id, children[0]);
+		assertEquals(lon, children[1]);
+		assertTrue(registry.isBelow(vessel, id));
+		assertFalse(registry.isBelow(id, vessel));
+		assertFalse(registry.isBelow(registry.id("vessels.regtest3"), id));
+	}
+
+	@Test
+	public void shouldResolveRelative() {
+		int vessel = registry.id("vessels.regtest4");
+		int lat = registry.resolve(vessel, "navigation.position.latitude");
+		assertEquals(registry.id("vessels.regtest4.navigation.position.latitude"), lat);
+		assertEquals(lat, registry.resolve(vessel, "navigation.position.latitude"));
+		assertEquals("vessels.regtest4.navigation.position.latitude", registry.path(lat));
+	}
+
+	@Test
+	public void shouldReleaseKeys() {
+		int vessel = registry.id("vessels.regtest6");
+		int lat = registry.retain("vessels.regtest6.navigation.position.latitude");
+		int lon = registry.retain("vessels.regtest6.navigation.position.longitude");
+		int position = registry.parent(lat);
+		assertEquals(lat, registry.resolve(vessel, "navigation.position.latitude"));
+		long released = registry.getReleased();
+
+		registry.release("vessels.regtest6.navigation.position.latitude");
+		// resolve pinned it
+		assertEquals(lat, registry.find("vessels.regtest6.navigation.position.latitude"));
+
+		registry.release("vessels.regtest6.navigation.position.longitude");
+		assertEquals(-1, registry.find("vessels.regtest6.navigation.position.longitude"));
+		assertEquals(released + 1, registry.getReleased());
+		assertEquals(1, registry.children(position).length);
+
+		int speed = registry.retain("vessels.regtest7.navigation.speedOverGround");
+		registry.release("vessels.regtest7.navigation.speedOverGround");
+		// the key and its parents are all gone
+		assertEquals(-1, registry.find("vessels.regtest7.navigation.speedOverGround"));
+		assertEquals(-1, registry.find("vessels.regtest7.navigation"));
+		assertEquals(-1, registry.find("vessels.regtest7"));
+		assertTrue(registry.find("vessels") >= 0);
+		// and the ids are used again, rather than new ones
+		int again = registry.retain("vessels.regtest8.navigation.speedOverGround");
+		assertTrue(again <= speed);
+		registry.release("vessels.regtest8.navigation.speedOverGround");
+		assertEquals(-1, registry.findRelative(vessel, "navigation.position.longitude"));
+	}
+
+	@Test
+	public void shouldNotAddOnLookup() {
+		String key = "vessels.regtest9.navigation.courseOverGroundTrue.value";
+		assertEquals("vessels.regtest9.navigation.courseOverGroundTrue.timestamp", registry.sibling(key, "timestamp"));
+		assertEquals("vessels.regtest9.navigation.courseOverGroundTrue", registry.parentPath(key));
+		assertEquals(-1, registry.find(key));
+		assertEquals(-1, registry.find("vessels.regtest9"));
+
+		registry.retain(key);
+		int ts = registry.retain("vessels.regtest9.navigation.courseOverGroundTrue.timestamp");
+		assertSame(registry.path(ts), registry.sibling(key, "timestamp"));
+		assertEquals(registry.path(registry.parent(ts)), registry.parentPath(key));
+		registry.release(key);
+		registry.release("vessels.regtest9.navigation.courseOverGroundTrue.timestamp");
+		assertEquals(-1, registry.find("vessels.regtest9"));
+	}
+}
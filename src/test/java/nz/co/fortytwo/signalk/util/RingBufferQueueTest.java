@@ -0,0 +1,213 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+
+public class RingBufferQueueTest {
+
+	private static Logger logger = LogManager.getLogger(RingBufferQueueTest.class);
+
+	@Test
+	public void shouldRoundCapacityToPowerOfTwo() {
+		assertEquals(8, new RingBufferQueue<String>(5, RingBufferQueue.Policy.REJECT, 0).getCapacity());
+		assertEquals(1024, new RingBufferQueue<String>(1024, RingBufferQueue.Policy.REJECT, 0).getCapacity());
+	}
+
+	@Test
+	public void shouldBeFifo() {
+		RingBufferQueue<String> queue = new RingBufferQueue<String>(4, RingBufferQueue.Policy.REJECT, 0);
+		for (int x = 0; x < 10; x++) {
+			assertTrue(queue.offer("a" + x));
+			assertTrue(queue.offer("b" + x));
+			assertEquals(2, queue.size());
+			assertEquals("a" + x, queue.poll());
+			assertEquals("b" + x, queue.poll());
+		}
+		assertNull(queue.poll());
+		assertEquals(0, queue.size());
+	}
+
+	@Test
+	public void shouldRejectWhenFull() {
+		RingBufferQueue<String> queue = new RingBufferQueue<String>(2, RingBufferQueue.Policy.REJECT, 0);
+		assertTrue(queue.offer("1"));
+		assertTrue(queue.offer("2"));
+		assertFalse(queue.offer("3"));
+		assertEquals(1, queue.getRejected());
+		try {
+			queue.add("4");
+			assertTrue("Should have thrown", false);
+		} catch (IllegalStateException e) {
+			assertEquals("Queue full", e.getMessage());
+		}
+		assertEquals("1", queue.poll());
+		assertTrue(queue.offer("3"));
+	}
+
+	@Test
+	public void shouldDropWhenFull() {
+		RingBufferQueue<String> queue = new RingBufferQueue<String>(2, RingBufferQueue.Policy.DROP, 0);
+		assertTrue(queue.offer("1"));
+		assertTrue(queue.offer("2"));
+		assertTrue(queue.offer("3"));
+		assertEquals(1, queue.getDropped());
+		assertEquals(2, queue.size());
+		assertEquals("1", queue.poll());
+		assertEquals("2", queue.poll());
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void shouldBlockThenDrop() {
+		RingBufferQueue<String> queue = new RingBufferQueue<String>(2, RingBufferQueue.Policy.BLOCK, 20);
+		queue.offer("1");
+		queue.offer("2");
+		long start = System.currentTimeMillis();
+		assertTrue(queue.offer("3"));
+		assertTrue(System.currentTimeMillis() - start >= 15);
+		assertEquals(1, queue.getDropped());
+	}
+
+	@Test
+	public void shouldWakeWaitingConsumer() throws Exception {
+		final RingBufferQueue<String> queue = new RingBufferQueue<String>(16, RingBufferQueue.Policy.REJECT, 0);
+		new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+				}
+				queue.offer("late");
+			}
+		}.start();
+		assertEquals("late", queue.poll(5, TimeUnit.SECONDS));
+		assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * A tiny buffer, so both the consumer and the producer park on almost every message. take() and put() wait without a
+	 * timeout, so a lost wakeup hangs a thread and the join times out.
+	 */
+	@Test
+	public void shouldNotLoseWakeups() throws Exception {
+		final int count = 200000;
+		final RingBufferQueue<Integer> queue = new RingBufferQueue<Integer>(2, RingBufferQueue.Policy.BLOCK, 0);
+		final int[] received = new int[1];
+		Thread consumer = new Thread() {
+			public void run() {
+				try {
+					for (int x = 0; x < count; x++) {
+						assertEquals(x, queue.take().intValue());
+						received[0]++;
+					}
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		Thread producer = new Thread() {
+			public void run() {
+				try {
+					for (int x = 0; x < count; x++) {
+						queue.put(x);
+					}
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		consumer.setDaemon(true);
+		producer.setDaemon(true);
+		consumer.start();
+		producer.start();
+		producer.join(60000);
+		consumer.join(60000);
+		assertFalse("producer stuck", producer.isAlive());
+		assertFalse("consumer stuck after " + received[0], consumer.isAlive());
+		assertEquals(count, received[0]);
+		assertEquals(0, queue.getDropped());
+	}
+
+	@Test
+	public void shouldHandOffFromManyProducers() throws Exception {
+		final int producers = 4;
+		final int count = 100000;
+		final RingBufferQueue<long[]> queue = new RingBufferQueue<long[]>(1024, RingBufferQueue.Policy.BLOCK, 10000);
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int p = 0; p < producers; p++) {
+			final int id = p;
+			Thread t = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (long x = 0; x < count; x++) {
+						queue.offer(new long[] { id, x });
+					}
+				}
+			};
+			t.start();
+			threads.add(t);
+		}
+		long[] last = new long[producers];
+		for (int p = 0; p < producers; p++) {
+			last[p] = -1;
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		int received = 0;
+		while (received < producers * count) {
+			long[] msg = queue.poll(5, TimeUnit.SECONDS);
+			if (msg == null)
+				break;
+			// each producer's messages arrive in the order they were sent
+			assertEquals(last[(int) msg[0]] + 1, msg[1]);
+			last[(int) msg[0]] = msg[1];
+			received++;
+		}
+		logger.info("Handed off " + received + " messages in " + (System.nanoTime() - begin) / 1000000 + "ms");
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(producers * count, received);
+		assertEquals(0, queue.getDropped());
+		assertNull(queue.poll());
+	}
+}
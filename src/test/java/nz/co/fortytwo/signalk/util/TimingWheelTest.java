@@ -0,0 +1,123 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is part of the signalk-server-java project
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+	private static Logger logger = LogManager.getLogger(TimingWheelTest.class);
+
+	@Test
+	public void shouldExpireAtDeadline() {
+		TimingWheel<String> wheel = new TimingWheel<>(1000, 0);
+		wheel.touch("a", 5000);
+		wheel.touch("b", 120000);
+		wheel.touch("c", 30 * 60 * 1000);
+		List<String> expired = new ArrayList<>();
+		assertEquals(0, wheel.advance(4999, expired));
+		assertEquals(1, wheel.advance(5000, expired));
+		assertEquals("a", expired.get(0));
+		expired.clear();
+		assertEquals(0, wheel.advance(119000, expired));
+		assertEquals(1, wheel.advance(120000, expired));
+		assertEquals("b", expired.get(0));
+		expired.clear();
+		assertEquals(0, wheel.advance(30 * 60 * 1000 - 1, expired));
+		assertEquals(1, wheel.advance(30 * 60 * 1000, expired));
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void shouldMoveOnTouch() {
+		TimingWheel<String> wheel = new TimingWheel<>(1000, 0);
+		wheel.touch("a", 10000);
+		List<String> expired = new ArrayList<>();
+		wheel.advance(9000, expired);
+		wheel.touch("a", 9000 + 600000);
+		assertEquals(1, wheel.size());
+		assertEquals(0, wheel.advance(600000, expired));
+		assertTrue(wheel.contains("a"));
+		assertEquals(1, wheel.advance(609000, expired));
+		assertFalse(wheel.contains("a"));
+		assertFalse(wheel.remove("a"));
+	}
+
+	@Test
+	public void shouldExpireAcrossLevels() {
+		Random random = new Random(42);
+		TimingWheel<Integer> wheel = new TimingWheel<>(1000, 0);
+		long[] deadlines = new long[5000];
+		long now = 0;
+		for (int x = 0; x < deadlines.length; x++) {
+			// up to a week, so every level is used
+			deadlines[x] = now + (long) (random.nextDouble() * 7 * 24 * 3600 * 1000);
+			wheel.touch(x, deadlines[x]);
+		}
+		List<Integer> expired = new ArrayList<>();
+		while (wheel.size() > 0) {
+			long last = now;
+			now += 1 + random.nextInt(600000);
+			expired.clear();
+			wheel.advance(now, expired);
+			for (Integer x : expired) {
+				// rounded up to a tick, never early, and not due before the last advance
+				assertTrue(deadlines[x] <= now);
+				assertTrue((deadlines[x] + 999) / 1000 * 1000 > last / 1000 * 1000);
+			}
+		}
+		logger.debug("Expired all by " + now);
+	}
+
+	@Test
+	public void shouldExpireEachOnTime() {
+		TimingWheel<Integer> wheel = new TimingWheel<>(1000, 0);
+		Random random = new Random(7);
+		long[] deadlines = new long[2000];
+		for (int x = 0; x < deadlines.length; x++) {
+			deadlines[x] = (1 + random.nextInt(300000)) * 1000L;
+			wheel.touch(x, deadlines[x]);
+		}
+		List<Integer> expired = new ArrayList<>();
+		for (long now = 0; wheel.size() > 0; now += 1000) {
+			expired.clear();
+			wheel.advance(now, expired);
+			for (Integer x : expired) {
+				assertEquals(deadlines[x], now);
+			}
+		}
+	}
+}